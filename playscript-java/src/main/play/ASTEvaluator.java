@@ -1,9 +1,11 @@
 package play;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
 
+import org.antlr.v4.runtime.ParserRuleContext;
 import play.PlayScriptParser.*;
 
 /**
@@ -17,12 +19,79 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
     // 堆，用于保存对象
     public ASTEvaluator(AnnotatedTree at) {
         this.at = at;
+        this.inlineCaches = new NodeMap<>(at.nodeCount);
     }
 
     protected boolean traceStackFrame = false;
 
     protected boolean traceFunctionCall = false;
 
+    //性能剖析器，用-prof参数启用时才有
+    protected Profiler profiler = null;
+
+    //分层执行，用-tiered参数启用时才有
+    protected TieredCompiler tiered = null;
+
+    //当前函数的计数器，用来统计循环的回跳次数。全局代码，或者没有启用分层执行时是null
+    private TieredCompiler.FunctionCounter currentCounter = null;
+
+    ///////////////////////////////////////////////////////////
+    /// 控制流
+    /// break、continue和return语句不返回特殊的对象，而是设置下面的状态。
+    /// 语句块、循环和函数调用执行完一个语句后检查这个状态，决定是否继续执行。整个过程不需要创建对象。
+
+    //正常执行
+    private static final int NORMAL = 0;
+    //遇到了break语句，要跳出循环或带标签的语句
+    private static final int BREAK = 1;
+    //遇到了continue语句，要跳到循环的下一次
+    private static final int CONTINUE = 2;
+    //遇到了return语句，要退出函数
+    private static final int RETURN = 3;
+
+    //当前的控制流状态
+    private int completion = NORMAL;
+
+    //break和continue的标签。不带标签的时候是null
+    private String completionLabel = null;
+
+    //return语句的返回值
+    private Object returnValue = null;
+
+    /**
+     * 循环结束一次迭代后，处理break和continue。
+     * @param label 循环的标签，可以为null
+     * @return 循环是否要结束。包括break，以及要由外层处理的return、外层循环的break和continue
+     */
+    private boolean loopShouldExit(String label) {
+        if (completion == NORMAL) {
+            return false;
+        }
+        boolean ownLabel = completionLabel == null || completionLabel.equals(label);
+        if (completion == CONTINUE && ownLabel) {
+            completion = NORMAL;
+            completionLabel = null;
+            return false;
+        }
+        if (completion == BREAK && ownLabel) {
+            completion = NORMAL;
+            completionLabel = null;
+        }
+        return true;
+    }
+
+    /**
+     * 循环语句的标签，例如 outer: while(...)
+     * @param ctx
+     * @return
+     */
+    private String labelOf(StatementContext ctx) {
+        if (ctx.parent instanceof StatementContext && ((StatementContext) ctx.parent).identifierLabel != null) {
+            return ((StatementContext) ctx.parent).identifierLabel.getText();
+        }
+        return null;
+    }
+
     ///////////////////////////////////////////////////////////
     /// 栈桢的管理
     private Stack<StackFrame> stack = new Stack<StackFrame>();
@@ -32,73 +101,71 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
      * 其中最重要的任务，是要保证栈桢的parentFrame设置正确。否则，
      * (1)随着栈的变深，查找变量的性能会降低；
      * (2)甚至有可能找错栈桢，比如在递归(直接或间接)的场景下。
+     * parentFrame是词法上的外层作用域的栈桢（静态链接），由调用者给出，这里不再在栈里查找。
      * @param frame
+     * @param parentFrame
      */
-    private void pushStack(StackFrame frame) {
-        if (stack.size() > 0) {
-            //从栈顶到栈底依次查找
-            for (int i = stack.size()-1; i>0; i--){
-                StackFrame f = stack.get(i);
-
-                /*
-                如果新加入的栈桢，跟某个已有的栈桢的enclosingScope是一样的，那么这俩的parentFrame也一样。
-                因为它们原本就是同一级的嘛。
-                比如：
-                void foo(){};
-                void bar(foo());
-
-                或者：
-                void foo();
-                if (...){
-                    foo();
-                }
-                */
-                if (f.scope.enclosingScope == frame.scope.enclosingScope){
-                    frame.parentFrame = f.parentFrame;
-                    break;
-                }
+    private void pushStack(StackFrame frame, StackFrame parentFrame) {
+        frame.parentFrame = parentFrame;
+        stack.push(frame);
 
-                /*
-                如果新加入的栈桢，是某个已有的栈桢的下一级，那么就把把这个父子关系建立起来。比如：
-                void foo(){
-                    if (...){  //把这个块往栈桢里加的时候，就符合这个条件。
-                    }
-                }
-                再比如,下面的例子:
-                class MyClass{
-                    void foo();
-                }
-                MyClass c = MyClass();  //先加Class的栈桢，里面有类的属性，包括父类的
-                c.foo();                //再加foo()的栈桢
-                 */
-                else if (f.scope == frame.scope.enclosingScope){
-                    frame.parentFrame = f;
-                    break;
-                }
+        if (traceStackFrame){
+            dumpStackFrame();
+        }
+    }
 
-                /*
-                这是针对函数可能是一等公民的情况。这个时候，函数运行时的作用域，与声明时的作用域会不一致。
-                我在这里设计了一个“receiver”的机制，意思是这个函数是被哪个变量接收了。要按照这个receiver的作用域来判断。
-                 */
-                else if (frame.object instanceof FunctionObject){
-                    FunctionObject functionObject = (FunctionObject)frame.object;
-                    if (functionObject.receiver != null && functionObject.receiver.enclosingScope == f.scope) {
-                        frame.parentFrame = f;
-                        break;
-                    }
-                }
-            }
+    /**
+     * 块的栈桢入栈。块总是在它的外层作用域里执行的，所以parentFrame就是当前的栈顶。
+     * @param frame
+     */
+    private void pushStack(StackFrame frame) {
+        pushStack(frame, stack.isEmpty() ? null : stack.peek());
+    }
 
-            if (frame.parentFrame == null){
-                frame.parentFrame = stack.peek();
+    /**
+     * 沿着静态链接向上，找到某个Scope的栈桢。经过的层数只跟词法作用域的嵌套有关，跟调用栈的深度无关。
+     * 对于类，栈桢里可能是子类的对象。
+     * @param scope
+     * @return 找不到的话返回null
+     */
+    private StackFrame frameOfScope(Scope scope) {
+        StackFrame f = stack.isEmpty() ? null : stack.peek();
+        while (f != null) {
+            if (f.scope == scope || (scope instanceof Class && f.scope instanceof Class && ((Class) f.scope).isType((Class) scope))) {
+                return f;
             }
+            f = f.parentFrame;
         }
+        return null;
+    }
 
-        stack.push(frame);
+    /**
+     * 函数调用时，新栈桢的parentFrame，也就是被调用函数外层作用域的栈桢。
+     * 直接调用的函数，SlotResolver已经算出了要从当前栈桢向上走几层。
+     * 函数型变量里的函数（比如闭包），沿静态链接查找它声明时的外层作用域；
+     * 找不到的话，按接收它的变量（receiver）的作用域来找，它的闭包变量存在FunctionObject里。
+     * @param ctx 调用处的AST节点
+     * @param functionObject
+     * @return
+     */
+    private StackFrame staticLinkOf(FunctionCallContext ctx, FunctionObject functionObject) {
+        Function function = functionObject.function;
+        VariableAddress link = at.staticLinkOfNode.get(ctx);
+        if (link != null && at.symbolOfNode.get(ctx) == function) {
+            StackFrame f = stack.peek();
+            for (int i = 0; i < link.depth && f != null; i++) {
+                f = f.parentFrame;
+            }
+            if (f != null && link.matches(f.scope)) {
+                return f;
+            }
+        }
 
-        if (traceStackFrame){
-            dumpStackFrame();
+        StackFrame f = frameOfScope(function.enclosingScope);
+        if (f == null && functionObject.receiver != null) {
+            f = frameOfScope(functionObject.receiver.enclosingScope);
         }
+        return f != null ? f : stack.peek();
     }
 
     private void popStack(){
@@ -113,34 +180,77 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         System.out.println("-----------------------------\n");
     }
 
+    /**
+     * 按照SlotResolver算出的静态地址获取左值：沿parentFrame向上走固定层数，然后按槽位访问。
+     * 如果没有地址，或者运行时的栈桢跟编译期算出来的对不上（比如闭包），就按原来的方式逐级查找。
+     * @param variable
+     * @param node 引用变量的AST节点
+     * @return
+     */
+    public LValue getLValue(Variable variable, ParserRuleContext node) {
+        VariableAddress address = at.addressOfNode.get(node);
+        if (address != null) {
+            StackFrame f = stack.peek();
+            for (int i = 0; i < address.depth && f != null; i++) {
+                f = f.parentFrame;
+            }
+            if (f != null && address.matches(f.scope)) {
+                return new MyLValue(variable, f.object, f.slots, address.slot);
+            }
+        }
+
+        return getLValue(variable);
+    }
+
+    /**
+     * 读取变量的值。跟getLValue(variable, node).getValue()的结果一样，但不创建LValue对象。
+     * @param variable
+     * @param node 引用变量的AST节点
+     * @return
+     */
+    public Object getValue(Variable variable, ParserRuleContext node) {
+        VariableAddress address = at.addressOfNode.get(node);
+        if (address != null) {
+            StackFrame f = stack.peek();
+            for (int i = 0; i < address.depth && f != null; i++) {
+                f = f.parentFrame;
+            }
+            if (f != null && address.matches(f.scope)) {
+                //对于this或super关键字，直接返回这个对象
+                if (variable instanceof This || variable instanceof Super) {
+                    return f.object;
+                }
+                Object rtn = f.slots[address.slot];
+                return rtn == null ? NullObject.instance() : rtn;
+            }
+        }
+
+        return getLValue(variable).getValue();
+    }
+
     public LValue getLValue(Variable variable) {
         StackFrame f = stack.peek();
 
-        PlayObject valueContainer = null;
         while (f != null) {
             if (f.scope.containsSymbol(variable)) { //对于对象来说，会查找所有父类的属性
-                valueContainer = f.object;
-                break;
+                return new MyLValue(variable, f.object, f.slots, variable.slot);
             }
             f = f.parentFrame;
         }
 
         //通过正常的作用域找不到，就从闭包里找
         //原理：PlayObject中可能有一些变量，其作用域跟StackFrame.scope是不同的。
-        if (valueContainer == null){
-            f = stack.peek();
-            while (f != null) {
-                if (f.contains(variable)) {
-                    valueContainer = f.object;
-                    break;
-                }
-                f = f.parentFrame;
+        PlayObject valueContainer = null;
+        f = stack.peek();
+        while (f != null) {
+            if (f.contains(variable)) {
+                valueContainer = f.object;
+                break;
             }
+            f = f.parentFrame;
         }
 
-        MyLValue lvalue = new MyLValue(valueContainer, variable);
-
-        return lvalue;
+        return new MyLValue(variable, valueContainer, null, -1);
     }
 
 
@@ -169,12 +279,14 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
     private void getClosureValues(ClassObject classObject){
         //先放在一个临时对象里，避免对classObject即读又写
         PlayObject tempObject = new PlayObject();
-        for ( Variable v : classObject.fields.keySet()) {
-            if (v.type instanceof FunctionType) {
-                Object object = classObject.fields.get(v);
-                if (object != null) {
-                    FunctionObject functionObject = (FunctionObject) object;
-                    getClosureValues(functionObject.function, tempObject);
+        for (Class theClass = classObject.type; theClass != null; theClass = theClass.getParentClass()) {
+            for (Symbol symbol : theClass.symbols) {
+                if (symbol instanceof Variable && ((Variable) symbol).type instanceof FunctionType) {
+                    Object object = classObject.slots[((Variable) symbol).slot];
+                    if (object instanceof FunctionObject) {
+                        FunctionObject functionObject = (FunctionObject) object;
+                        getClosureValues(functionObject.function, tempObject);
+                    }
                 }
             }
         }
@@ -190,9 +302,15 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         private Variable variable;
         private PlayObject valueContainer;
 
-        public MyLValue(PlayObject valueContainer, Variable variable) {
-            this.valueContainer = valueContainer;
+        //变量所在栈桢（或对象）的槽位数组。如果为null，则按Variable存放在valueContainer里，比如闭包变量。
+        private Object[] slots;
+        private int slot;
+
+        public MyLValue(Variable variable, PlayObject valueContainer, Object[] slots, int slot) {
             this.variable = variable;
+            this.valueContainer = valueContainer;
+            this.slots = slots;
+            this.slot = slot;
         }
 
         @Override
@@ -202,12 +320,25 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
                 return valueContainer;
             }
 
+            if (slots != null) {
+                Object rtn = slots[slot];
+                //替换成自己的NullObject
+                if (rtn == null) {
+                    rtn = NullObject.instance();
+                }
+                return rtn;
+            }
+
             return valueContainer.getValue(variable);
         }
 
         @Override
         public void setValue(Object value) {
-            valueContainer.setValue(variable, value);
+            if (slots != null) {
+                slots[slot] = value;
+            } else {
+                valueContainer.setValue(variable, value);
+            }
 
             //如果variable是函数型变量，那改变functionObject.receiver
             if (value instanceof FunctionObject){
@@ -238,9 +369,16 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
     protected ClassObject createAndInitClassObject(Class theClass) {
         ClassObject obj = new ClassObject();
         obj.type = theClass;
+        if (profiler != null) {
+            profiler.allocate();
+        }
+        obj.slots = new Object[theClass.frameSize]; //所有属性缺省都是null
 
         Stack<Class> ancestorChain = new Stack<Class>();
 
+        //对象的栈桢的外层，是声明类的作用域
+        StackFrame parentFrame = frameOfScope(theClass.enclosingScope);
+
         // 从上到下执行缺省的初始化方法
         ancestorChain.push(theClass);
         while (theClass.getParentClass() != null) {
@@ -250,7 +388,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
         // 执行缺省的初始化方法
         StackFrame frame = new StackFrame(obj);
-        pushStack(frame);
+        pushStack(frame, parentFrame);
         while (ancestorChain.size() > 0) {
             Class c = ancestorChain.pop();
             defaultObjectInit(c, obj);
@@ -262,13 +400,6 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
     // 类的缺省初始化方法
     protected void defaultObjectInit(Class theClass, ClassObject obj) {
-        for (Symbol symbol : theClass.symbols) {
-            // 把变量加到obj里，缺省先都初始化成null，不允许有未初始化的
-            if (symbol instanceof Variable) {
-                obj.fields.put((Variable) symbol, null);
-            }
-        }
-
         // 执行缺省初始化
         ClassBodyContext ctx = ((ClassDeclarationContext) theClass.ctx).classBody();
         visitClassBody(ctx);
@@ -496,6 +627,12 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
     @Override
     public Object visitExpression(ExpressionContext ctx) {
+        //编译时已经算出来的常量，不用再计算子表达式
+        Object constant = at.constantOfNode.get(ctx);
+        if (constant != null) {
+            return constant;
+        }
+
         Object rtn = null;
         if (ctx.bop != null && ctx.expression().size() >= 2) {
             Object left = visitExpression(ctx.expression(0));
@@ -572,8 +709,9 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT) {
             // 此语法是左递归的，算法体现这一点
             Object leftObject = visitExpression(ctx.expression(0));
-            if (leftObject instanceof LValue) {
-                Object value = ((LValue) leftObject).getValue();
+            Variable leftSymbol = at.symbolOfNode.get(ctx.expression(0)) instanceof Variable ? (Variable) at.symbolOfNode.get(ctx.expression(0)) : null;
+            if (leftObject instanceof LValue || leftSymbol != null) {
+                Object value = leftObject instanceof LValue ? ((LValue) leftObject).getValue() : leftObject;
                 if (value instanceof ClassObject) {
                     ClassObject valueContainer = (ClassObject) value;
                     Variable leftVar = (Variable)at.symbolOfNode.get(ctx.expression(0));
@@ -586,8 +724,12 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
                             //类的成员可能需要重载
                             variable = at.lookupVariable(valueContainer.type, variable.getName());
                         }
-                        LValue lValue = new MyLValue(valueContainer, variable);
-                        rtn = lValue;
+                        if (at.lValueNodes.containsKey(ctx)) {
+                            rtn = new MyLValue(variable, valueContainer, valueContainer.slots, variable.slot);
+                        } else {
+                            Object fieldValue = valueContainer.slots[variable.slot];
+                            rtn = fieldValue == null ? NullObject.instance() : fieldValue;
+                        }
                     } else if (ctx.functionCall() != null) {
                         //要先计算方法的参数，才能加对象的StackFrame.
                         if (traceFunctionCall){
@@ -767,9 +909,17 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         else if (ctx.IDENTIFIER() != null) {
             Symbol symbol = at.symbolOfNode.get(ctx);
             if (symbol instanceof Variable) {
-                rtn = getLValue((Variable) symbol);
+                //只有赋值的时候才需要左值，读变量的时候直接返回值
+                if (at.lValueNodes.containsKey(ctx)) {
+                    rtn = getLValue((Variable) symbol, ctx);
+                } else {
+                    rtn = getValue((Variable) symbol, ctx);
+                }
             } else if (symbol instanceof Function) {
                 FunctionObject obj = new FunctionObject((Function) symbol);
+                if (profiler != null) {
+                    profiler.allocate();
+                }
                 rtn = obj;
             }
         }
@@ -780,12 +930,12 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         //this
         else if (ctx.THIS() != null){
             This thisRef = (This)at.symbolOfNode.get(ctx);
-            rtn = getLValue(thisRef);
+            rtn = getValue(thisRef, ctx);
         }
         //super
         else if (ctx.SUPER() != null){
             Super superRef = (Super) at.symbolOfNode.get(ctx);
-            rtn = getLValue(superRef);
+            rtn = getValue(superRef, ctx);
         }
 
         return rtn;
@@ -831,6 +981,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         //while循环
         else if (ctx.WHILE() != null) {
             if (ctx.parExpression().expression() != null && ctx.statement(0) != null) {
+                String label = labelOf(ctx);
 
                 while (true) {
                     //每次循环都要计算一下循环条件
@@ -847,14 +998,13 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
                         if (condition) {
                             rtn = visitStatement(ctx.statement(0));
 
-                            //break
-                            if (rtn instanceof BreakObject){
-                                rtn = null;  //清除BreakObject，也就是只跳出一层循环
+                            //break、return等
+                            if (loopShouldExit(label)){
                                 break;
                             }
-                            //return
-                            else if (rtn instanceof ReturnObject){
-                                break;
+
+                            if (currentCounter != null) {
+                                currentCounter.countBackEdge();
                             }
                         }
                     }
@@ -875,6 +1025,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
             pushStack(frame);
 
             ForControlContext forControl = ctx.forControl();
+            String label = labelOf(ctx);
             if (forControl.enhancedForControl() != null) {
 
             } else {
@@ -898,13 +1049,8 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
                         // 执行for的语句体
                         rtn = visitStatement(ctx.statement(0));
 
-                        //处理break
-                        if (rtn instanceof BreakObject){
-                            rtn = null;
-                            break;
-                        }
-                        //return
-                        else if (rtn instanceof ReturnObject){
+                        //处理break、return等。continue会接着执行forUpdate
+                        if (loopShouldExit(label)){
                             break;
                         }
 
@@ -912,6 +1058,10 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
                         if (forControl.forUpdate != null) {
                             visitExpressionList(forControl.forUpdate);
                         }
+
+                        if (currentCounter != null) {
+                            currentCounter.countBackEdge();
+                        }
                     } else {
                         break;
                     }
@@ -930,7 +1080,23 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
         //break语句
         else if (ctx.BREAK() != null) {
-            rtn = BreakObject.instance();
+            completion = BREAK;
+            completionLabel = ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null;
+        }
+
+        //continue语句
+        else if (ctx.CONTINUE() != null) {
+            completion = CONTINUE;
+            completionLabel = ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null;
+        }
+
+        //带标签的语句。如果是循环，标签由循环自己处理
+        else if (ctx.identifierLabel != null) {
+            rtn = visitStatement(ctx.statement(0));
+            if (completion == BREAK && ctx.identifierLabel.getText().equals(completionLabel)) {
+                completion = NORMAL;
+                completionLabel = null;
+            }
         }
 
         //return语句
@@ -938,7 +1104,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
             if (ctx.expression() != null) {
                 rtn = visitExpression(ctx.expression());
 
-                //return语句应该不需要左值   //TODO 取左值的场景需要优化，目前都是取左值。
+                //return语句不需要左值
                 if (rtn instanceof LValue){
                     rtn = ((LValue)rtn).getValue();
                 }
@@ -956,8 +1122,9 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
             }
 
-            //把真实的返回值封装在一个ReturnObject对象里，告诉visitBlockStatements停止执行下面的语句
-            rtn = new ReturnObject(rtn);
+            //记下返回值，告诉visitBlockStatements停止执行下面的语句
+            returnValue = rtn;
+            completion = RETURN;
         }
         return rtn;
     }
@@ -985,7 +1152,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
     public Object visitVariableDeclaratorId(VariableDeclaratorIdContext ctx) {
         Object rtn = null;
         Symbol symbol = at.symbolOfNode.get(ctx);
-        rtn = getLValue((Variable) symbol);
+        rtn = getLValue((Variable) symbol, ctx);
         return rtn;
     }
 
@@ -1014,14 +1181,8 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         for (BlockStatementContext child : ctx.blockStatement()) {
             rtn = visitBlockStatement(child);
 
-            //如果返回的是break，那么不执行下面的语句
-            if (rtn instanceof BreakObject){
-                break;
-            }
-
-            //碰到Return, 退出函数
-            // TODO 要能层层退出一个个block，弹出一个栈桢
-            else if (rtn instanceof ReturnObject){
+            //碰到break、continue或return，不执行下面的语句
+            if (completion != NORMAL){
                 break;
             }
         }
@@ -1040,6 +1201,34 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         return rtn;
     }
 
+    //REPL里的全局栈桢，每段新输入的脚本都在它上面执行
+    private StackFrame globalFrame = null;
+
+    /**
+     * 在REPL里执行一段新输入的脚本。全局变量保存在同一个栈桢里，新脚本声明了新的全局变量，栈桢就扩充一下。
+     * 出了运行时错误以后，栈和控制流状态都要复原，下一段脚本才能正常执行。
+     * @param ctx 新脚本的AST
+     * @return 最后一个语句的值
+     */
+    public Object evaluateIncrementally(ProgContext ctx) {
+        BlockScope scope = (BlockScope) at.node2Scope.get(ctx);
+        if (globalFrame == null) {
+            globalFrame = new StackFrame(scope);
+        } else if (globalFrame.slots.length < scope.frameSize) {
+            globalFrame.slots = Arrays.copyOf(globalFrame.slots, scope.frameSize);
+        }
+
+        pushStack(globalFrame, null);
+        try {
+            return visitBlockStatements(ctx.blockStatements());
+        } finally {
+            stack.clear();
+            completion = NORMAL;
+            completionLabel = null;
+            returnValue = null;
+        }
+    }
+
     @Override
     public Object visitFunctionCall(FunctionCallContext ctx) {
         //this
@@ -1096,7 +1285,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
             System.out.println("\n>>FunctionCall : " + ctx.getText());
         }
 
-        rtn = functionCall(functionObject, paramValues);
+        rtn = functionCall(functionObject, paramValues, staticLinkOf(ctx, functionObject));
 
         return rtn;
     }
@@ -1137,7 +1326,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         //函数类型的变量
         if (symbol instanceof Variable) {
             Variable variable = (Variable) symbol;
-            LValue lValue = getLValue(variable);
+            LValue lValue = getLValue(variable, ctx);
             Object value = lValue.getValue();
             if (value instanceof FunctionObject) {
                 functionObject = (FunctionObject) value;
@@ -1167,14 +1356,27 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
      * 执行一个函数的方法体。需要先设置参数值，然后再执行代码。
      * @param functionObject
      * @param paramValues
+     * @param parentFrame 函数外层作用域的栈桢
      * @return
      */
-    private Object functionCall(FunctionObject functionObject, List<Object> paramValues){
+    private Object functionCall(FunctionObject functionObject, List<Object> paramValues, StackFrame parentFrame){
         Object rtn = null;
 
+        //分层执行：已经编译成JVM字节码的函数，直接执行编译结果
+        TieredCompiler.FunctionCounter counter = null;
+        if (tiered != null) {
+            counter = tiered.counterOf(functionObject.function);
+            if (counter.countInvocation()) {
+                return counter.invoke(paramValues.toArray());
+            }
+        }
+
         //添加函数的栈桢
         StackFrame functionFrame = new StackFrame(functionObject);
-        pushStack(functionFrame);
+        pushStack(functionFrame, parentFrame);
+        if (profiler != null) {
+            profiler.enter(functionObject.function);
+        }
 
         // 给参数赋值，这些值进入functionFrame
         FunctionDeclarationContext functionCode = (FunctionDeclarationContext) functionObject.function.ctx;
@@ -1187,14 +1389,22 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         }
 
         // 调用函数（方法）体
+        TieredCompiler.FunctionCounter callerCounter = currentCounter;
+        currentCounter = counter;
         rtn = visitFunctionDeclaration(functionCode);
+        currentCounter = callerCounter;
 
         // 弹出StackFrame
         popStack(); //函数的栈桢
+        if (profiler != null) {
+            profiler.exit();
+        }
 
-        //如果由一个return语句返回，真实返回值会被封装在一个ReturnObject里。
-        if (rtn instanceof ReturnObject){
-            rtn = ((ReturnObject)rtn).returnValue;
+        //如果由一个return语句返回，返回值记在returnValue里。
+        if (completion == RETURN){
+            rtn = returnValue;
+            returnValue = null;
+            completion = NORMAL;
         }
 
         return rtn;
@@ -1215,7 +1425,8 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         //查找函数，并根据需要创建FunctionObject
         //如果查找到的是类的属性，FunctionType型的，需要把在对象的栈桢里查。
         StackFrame classFrame = new StackFrame(classObject);
-        pushStack(classFrame);
+        StackFrame parentFrame = frameOfScope(classObject.type.enclosingScope);
+        pushStack(classFrame, parentFrame);
 
         FunctionObject funtionObject = getFuntionObject(ctx);
 
@@ -1226,10 +1437,9 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         //对普通的类方法，需要在运行时动态绑定
         Class theClass = classObject.type;   //这是从对象获得的类型，是真实类型。可能是变量声明时的类型的子类
         if (!function.isConstructor() && !isSuper) {
-            //从当前类逐级向上查找，找到正确的方法定义
-            Function overrided = theClass.getFunction(function.name, function.getParamTypes());
             //原来这个function，可能指向一个父类的实现。现在从子类中可能找到重载后的方法，这个时候要绑定到子类的方法上
-            if (overrided != null && overrided != function) {
+            Function overrided = dispatch(ctx, theClass, function);
+            if (overrided != function) {
                 function = overrided;
                 funtionObject.setFunction(function);
             }
@@ -1240,10 +1450,11 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
         //对象的frame要等到函数参数都计算完了才能添加。
         //StackFrame classFrame = new StackFrame(classObject);
-        pushStack(classFrame);
+        pushStack(classFrame, parentFrame);
 
-        //执行函数
-        rtn = functionCall(funtionObject, paramValues);
+        //执行函数。方法的外层作用域就是对象；函数型的属性，按函数自己的静态链接
+        StackFrame functionParent = function.isMethod() ? classFrame : staticLinkOf(ctx, funtionObject);
+        rtn = functionCall(funtionObject, paramValues, functionParent);
 
         //弹出栈桢
         popStack();
@@ -1251,6 +1462,67 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
         return rtn;
     }
 
+    ///////////////////////////////////////////////////////////
+    /// 方法调用的内联缓存
+    /// 每个方法调用点记住最近遇到的对象的类，以及对应的方法。一开始只有一个类（单态），
+    /// 最多记录POLYMORPHIC_LIMIT个类（多态）。再多的话（超态），就不再缓存，直接查类的虚方法表。
+
+    private static final int POLYMORPHIC_LIMIT = 4;
+
+    //按调用点的节点编号存放，不用每次调用都做哈希查找。REPL里新输入的脚本编号更大，NodeMap会自动扩容
+    private NodeMap<InlineCache> inlineCaches = null;
+
+    private static class InlineCache {
+        //对象的类
+        private Class[] classes = new Class[POLYMORPHIC_LIMIT];
+        //调用时解析到的方法。对于函数型的属性，每次调用的可能不一样，所以也要作为缓存的key
+        private Function[] declared = new Function[POLYMORPHIC_LIMIT];
+        //实际要调用的方法
+        private Function[] targets = new Function[POLYMORPHIC_LIMIT];
+        private int size = 0;
+        private boolean megamorphic = false;
+    }
+
+    /**
+     * 找到对象实际要调用的方法
+     * @param ctx 方法调用点
+     * @param theClass 对象的真实类型
+     * @param function 调用时解析到的方法
+     * @return
+     */
+    private Function dispatch(FunctionCallContext ctx, Class theClass, Function function){
+        InlineCache cache = inlineCaches.get(ctx);
+        if (cache == null){
+            cache = new InlineCache();
+            inlineCaches.put(ctx, cache);
+        }
+
+        if (cache.megamorphic){
+            return theClass.getOverride(function);
+        }
+
+        for (int i = 0; i < cache.size; i++){
+            if (cache.classes[i] == theClass && cache.declared[i] == function){
+                return cache.targets[i];
+            }
+        }
+
+        Function target = theClass.getOverride(function);
+        if (cache.size < POLYMORPHIC_LIMIT){
+            cache.classes[cache.size] = theClass;
+            cache.declared[cache.size] = function;
+            cache.targets[cache.size] = target;
+            cache.size++;
+        }
+        else{
+            cache.megamorphic = true;
+            cache.classes = null;
+            cache.declared = null;
+            cache.targets = null;
+        }
+        return target;
+    }
+
     private void thisConstructor(FunctionCallContext ctx){
         Symbol symbol = at.symbolOfNode.get(ctx);
         //if (symbol instanceof Class){  //缺省构造函数
@@ -1263,7 +1535,7 @@ public class ASTEvaluator extends PlayScriptBaseVisitor<Object> {
 
             List<Object> paramValues = calcParamValues(ctx);
 
-            functionCall(functionObject, paramValues);
+            functionCall(functionObject, paramValues, staticLinkOf(ctx, functionObject));
         }
     }
 
@@ -18,17 +18,34 @@ public class AnnotatedTree {
     // AST
     protected ParseTree ast = null;
 
+    // 已经编号的AST节点的个数。REPL里下一段脚本的节点从这个编号开始
+    protected int nodeCount = 0;
+
     // 解析出来的所有类型，包括类和函数，以后还可以包括数组和枚举。类的方法也作为单独的要素放进去。
     protected List<Type> types = new LinkedList<Type>();
 
+    // 下面这些节点上的标注都用NodeMap保存，以节点的编号为下标
+
     // AST节点对应的Symbol
-    protected Map<ParserRuleContext, Symbol> symbolOfNode = new HashMap<ParserRuleContext, Symbol>();
+    protected NodeMap<Symbol> symbolOfNode = new NodeMap<Symbol>();
 
     // AST节点对应的Scope，如for、函数调用会启动新的Scope
-    protected Map<ParserRuleContext, Scope> node2Scope = new HashMap<ParserRuleContext, Scope>();
+    protected NodeMap<Scope> node2Scope = new NodeMap<Scope>();
 
     // 用于做类型推断，每个节点推断出来的类型
-    protected Map<ParserRuleContext, Type> typeOfNode = new HashMap<ParserRuleContext, Type>();
+    protected NodeMap<Type> typeOfNode = new NodeMap<Type>();
+
+    // 变量引用的静态地址（栈桢深度，槽位），由SlotResolver计算
+    protected NodeMap<VariableAddress> addressOfNode = new NodeMap<VariableAddress>();
+
+    // 函数调用的静态链接：从调用处沿parentFrame向上走几层，是被调用函数的外层作用域的栈桢，由SlotResolver计算
+    protected NodeMap<VariableAddress> staticLinkOfNode = new NodeMap<VariableAddress>();
+
+    // 作为左值使用的变量和属性引用，也就是赋值和++、--的对象，由SlotResolver计算。其他的引用都只需要读取变量的值
+    protected NodeMap<Boolean> lValueNodes = new NodeMap<Boolean>();
+
+    // 编译时就能确定值的表达式，以及它们的值，由ConstantFolder计算
+    protected NodeMap<Object> constantOfNode = new NodeMap<Object>();
 
     // 命名空间
     NameSpace nameSpace = null;  //全局命名空间
@@ -36,6 +53,12 @@ public class AnnotatedTree {
     //语义分析过程中生成的信息，包括普通信息、警告和错误
     protected List<CompilationLog> logs = new LinkedList<CompilationLog>();
 
+    //记录编译信息的同时是否打印出来。并行编译的时候不打印，由调用者从logs里读取
+    protected boolean printLogs = true;
+
+    //不为null的时候，编译信息先记到这里，不加到logs里，也不打印。FusedListener用它给每一遍扫描单独记录编译信息
+    protected List<CompilationLog> logBuffer = null;
+
     //在构造函数里,引用的this()。第二个函数是被调用的构造函数
     protected Map<Function, Function> thisConstructorRef = new HashMap<>();
 
@@ -61,9 +84,55 @@ public class AnnotatedTree {
         log.positionInLine = ctx.getStart().getStartIndex();
         log.type = type;
 
+        addLog(log);
+    }
+
+    /**
+     * 记录没有对应AST节点的编译信息，比如语法错误
+     * @param message
+     * @param type  信息类型，ComplilationLog中的INFO、WARNING和ERROR
+     * @param line
+     * @param positionInLine
+     */
+    protected void log(String message, int type, int line, int positionInLine) {
+        CompilationLog log = new CompilationLog();
+        log.message = message;
+        log.line = line;
+        log.positionInLine = positionInLine;
+        log.type = type;
+
+        addLog(log);
+    }
+
+    private void addLog(CompilationLog log) {
+        if (logBuffer != null) {
+            logBuffer.add(log);
+            return;
+        }
+
         logs.add(log);
 
-        System.out.println(log);
+        if (printLogs) {
+            System.out.println(log);
+        }
+    }
+
+    /**
+     * 把先记在缓冲区里的编译信息加到logs里，需要的话同时打印出来
+     * @param buffered
+     */
+    protected void appendLogs(List<CompilationLog> buffered) {
+        for (CompilationLog log : buffered) {
+            addLog(log);
+        }
+    }
+
+    /**
+     * 编译过程中生成的信息，包括普通信息、警告和错误
+     * @return
+     */
+    public List<CompilationLog> getLogs() {
+        return Collections.unmodifiableList(logs);
     }
 
     public void log(String message, ParserRuleContext ctx) {
@@ -74,7 +143,7 @@ public class AnnotatedTree {
      * 是否有编译错误
      * @return
      */
-    protected boolean hasCompilationError(){
+    public boolean hasCompilationError(){
         for (CompilationLog log : logs){
             if (log.type == CompilationLog.ERROR){
                 return true;
@@ -195,8 +264,8 @@ public class AnnotatedTree {
     }
 
     private Function getFunctionOnlyByName(Scope scope, String name){
-        for (Symbol s : scope.symbols){
-            if (s instanceof Function && s.name.equals(name)){
+        for (Symbol s : scope.getSymbols(name)){
+            if (s instanceof Function){
                 return  (Function)s;
             }
         }
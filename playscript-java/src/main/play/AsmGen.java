@@ -289,6 +289,12 @@ public class AsmGen extends PlayScriptBaseVisitor<String> {
     @Override
     public String visitExpression(ExpressionContext ctx) {
         String address = "";
+
+        //编译时已经算出来的整数常量，作为直接操作数
+        Object constant = at.constantOfNode.get(ctx);
+        if (constant instanceof Integer) {
+            return "$" + constant;
+        }
         // 二元运算
         if (ctx.bop != null && ctx.expression().size() >= 2) {
             String left = visitExpression(ctx.expression(0));
@@ -2,16 +2,18 @@ package play;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class BlockScope extends Scope{
     //给block编号的数字
-    private static int index = 1;
+    private static final AtomicInteger index = new AtomicInteger(1);
 
     protected BlockScope(){
-        this.name = "block" +index++;
+        this.name = "block" +index.getAndIncrement();
     }
     
     protected BlockScope(Scope enclosingScope, ParserRuleContext ctx) {
-        this.name = "block" +index++;
+        this.name = "block" +index.getAndIncrement();
         this.enclosingScope = enclosingScope;
         this.ctx = ctx;
     }
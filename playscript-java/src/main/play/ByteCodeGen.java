@@ -1,42 +1,99 @@
 package play;
 
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.objectweb.asm.Label;
 import play.PlayScriptParser.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 
 /**
- * 测试把playscript生成字节码的示例程序。
+ * 把playscript编译成Java字节码，由JVM执行。
  *
  * 机制：
  * 1.生成一个DefaultPlayClass.class
  *
- * 2.全局的代码，封装到main()方法中。
+ * 2.全局的代码，封装到静态的run()方法中，main()方法调用run()。全局变量是run()的本地变量；被函数引用的全局变量，
+ *   是DefaultPlayClass的字段，每次调用run()都创建一个新的DefaultPlayClass对象，所以run()可以在多个线程里同时调用。
+ *   指定为参数的全局变量，从run()的参数取值；最后一个语句如果是表达式语句，它的值装箱以后作为run()的返回值。
+ *   CompiledScript用run()实现编译一次、执行多次的脚本。
  *
- * 3.函数变成了DefaultPlayClass的方法。
+ * 3.全局的函数变成了DefaultPlayClass的方法。函数里的变量，包括块作用域里的变量，都是方法的本地变量。
  *
- * 4.目前特性：
- * (1)数据类型只支持int
- * (2)加减乘除运算
- * (3)变量声明和初始化
- * (4)函数声明和调用
- * (5)println()系统函数，参数目前也只支持一个整数。
+ * 4.每个类生成一个JVM类，名称是DefaultPlayClass$类名，父类也是这样生成的类。属性是带类型的字段，方法是虚方法，
+ *   用invokevirtual调用，由JVM做动态绑定；super.方法()用invokespecial。对象通过字段this$0引用DefaultPlayClass的实例，
+ *   用来访问全局变量和调用全局函数。
+ *   跟解释器一样，创建对象时先从父类到子类执行属性的初始化，这是生成的构造方法<init>做的；再执行声明的构造方法。
+ *   声明的构造方法生成与类同名的方法，this()和super()用invokespecial调用另一个构造方法。
+ *   不带限定的方法调用，跟解释器一样是静态绑定的，也用invokespecial。
  *
- * 5.运行示例程序： java play.PlayScript -bc bytecode.play
+ * 5.函数是一等公民。函数类型对应接口DefaultPlayClass$FunctionN，只有一个apply方法，参数和返回值都是Object，
+ *   参数个数相同、都有返回值或者都没有返回值的函数类型共用一个接口；函数型的值是这个接口的对象，
+ *   用invokedynamic调用LambdaMetafactory创建，调用函数型的变量就是调用apply方法，不需要反射。
+ *   内层函数也是DefaultPlayClass的方法。它引用的外层函数的变量（Function.closureVariables），放在长度为1的数组里，
+ *   外层函数和内层函数共享这个数组，内层函数的方法在参数前面多出这些数组；创建函数型的值的时候，把数组一起带走。
+ *   全局变量是DefaultPlayClass的字段，不需要这样处理。
+ *
+ * 6.目前特性：
+ * (1)数据类型：int、long、float、double、boolean、char和String。short和byte按int处理。
+ * (2)加减乘除运算，按照语义分析推断出来的类型计算。字符串连接用一个StringBuilder完成。
+ * (3)比较运算，以及&&、||和!。用作if和循环的条件时，直接生成条件跳转指令，&&和||是短路求值的。
+ * (4)变量声明、赋值、++和--。解释器在赋值、传参和返回时不做类型转换，比如float f = 1;以后f的值还是Integer，打印出来是1。
+ *   UnboxingAnalyzer找出运行时的类型一定跟声明的类型一样的变量和参数，它们按声明的类型存放；其他基础类型的变量装箱以后按Object存放，
+ *   存入的值保持原来的类型，参加运算的时候再按Number取出所需类型的值，跟解释器一样。函数的返回值也是这样处理。
+ *   没有初始化的变量和null，打印出来是Null。
+ * (5)if、while、for语句，break和continue，可以带标签。
+ * (6)函数声明和调用。
+ * (7)println()系统函数，按参数的类型调用System.out.println()。
+ * (8)ConstantFolder算出来的常量直接压栈，条件是常量的分支不生成代码。
+ * (9)类、对象的创建、属性的访问和方法调用，以及this和super。
+ * (10)函数型的变量、参数和属性，内层函数和闭包。
+ *
+ * 遇到方法里的内层函数、嵌套的类、switch等，抛出UnsupportedOperationException，
+ * 由调用者退回到解释器去执行。子类重新声明了同名属性的时候，解释器按对象的真实类型查找属性，这种情况也不支持。
+ * 解释器没有实现+=、-=等复合赋值和一元的+、-（复合赋值不改变变量，一元运算的值是null），这些也退回到解释器，得到跟解释器一样的结果。
+ * 有返回值、但可能执行到末尾而没有return的函数，解释器返回最后一个语句的值，这种情况也不支持。
+ *
+ * 7.运行示例程序： java play.PlayScript -bc bytecode.play
+ *
+ * 8.generateFunctions()只生成几个函数的方法，TieredCompiler用它把解释执行中的热点函数编译成JVM字节码。
  */
 public class ByteCodeGen extends PlayScriptBaseVisitor<Object> implements Opcodes{
 
     // 之前的编译结果
     private AnnotatedTree at = null;
 
+    // 常量折叠的结果，通常就是at.constantOfNode
+    private NodeMap<Object> constantOfNode = null;
+
     public ByteCodeGen(AnnotatedTree at) {
+        this(at, at.constantOfNode);
+    }
+
+    /**
+     * @param at
+     * @param constantOfNode 用来代替at.constantOfNode的常量折叠结果。CompiledScript把参数当作变量重新折叠，结果放在单独的表里
+     */
+    public ByteCodeGen(AnnotatedTree at, NodeMap<Object> constantOfNode) {
         this.at = at;
+        this.constantOfNode = constantOfNode;
     }
 
     ///////////////////////////////////////
@@ -47,378 +104,2634 @@ public class ByteCodeGen extends PlayScriptBaseVisitor<Object> implements Opcode
     //当前的MethodVisitor
     MethodVisitor mv = null;
 
-    //下一个本地变量的下标，要把方法的参数也算进去
+    //下一个本地变量的下标，要把方法的参数也算进去。long和double占两个位置
     int localVarIndex = 0;
 
-    //变量名与下标的映射表
-    Map<String, Integer> varName2Index = new HashMap<>();
+    //变量与本地变量下标的映射表
+    Map<Variable, Integer> localOfVariable = new LinkedHashMap<>();
+
+    //被函数引用的全局变量，放在DefaultPlayClass的字段里。值是字段名
+    Map<Variable, String> fieldOfVariable = new HashMap<>();
 
-    //是否产生了renturn语句。这是没有经过数据流检查的，所以是不严密的。
-    boolean returnGenerated = false;
+    //在声明之前就被引用的本地变量，比如块里对同名变量的赋值。要在方法的开头分配位置并初始化
+    Set<Variable> earlyVariables = new LinkedHashSet<>();
 
-    //this在参数中的位置。main方法中，我们存在1号位置。普通方法中，是在0好位置
+    //this在参数中的位置。main方法中，我们存在1号位置。普通方法中，是在0号位置
     int instanceIndex = 0;
 
+    //当前正在生成的函数，全局代码是null
+    Function currentFunction = null;
+
+    //当前正在生成的类的方法或属性初始化所属的类，全局代码和全局函数是null
+    Class currentClass = null;
+
+    //类对应的JVM类，值是内部名称
+    Map<Class, String> classNames = new LinkedHashMap<>();
+
+    //生成的所有类，key是内部名称
+    Map<String, byte[]> classes = new LinkedHashMap<>();
+
+    //生成整个脚本的时候才生成函数类型的接口。generateFunctions()不支持函数型的值
+    boolean wholeScript = false;
+
+    //函数类型对应的接口，key是apply方法的描述符，值是内部名称
+    Map<String, String> functionInterfaces = new LinkedHashMap<>();
+
+    //内层函数的方法名。全局函数和类的方法用原来的名称
+    Map<Function, String> methodNames = new HashMap<>();
+
+    //内层函数引用的外层函数的变量，按声明的顺序排列。它们作为方法最前面的参数传入
+    Map<Function, List<Variable>> capturedVariables = new HashMap<>();
+
+    //被内层函数引用的本地变量，放在长度为1的数组里
+    Set<Variable> cellVariables = new HashSet<>();
+
+    //生成的类名，内部名称的格式
+    String className = "DefaultPlayClass";
+
+    //要生成方法的函数。只能调用这些函数
+    Set<Function> compiledFunctions = new LinkedHashSet<>();
+
+    //作为run()的参数的全局变量
+    List<Variable> parameters = new ArrayList<>();
+
+    //break和continue可以跳转到的语句，最内层的在最前面
+    LinkedList<JumpTarget> jumpTargets = new LinkedList<>();
+
+    //按声明的类型存放的变量和参数，其他基础类型的变量装箱存放。由UnboxingAnalyzer算出来
+    Set<Variable> unboxed = new HashSet<>();
+
+    //参数和返回值都要装箱的函数：作为值使用的函数，以及有重载关系的方法。调用者不一定知道调用的是哪一个函数
+    Set<Function> boxedFunctions = new HashSet<>();
+
+    //返回值装箱的函数。返回的值不一定是声明的类型
+    Set<Function> boxedReturns = new HashSet<>();
+
+    //装箱存放的值的类型
+    private static final org.objectweb.asm.Type OBJECT_TYPE = org.objectweb.asm.Type.getObjectType("java/lang/Object");
+
+    /**
+     * break和continue可以跳转到的语句：循环，或者带标签的语句
+     */
+    private static class JumpTarget {
+        private String label = null;     //可以为null
+        private boolean isLoop = false;
+        private Label breakLabel = new Label();
+        private Label continueLabel = new Label();
+
+        private JumpTarget(String label, boolean isLoop) {
+            this.label = label;
+            this.isLoop = isLoop;
+        }
+    }
+
 
     ///////////////////////////////////////
     // 主控程序
-    public byte[] generate(){
-        cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    public Map<String, byte[]> generate(){
+        return generate(className, new ArrayList<>());
+    }
+
+    /**
+     * 生成整个脚本的类，以及脚本里声明的类
+     * @param className 类名，内部名称的格式
+     * @param parameters 作为run()的参数的全局变量，按参数的顺序排列。它们的声明不再做初始化，而是取参数的值。
+     *                   有参数的时候不生成main()
+     * @return 类的内部名称到.class内容的映射，第一个是脚本的类
+     */
+    public Map<String, byte[]> generate(String className, List<Variable> parameters){
+        this.className = className;
+        this.parameters = parameters;
+        wholeScript = true;
+
+        cw = new ScriptClassWriter();
 
-        //创建main函数
-        visitProg((ProgContext)at.ast);
+        //把全局的变量和函数封装到一个缺省的类中。
+        cw.visit(Opcodes.V1_8, ACC_PUBLIC + ACC_SUPER,
+                className, null, "java/lang/Object",null);
+
+        //缺省的构造函数
+        genDefaultConstructor(cw);
+
+        //先检查一遍函数，遇到不支持的特性尽早退出
+        List<Function> functions = collectFunctions();
+        compiledFunctions.addAll(functions);
+
+        //确定哪些变量、参数和返回值按声明的类型存放
+        analyzeValues();
+        for (Function function : functions) {
+            if (function.isMethod()) {
+                checkOverride(function);
+            }
+        }
+
+        //被函数引用的全局变量，以及在声明之前被引用的变量
+        genFields();
+        collectEarlyVariables();
+
+        //全局代码
+        genRun((ProgContext)at.ast);
+        if (parameters.isEmpty()) {
+            genMain();
+        }
 
         //创建其他函数
-        for (Type type : at.types){
-            if (type instanceof Function){
-                Function function = (Function) type;
-                FunctionDeclarationContext ctx = (FunctionDeclarationContext)function.ctx;
+        for (Function function : functions){
+            if (!function.isMethod()) {
+                genMethod((FunctionDeclarationContext) function.ctx);
+            }
+        }
+
+        cw.visitEnd();
+        classes.put(className, cw.toByteArray());
 
-                genMethod(ctx);
+        //脚本里声明的类
+        for (Class theClass : classNames.keySet()) {
+            genClass(theClass, functions);
+        }
+
+        //用到的函数类型
+        for (Map.Entry<String, String> entry : functionInterfaces.entrySet()) {
+            genInterface(entry.getValue(), entry.getKey());
+        }
+
+        return classes;
+    }
+
+    /**
+     * 只把几个全局函数编译成一个类的方法，没有main()，也没有字段。TieredCompiler用它在运行时编译热点函数。
+     * 函数只能访问自己的参数和局部变量，只能调用functions里的函数，否则抛出UnsupportedOperationException。
+     * @param className 类名，内部名称的格式，比如play/Jit$fib
+     * @param functions
+     * @return
+     */
+    public byte[] generateFunctions(String className, Collection<Function> functions) {
+        this.className = className;
+        for (Function function : functions) {
+            if (unitOf(function.enclosingScope) != at.nameSpace) {
+                throw unsupported("nested function " + function.getName(), function.ctx);
             }
+            compiledFunctions.add(function);
+        }
+
+        analyzeValues();
+
+        cw = new ScriptClassWriter();
+        cw.visit(Opcodes.V1_8, ACC_PUBLIC + ACC_SUPER, className, null, "java/lang/Object", null);
+        genDefaultConstructor(cw);
+
+        collectEarlyVariables();
+        for (Function function : compiledFunctions) {
+            genMethod((FunctionDeclarationContext) function.ctx);
         }
 
+        cw.visitEnd();
         return cw.toByteArray();
     }
 
+    private UnsupportedOperationException unsupported(String feature, ParserRuleContext ctx) {
+        if (ctx == null) {
+            return new UnsupportedOperationException(feature);
+        }
+        return new UnsupportedOperationException(feature + " @" + ctx.getStart().getLine() + ":" + ctx.getStart().getCharPositionInLine());
+    }
+
+    /**
+     * 所有要生成方法的函数，包括全局的函数和类的方法。同时为全局的类确定JVM类名
+     * @return
+     */
+    private List<Function> collectFunctions() {
+        List<Function> functions = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Type type : at.types) {
+            if (type instanceof Class) {
+                Class theClass = (Class) type;
+                if (unitOf(theClass.enclosingScope) != at.nameSpace) {
+                    throw unsupported("nested class " + theClass.getName(), theClass.ctx);
+                }
+
+                //不同块作用域里的类可能重名
+                String name = className + "$" + theClass.getName();
+                while (!names.add(name)) {
+                    name = name + "$";
+                }
+                classNames.put(theClass, name);
+            } else if (type instanceof Function) {
+                Function function = (Function) type;
+                if (!function.isMethod() && unitOf(function.enclosingScope) != at.nameSpace) {
+                    collectCaptured(function);
+                } else {
+                    names.add(function.getName());
+                }
+                functions.add(function);
+            }
+        }
+
+        for (Function function : functions) {
+            if (function.isMethod()) {
+                collectOverrides(function);
+            } else if (capturedVariables.containsKey(function)) {
+                //内层函数的方法名带上外层函数的名称
+                String name = function.getName();
+                for (Scope scope = unitOf(function.enclosingScope); scope != at.nameSpace; scope = unitOf(scope.enclosingScope)) {
+                    name = scope.getName() + "$" + name;
+                }
+                while (!names.add(name)) {
+                    name = name + "$";
+                }
+                methodNames.put(function, name);
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * 内层函数引用的外层函数的变量。外层函数也只能是全局函数或者内层函数，不能是类的方法
+     * @param function
+     */
+    private void collectCaptured(Function function) {
+        for (Scope scope = unitOf(function.enclosingScope); scope != at.nameSpace; scope = unitOf(scope.enclosingScope)) {
+            if (!(scope instanceof Function) || ((Function) scope).isMethod()) {
+                throw unsupported("function " + function.getName() + " in " + scope.getName(), function.ctx);
+            }
+        }
+
+        List<Variable> captured = new ArrayList<>();
+        if (function.closureVariables != null) {
+            for (Variable variable : function.closureVariables) {
+                //全局变量在DefaultPlayClass的字段里
+                if (unitOf(variable.enclosingScope) instanceof Function) {
+                    captured.add(variable);
+                }
+            }
+        }
+        captured.sort(Comparator.comparingInt(variable -> variable.ctx.getStart().getTokenIndex()));
+        capturedVariables.put(function, captured);
+        cellVariables.addAll(captured);
+    }
+
+    /**
+     * 父类里同名、参数个数相同的方法，跟这个方法有重载关系，调用的时候要到运行时才知道执行哪一个，参数和返回值都装箱
+     * @param function
+     */
+    private void collectOverrides(Function function) {
+        if (function.isConstructor()) {
+            return;
+        }
+        for (Class theClass = ((Class) function.enclosingScope).getParentClass(); theClass != null; theClass = theClass.getParentClass()) {
+            for (Symbol symbol : theClass.symbols) {
+                if (symbol instanceof Function && symbol.getName().equals(function.getName())
+                        && ((Function) symbol).parameters.size() == function.parameters.size()) {
+                    boxedFunctions.add(function);
+                    boxedFunctions.add((Function) symbol);
+                }
+            }
+        }
+    }
+
+    /**
+     * JVM按名称和描述符确定重载的方法，解释器按名称和参数类型。父类里同名、参数个数相同的方法，描述符必须一样
+     * @param function
+     */
+    private void checkOverride(Function function) {
+        if (function.isConstructor()) {
+            return;
+        }
+        String descriptor = genFunctionDescriptor(function);
+        for (Class theClass = ((Class) function.enclosingScope).getParentClass(); theClass != null; theClass = theClass.getParentClass()) {
+            for (Symbol symbol : theClass.symbols) {
+                if (symbol instanceof Function && symbol.getName().equals(function.getName())
+                        && ((Function) symbol).parameters.size() == function.parameters.size()
+                        && !genFunctionDescriptor((Function) symbol).equals(descriptor)) {
+                    throw unsupported("method " + function.getName() + " overriding with different types", function.ctx);
+                }
+            }
+        }
+    }
+
+    /**
+     * 确定哪些变量、参数和返回值按声明的类型存放。
+     * 可能在赋值之前被读取的变量，以及装箱的函数的参数，一直装箱；函数的每个return返回的值都是声明的类型，返回值才不用装箱。
+     * 调用这样的函数得到的值，类型也是确定的，所以要反复计算，直到装箱的返回值不再增加
+     */
+    private void analyzeValues() {
+        for (ParserRuleContext node : at.symbolOfNode.keys()) {
+            if (node instanceof PrimaryContext && at.symbolOfNode.get(node) instanceof Function) {
+                boxedFunctions.add((Function) at.symbolOfNode.get(node));
+            }
+        }
+        for (Function function : compiledFunctions) {
+            if (boxedFunctions.contains(function) && hasPrimitiveValue(declaredReturnType(function))) {
+                boxedReturns.add(function);
+            }
+        }
+        Set<Variable> uninitialized = uninitializedVariables();
+
+        boolean changed = true;
+        while (changed) {
+            UnboxingAnalyzer analyzer = new UnboxingAnalyzer(at) {
+                //返回值不装箱的函数，调用得到的值就是声明的类型
+                @Override
+                protected Type exactTypeOf(ExpressionContext ctx) {
+                    if (ctx.functionCall() != null) {
+                        Symbol symbol = at.symbolOfNode.get(ctx.functionCall());
+                        if (symbol instanceof Function && compiledFunctions.contains(symbol) && !boxedReturns.contains(symbol)
+                                && hasPrimitiveValue(declaredReturnType((Function) symbol))) {
+                            return ((Function) symbol).getReturnType();
+                        }
+                    }
+                    return super.exactTypeOf(ctx);
+                }
+            };
+            analyzer.keepBoxed(uninitialized);
+            for (Function function : boxedFunctions) {
+                analyzer.keepBoxed(function.parameters);
+            }
+            unboxed = analyzer.analyze();
+
+            changed = false;
+            for (Function function : compiledFunctions) {
+                if (hasPrimitiveValue(declaredReturnType(function)) && !boxedReturns.contains(function)
+                        && !returnsExactly(function, analyzer)) {
+                    boxedReturns.add(function);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 可能在赋值之前就被读取的变量，读到的是null：在声明之前就被引用的变量，
+     * 以及被函数引用、而全局代码在声明它之前就调用了函数的全局变量
+     * @return
+     */
+    private Set<Variable> uninitializedVariables() {
+        //全局代码里第一个函数调用的位置
+        int firstCall = Integer.MAX_VALUE;
+        for (ParserRuleContext node : at.symbolOfNode.keys()) {
+            if (node instanceof FunctionCallContext && !isInFunction(node)) {
+                firstCall = Math.min(firstCall, node.getStart().getTokenIndex());
+            }
+        }
+
+        Set<Variable> variables = new HashSet<>();
+        for (ParserRuleContext node : at.symbolOfNode.keys()) {
+            Symbol symbol = at.symbolOfNode.get(node);
+            if (isReference(node) && symbol instanceof Variable && symbol.ctx != null && !isMember((Variable) symbol)) {
+                int declaration = symbol.ctx.getStart().getTokenIndex();
+                if (node.getStart().getTokenIndex() < declaration
+                        || (isInFunction(node) && unitOf(symbol.enclosingScope) == at.nameSpace && firstCall < declaration)) {
+                    variables.add((Variable) symbol);
+                }
+            }
+        }
+        return variables;
+    }
+
+    //函数的每个return语句返回的值，运行时的类型都是声明的返回值类型
+    private static boolean returnsExactly(Function function, UnboxingAnalyzer analyzer) {
+        List<StatementContext> returns = new ArrayList<>();
+        collectReturns(((FunctionDeclarationContext) function.ctx).functionBody(), returns);
+        for (StatementContext statement : returns) {
+            if (statement.expression() == null || analyzer.exactTypeOf(statement.expression()) != function.getReturnType()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //函数里的return语句，不包括内层函数和类里的
+    private static void collectReturns(ParseTree node, List<StatementContext> returns) {
+        for (int i = 0; i < node.getChildCount(); i++) {
+            ParseTree child = node.getChild(i);
+            if (child instanceof FunctionDeclarationContext || child instanceof ClassDeclarationContext) {
+                continue;
+            }
+            if (child instanceof StatementContext && ((StatementContext) child).RETURN() != null) {
+                returns.add((StatementContext) child);
+            }
+            collectReturns(child, returns);
+        }
+    }
+
+    /**
+     * 语句执行完以后，会不会接着执行后面的语句。不确定的时候当作会
+     * @param ctx
+     * @return
+     */
+    private static boolean canCompleteNormally(BlockStatementsContext ctx) {
+        for (BlockStatementContext statement : ctx.blockStatement()) {
+            if (statement.statement() != null && !canCompleteNormally(statement.statement())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean canCompleteNormally(StatementContext ctx) {
+        if (ctx.RETURN() != null) {
+            return false;
+        } else if (ctx.blockLabel != null) {
+            return canCompleteNormally(ctx.blockLabel.blockStatements());
+        } else if (ctx.IF() != null && ctx.ELSE() != null) {
+            return canCompleteNormally(ctx.statement(0)) || canCompleteNormally(ctx.statement(1));
+        }
+        return true;
+    }
+
+    /**
+     * 被函数或类引用的全局变量，作为DefaultPlayClass的字段。其他的全局变量是main()的本地变量
+     */
+    private void genFields() {
+        Set<String> names = new HashSet<>();
+        for (ParserRuleContext node : at.symbolOfNode.keys()) {
+            Symbol symbol = at.symbolOfNode.get(node);
+            if (isReference(node) && symbol instanceof Variable && !fieldOfVariable.containsKey(symbol)
+                    && unitOf(symbol.enclosingScope) == at.nameSpace && isInFunction(node)) {
+                Variable variable = (Variable) symbol;
+
+                //不同块作用域里的全局变量可能重名
+                String name = variable.getName();
+                while (!names.add(name)) {
+                    name = name + "$";
+                }
+                fieldOfVariable.put(variable, name);
+                //脚本里的类也要访问，不能是私有的
+                cw.visitField(0, name, storageType(variable, variable.ctx).getDescriptor(), null, null).visitEnd();
+            }
+        }
+    }
+
+    private void collectEarlyVariables() {
+        for (ParserRuleContext node : at.symbolOfNode.keys()) {
+            Symbol symbol = at.symbolOfNode.get(node);
+            if (isReference(node) && symbol instanceof Variable && symbol.ctx != null
+                    && !fieldOfVariable.containsKey(symbol) && !isMember((Variable) symbol)
+                    && node.getStart().getTokenIndex() < symbol.ctx.getStart().getTokenIndex()) {
+                earlyVariables.add((Variable) symbol);
+            }
+        }
+    }
+
+    //对变量的引用：读写变量，或者调用函数型的变量
+    private static boolean isReference(ParserRuleContext node) {
+        return node instanceof PrimaryContext || node instanceof FunctionCallContext;
+    }
+
+    /**
+     * 在方法的开头，为在声明之前就被引用的变量分配位置，并存入缺省值
+     * @param unit 当前的函数，或者全局的NameSpace
+     */
+    private void declareEarlyVariables(Scope unit) {
+        for (Variable variable : earlyVariables) {
+            if (unitOf(variable.enclosingScope) == unit && !parameters.contains(variable)) {
+                declare(variable, variable.ctx);
+                assign(variable, null, false, variable.ctx);
+            }
+        }
+    }
+
+    //是否在函数或类里。类的属性初始化也在另一个方法里执行
+    private static boolean isInFunction(ParserRuleContext node) {
+        for (ParserRuleContext ctx = node.getParent(); ctx != null; ctx = ctx.getParent()) {
+            if (ctx instanceof FunctionDeclarationContext || ctx instanceof ClassBodyContext) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一个Scope所属的函数，全局的是NameSpace，类的方法是Class
+     * @param scope
+     * @return
+     */
+    private Scope unitOf(Scope scope) {
+        while (!(scope instanceof Function) && !(scope instanceof Class) && scope != at.nameSpace) {
+            scope = scope.enclosingScope;
+        }
+        return scope;
+    }
+
+
+    ///////////////////////////////////////
+    // 继承的visitor方法，用于产生asm代码片段
+
+    /**
+     * 全局代码生成的静态方法：Object run(参数)
+     * @param ctx
+     */
+    private void genRun(ProgContext ctx) {
+        mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "run", runDescriptor(), null, null);
+
+        //参数
+        localVarIndex = 0;
+        localOfVariable = new LinkedHashMap<>();
+        for (Variable param : parameters) {
+            mv.visitParameter(param.getName(), 0);
+        }
+
+        mv.visitCode();
+        Label l0 = new Label();
+        mv.visitLabel(l0);
+
+        //参数占用最前面的位置
+        for (Variable param : parameters) {
+            localOfVariable.put(param, localVarIndex);
+            localVarIndex += storageType(param, param.ctx).getSize();
+        }
+
+        ////创建一个DefaultPlayClass的实例，放在参数后面
+        instanceIndex = localVarIndex++;
+        mv.visitTypeInsn(NEW, className);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, className, "<init>", "()V", false);
+        mv.visitVarInsn(ASTORE, instanceIndex);
+
+        currentFunction = null;
+        currentClass = null;
+        jumpTargets.clear();
+
+        //被函数引用的参数，存到字段里
+        for (Variable param : parameters) {
+            String field = fieldOfVariable.get(param);
+            if (field != null) {
+                org.objectweb.asm.Type type = storageType(param, param.ctx);
+                mv.visitVarInsn(ALOAD, instanceIndex);
+                mv.visitVarInsn(type.getOpcode(ILOAD), localOfVariable.get(param));
+                mv.visitFieldInsn(PUTFIELD, className, field, type.getDescriptor());
+            }
+        }
+
+        declareEarlyVariables(at.nameSpace);
+
+        ////生成中间的代码。最后一个语句是表达式语句的话，它的值是返回值
+        List<BlockStatementContext> statements = ctx.blockStatements().blockStatement();
+        ExpressionContext result = null;
+        if (!statements.isEmpty()) {
+            StatementContext last = statements.get(statements.size() - 1).statement();
+            if (last != null && last.statementExpression != null && !(typeOf(last.statementExpression) instanceof VoidType)) {
+                result = last.statementExpression;
+            }
+        }
+        for (int i = 0; i < statements.size() - (result != null ? 1 : 0); i++) {
+            visitBlockStatement(statements.get(i));
+        }
+
+        if (result != null) {
+            visitExpression(result);
+            box(valueTypeOf(result));
+        } else {
+            mv.visitInsn(ACONST_NULL);
+        }
+        mv.visitInsn(ARETURN);
+
+        Label l1 = new Label();
+        mv.visitLabel(l1);
+
+        //设置本地变量，这一定要放在最后
+        genLocalVariables(l0, l1);
+
+        //操作数栈和本地变量的大小由ClassWriter计算
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * run()的描述符，参数是作为参数的全局变量存放的类型，返回Object
+     * @return
+     */
+    String runDescriptor() {
+        StringBuilder sb = new StringBuilder("(");
+        for (Variable param : parameters) {
+            sb.append(storageType(param, param.ctx).getDescriptor());
+        }
+        return sb.append(")Ljava/lang/Object;").toString();
+    }
+
+    /**
+     * main()只是调用run()，忽略返回值
+     */
+    private void genMain() {
+        mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC,
+                "main",
+                "([Ljava/lang/String;)V", //参数类型：String []
+                null, null);
+
+        //添加参数args
+        mv.visitParameter("args", 0);
+
+        mv.visitCode();
+        mv.visitMethodInsn(INVOKESTATIC, className, "run", "()Ljava/lang/Object;", false);
+        mv.visitInsn(POP);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * 为一个类生成JVM类：属性是字段，方法是虚方法，声明的构造方法是与类同名的方法
+     * @param theClass
+     * @param functions 所有要生成方法的函数
+     */
+    private void genClass(Class theClass, List<Function> functions) {
+        String name = classNames.get(theClass);
+        Class parentClass = theClass.getParentClass();
+
+        cw = new ScriptClassWriter();
+        cw.visit(Opcodes.V1_8, ACC_PUBLIC + ACC_SUPER, name, null,
+                parentClass != null ? classNameOf(parentClass, theClass.ctx) : "java/lang/Object", null);
+
+        //引用DefaultPlayClass实例的字段，由最顶层的父类声明
+        if (parentClass == null) {
+            cw.visitField(ACC_FINAL + ACC_SYNTHETIC, "this$0", "L" + className + ";", null, null).visitEnd();
+        }
+
+        for (Symbol symbol : theClass.symbols) {
+            if (symbol instanceof Variable) {
+                Variable variable = (Variable) symbol;
+                cw.visitField(ACC_PUBLIC, variable.getName(), storageType(variable, variable.ctx).getDescriptor(), null, null).visitEnd();
+            }
+        }
+
+        genInitializer(theClass);
+
+        for (Function function : functions) {
+            if (function.enclosingScope == theClass) {
+                genMethod((FunctionDeclarationContext) function.ctx);
+            }
+        }
+
+        cw.visitEnd();
+        classes.put(name, cw.toByteArray());
+    }
+
+    /**
+     * 类的构造方法<init>(DefaultPlayClass)：保存DefaultPlayClass的实例，执行父类的<init>，然后执行本类属性的初始化。
+     * 这样从父类到子类层层初始化，跟解释器的缺省初始化一样
+     * @param theClass
+     */
+    private void genInitializer(Class theClass) {
+        String name = classNames.get(theClass);
+        Class parentClass = theClass.getParentClass();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(L" + className + ";)V", null, null);
+        mv.visitParameter("this$0", ACC_FINAL + ACC_SYNTHETIC);
+        mv.visitCode();
+        Label l0 = new Label();
+        mv.visitLabel(l0);
+
+        localVarIndex = 2; //第0个参数是this，第1个是DefaultPlayClass的实例
+        localOfVariable = new LinkedHashMap<>();
+        currentFunction = null;
+        currentClass = theClass;
+        jumpTargets.clear();
+
+        mv.visitVarInsn(ALOAD, 0);
+        if (parentClass == null) {
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitFieldInsn(PUTFIELD, name, "this$0", "L" + className + ";");
+        } else {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKESPECIAL, classNameOf(parentClass, theClass.ctx), "<init>", "(L" + className + ";)V", false);
+        }
+
+        //属性的初始化
+        for (ClassBodyDeclarationContext member : ((ClassDeclarationContext) theClass.ctx).classBody().classBodyDeclaration()) {
+            if (member.memberDeclaration() != null && member.memberDeclaration().fieldDeclaration() != null) {
+                visitVariableDeclarators(member.memberDeclaration().fieldDeclaration().variableDeclarators());
+            }
+        }
+        mv.visitInsn(RETURN);
+
+        Label l1 = new Label();
+        mv.visitLabel(l1);
+        genLocalVariables(l0, l1);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    @Override
+    public Object visitBlock(BlockContext ctx) {
+        return visitBlockStatements(ctx.blockStatements());
+    }
+
+    @Override
+    public Object visitBlockStatements(BlockStatementsContext ctx) {
+        for (BlockStatementContext child : ctx.blockStatement()) {
+            visitBlockStatement(child);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStatement(BlockStatementContext ctx) {
+        if (ctx.variableDeclarators() != null) {
+            visitVariableDeclarators(ctx.variableDeclarators());
+        } else if (ctx.statement() != null) {
+            visitStatement(ctx.statement());
+        }
+        //函数和类单独生成
+        return null;
+    }
+
+    @Override
+    public Object visitVariableDeclarators(VariableDeclaratorsContext ctx) {
+        for (VariableDeclaratorContext child : ctx.variableDeclarator()) {
+            visitVariableDeclarator(child);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVariableDeclarator(VariableDeclaratorContext ctx) {
+        Variable variable = (Variable) at.symbolOfNode.get(ctx.variableDeclaratorId());
+
+        declare(variable, ctx);
+
+        //作为参数的全局变量，已经有了参数的值
+        if (parameters.contains(variable)) {
+            return null;
+        }
+
+        ExpressionContext initializer = null;
+        if (ctx.variableInitializer() != null) {
+            initializer = ctx.variableInitializer().expression();
+            if (initializer == null) {
+                throw unsupported("array initializer", ctx);
+            }
+        }
+
+        //没有初始化的变量存一个缺省值。在循环里重新声明的时候要重新初始化，字节码校验也要求变量在使用前有值
+        assign(variable, initializer, false, ctx);
+
+        return null;
+    }
+
+    @Override
+    public Object visitStatement(StatementContext ctx) {
+        if (ctx.statementExpression != null) {
+            genStatementExpression(ctx.statementExpression);
+        } else if (ctx.IF() != null) {
+            genIf(ctx);
+        } else if (ctx.DO() != null) {
+            throw unsupported("do-while", ctx);
+        } else if (ctx.WHILE() != null) {
+            genWhile(ctx);
+        } else if (ctx.FOR() != null) {
+            genFor(ctx);
+        } else if (ctx.blockLabel != null) {
+            visitBlock(ctx.blockLabel);
+        } else if (ctx.BREAK() != null) {
+            JumpTarget target = findJumpTarget(ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null, false, ctx);
+            mv.visitJumpInsn(GOTO, target.breakLabel);
+        } else if (ctx.CONTINUE() != null) {
+            JumpTarget target = findJumpTarget(ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null, true, ctx);
+            mv.visitJumpInsn(GOTO, target.continueLabel);
+        } else if (ctx.RETURN() != null) {
+            genReturn(ctx);
+        } else if (ctx.SWITCH() != null) {
+            throw unsupported("switch", ctx);
+        } else if (ctx.identifierLabel != null) {
+            StatementContext statement = ctx.statement(0);
+            //循环语句的标签由循环自己处理
+            if (statement.FOR() != null || (statement.WHILE() != null && statement.DO() == null)) {
+                visitStatement(statement);
+            } else {
+                JumpTarget target = new JumpTarget(ctx.identifierLabel.getText(), false);
+                jumpTargets.push(target);
+                visitStatement(statement);
+                jumpTargets.pop();
+                mv.visitLabel(target.breakLabel);
+            }
+        }
+
+        //空语句
+        return null;
+    }
+
+    private void genIf(StatementContext ctx) {
+        ExpressionContext condition = ctx.parExpression().expression();
+
+        //条件是常量时，只生成会执行的分支
+        Object constant = constantOfNode.get(condition);
+        if (constant instanceof Boolean) {
+            if ((Boolean) constant) {
+                visitStatement(ctx.statement(0));
+            } else if (ctx.ELSE() != null) {
+                visitStatement(ctx.statement(1));
+            }
+            return;
+        }
+
+        Label elseLabel = new Label();
+        genCondition(condition, elseLabel, false);
+        visitStatement(ctx.statement(0));
+        if (ctx.ELSE() != null) {
+            Label endLabel = new Label();
+            mv.visitJumpInsn(GOTO, endLabel);
+            mv.visitLabel(elseLabel);
+            visitStatement(ctx.statement(1));
+            mv.visitLabel(endLabel);
+        } else {
+            mv.visitLabel(elseLabel);
+        }
+    }
+
+    private void genWhile(StatementContext ctx) {
+        ExpressionContext condition = ctx.parExpression().expression();
+
+        //一次也不会执行的循环
+        if (Boolean.FALSE.equals(constantOfNode.get(condition))) {
+            return;
+        }
+
+        JumpTarget target = new JumpTarget(labelOf(ctx), true);
+        mv.visitLabel(target.continueLabel);
+        genCondition(condition, target.breakLabel, false);
+
+        jumpTargets.push(target);
+        visitStatement(ctx.statement(0));
+        jumpTargets.pop();
+
+        mv.visitJumpInsn(GOTO, target.continueLabel);
+        mv.visitLabel(target.breakLabel);
+    }
+
+    private void genFor(StatementContext ctx) {
+        ForControlContext forControl = ctx.forControl();
+        if (forControl.enhancedForControl() != null) {
+            throw unsupported("enhanced for", ctx);
+        }
+
+        // 初始化部分执行一次
+        if (forControl.forInit() != null) {
+            ForInitContext forInit = forControl.forInit();
+            if (forInit.variableDeclarators() != null) {
+                visitVariableDeclarators(forInit.variableDeclarators());
+            } else {
+                for (ExpressionContext expression : forInit.expressionList().expression()) {
+                    genStatementExpression(expression);
+                }
+            }
+        }
+
+        //一次也不会执行的循环，只保留初始化部分
+        ExpressionContext condition = forControl.expression();
+        if (condition != null && Boolean.FALSE.equals(constantOfNode.get(condition))) {
+            return;
+        }
+
+        JumpTarget target = new JumpTarget(labelOf(ctx), true);
+        Label startLabel = new Label();
+        mv.visitLabel(startLabel);
+
+        //没有条件判断部分，意味着一直循环
+        if (condition != null) {
+            genCondition(condition, target.breakLabel, false);
+        }
+
+        jumpTargets.push(target);
+        visitStatement(ctx.statement(0));
+        jumpTargets.pop();
+
+        //continue会接着执行forUpdate
+        mv.visitLabel(target.continueLabel);
+        if (forControl.forUpdate != null) {
+            for (ExpressionContext expression : forControl.forUpdate.expression()) {
+                genStatementExpression(expression);
+            }
+        }
+        mv.visitJumpInsn(GOTO, startLabel);
+        mv.visitLabel(target.breakLabel);
+    }
+
+    private void genReturn(StatementContext ctx) {
+        //全局代码里的return，结束main()
+        Type returnType = currentFunction != null ? declaredReturnType(currentFunction) : VoidType.instance();
+
+        if (returnType instanceof VoidType) {
+            if (ctx.expression() != null) {
+                genStatementExpression(ctx.expression());
+            }
+            mv.visitInsn(RETURN);
+        } else {
+            org.objectweb.asm.Type type = returnStorageType(currentFunction, ctx);
+            if (ctx.expression() != null) {
+                genStoredValue(ctx.expression(), returnType, type);
+            } else {
+                pushDefault(type);
+            }
+            mv.visitInsn(type.getOpcode(IRETURN));
+        }
+    }
+
+    /**
+     * 循环语句的标签，例如 outer: while(...)
+     * @param ctx
+     * @return
+     */
+    private String labelOf(StatementContext ctx) {
+        if (ctx.parent instanceof StatementContext && ((StatementContext) ctx.parent).identifierLabel != null) {
+            return ((StatementContext) ctx.parent).identifierLabel.getText();
+        }
+        return null;
+    }
+
+    /**
+     * 查找break或continue跳转到的语句
+     * @param label 标签，可以为null。为null的时候是最内层的循环
+     * @param isContinue continue只能跳到循环
+     * @param ctx
+     * @return
+     */
+    private JumpTarget findJumpTarget(String label, boolean isContinue, ParserRuleContext ctx) {
+        for (JumpTarget target : jumpTargets) {
+            if (label == null ? target.isLoop : (label.equals(target.label) && (target.isLoop || !isContinue))) {
+                return target;
+            }
+        }
+        throw unsupported("jump target " + label, ctx);
+    }
+
+
+    ///////////////////////////////////////
+    // 表达式
+
+    /**
+     * 作为语句的表达式，不需要留下值。赋值、++和--不用复制一份值，整型本地变量的++和--用iinc指令
+     * @param ctx
+     */
+    private void genStatementExpression(ExpressionContext ctx) {
+        //常量表达式没有副作用
+        if (constantOfNode.get(ctx) != null) {
+            return;
+        }
+
+        if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.ASSIGN && ctx.expression().size() >= 2) {
+            assign(ctx.expression(0), ctx.expression(1), false, ctx);
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT) {
+            genMember(ctx);
+            pop(valueTypeOf(ctx));
+        } else if (ctx.postfix != null) {
+            genIncrement(ctx, ctx.postfix.getType(), false, false);
+        } else if (ctx.prefix != null && (ctx.prefix.getType() == PlayScriptParser.INC || ctx.prefix.getType() == PlayScriptParser.DEC)) {
+            genIncrement(ctx, ctx.prefix.getType(), true, false);
+        } else if (ctx.functionCall() != null) {
+            visitFunctionCall(ctx.functionCall());
+            pop(valueTypeOf(ctx.functionCall()));
+        } else {
+            visitExpression(ctx);
+            pop(valueTypeOf(ctx));
+        }
+    }
+
+    /**
+     * 计算运算的操作数，并转换成运算的类型。装箱的值跟解释器一样，按Number取出所需类型的值
+     * @param ctx
+     * @param type
+     */
+    private void genOperand(ExpressionContext ctx, Type type) {
+        visitExpression(ctx);
+        convert(valueTypeOf(ctx), jvmType(type, ctx), ctx);
+    }
+
+    /**
+     * 计算要存到变量、参数或返回值里的值。解释器存入的时候不做类型转换
+     * @param ctx
+     * @param type 变量、参数或返回值声明的类型
+     * @param storageType 存放的类型
+     */
+    private void genStoredValue(ExpressionContext ctx, Type type, org.objectweb.asm.Type storageType) {
+        visitExpression(ctx);
+        adapt(typeOf(ctx), valueTypeOf(ctx), type, storageType, ctx);
+    }
+
+    @Override
+    public Object visitExpression(ExpressionContext ctx) {
+        String address = "";
+
+        //编译时已经算出来的常量，直接压栈
+        Object constant = constantOfNode.get(ctx);
+        if (constant != null && constantTypeOf(constant) != null) {
+            pushConstant(constant, constantTypeOf(constant));
+            return address;
+        }
+
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            int op = ctx.bop.getType();
+            switch (op) {
+                //赋值。左侧必须是一个变量或属性
+                case PlayScriptParser.ASSIGN:
+                    assign(ctx.expression(0), ctx.expression(1), true, ctx);
+                    break;
+
+                // 二元运算
+                case PlayScriptParser.ADD:
+                    if (typeOf(ctx) == PrimitiveType.String) {
+                        genConcat(ctx);
+                    } else {
+                        genArithmetic(op, ctx);
+                    }
+                    break;
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV:
+                    genArithmetic(op, ctx);
+                    break;
+
+                //比较和逻辑运算，得到0或1
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT:
+                case PlayScriptParser.AND:
+                case PlayScriptParser.OR:
+                    genBoolean(ctx);
+                    break;
+
+                default:
+                    throw unsupported("operator " + ctx.bop.getText(), ctx);
+            }
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT) {
+            if (typeOf(ctx) instanceof VoidType) {
+                throw unsupported("value of void function " + ctx.getText(), ctx);
+            }
+            genMember(ctx);
+        } else if (ctx.bop != null) {
+            throw unsupported("operator " + ctx.bop.getText(), ctx);
+        } else if (ctx.primary() != null) {
+            visitPrimary(ctx.primary());
+        } else if (ctx.postfix != null) {
+            genIncrement(ctx, ctx.postfix.getType(), false, true);
+        } else if (ctx.prefix != null) {
+            switch (ctx.prefix.getType()) {
+                case PlayScriptParser.INC:
+                case PlayScriptParser.DEC:
+                    genIncrement(ctx, ctx.prefix.getType(), true, true);
+                    break;
+                case PlayScriptParser.BANG:
+                    genBoolean(ctx);
+                    break;
+                default:
+                    throw unsupported("operator " + ctx.prefix.getText(), ctx);
+            }
+        } else if (ctx.functionCall() != null) {// functionCall
+            if (returnTypeOf(ctx.functionCall()) instanceof VoidType) {
+                throw unsupported("value of void function " + ctx.getText(), ctx);
+            }
+            visitFunctionCall(ctx.functionCall());
+        } else {
+            throw unsupported("expression " + ctx.getText(), ctx);
+        }
+        return address;
+    }
+
+    /**
+     * 加减乘除。两个操作数先转换成这个节点推断出来的类型
+     * @param op
+     * @param ctx
+     */
+    private void genArithmetic(int op, ExpressionContext ctx) {
+        Type type = typeOf(ctx);
+        org.objectweb.asm.Type jvmType = jvmType(type, ctx);
+        if (numericIndex(jvmType) < 0) {
+            throw unsupported("operator " + ctx.bop.getText() + " on " + type.getName(), ctx);
+        }
+
+        genOperand(ctx.expression(0), type);
+        genOperand(ctx.expression(1), type);
+
+        switch (op) {
+            case PlayScriptParser.ADD:
+                mv.visitInsn(jvmType.getOpcode(IADD));
+                break;
+            case PlayScriptParser.SUB:
+                mv.visitInsn(jvmType.getOpcode(ISUB));
+                break;
+            case PlayScriptParser.MUL:
+                mv.visitInsn(jvmType.getOpcode(IMUL));
+                break;
+            case PlayScriptParser.DIV:
+                mv.visitInsn(jvmType.getOpcode(IDIV));
+                break;
+        }
+    }
+
+    /**
+     * 字符串连接。a + b + c这样连续的连接只创建一个StringBuilder
+     * @param ctx
+     */
+    private void genConcat(ExpressionContext ctx) {
+        List<ExpressionContext> operands = new ArrayList<>();
+        collectConcatOperands(ctx, operands);
+
+        mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+        for (ExpressionContext operand : operands) {
+            String descriptor = genPrintable(operand);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(" + descriptor + ")Ljava/lang/StringBuilder;", false);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+    }
+
+    private void collectConcatOperands(ExpressionContext ctx, List<ExpressionContext> operands) {
+        ExpressionContext left = ctx.expression(0);
+        if (left.bop != null && left.bop.getType() == PlayScriptParser.ADD && left.expression().size() >= 2
+                && typeOf(left) == PrimitiveType.String && constantOfNode.get(left) == null) {
+            collectConcatOperands(left, operands);
+        } else {
+            operands.add(left);
+        }
+        operands.add(ctx.expression(1));
+    }
+
+    /**
+     * 计算布尔表达式的值，压栈0或1
+     * @param ctx
+     */
+    private void genBoolean(ExpressionContext ctx) {
+        Label falseLabel = new Label();
+        Label endLabel = new Label();
+        genCondition(ctx, falseLabel, false);
+        mv.visitInsn(ICONST_1);
+        mv.visitJumpInsn(GOTO, endLabel);
+        mv.visitLabel(falseLabel);
+        mv.visitInsn(ICONST_0);
+        mv.visitLabel(endLabel);
+    }
+
+    /**
+     * 生成条件跳转。比较运算直接使用比较指令的结果，不用先算出一个布尔值；&&和||是短路求值的
+     * @param ctx 条件表达式
+     * @param target 跳转的目标
+     * @param jumpIfTrue 为true时，条件成立跳转；否则，条件不成立跳转
+     */
+    private void genCondition(ExpressionContext ctx, Label target, boolean jumpIfTrue) {
+        Object constant = constantOfNode.get(ctx);
+        if (constant instanceof Boolean) {
+            if ((Boolean) constant == jumpIfTrue) {
+                mv.visitJumpInsn(GOTO, target);
+            }
+            return;
+        }
+
+        //括号
+        if (ctx.primary() != null && ctx.primary().expression() != null) {
+            genCondition(ctx.primary().expression(), target, jumpIfTrue);
+        }
+        //!
+        else if (ctx.prefix != null && ctx.prefix.getType() == PlayScriptParser.BANG) {
+            genCondition(ctx.expression(0), target, !jumpIfTrue);
+        }
+        else if (ctx.bop != null && ctx.expression().size() >= 2
+                && (ctx.bop.getType() == PlayScriptParser.AND || ctx.bop.getType() == PlayScriptParser.OR)) {
+            boolean isAnd = ctx.bop.getType() == PlayScriptParser.AND;
+            if (isAnd != jumpIfTrue) {
+                //a && b不成立，或者a || b成立：任何一边满足就跳转
+                genCondition(ctx.expression(0), target, jumpIfTrue);
+                genCondition(ctx.expression(1), target, jumpIfTrue);
+            } else {
+                //a && b成立，或者a || b不成立：左边不满足时，不用再计算右边
+                Label skipLabel = new Label();
+                genCondition(ctx.expression(0), skipLabel, !jumpIfTrue);
+                genCondition(ctx.expression(1), target, jumpIfTrue);
+                mv.visitLabel(skipLabel);
+            }
+        }
+        else if (ctx.bop != null && ctx.expression().size() >= 2 && isComparison(ctx.bop.getType())) {
+            genComparison(ctx, target, jumpIfTrue);
+        }
+        //布尔型的变量、函数调用等
+        else {
+            if (typeOf(ctx) != PrimitiveType.Boolean) {
+                throw unsupported("condition of type " + typeOf(ctx).getName(), ctx);
+            }
+            genOperand(ctx, PrimitiveType.Boolean);
+            mv.visitJumpInsn(jumpIfTrue ? IFNE : IFEQ, target);
+        }
+    }
+
+    private static boolean isComparison(int op) {
+        switch (op) {
+            case PlayScriptParser.EQUAL:
+            case PlayScriptParser.NOTEQUAL:
+            case PlayScriptParser.LE:
+            case PlayScriptParser.LT:
+            case PlayScriptParser.GE:
+            case PlayScriptParser.GT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 比较运算。数值按两边向上对齐的类型比较；布尔值和字符比较值；字符串和null比较引用，跟解释器一样
+     * @param ctx
+     * @param target
+     * @param jumpIfTrue
+     */
+    private void genComparison(ExpressionContext ctx, Label target, boolean jumpIfTrue) {
+        int op = ctx.bop.getType();
+        Type type1 = typeOf(ctx.expression(0));
+        Type type2 = typeOf(ctx.expression(1));
+        org.objectweb.asm.Type jvmType1 = jvmType(type1, ctx);
+        org.objectweb.asm.Type jvmType2 = jvmType(type2, ctx);
+        boolean isEquality = op == PlayScriptParser.EQUAL || op == PlayScriptParser.NOTEQUAL;
+
+        //在IFxx指令里的顺序，IFEQ、IFNE、IFLT、IFGE、IFGT、IFLE
+        int condition = conditionIndex(op, jumpIfTrue);
+
+        if (numericIndex(jvmType1) >= 0 && numericIndex(jvmType2) >= 0) {
+            //字符跟字符比较时，向上对齐的类型是Byte，按int比较
+            Type type = PrimitiveType.getUpperType(type1, type2);
+            org.objectweb.asm.Type jvmType = jvmType(type, ctx);
+            genOperand(ctx.expression(0), type);
+            genOperand(ctx.expression(1), type);
+            switch (jvmType.getSort()) {
+                case org.objectweb.asm.Type.LONG:
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFEQ + condition, target);
+                    break;
+                //有NaN的时候，<和<=用fcmpg，>和>=用fcmpl，结果都是不成立
+                case org.objectweb.asm.Type.FLOAT:
+                    mv.visitInsn(op == PlayScriptParser.LT || op == PlayScriptParser.LE ? FCMPG : FCMPL);
+                    mv.visitJumpInsn(IFEQ + condition, target);
+                    break;
+                case org.objectweb.asm.Type.DOUBLE:
+                    mv.visitInsn(op == PlayScriptParser.LT || op == PlayScriptParser.LE ? DCMPG : DCMPL);
+                    mv.visitJumpInsn(IFEQ + condition, target);
+                    break;
+                default:
+                    mv.visitJumpInsn(IF_ICMPEQ + condition, target);
+                    break;
+            }
+        } else if (isEquality && type1 == PrimitiveType.Boolean && type2 == PrimitiveType.Boolean) {
+            genOperand(ctx.expression(0), PrimitiveType.Boolean);
+            genOperand(ctx.expression(1), PrimitiveType.Boolean);
+            mv.visitJumpInsn(IF_ICMPEQ + condition, target);
+        } else if (isEquality && jvmType1.getSort() == org.objectweb.asm.Type.OBJECT
+                && jvmType2.getSort() == org.objectweb.asm.Type.OBJECT) {
+            visitExpression(ctx.expression(0));
+            visitExpression(ctx.expression(1));
+            mv.visitJumpInsn(IF_ACMPEQ + condition, target);
+        } else {
+            throw unsupported("comparison between " + type1.getName() + " and " + type2.getName(), ctx);
+        }
+    }
+
+    /**
+     * 比较运算对应的跳转条件在IFEQ、IFNE、IFLT、IFGE、IFGT、IFLE中的位置
+     * @param op
+     * @param jumpIfTrue 为false时，取相反的条件
+     * @return
+     */
+    private static int conditionIndex(int op, boolean jumpIfTrue) {
+        int index = 0;
+        switch (op) {
+            case PlayScriptParser.EQUAL:
+                index = jumpIfTrue ? 0 : 1;
+                break;
+            case PlayScriptParser.NOTEQUAL:
+                index = jumpIfTrue ? 1 : 0;
+                break;
+            case PlayScriptParser.LT:
+                index = jumpIfTrue ? 2 : 3;
+                break;
+            case PlayScriptParser.GE:
+                index = jumpIfTrue ? 3 : 2;
+                break;
+            case PlayScriptParser.GT:
+                index = jumpIfTrue ? 4 : 5;
+                break;
+            case PlayScriptParser.LE:
+                index = jumpIfTrue ? 5 : 4;
+                break;
+        }
+        return index;
+    }
+
+    /**
+     * ++和--。整型的本地变量用iinc指令。跟解释器一样，int型的变量得到Integer，其他的得到Long；
+     * 只支持int和long型的变量，装箱存放的变量取出值来计算，再装箱存回去
+     * @param ctx
+     * @param op
+     * @param prefix 是否是前缀运算，前缀运算的值是修改以后的值
+     * @param needValue 是否要把表达式的值留在栈里
+     */
+    private void genIncrement(ExpressionContext ctx, int op, boolean prefix, boolean needValue) {
+        ExpressionContext target = ctx.expression(0);
+        Variable member = memberOf(target);
+        Variable variable = member != null ? member : variableOf(target);
+        if (variable.type != PrimitiveType.Integer && variable.type != PrimitiveType.Long) {
+            throw unsupported("increment of " + variable.type.getName(), ctx);
+        }
+        org.objectweb.asm.Type type = jvmType(variable.type, ctx);
+        org.objectweb.asm.Type storageType = storageType(variable, ctx);
+        boolean isLong = variable.type == PrimitiveType.Long;
+
+        boolean isField = isField(variable);
+        boolean isCell = isCell(variable);
+        int delta = op == PlayScriptParser.INC ? 1 : -1;
+
+        if (!isField && !isCell && !isLong && storageType.equals(type)) {
+            int index = localOf(variable, ctx);
+            if (needValue && !prefix) {
+                mv.visitVarInsn(ILOAD, index);
+            }
+            mv.visitIincInsn(index, delta);
+            if (needValue && prefix) {
+                mv.visitVarInsn(ILOAD, index);
+            }
+            return;
+        }
+
+        //字段的值在栈里的位置在对象引用的上面，单元里的值在数组和下标的上面
+        int dup = dupOf(type, isField ? 1 : (isCell ? 2 : 0));
+        if (isField) {
+            if (member != null) {
+                visitExpression(target.expression(0));
+            } else {
+                loadOwner(variable);
+            }
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, ownerOf(variable, ctx), fieldNameOf(variable), storageType.getDescriptor());
+        } else if (isCell) {
+            loadOwner(variable);
+            mv.visitInsn(DUP2);
+            mv.visitInsn(storageType.getOpcode(IALOAD));
+        } else {
+            mv.visitVarInsn(storageType.getOpcode(ILOAD), localOf(variable, ctx));
+        }
+        //解释器把值强制转换成Integer或Long
+        if (!storageType.equals(type)) {
+            String owner = isLong ? "java/lang/Long" : "java/lang/Integer";
+            mv.visitTypeInsn(CHECKCAST, owner);
+            mv.visitMethodInsn(INVOKEVIRTUAL, owner, type.getClassName() + "Value", "()" + type.getDescriptor(), false);
+        }
+        if (needValue && !prefix) {
+            mv.visitInsn(dup);
+        }
+        mv.visitInsn(isLong ? LCONST_1 : ICONST_1);
+        mv.visitInsn(type.getOpcode(delta > 0 ? IADD : ISUB));
+        if (needValue && prefix) {
+            mv.visitInsn(dup);
+        }
+        if (!storageType.equals(type)) {
+            box(type);
+        }
+        store(variable, ctx);
+    }
+
+    @Override
+    public Object visitPrimary(PrimaryContext ctx) {
+        String rtn = "";
+        if (ctx.literal() != null) {
+            visitLiteral(ctx.literal()); // 直接操作数
+        } else if (ctx.IDENTIFIER() != null) {
+            Symbol symbol = at.symbolOfNode.get(ctx);
+            if (symbol instanceof Function) {
+                genFunctionValue((Function) symbol, ctx);
+            } else if (symbol instanceof Variable) {
+                load((Variable) symbol, ctx);
+            } else {
+                throw unsupported(ctx.getText(), ctx);
+            }
+        } else if (ctx.expression() != null) {
+            visitExpression(ctx.expression());
+        } else if (ctx.THIS() != null || ctx.SUPER() != null) {
+            //super也是当前对象，只是按父类访问属性和方法
+            mv.visitVarInsn(ALOAD, 0);
+        } else {
+            throw unsupported(ctx.getText(), ctx);
+        }
+        return rtn;
+    }
+
+    @Override
+    public Object visitLiteral(LiteralContext ctx) {
+        String rtn = "";
+        if (ctx.integerLiteral() != null) {
+            visitIntegerLiteral(ctx.integerLiteral());
+        } else if (ctx.floatLiteral() != null) {
+            pushConstant(Float.valueOf(ctx.floatLiteral().getText()), org.objectweb.asm.Type.FLOAT_TYPE);
+        } else if (ctx.BOOL_LITERAL() != null) {
+            mv.visitInsn(ctx.BOOL_LITERAL().getText().equals("true") ? ICONST_1 : ICONST_0);
+        } else if (ctx.STRING_LITERAL() != null) {
+            String withQuotationMark = ctx.STRING_LITERAL().getText();
+            String withoutQuotationMark = withQuotationMark.substring(1, withQuotationMark.length() - 1);
+            pushString(withoutQuotationMark);
+        } else if (ctx.CHAR_LITERAL() != null) {
+            //跟解释器一样，取的是第一个字符，也就是单引号
+            String text = ctx.CHAR_LITERAL().getText();
+            pushInt(text.charAt(0));
+        } else if (ctx.NULL_LITERAL() != null) {
+            mv.visitInsn(ACONST_NULL);
+        }
+        return rtn;
+    }
+
+    @Override
+    public Object visitIntegerLiteral(IntegerLiteralContext ctx) {
+        if (ctx.DECIMAL_LITERAL() == null) {
+            throw unsupported("integer literal " + ctx.getText(), ctx);
+        }
+
+        int value = Integer.valueOf(ctx.DECIMAL_LITERAL().getText()).intValue();
+        pushInt(value);
+        return null;
+    }
+
+    /**
+     * 把编译时算出来的常量压栈
+     * @param value
+     * @param type 表达式的类型
+     * @return 常量跟表达式的类型不一致时，不压栈，返回false
+     */
+    private boolean pushConstant(Object value, org.objectweb.asm.Type type) {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.INT:
+                if (value instanceof Integer) {
+                    pushInt((Integer) value);
+                    return true;
+                }
+                break;
+            case org.objectweb.asm.Type.BOOLEAN:
+                if (value instanceof Boolean) {
+                    mv.visitInsn((Boolean) value ? ICONST_1 : ICONST_0);
+                    return true;
+                }
+                break;
+            case org.objectweb.asm.Type.LONG:
+                if (value instanceof Long) {
+                    long l = (Long) value;
+                    if (l == 0L || l == 1L) {
+                        mv.visitInsn(LCONST_0 + (int) l);
+                    } else {
+                        mv.visitLdcInsn(value);
+                    }
+                    return true;
+                }
+                break;
+            case org.objectweb.asm.Type.FLOAT:
+                if (value instanceof Float) {
+                    //-0.0不能用fconst_0
+                    int bits = Float.floatToRawIntBits((Float) value);
+                    if (bits == Float.floatToRawIntBits(0f) || bits == Float.floatToRawIntBits(1f) || bits == Float.floatToRawIntBits(2f)) {
+                        mv.visitInsn(FCONST_0 + (int) (float) (Float) value);
+                    } else {
+                        mv.visitLdcInsn(value);
+                    }
+                    return true;
+                }
+                break;
+            case org.objectweb.asm.Type.DOUBLE:
+                if (value instanceof Double) {
+                    long bits = Double.doubleToRawLongBits((Double) value);
+                    if (bits == Double.doubleToRawLongBits(0d) || bits == Double.doubleToRawLongBits(1d)) {
+                        mv.visitInsn(DCONST_0 + (int) (double) (Double) value);
+                    } else {
+                        mv.visitLdcInsn(value);
+                    }
+                    return true;
+                }
+                break;
+            case org.objectweb.asm.Type.OBJECT:
+                if (value instanceof String) {
+                    pushString((String) value);
+                    return true;
+                }
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * 把一个新的字符串压到栈里。ldc得到的字符串是驻留的，同样内容的字面量都是同一个对象；
+     * ASTEvaluator每次求值都创建新的字符串，所以这里用new String(...)，==的结果才一样
+     * @param value
+     */
+    private void pushString(String value) {
+        mv.visitTypeInsn(NEW, "java/lang/String");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(value);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>", "(Ljava/lang/String;)V", false);
+    }
+
+    /**
+     * 把一个整数压到栈里
+     * @param value
+     */
+    private void pushInt(int value) {
+        //0-5之间的数字，直接用快捷指令
+        if (value >= 0 && value <= 5) {
+            switch (value) {
+                case 0:
+                    mv.visitInsn(ICONST_0);
+                    break;
+                case 1:
+                    mv.visitInsn(ICONST_1);
+                    break;
+                case 2:
+                    mv.visitInsn(ICONST_2);
+                    break;
+                case 3:
+                    mv.visitInsn(ICONST_3);
+                    break;
+                case 4:
+                    mv.visitInsn(ICONST_4);
+                    break;
+                case 5:
+                    mv.visitInsn(ICONST_5);
+                    break;
+            }
+        }
+
+        //如果是8位整数，用bipush指令，直接放在后面的一个字节的操作数里就行了
+        else if (value >= -128 && value <128){
+            mv.visitIntInsn(BIPUSH, value);
+        }
+
+        //如果是16位整数，用sipush指令
+        else if (value >= -32768 && value <32768){
+            mv.visitIntInsn(SIPUSH, value);
+        }
+
+        //大于16位的，采用ldc指令，从常量池中去取
+        else{
+            mv.visitLdcInsn(new Integer(value));
+        }
+    }
+
+    //压入一个类型的缺省值
+    private void pushDefault(org.objectweb.asm.Type type) {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.LONG:
+                mv.visitInsn(LCONST_0);
+                break;
+            case org.objectweb.asm.Type.FLOAT:
+                mv.visitInsn(FCONST_0);
+                break;
+            case org.objectweb.asm.Type.DOUBLE:
+                mv.visitInsn(DCONST_0);
+                break;
+            case org.objectweb.asm.Type.OBJECT:
+                mv.visitInsn(ACONST_NULL);
+                break;
+            default:
+                mv.visitInsn(ICONST_0);
+                break;
+        }
+    }
+
+    //丢掉栈顶的值
+    private void pop(org.objectweb.asm.Type type) {
+        if (type.getSort() == org.objectweb.asm.Type.VOID) {
+            return;
+        }
+        mv.visitInsn(type.getSize() == 2 ? POP2 : POP);
+    }
+
+    /**
+     * 把CompiledScript的调用者传入的值，转换成变量声明的类型。short和byte按int处理。
+     * 解释器调用编译好的函数时不用转换，参数按UnboxingAnalyzer的结果存放，传入的值跟解释器里的一样。
+     * @param value
+     * @param type 参数声明的类型
+     * @return
+     */
+    static Object toJvmValue(Object value, Type type) {
+        if (!(value instanceof Number)) {
+            return value;
+        }
+        Number number = (Number) value;
+        if (type == PrimitiveType.Integer || type == PrimitiveType.Short || type == PrimitiveType.Byte) {
+            return number.intValue();
+        } else if (type == PrimitiveType.Long) {
+            return number.longValue();
+        } else if (type == PrimitiveType.Float) {
+            return number.floatValue();
+        } else if (type == PrimitiveType.Double) {
+            return number.doubleValue();
+        }
+        return value;
+    }
+
+    //装箱的值取出基础类型的值。跟解释器一样，数值用Number的intValue()等方法
+    private void unbox(org.objectweb.asm.Type type) {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.BOOLEAN:
+                mv.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+                break;
+            case org.objectweb.asm.Type.CHAR:
+                mv.visitTypeInsn(CHECKCAST, "java/lang/Character");
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C", false);
+                break;
+            default:
+                mv.visitTypeInsn(CHECKCAST, "java/lang/Number");
+                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", type.getClassName() + "Value", "()" + type.getDescriptor(), false);
+                break;
+        }
+    }
+
+    //把栈顶的基础类型的值装箱，对象不用处理
+    private void box(org.objectweb.asm.Type type) {
+        String owner;
+        switch (type.getDescriptor()) {
+            case "I": owner = "java/lang/Integer"; break;
+            case "J": owner = "java/lang/Long"; break;
+            case "F": owner = "java/lang/Float"; break;
+            case "D": owner = "java/lang/Double"; break;
+            case "Z": owner = "java/lang/Boolean"; break;
+            case "C": owner = "java/lang/Character"; break;
+            default: return;
+        }
+        mv.visitMethodInsn(INVOKESTATIC, owner, "valueOf", "(" + type.getDescriptor() + ")L" + owner + ";", false);
+    }
+
+    @Override
+    public Object visitFunctionCall(FunctionCallContext ctx) {
+        //构造方法里的this()和super()
+        if (ctx.IDENTIFIER() == null) {
+            genConstructorCall(ctx);
+            return null;
+        }
+
+        // TODO 临时代码，用于打印输出
+        if (ctx.IDENTIFIER().getText().equals("println")) {
+            //调用System.out.println()方法
+            genPrintln(ctx.expressionList());
+            return null;
+        }
+
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        if (symbol instanceof DefaultConstructor) {
+            genNew(((DefaultConstructor) symbol).Class(), null, ctx);
+            return null;
+        }
+
+        //函数型的变量，要到运行时才知道调用哪个函数，通过接口调用
+        if (symbol instanceof Variable) {
+            load((Variable) symbol, ctx);
+            genApply((Variable) symbol, ctx);
+            return null;
+        }
+
+        Function function = functionOf(ctx);
+        if (function.isConstructor()) {
+            genNew((Class) function.enclosingScope, function, ctx);
+        } else if (function.isMethod()) {
+            //不带限定的方法调用，跟解释器一样是静态绑定的
+            mv.visitVarInsn(ALOAD, 0);
+            genArguments(function, ctx);
+            mv.visitMethodInsn(INVOKESPECIAL, ownerOf(function, ctx), function.getName(), genFunctionDescriptor(function), false);
+        } else {
+            //把对象示例放入栈，作为第一个参数。内层函数还要传入它引用的变量
+            loadScript();
+            loadCaptured(function, ctx);
+            genArguments(function, ctx);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, methodNameOf(function), genFunctionDescriptor(function), false);
+        }
+
+        return null;
+    }
+
+    /**
+     * 函数型的值：用invokedynamic调用LambdaMetafactory，创建函数类型对应的接口的对象，
+     * 它的apply方法调用函数对应的方法。DefaultPlayClass的实例和内层函数引用的变量，在创建时保存在对象里
+     * @param function
+     * @param ctx
+     */
+    private void genFunctionValue(Function function, ParserRuleContext ctx) {
+        if (function.isMethod() || !compiledFunctions.contains(function)) {
+            throw unsupported("function value " + function.getName(), ctx);
+        }
+        String interfaceName = interfaceOf(function, ctx);
+        String applyDescriptor = functionTypeDescriptor(function, ctx);
+
+        StringBuilder sb = new StringBuilder("(L").append(className).append(';');
+        for (Variable variable : capturedOf(function)) {
+            sb.append(cellType(variable, ctx).getDescriptor());
+        }
+        sb.append(")L").append(interfaceName).append(';');
+
+        loadScript();
+        loadCaptured(function, ctx);
+        Handle bootstrap = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                        + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)"
+                        + "Ljava/lang/invoke/CallSite;", false);
+        Handle implementation = new Handle(H_INVOKEVIRTUAL, className, methodNameOf(function), genFunctionDescriptor(function), false);
+        mv.visitInvokeDynamicInsn("apply", sb.toString(), bootstrap,
+                org.objectweb.asm.Type.getMethodType(applyDescriptor), implementation,
+                org.objectweb.asm.Type.getMethodType(instantiatedDescriptor(function, ctx)));
+    }
+
+    //apply方法实际的参数和返回值类型：函数的方法去掉内层函数引用的变量。作为值使用的函数，基础类型的参数和返回值都是装箱的
+    private String instantiatedDescriptor(Function function, ParserRuleContext ctx) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Variable param : function.parameters) {
+            sb.append(storageType(param, ctx).getDescriptor());
+        }
+        return sb.append(')').append(returnStorageType(function, ctx).getDescriptor()).toString();
+    }
+
+    /**
+     * 调用函数型的值。值已经在栈里，计算参数以后调用接口的apply方法。参数装箱以后传入，返回的对象转换成声明的类型
+     * @param variable 函数型的变量、参数或者属性
+     * @param ctx
+     */
+    private void genApply(Variable variable, FunctionCallContext ctx) {
+        if (!(variable.type instanceof FunctionType)) {
+            throw unsupported("call to " + ctx.getText(), ctx);
+        }
+        FunctionType type = (FunctionType) variable.type;
+        List<ExpressionContext> arguments = argumentsOf(type.getParamTypes(), variable.getName(), ctx);
+        for (int i = 0; i < arguments.size(); i++) {
+            genStoredValue(arguments.get(i), type.getParamTypes().get(i), OBJECT_TYPE);
+        }
+        mv.visitMethodInsn(INVOKEINTERFACE, interfaceOf(type, ctx), "apply", functionTypeDescriptor(type, ctx), true);
+
+        org.objectweb.asm.Type returnType = valueTypeOf(ctx);
+        if (returnType.getSort() == org.objectweb.asm.Type.OBJECT && !returnType.equals(OBJECT_TYPE)) {
+            mv.visitTypeInsn(CHECKCAST, returnType.getInternalName());
+        }
+    }
+
+    //把内层函数引用的变量的单元压栈。当前的方法里要能访问到这些变量
+    private void loadCaptured(Function function, ParserRuleContext ctx) {
+        for (Variable variable : capturedOf(function)) {
+            mv.visitVarInsn(ALOAD, localOf(variable, ctx));
+        }
+    }
+
+    //内层函数引用的外层函数的变量，其他函数是空的
+    private List<Variable> capturedOf(Function function) {
+        return capturedVariables.getOrDefault(function, Collections.emptyList());
+    }
+
+    //函数对应的方法名
+    private String methodNameOf(Function function) {
+        return methodNames.getOrDefault(function, function.getName());
+    }
+
+    //调用的函数。必须是要生成方法的函数
+    private Function functionOf(FunctionCallContext ctx) {
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        if (!(symbol instanceof Function)) {
+            throw unsupported("call to " + ctx.getText(), ctx);
+        }
+        Function function = (Function) symbol;
+        if (!compiledFunctions.contains(function)) {
+            throw unsupported("call to " + function.getName(), ctx);
+        }
+        return function;
+    }
+
+    //计算参数，按参数存放的类型传入
+    private void genArguments(Function function, FunctionCallContext ctx) {
+        List<ExpressionContext> arguments = argumentsOf(function.getParamTypes(), function.getName(), ctx);
+        for (int i = 0; i < arguments.size(); i++) {
+            Variable param = function.parameters.get(i);
+            genStoredValue(arguments.get(i), param.type, storageType(param, ctx));
+        }
+    }
+
+    //调用的参数，个数要跟参数声明的一样
+    private List<ExpressionContext> argumentsOf(List<Type> paramTypes, String name, FunctionCallContext ctx) {
+        List<ExpressionContext> arguments = ctx.expressionList() != null ? ctx.expressionList().expression() : new ArrayList<>();
+        if (arguments.size() != paramTypes.size()) {
+            throw unsupported("call to " + name + " with " + arguments.size() + " arguments", ctx);
+        }
+        return arguments;
+    }
+
+    /**
+     * 创建对象：<init>做完缺省的初始化以后，再调用声明的构造方法
+     * @param theClass
+     * @param constructor 声明的构造方法，用缺省构造方法时为null
+     * @param ctx
+     */
+    private void genNew(Class theClass, Function constructor, FunctionCallContext ctx) {
+        String name = classNameOf(theClass, ctx);
+        mv.visitTypeInsn(NEW, name);
+        mv.visitInsn(DUP);
+        loadScript();
+        mv.visitMethodInsn(INVOKESPECIAL, name, "<init>", "(L" + className + ";)V", false);
+        if (constructor != null) {
+            mv.visitInsn(DUP);
+            genArguments(constructor, ctx);
+            mv.visitMethodInsn(INVOKEVIRTUAL, name, constructor.getName(), genFunctionDescriptor(constructor), false);
+        }
+    }
+
+    /**
+     * 构造方法里的this()和super()，调用另一个构造方法。调用的是缺省构造方法的话什么也不用做，<init>已经做完了
+     * @param ctx
+     */
+    private void genConstructorCall(FunctionCallContext ctx) {
+        if (at.symbolOfNode.get(ctx) instanceof DefaultConstructor) {
+            return;
+        }
+        Function constructor = functionOf(ctx);
+        mv.visitVarInsn(ALOAD, 0);
+        genArguments(constructor, ctx);
+        mv.visitMethodInsn(INVOKESPECIAL, ownerOf(constructor, ctx), constructor.getName(), genFunctionDescriptor(constructor), false);
+    }
+
+    /**
+     * 点符号表达式：读取对象的属性，或者调用对象的方法。方法用invokevirtual调用，super.方法()用invokespecial
+     * @param ctx
+     */
+    private void genMember(ExpressionContext ctx) {
+        Variable member = memberOf(ctx);
+        if (member != null) {
+            visitExpression(ctx.expression(0));
+            mv.visitFieldInsn(GETFIELD, ownerOf(member, ctx), fieldNameOf(member), storageType(member, ctx).getDescriptor());
+            return;
+        }
+
+        FunctionCallContext call = ctx.functionCall();
+        if (call == null || call.IDENTIFIER() == null) {
+            throw unsupported("expression " + ctx.getText(), ctx);
+        }
+
+        //函数型的属性，读出来以后调用
+        Symbol symbol = at.symbolOfNode.get(call);
+        if (symbol instanceof Variable) {
+            Variable field = (Variable) symbol;
+            if (!isMember(field)) {
+                throw unsupported("call to " + ctx.getText(), ctx);
+            }
+            checkHidden(field, ctx.expression(0), ctx);
+            visitExpression(ctx.expression(0));
+            mv.visitFieldInsn(GETFIELD, ownerOf(field, ctx), fieldNameOf(field), storageType(field, ctx).getDescriptor());
+            genApply(field, call);
+            return;
+        }
+
+        Function function = functionOf(call);
+        if (function.isConstructor()) {
+            throw unsupported("constructor call on object " + ctx.getText(), ctx);
+        }
+
+        visitExpression(ctx.expression(0));
+        genArguments(function, call);
+        boolean isSuper = at.symbolOfNode.get(ctx.expression(0)) instanceof Super;
+        mv.visitMethodInsn(isSuper ? INVOKESPECIAL : INVOKEVIRTUAL, ownerOf(function, ctx), function.getName(),
+                genFunctionDescriptor(function), false);
+    }
+
+    //函数调用的返回值类型。构造方法返回创建的对象
+    private Type returnTypeOf(FunctionCallContext ctx) {
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        if (ctx.IDENTIFIER() == null || ctx.IDENTIFIER().getText().equals("println")) {
+            return VoidType.instance();
+        } else if (symbol instanceof Function && ((Function) symbol).isConstructor() && !isMemberCall(ctx)) {
+            return (Class) ((Function) symbol).enclosingScope;
+        } else if (symbol instanceof Function) {
+            return declaredReturnType((Function) symbol);
+        } else if (symbol instanceof Variable && ((Variable) symbol).type instanceof FunctionType) {
+            return ((FunctionType) ((Variable) symbol).type).getReturnType();
+        }
+        throw unsupported("call to " + ctx.getText(), ctx);
+    }
+
+    //是不是点符号表达式里的方法调用
+    private static boolean isMemberCall(FunctionCallContext ctx) {
+        return ctx.getParent() instanceof ExpressionContext && ((ExpressionContext) ctx.getParent()).bop != null;
+    }
+
+    //函数声明的返回值类型。构造方法生成的方法没有返回值
+    private static Type declaredReturnType(Function function) {
+        return function.isConstructor() ? VoidType.instance() : function.getReturnType();
+    }
 
-    ///////////////////////////////////////
-    // 继承的visitor方法，用于产生asm代码片段
 
     @Override
-    public Object visitProg(ProgContext ctx) {
-        //把全局的变量和函数封装到一个缺省的类中。
-        cw.visit(Opcodes.V1_8, ACC_PUBLIC + ACC_SUPER,
-                "DefaultPlayClass", null, "java/lang/Object",null);
+    public Object visitFunctionDeclaration(FunctionDeclarationContext ctx){
+        //在这里不做任何事情，阻断缺省的遍历逻辑
+        return null;
+    }
 
-        //缺省的构造函数
-        genDefaultConstructor(cw);
 
-        ////Main函数--序曲
-        mv = cw.visitMethod(ACC_PUBLIC  + ACC_STATIC,
-                "main",
-                "([Ljava/lang/String;)V", //参数类型：String []
+    //根据函数生成方法。是在main函数生成完毕以后调用。类的方法生成到类对应的JVM类里
+    private void genMethod(FunctionDeclarationContext ctx) {
+        Function function = (Function) at.node2Scope.get(ctx);
+
+        mv = cw.visitMethod(ACC_PUBLIC,
+                methodNameOf(function),
+                genFunctionDescriptor(function),
                 null, null);
 
-        //mv.visitCode();
+        //添加参数。内层函数引用的变量在前面
+        for (Variable variable : capturedOf(function)) {
+            mv.visitParameter(variable.getName(), ACC_SYNTHETIC);
+        }
+        for (Variable param : function.parameters){
+            mv.visitParameter(param.getName(), 0);
+        }
+
+        mv.visitCode();
         Label l0 = new Label();
         mv.visitLabel(l0);
 
-        //添加参数args
-        mv.visitParameter("args", ACC_PUBLIC);
-
+        //重置中间变量
+        localVarIndex = 1; //第0个参数是this
+        localOfVariable = new LinkedHashMap<>();
+        instanceIndex = 0;
+        currentFunction = function;
+        currentClass = function.isMethod() ? (Class) function.enclosingScope : null;
+        jumpTargets.clear();
 
-        ////创建一个DefaultPlayClass的实例，并存到下标为1的位置
-        //new
-        mv.visitTypeInsn(NEW,"DefaultPlayClass");
-        //dup
-        mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKESPECIAL,"DefaultPlayClass","<init>","()V", false);
-        mv.visitVarInsn(ASTORE, 1);
+        //参数也存在栈桢中的本地变量列表中。
+        for (Variable variable : capturedOf(function)) {
+            localOfVariable.put(variable, localVarIndex++);
+        }
+        for (Variable param : function.parameters){
+            declareParameter(param, ctx);
+        }
+        declareEarlyVariables(function);
 
-        localVarIndex = 1;
-        instanceIndex = 1;
 
+        //解释器执行到函数末尾还没有return的话，返回最后一个语句的值
+        Type returnType = declaredReturnType(function);
+        if (!(returnType instanceof VoidType)
+                && (ctx.functionBody().block() == null || canCompleteNormally(ctx.functionBody().block().blockStatements()))) {
+            throw unsupported("missing return in function " + function.getName(), ctx);
+        }
 
         ////生成中间的代码
-        visitBlockStatements(ctx.blockStatements());
+        boolean endsWithReturn = false;
+        if (ctx.functionBody().block() != null) {
+            //函数体的block不对应单独的Scope，它的变量都在Function里
+            List<BlockStatementContext> statements = ctx.functionBody().block().blockStatements().blockStatement();
+            visitBlockStatements(ctx.functionBody().block().blockStatements());
+            if (!statements.isEmpty()) {
+                StatementContext last = statements.get(statements.size() - 1).statement();
+                endsWithReturn = last != null && last.RETURN() != null;
+            }
+        }
 
 
-        ////Main函数--尾声
-        mv.visitInsn(RETURN);
+        ////尾声。执行不到这里的时候，字节码也要以return结束
+        if (!endsWithReturn) {
+            if (returnType instanceof VoidType) {
+                mv.visitInsn(RETURN);
+            } else {
+                org.objectweb.asm.Type type = returnStorageType(function, ctx);
+                pushDefault(type);
+                mv.visitInsn(type.getOpcode(IRETURN));
+            }
+        }
 
         Label l1 = new Label();
         mv.visitLabel(l1);
 
         //设置本地变量，这一定要放在最后
-        for (String varName : varName2Index.keySet()){
-            int varIndex = varName2Index.get(varName).intValue();
-            mv.visitLocalVariable(varName,"I",null, l0, l1, varIndex);
-        }
+        genLocalVariables(l0, l1);
 
-        //设置操作数栈最大的帧数，以及最大的本地变量数
-        mv.visitMaxs(3, 1);
+        //操作数栈和本地变量的大小由ClassWriter计算
+        mv.visitMaxs(0, 0);
 
         //结束方法
         mv.visitEnd();
+    }
 
-        return null;
+
+    ///////////////////////////////////////
+    // 变量
+
+    /**
+     * 为变量分配本地变量的位置。被函数引用的全局变量和类的属性在字段里，不需要分配
+     * @param variable
+     * @param ctx
+     */
+    private void declare(Variable variable, ParserRuleContext ctx) {
+        if (isField(variable) || localOfVariable.containsKey(variable)) {
+            return;
+        }
+        Scope unit = currentFunction != null ? currentFunction : at.nameSpace;
+        if (unitOf(variable.enclosingScope) != unit) {
+            throw unsupported("variable " + variable.getName(), ctx);
+        }
+        localOfVariable.put(variable, localVarIndex);
+        if (isCell(variable)) {
+            //创建单元，以后读写变量都通过它
+            org.objectweb.asm.Type type = storageType(variable, ctx);
+            mv.visitInsn(ICONST_1);
+            if (type.getSort() == org.objectweb.asm.Type.OBJECT) {
+                mv.visitTypeInsn(ANEWARRAY, type.getInternalName());
+            } else {
+                mv.visitIntInsn(NEWARRAY, arrayTypeOf(type));
+            }
+            mv.visitVarInsn(ASTORE, localVarIndex);
+            localVarIndex++;
+        } else {
+            localVarIndex += storageType(variable, ctx).getSize();
+        }
     }
 
+    /**
+     * 为参数分配位置。被内层函数引用的参数，再放到单元里
+     * @param param
+     * @param ctx
+     */
+    private void declareParameter(Variable param, ParserRuleContext ctx) {
+        org.objectweb.asm.Type type = storageType(param, ctx);
+        int index = localVarIndex;
+        localVarIndex += type.getSize();
+        if (isCell(param)) {
+            declare(param, ctx);
+            loadOwner(param);
+            mv.visitVarInsn(type.getOpcode(ILOAD), index);
+            store(param, ctx);
+        } else {
+            localOfVariable.put(param, index);
+        }
+    }
 
-    @Override
-    public Object visitVariableDeclarator(VariableDeclaratorContext ctx) {
-        String varName = ctx.variableDeclaratorId().getText();
+    //newarray指令的元素类型
+    private static int arrayTypeOf(org.objectweb.asm.Type type) {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.BOOLEAN: return T_BOOLEAN;
+            case org.objectweb.asm.Type.CHAR: return T_CHAR;
+            case org.objectweb.asm.Type.LONG: return T_LONG;
+            case org.objectweb.asm.Type.FLOAT: return T_FLOAT;
+            case org.objectweb.asm.Type.DOUBLE: return T_DOUBLE;
+            default: return T_INT;
+        }
+    }
 
-        localVarIndex++;
+    //被内层函数引用的本地变量，放在长度为1的数组里
+    private boolean isCell(Variable variable) {
+        return cellVariables.contains(variable);
+    }
 
-        varName2Index.put(varName, Integer.valueOf(localVarIndex));
+    //单元的类型，是变量存放的类型的数组
+    private org.objectweb.asm.Type cellType(Variable variable, ParserRuleContext ctx) {
+        return org.objectweb.asm.Type.getType("[" + storageType(variable, ctx).getDescriptor());
+    }
 
-        if (ctx.variableInitializer() != null){
-            visitVariableInitializer(ctx.variableInitializer());
+    private int localOf(Variable variable, ParserRuleContext ctx) {
+        Integer index = localOfVariable.get(variable);
+        if (index == null) {
+            //别的函数里的变量，当前方法里没有它的单元
+            throw unsupported("variable " + variable.getName(), ctx);
         }
+        return index;
+    }
 
-        return null;
+    /**
+     * 如果表达式是对一个变量的引用，返回这个变量
+     * @param ctx
+     * @return
+     */
+    private Variable variableOf(ExpressionContext ctx) {
+        if (ctx.primary() != null && ctx.primary().IDENTIFIER() != null) {
+            Symbol symbol = at.symbolOfNode.get(ctx.primary());
+            if (symbol instanceof Variable) {
+                return (Variable) symbol;
+            }
+        }
+        throw unsupported("lvalue " + ctx.getText(), ctx);
     }
 
+    /**
+     * 如果表达式是obj.field这样对属性的引用，返回这个属性
+     * @param ctx
+     * @return
+     */
+    private Variable memberOf(ExpressionContext ctx) {
+        if (ctx.bop == null || ctx.bop.getType() != PlayScriptParser.DOT || ctx.IDENTIFIER() == null) {
+            return null;
+        }
+        Variable member = (Variable) at.symbolOfNode.get(ctx);
+        if (!isMember(member)) {
+            throw unsupported("field " + ctx.getText(), ctx);
+        }
+        checkHidden(member, ctx.expression(0), ctx);
+        return member;
+    }
 
-    @Override
-    public Object visitVariableInitializer(VariableInitializerContext ctx) {
-        //把初始化值压到栈里
-        if (ctx.expression() != null) {
-            visitExpression(ctx.expression());
+    //解释器按对象的真实类型查找属性，子类里同名的属性会遮住父类的。this和super的属性是准确的
+    private void checkHidden(Variable member, ExpressionContext receiver, ParserRuleContext ctx) {
+        Symbol left = at.symbolOfNode.get(receiver);
+        if (!(left instanceof This || left instanceof Super)) {
+            Class theClass = (Class) ((Variable) left).type;
+            for (Class subClass : classNames.keySet()) {
+                if (theClass.isAncestor(subClass) && subClass.getVariable(member.getName()) != member) {
+                    throw unsupported("field " + member.getName() + " hidden in " + subClass.getName(), ctx);
+                }
+            }
         }
+    }
 
-        //把栈里的数据存到变量里去
-        mv.visitVarInsn(ISTORE, localVarIndex);
+    //是不是类的属性
+    private static boolean isMember(Variable variable) {
+        return variable.enclosingScope instanceof Class && !(variable instanceof This || variable instanceof Super);
+    }
 
-        return null;
+    //是存在字段里的变量：被函数引用的全局变量，或者类的属性
+    private boolean isField(Variable variable) {
+        return fieldOfVariable.containsKey(variable) || isMember(variable);
     }
 
-    @Override
-    public Object visitStatement(StatementContext ctx) {
-        if (ctx.statementExpression != null) {
-            visitExpression(ctx.statementExpression);
-        } else if (ctx.RETURN() != null) {
-            if (ctx.expression() != null) {
-                visitExpression(ctx.expression());
+    //字段所在的JVM类
+    private String ownerOf(Variable variable, ParserRuleContext ctx) {
+        return isMember(variable) ? classNameOf((Class) variable.enclosingScope, ctx) : className;
+    }
 
-                mv.visitInsn(IRETURN);  //返回整数
-            }
-            else {
-                mv.visitInsn(RETURN);
-            }
+    //方法所在的JVM类
+    private String ownerOf(Function function, ParserRuleContext ctx) {
+        return function.isMethod() ? classNameOf((Class) function.enclosingScope, ctx) : className;
+    }
 
-            returnGenerated = true;
-        }
-        return null;
+    private String fieldNameOf(Variable variable) {
+        return isMember(variable) ? variable.getName() : fieldOfVariable.get(variable);
     }
 
-    @Override
-    public Object visitExpression(ExpressionContext ctx) {
-        String address = "";
+    //把DefaultPlayClass的实例压栈。类的方法里，从对象的this$0字段获取
+    private void loadScript() {
+        if (currentClass == null) {
+            mv.visitVarInsn(ALOAD, instanceIndex);
+        } else {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, classNames.get(currentClass), "this$0", "L" + className + ";");
+        }
+    }
 
-        //赋值
-        if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.ASSIGN){
-            //左侧必须是一个左值，现在只考虑变量名
-            if (ctx.expression(0).primary() != null && ctx.expression(0).primary().IDENTIFIER() != null) {
-                String varName = ctx.expression(0).getText();
-                int varIndex = varName2Index.get(varName).intValue();
+    //不带限定地访问字段时，把字段所属的对象压栈：全局变量是DefaultPlayClass的实例，属性是当前对象。
+    //单元里的变量，压入数组和下标0。普通的本地变量什么也不做
+    private void loadOwner(Variable variable) {
+        if (fieldOfVariable.containsKey(variable)) {
+            loadScript();
+        } else if (isMember(variable)) {
+            mv.visitVarInsn(ALOAD, 0);
+        } else if (isCell(variable)) {
+            mv.visitVarInsn(ALOAD, localOf(variable, variable.ctx));
+            mv.visitInsn(ICONST_0);
+        }
+    }
 
-                //右边必须是一个右值
-                visitExpression(ctx.expression(1));
+    //读取变量的值
+    private void load(Variable variable, ParserRuleContext ctx) {
+        org.objectweb.asm.Type type = storageType(variable, ctx);
+        if (isField(variable)) {
+            loadOwner(variable);
+            mv.visitFieldInsn(GETFIELD, ownerOf(variable, ctx), fieldNameOf(variable), type.getDescriptor());
+        } else if (isCell(variable)) {
+            loadOwner(variable);
+            mv.visitInsn(type.getOpcode(IALOAD));
+        } else {
+            mv.visitVarInsn(type.getOpcode(ILOAD), localOf(variable, ctx));
+        }
+    }
 
-                //设置变量的值
-                mv.visitVarInsn(ISTORE, varIndex);
-            }
+    //把栈顶的值存到变量里。如果是字段，对象引用在值的下面；如果是单元，数组和下标在值的下面
+    private void store(Variable variable, ParserRuleContext ctx) {
+        org.objectweb.asm.Type type = storageType(variable, ctx);
+        if (isField(variable)) {
+            mv.visitFieldInsn(PUTFIELD, ownerOf(variable, ctx), fieldNameOf(variable), type.getDescriptor());
+        } else if (isCell(variable)) {
+            mv.visitInsn(type.getOpcode(IASTORE));
+        } else {
+            mv.visitVarInsn(type.getOpcode(ISTORE), localOf(variable, ctx));
         }
+    }
 
-        // 二元运算
-        else if (ctx.bop != null && ctx.expression().size() >= 2) {
-            visitExpression(ctx.expression(0));
-            visitExpression(ctx.expression(1));
-            switch (ctx.bop.getType()) {
-            case PlayScriptParser.ADD:
-                mv.visitInsn(IADD);
-                break;
-            case PlayScriptParser.SUB:
-                mv.visitInsn(ISUB);
-                break;
-            case PlayScriptParser.MUL:
-                mv.visitInsn(IMUL);
-                break;
-            case PlayScriptParser.DIV:
-                mv.visitInsn(IDIV);
-                break;
-            }
-        } else if (ctx.primary() != null) {
-            visitPrimary(ctx.primary());
-        } else if (ctx.functionCall() != null) {// functionCall
-            visitFunctionCall(ctx.functionCall());
+    /**
+     * 赋值表达式
+     * @param target 左侧，变量或者对象的属性
+     * @param value
+     * @param needValue 是否要把赋的值留在栈里，作为赋值表达式的值
+     * @param ctx
+     */
+    private void assign(ExpressionContext target, ExpressionContext value, boolean needValue, ParserRuleContext ctx) {
+        Variable member = memberOf(target);
+        if (member != null) {
+            visitExpression(target.expression(0));
+            assignValue(member, value, needValue, ctx);
+        } else {
+            assign(variableOf(target), value, needValue, ctx);
         }
-        return address;
     }
 
-    @Override
-    public Object visitPrimary(PrimaryContext ctx) {
-        String rtn = "";
-        if (ctx.literal() != null) {
-            visitLiteral(ctx.literal()); // 直接操作数
-        } else if (ctx.IDENTIFIER() != null) {
-            Symbol symbol = at.symbolOfNode.get(ctx);
-            if (symbol instanceof Variable) {
-                Variable variable = (Variable) symbol;
-                int varIndex = varName2Index.get(variable.getName());
+    /**
+     * 给变量赋值
+     * @param variable
+     * @param value 值，为null时存入缺省值
+     * @param needValue 是否要把赋的值留在栈里，作为赋值表达式的值
+     * @param ctx
+     */
+    private void assign(Variable variable, ExpressionContext value, boolean needValue, ParserRuleContext ctx) {
+        loadOwner(variable);
+        assignValue(variable, value, needValue, ctx);
+    }
 
-                mv.visitVarInsn(ILOAD, varIndex);
-            }
+    //字段的对象引用已经在栈里。赋值表达式的值是装箱之前的值
+    private void assignValue(Variable variable, ExpressionContext value, boolean needValue, ParserRuleContext ctx) {
+        org.objectweb.asm.Type storageType = storageType(variable, ctx);
+        org.objectweb.asm.Type valueType = storageType;
+        if (value != null) {
+            visitExpression(value);
+            valueType = valueTypeOf(value);
+        } else {
+            pushDefault(storageType);
         }
-        return rtn;
-    }
 
-    //只支持整数常量
-    @Override
-    public Object visitLiteral(LiteralContext ctx) {
-        String rtn = "";
-        if (ctx.integerLiteral() != null) {
-            visitIntegerLiteral(ctx.integerLiteral());
+        if (needValue) {
+            mv.visitInsn(dupOf(valueType, isField(variable) ? 1 : (isCell(variable) ? 2 : 0)));
         }
-        else if (ctx.STRING_LITERAL() != null) {
-//            String withQuotationMark = ctx.STRING_LITERAL().getText();
-//            String withoutQuotationMark = withQuotationMark.substring(1, withQuotationMark.length() - 1);
+        if (value != null) {
+            adapt(typeOf(value), valueType, variable.type, storageType, ctx);
         }
-        return rtn;
+        store(variable, ctx);
     }
 
-    @Override
-    public Object visitIntegerLiteral(IntegerLiteralContext ctx) {
-        int value = 0;
-        if (ctx.DECIMAL_LITERAL() != null) {
-            value = Integer.valueOf(ctx.DECIMAL_LITERAL().getText()).intValue();
+    /**
+     * 复制栈顶的值，放到变量的所属对象下面
+     * @param type 值的类型
+     * @param ownerSize 所属对象占栈的几个位置：字段是1，单元是2，本地变量是0
+     * @return
+     */
+    private static int dupOf(org.objectweb.asm.Type type, int ownerSize) {
+        if (type.getSize() == 2) {
+            return ownerSize == 0 ? DUP2 : (ownerSize == 1 ? DUP2_X1 : DUP2_X2);
         }
+        return ownerSize == 0 ? DUP : (ownerSize == 1 ? DUP_X1 : DUP_X2);
+    }
 
-        //0-5之间的数字，直接用快捷指令
-        if (value >= 0 && value <= 5) {
-            switch (value) {
-                case 0:
-                    mv.visitInsn(ICONST_0);
-                    break;
-                case 1:
-                    mv.visitInsn(ICONST_1);
-                    break;
-                case 2:
-                    mv.visitInsn(ICONST_2);
-                    break;
-                case 3:
-                    mv.visitInsn(ICONST_3);
-                    break;
-                case 4:
-                    mv.visitInsn(ICONST_4);
-                    break;
-                case 5:
-                    mv.visitInsn(ICONST_5);
-                    break;
-            }
+    //设置本地变量的名称，反编译和调试的时候用
+    private void genLocalVariables(Label start, Label end) {
+        for (Map.Entry<Variable, Integer> entry : localOfVariable.entrySet()) {
+            Variable variable = entry.getKey();
+            org.objectweb.asm.Type type = isCell(variable) ? cellType(variable, null) : storageType(variable, null);
+            mv.visitLocalVariable(variable.getName(), type.getDescriptor(), null, start, end, entry.getValue());
         }
+    }
 
-        //如果是8位整数，用bipush指令，直接放在后面的一个字节的操作数里就行了
-        else if (value >= -128 && value <128){
-            mv.visitIntInsn(BIPUSH, value);
-        }
 
-        //如果是16位整数，用sipush指令
-        else if (value >= -32768 && value <32768){
-            mv.visitIntInsn(SIPUSH, value);
+    ///////////////////////////////////////
+    // 类型
+
+    /**
+     * 表达式的类型。++、--和!的类型语义分析没有记下来，在这里推算
+     * @param ctx
+     * @return
+     */
+    private Type typeOf(ExpressionContext ctx) {
+        Type type = null;
+        if (ctx.postfix != null) {
+            type = typeOf(ctx.expression(0));
+        } else if (ctx.prefix != null) {
+            type = ctx.prefix.getType() == PlayScriptParser.BANG ? PrimitiveType.Boolean : typeOf(ctx.expression(0));
+        } else if (ctx.primary() != null && ctx.primary().expression() != null) {
+            type = typeOf(ctx.primary().expression());
+        } else if (ctx.functionCall() != null) {
+            type = returnTypeOf(ctx.functionCall());
+        } else {
+            type = at.typeOfNode.get(ctx);
         }
 
-        //大于16位的，采用ldc指令，从常量池中去取
-        else{
-            mv.visitLdcInsn(new Integer(value));
+        if (type == null) {
+            throw unsupported("expression " + ctx.getText(), ctx);
         }
+        return type;
+    }
 
-        return null;
+    /**
+     * playscript的类型在JVM里对应的类型。short和byte按int处理，跟解释器一样
+     * @param type
+     * @param ctx
+     * @return
+     */
+    private org.objectweb.asm.Type jvmType(Type type, ParserRuleContext ctx) {
+        if (type == PrimitiveType.Integer || type == PrimitiveType.Short || type == PrimitiveType.Byte) {
+            return org.objectweb.asm.Type.INT_TYPE;
+        } else if (type == PrimitiveType.Long) {
+            return org.objectweb.asm.Type.LONG_TYPE;
+        } else if (type == PrimitiveType.Float) {
+            return org.objectweb.asm.Type.FLOAT_TYPE;
+        } else if (type == PrimitiveType.Double) {
+            return org.objectweb.asm.Type.DOUBLE_TYPE;
+        } else if (type == PrimitiveType.Boolean) {
+            return org.objectweb.asm.Type.BOOLEAN_TYPE;
+        } else if (type == PrimitiveType.Char) {
+            return org.objectweb.asm.Type.CHAR_TYPE;
+        } else if (type == PrimitiveType.String) {
+            return org.objectweb.asm.Type.getObjectType("java/lang/String");
+        } else if (type == PrimitiveType.Null) {
+            return org.objectweb.asm.Type.getObjectType("java/lang/Object");
+        } else if (type instanceof VoidType) {
+            return org.objectweb.asm.Type.VOID_TYPE;
+        } else if (type instanceof Class) {
+            return org.objectweb.asm.Type.getObjectType(classNameOf((Class) type, ctx));
+        } else if (type instanceof FunctionType) {
+            return org.objectweb.asm.Type.getObjectType(interfaceOf((FunctionType) type, ctx));
+        }
+        throw unsupported("type " + (type != null ? type.getName() : null), ctx);
     }
 
-    @Override
-    public Object visitFunctionCall(FunctionCallContext ctx) {
-        Function function = null;
+    //JVM的基础类型
+    private static boolean isPrimitive(org.objectweb.asm.Type type) {
+        return type.getSort() >= org.objectweb.asm.Type.BOOLEAN && type.getSort() <= org.objectweb.asm.Type.DOUBLE;
+    }
 
-        Symbol symbol = at.symbolOfNode.get(ctx);
+    //值是JVM的基础类型的playscript类型
+    private boolean hasPrimitiveValue(Type type) {
+        return type instanceof PrimitiveType && isPrimitive(jvmType(type, null));
+    }
 
-        if (symbol instanceof Function) {
-            function = (Function) symbol;
-        } else {
-            // TODO 临时代码，用于打印输出
-            if (ctx.IDENTIFIER().getText().equals("println")) {
+    /**
+     * 变量存放的类型。基础类型的变量，如果运行时的类型不一定是声明的类型，装箱以后按Object存放
+     * @param variable
+     * @param ctx
+     * @return
+     */
+    private org.objectweb.asm.Type storageType(Variable variable, ParserRuleContext ctx) {
+        org.objectweb.asm.Type type = jvmType(variable.type, ctx);
+        return isPrimitive(type) && !unboxed.contains(variable) ? OBJECT_TYPE : type;
+    }
 
-                //调用System.out.println()方法
-                genPrintln(ctx.expressionList().expression(0));
+    //函数的返回值在方法里的类型
+    private org.objectweb.asm.Type returnStorageType(Function function, ParserRuleContext ctx) {
+        return boxedReturns.contains(function) ? OBJECT_TYPE : jvmType(declaredReturnType(function), ctx);
+    }
 
-                return null;
+    /**
+     * 表达式的值在栈里的类型。运算的结果是节点的类型；从装箱存放的变量、返回值装箱的函数和函数型的值得到的，是Object，
+     * 运行时的类型跟解释器里一样，不一定是节点的类型
+     * @param ctx
+     * @return
+     */
+    private org.objectweb.asm.Type valueTypeOf(ExpressionContext ctx) {
+        Object constant = constantOfNode.get(ctx);
+        if (constant != null && constantTypeOf(constant) != null) {
+            return constantTypeOf(constant);
+        }
 
-            } else {
-                at.log("unable to find function " + ctx.IDENTIFIER().getText(), ctx);
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            //赋值表达式的值是右边的值
+            if (ctx.bop.getType() == PlayScriptParser.ASSIGN) {
+                return valueTypeOf(ctx.expression(1));
+            }
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT) {
+            Variable member = memberOf(ctx);
+            return member != null ? storageType(member, ctx) : valueTypeOf(ctx.functionCall());
+        } else if (ctx.primary() != null) {
+            PrimaryContext primary = ctx.primary();
+            if (primary.expression() != null) {
+                return valueTypeOf(primary.expression());
+            } else if (primary.IDENTIFIER() != null && at.symbolOfNode.get(primary) instanceof Variable) {
+                return storageType((Variable) at.symbolOfNode.get(primary), ctx);
             }
+        } else if (ctx.functionCall() != null) {
+            return valueTypeOf(ctx.functionCall());
         }
+        return jvmType(typeOf(ctx), ctx);
+    }
 
-        //把对象示例放入栈，作为第一个参数
-        mv.visitVarInsn(ALOAD, instanceIndex);
-
-        //设置参数
-        if (ctx.expressionList() != null) {
-            visitExpressionList(ctx.expressionList());
+    //函数调用的值在栈里的类型。函数型的值，基础类型的返回值是装箱的
+    private org.objectweb.asm.Type valueTypeOf(FunctionCallContext ctx) {
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        org.objectweb.asm.Type type = jvmType(returnTypeOf(ctx), ctx);
+        if (symbol instanceof Variable) {
+            return isPrimitive(type) ? OBJECT_TYPE : type;
+        } else if (symbol instanceof Function && ctx.IDENTIFIER() != null && !(((Function) symbol).isConstructor() && !isMemberCall(ctx))) {
+            return returnStorageType((Function) symbol, ctx);
         }
+        return type;
+    }
 
-        //调用方法
-        mv.visitMethodInsn(INVOKEVIRTUAL,"DefaultPlayClass", function.getName(),
-                genFunctionDescriptor(function),false);
-
+    //ConstantFolder算出来的常量的类型。不能直接压栈的常量返回null
+    private static org.objectweb.asm.Type constantTypeOf(Object value) {
+        if (value instanceof Integer) {
+            return org.objectweb.asm.Type.INT_TYPE;
+        } else if (value instanceof Long) {
+            return org.objectweb.asm.Type.LONG_TYPE;
+        } else if (value instanceof Float) {
+            return org.objectweb.asm.Type.FLOAT_TYPE;
+        } else if (value instanceof Double) {
+            return org.objectweb.asm.Type.DOUBLE_TYPE;
+        } else if (value instanceof Boolean) {
+            return org.objectweb.asm.Type.BOOLEAN_TYPE;
+        } else if (value instanceof String) {
+            return org.objectweb.asm.Type.getObjectType("java/lang/String");
+        }
         return null;
     }
 
-
-
-    @Override
-    public Object visitFunctionDeclaration(FunctionDeclarationContext ctx){
-        //在这里不做任何事情，阻断缺省的遍历逻辑
-        return null;
+    /**
+     * 函数类型对应的接口。apply方法的描述符相同的函数类型，使用同一个接口
+     * @param type
+     * @param ctx
+     * @return 接口的内部名称
+     */
+    private String interfaceOf(FunctionType type, ParserRuleContext ctx) {
+        if (!wholeScript) {
+            throw unsupported("function type", ctx);
+        }
+        String descriptor = functionTypeDescriptor(type, ctx);
+        String name = functionInterfaces.get(descriptor);
+        if (name == null) {
+            name = className + "$Function" + functionInterfaces.size();
+            functionInterfaces.put(descriptor, name);
+        }
+        return name;
     }
 
+    /**
+     * 函数类型的apply方法的描述符。参数和返回值都是Object，函数型的变量可以引用参数类型不同、但可以赋值的函数，
+     * 解释器调用时也不做类型转换
+     * @param type
+     * @param ctx
+     * @return
+     */
+    private String functionTypeDescriptor(FunctionType type, ParserRuleContext ctx) {
+        if (type instanceof Function && ((Function) type).isConstructor()) {
+            throw unsupported("function value " + ((Function) type).getName(), ctx);
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < type.getParamTypes().size(); i++) {
+            sb.append(OBJECT_TYPE.getDescriptor());
+        }
+        sb.append(')').append(type.getReturnType() instanceof VoidType ? "V" : OBJECT_TYPE.getDescriptor());
+        return sb.toString();
+    }
 
-    //根据函数生成方法。是在main函数生成完毕以后调用。
-    private void genMethod(FunctionDeclarationContext ctx) {
-        //重置中间变量
-        localVarIndex = 0; //第0个参数是this
-        varName2Index = new HashMap<>();
-        instanceIndex = 0;
+    /**
+     * 生成函数类型对应的接口，只有一个抽象的apply方法
+     * @param name
+     * @param descriptor apply方法的描述符
+     */
+    private void genInterface(String name, String descriptor) {
+        ClassWriter writer = new ScriptClassWriter();
+        writer.visit(Opcodes.V1_8, ACC_PUBLIC + ACC_ABSTRACT + ACC_INTERFACE, name, null, "java/lang/Object", null);
+        writer.visitMethod(ACC_PUBLIC + ACC_ABSTRACT, "apply", descriptor, null, null).visitEnd();
+        writer.visitEnd();
+        classes.put(name, writer.toByteArray());
+    }
 
-        Function function = (Function) at.node2Scope.get(ctx);
+    //类对应的JVM类的内部名称。嵌套的类，以及只生成几个函数的时候，不支持类
+    private String classNameOf(Class theClass, ParserRuleContext ctx) {
+        String name = classNames.get(theClass);
+        if (name == null) {
+            throw unsupported("class " + theClass.getName(), ctx);
+        }
+        return name;
+    }
 
-        mv = cw.visitMethod(ACC_PUBLIC,
-                function.getName(),
-                genFunctionDescriptor(function),
-                null, null);
+    /**
+     * 数值类型在int、long、float、double中的位置，字符按int计算。不是数值类型返回-1
+     * @param type
+     * @return
+     */
+    private static int numericIndex(org.objectweb.asm.Type type) {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.INT:
+            case org.objectweb.asm.Type.CHAR:
+                return 0;
+            case org.objectweb.asm.Type.LONG:
+                return 1;
+            case org.objectweb.asm.Type.FLOAT:
+                return 2;
+            case org.objectweb.asm.Type.DOUBLE:
+                return 3;
+            default:
+                return -1;
+        }
+    }
 
-        //mv.visitCode();
-        Label l0 = new Label();
-        mv.visitLabel(l0);
+    //数值类型之间的转换指令，下标是numericIndex()
+    private static final int[][] CONVERSIONS = {
+            {NOP, I2L, I2F, I2D},
+            {L2I, NOP, L2F, L2D},
+            {F2I, F2L, NOP, F2D},
+            {D2I, D2L, D2F, NOP}
+    };
+
+    /**
+     * 把栈顶的值转换成运算需要的类型，比如int跟double相加。装箱的值按Number取出所需类型的值
+     * @param source 值在栈里的类型
+     * @param target
+     * @param ctx
+     */
+    private void convert(org.objectweb.asm.Type source, org.objectweb.asm.Type target, ParserRuleContext ctx) {
+        if (source.equals(target)) {
+            return;
+        }
+        if (source.equals(OBJECT_TYPE) && isPrimitive(target)) {
+            unbox(target);
+            return;
+        }
 
-        //添加参数
-        for (Variable param : function.parameters){
-            mv.visitParameter(param.getName(), ACC_PUBLIC);
-            localVarIndex++;   //参数也存在栈桢中的本地变量列表中。
-            varName2Index.put(param.getName(), Integer.valueOf(localVarIndex));
+        int s = numericIndex(source);
+        int t = numericIndex(target);
+        if (s < 0 || t < 0) {
+            throw unsupported("conversion from " + source.getClassName() + " to " + target.getClassName(), ctx);
+        }
+        if (s != t) {
+            mv.visitInsn(CONVERSIONS[s][t]);
+        }
+        if (target.getSort() == org.objectweb.asm.Type.CHAR) {
+            mv.visitInsn(I2C);
         }
+    }
 
-        int lastParamIndex = localVarIndex;
+    /**
+     * 把栈顶的值存到变量、参数或返回值之前的处理。解释器不做类型转换：装箱存放的，把值原样装箱；
+     * 按声明的类型存放的，UnboxingAnalyzer保证了值就是这个类型
+     * @param fromType 值的类型
+     * @param from 值在栈里的类型
+     * @param toType 变量声明的类型
+     * @param to 变量存放的类型
+     * @param ctx
+     */
+    private void adapt(Type fromType, org.objectweb.asm.Type from, Type toType, org.objectweb.asm.Type to, ParserRuleContext ctx) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (to.equals(OBJECT_TYPE)) {
+            box(from);
+            return;
+        }
+        if (from.equals(OBJECT_TYPE) && isPrimitive(to) && hasPrimitiveValue(fromType)) {
+            unbox(to);
+            return;
+        }
 
+        //null可以赋给字符串和对象，子类的对象可以赋给父类的变量
+        if (!isPrimitive(from) && !isPrimitive(to)
+                && (fromType == PrimitiveType.Null || (fromType instanceof Class && fromType.isType(toType)))) {
+            return;
+        }
+        throw unsupported("conversion from " + fromType.getName() + " to " + toType.getName(), ctx);
+    }
 
-        ////生成中间的代码
-        visitFunctionBody(ctx.functionBody());
+    /**
+     * 计算要打印或者连接到字符串里的值，返回println()和StringBuilder.append()的参数类型。
+     * 字符串以外的对象用Object；跟解释器一样，null打印成Null
+     * @param ctx
+     * @return
+     */
+    private String genPrintable(ExpressionContext ctx) {
+        visitExpression(ctx);
+        org.objectweb.asm.Type type = valueTypeOf(ctx);
+        if (isPrimitive(type)) {
+            return type.getDescriptor();
+        }
 
+        Label notNull = new Label();
+        mv.visitInsn(DUP);
+        mv.visitJumpInsn(IFNONNULL, notNull);
+        mv.visitInsn(POP);
+        mv.visitLdcInsn("Null");
+        mv.visitLabel(notNull);
+        return type.getDescriptor().equals("Ljava/lang/String;") ? type.getDescriptor() : "Ljava/lang/Object;";
+    }
 
-        ////Main函数--尾声
 
-        if(!returnGenerated) {
-            mv.visitInsn(RETURN);
+    /**
+     * 计算栈桢时，ClassWriter要知道两个类的共同父类，比如if的两个分支给同一个变量赋了不同子类的对象。
+     * 生成的类还没有加载，不能用缺省的办法查找，按playscript的类计算
+     */
+    private class ScriptClassWriter extends ClassWriter {
+        private ScriptClassWriter() {
+            super(ClassWriter.COMPUTE_FRAMES);
         }
 
-        Label l1 = new Label();
-        mv.visitLabel(l1);
-
-        //设置本地变量，这一定要放在最后
-        for (String varName : varName2Index.keySet()){
-            int varIndex = varName2Index.get(varName).intValue();
-            if (varIndex > lastParamIndex) {
-                mv.visitLocalVariable(varName, "I", null, l0, l1, varIndex);
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            Class class1 = null;
+            Class class2 = null;
+            for (Map.Entry<Class, String> entry : classNames.entrySet()) {
+                if (entry.getValue().equals(type1)) {
+                    class1 = entry.getKey();
+                }
+                if (entry.getValue().equals(type2)) {
+                    class2 = entry.getKey();
+                }
             }
+            if (class1 == null && class2 == null && !type1.startsWith(className + "$") && !type2.startsWith(className + "$")) {
+                return super.getCommonSuperClass(type1, type2);
+            } else if (class1 == null || class2 == null) {
+                return "java/lang/Object";
+            }
+            for (Class theClass = class1; theClass != null; theClass = theClass.getParentClass()) {
+                if (theClass == class2 || theClass.isAncestor(class2)) {
+                    return classNames.get(theClass);
+                }
+            }
+            return "java/lang/Object";
         }
-
-        //设置操作数栈最大的帧数，以及最大的本地变量数
-        mv.visitMaxs(3, 1);
-
-        //结束方法
-        mv.visitEnd();
     }
 
 
@@ -437,39 +2750,47 @@ public class ByteCodeGen extends PlayScriptBaseVisitor<Object> implements Opcode
         constructor.visitEnd();
     }
 
-    //产生对System.out.println方法的调用。
-    private void genPrintln(ExpressionContext ctx){
+    //产生对System.out.println方法的调用。跟解释器一样，有多个参数时打印最后一个
+    private void genPrintln(ExpressionListContext ctx){
         //getstatic     #5                  // Field java/lang/System.out:Ljava/io/PrintStream;
         mv.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
 
+        if (ctx == null) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "()V", false);
+            return;
+        }
+
         //计算参数
-        visitExpression(ctx);
+        List<ExpressionContext> expressions = ctx.expression();
+        for (int i = 0; i < expressions.size() - 1; i++) {
+            genStatementExpression(expressions.get(i));
+        }
+        String descriptor = genPrintable(expressions.get(expressions.size() - 1));
 
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V", false);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(" + descriptor + ")V", false);
     }
 
 
 
-    //形成函数的描述符。参数只支持int型的，返回值只支持void和int。
-    private String genFunctionDescriptor(Function function){
+    //形成函数的描述符。参数和返回值按存放的类型，构造方法没有返回值。内层函数引用的变量的单元在参数前面
+    String genFunctionDescriptor(Function function){
         StringBuffer sb = new StringBuffer();
         sb.append('(');
 
-        for (int i = 0; i < function.parameters.size(); i++){
-            sb.append('I');
+        for (Variable variable : capturedOf(function)) {
+            sb.append(cellType(variable, variable.ctx).getDescriptor());
+        }
+
+        for (Variable param : function.parameters){
+            sb.append(storageType(param, param.ctx).getDescriptor());
         }
 
         sb.append(')');
 
-        if (function.getReturnType() instanceof  VoidType){
-            sb.append('V');
-        }
-        else{
-            sb.append('I');
-        }
+        sb.append(returnStorageType(function, function.ctx).getDescriptor());
 
         return sb.toString();
     }
 
 
-}
\ No newline at end of file
+}
@@ -2,7 +2,9 @@ package play;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Class extends Scope implements Type{
     //父类
@@ -15,6 +17,10 @@ public class Class extends Scope implements Type{
 
     private DefaultConstructor defaultConstructor = null;
 
+    //虚方法表。key是调用时解析到的方法，value是对本类的对象实际要调用的方法（可能是子类重载后的方法）。
+    //运行时按需填充。
+    private Map<Function, Function> vtable = new HashMap<>();
+
     protected Class(String name, ParserRuleContext ctx) {
         this.name = name;
         this.ctx = ctx;
@@ -112,6 +118,25 @@ public class Class extends Scope implements Type{
         return rtn;
     }
 
+    /**
+     * 对于本类的对象，调用某个方法时实际应该执行的方法。支持多态。
+     * 查找的结果记在虚方法表里，同一个方法只查找一次。
+     * @param function 调用时解析到的方法，可能是父类中的方法
+     * @return
+     */
+    protected Function getOverride(Function function){
+        Function rtn = vtable.get(function);
+        if (rtn == null){
+            //从当前类逐级向上查找，找到正确的方法定义
+            rtn = getFunction(function.name, function.getParamTypes());
+            if (rtn == null){
+                rtn = function;
+            }
+            vtable.put(function, rtn);
+        }
+        return rtn;
+    }
+
     protected Variable getFunctionVariable(String name, List<Type> paramTypes){
         Variable rtn = super.getFunctionVariable(name, paramTypes);  //TODO 是否要检查visibility?
 
@@ -135,7 +160,7 @@ public class Class extends Scope implements Type{
         }
 
         boolean rtn = false;
-        rtn = symbols.contains(symbol);
+        rtn = getSymbols(symbol.name).contains(symbol);
         if (!rtn && parentClass != null){
             rtn = parentClass.containsSymbol(symbol);
         }
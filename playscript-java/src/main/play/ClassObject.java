@@ -4,4 +4,7 @@ public class ClassObject extends PlayObject{
      //类型
      protected Class type = null;
 
+     //按槽位存放的属性值，包括父类的属性。槽位由SlotResolver分配
+     protected Object[] slots = null;
+
 }
\ No newline at end of file
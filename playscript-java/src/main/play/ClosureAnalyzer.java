@@ -4,7 +4,6 @@ import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RuleContext;
 
 import java.util.HashSet;
-import java.util.Set;
 
 public class ClosureAnalyzer {
     AnnotatedTree at = null;
@@ -16,86 +15,61 @@ public class ClosureAnalyzer {
     /**
      * 对所有的函数做闭包分析。
      * 只做标准函数的分析，不做类的方法的分析。
+     *
+     * 算法：一个函数的闭包变量，是它内部的代码所引用的、但不是在它内部声明的变量。
+     * 对每个变量引用，从引用的位置向外逐个查看包含它的函数，直到遇到声明这个变量的函数为止，
+     * 沿途经过的函数都把这个变量作为闭包变量。这样每个变量引用只处理一次，不需要为每个函数扫描整个符号表。
      */
     public void analyzeClosures(){
-        for (Type type : at.types){
-            if (type instanceof Function && !((Function)type).isMethod()){
-                Set set = calcClosureVariables((Function)type);
-                if (set.size() > 0){
-                    ((Function)type).closureVariables = set;
-                }
-            }
-        }
+        analyzeClosures(0);
     }
 
     /**
-     * 为某个函数计算闭包变量，也就是它所引用的外部环境变量。
-     * 算法：计算所有的变量引用，去掉内部声明的变量，剩下的就是外部的。
-     * @param function
-     * @return
+     * 只分析编号不小于firstNode的节点里的变量引用。
+     * REPL里新输入的脚本不会改变以前声明的函数，所以只需要分析新的节点。
+     * @param firstNode
      */
-    private Set<Variable> calcClosureVariables(Function function){
-        Set<Variable> refered = variablesReferedByScope(function);
-        Set<Variable> declared = variablesDeclaredUnderScope(function);
-        refered.removeAll(declared);
-        return refered;
-    }
-
-    /**
-     * 被一个Scope（包括下级Scope）内部的代码所引用的所有变量的集合
-     * @param scope
-     * @return
-     */
-    private Set<Variable> variablesReferedByScope(Scope scope){
-        Set<Variable> rtn = new HashSet<>();
-
-        ParserRuleContext scopeNode = scope.ctx;
-
-        //扫面所有的符号引用。这对于大的程序性能不够优化，因为符号表太大。
-        for(ParserRuleContext node : at.symbolOfNode.keySet()){
-            Symbol symbol = at.symbolOfNode.get(node);
-            if (symbol instanceof Variable && isAncestor(scopeNode, node)){
-                rtn.add((Variable)symbol);
+    public void analyzeClosures(int firstNode){
+        for (ParserRuleContext ref : at.symbolOfNode.keys(firstNode)){
+            Symbol symbol = at.symbolOfNode.get(ref);
+            if (!(symbol instanceof Variable)){
+                continue;
             }
-        }
+            Variable variable = (Variable) symbol;
 
-        return rtn;
-    }
-
-    /**
-     * 看看node1是不是node2的祖先
-     * @param node1
-     * @param node2
-     */
-    private boolean isAncestor(RuleContext node1, RuleContext node2){
-        if(node2.parent == null){
-            return false;
-        }
-        else if(node2.parent == node1){
-            return true;
-        }
-        else{
-            return isAncestor(node1,node2.parent);
+            //从引用变量的节点向上，找到包含它的各级函数
+            for (RuleContext node = ref.parent; node != null; node = node.parent){
+                Scope scope = at.node2Scope.get(node);
+                if (!(scope instanceof Function)){
+                    continue;
+                }
+                Function function = (Function) scope;
+                if (isDeclaredUnder(variable, function)){
+                    break;  //外层的函数也都包含这个变量的声明
+                }
+                if (!function.isMethod()){
+                    if (function.closureVariables == null){
+                        function.closureVariables = new HashSet<>();
+                    }
+                    function.closureVariables.add(variable);
+                }
+            }
         }
     }
 
     /**
-     * 在一个Scope（及）下级Scope中声明的所有变量的集合
+     * 变量是不是在这个Scope（及下级Scope）中声明的
+     * @param variable
      * @param scope
      * @return
      */
-    private Set<Variable> variablesDeclaredUnderScope(Scope scope){
-        Set<Variable> rtn = new HashSet<>();
-        for (Symbol symbol: scope.symbols){
-            if (symbol instanceof Variable){
-                rtn.add((Variable)symbol);
-            }
-            else if (symbol instanceof Scope){
-                rtn.addAll(variablesDeclaredUnderScope((Scope)symbol));
+    private boolean isDeclaredUnder(Variable variable, Scope scope){
+        for (Scope s = variable.enclosingScope; s != null; s = s.enclosingScope){
+            if (s == scope){
+                return true;
             }
         }
-
-        return rtn;
+        return false;
     }
 
 }
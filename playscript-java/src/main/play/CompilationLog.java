@@ -21,6 +21,22 @@ public class CompilationLog {
     public static int WARNING = 1;
     public static int ERROR = 2;
 
+    public String getMessage() {
+        return message;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getPositionInLine() {
+        return positionInLine;
+    }
+
+    public int getType() {
+        return type;
+    }
+
     @Override
     public String toString() {
         return message + " @" + line + ":" + positionInLine;
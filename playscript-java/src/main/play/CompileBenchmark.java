@@ -0,0 +1,93 @@
+package play;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+/**
+ * 比较语义分析中遍历AST的两种做法的速度：原来每一步都单独遍历一次AST，一共5次；
+ * 现在PlayScriptCompiler.resolve()只遍历3次。后面的闭包分析和槽位分配两种做法是一样的，不计算在内。
+ * 用法：java play.CompileBenchmark [函数和类的份数，缺省是200]
+ * 脚本是生成的，只做一次词法和语法分析，每一轮都用新的AnnotatedTree重新做语义分析。
+ */
+public class CompileBenchmark {
+
+    public static void main(String args[]) {
+        int copies = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        String script = generateScript(copies);
+
+        PlayScriptLexer lexer = new PlayScriptLexer(CharStreams.fromString(script));
+        PlayScriptParser parser = new PlayScriptParser(new CommonTokenStream(lexer));
+        PlayScriptParser.ProgContext ast = parser.prog();
+
+        System.out.println("script: " + script.length() + " chars, " + copies + " copies");
+
+        //预热
+        for (int i = 0; i < 5; i++) {
+            separateWalks(newTree(ast));
+            PlayScriptCompiler.resolve(newTree(ast));
+        }
+
+        int rounds = 10;
+        long separate = 0;
+        long fused = 0;
+        for (int i = 0; i < rounds; i++) {
+            AnnotatedTree at = newTree(ast);
+            long start = System.nanoTime();
+            separateWalks(at);
+            separate += System.nanoTime() - start;
+
+            at = newTree(ast);
+            start = System.nanoTime();
+            PlayScriptCompiler.resolve(at);
+            fused += System.nanoTime() - start;
+        }
+
+        System.out.println(String.format("separate walks: %.1f ms", separate / 1000000.0 / rounds));
+        System.out.println(String.format("fused walks:    %.1f ms", fused / 1000000.0 / rounds));
+    }
+
+    private static AnnotatedTree newTree(PlayScriptParser.ProgContext ast) {
+        AnnotatedTree at = new AnnotatedTree();
+        at.ast = ast;
+        return at;
+    }
+
+    //原来的做法，每一步单独遍历一次
+    private static void separateWalks(AnnotatedTree at) {
+        ParseTreeWalker walker = new ParseTreeWalker();
+        walker.walk(new TypeAndScopeScanner(at), at.ast);
+        walker.walk(new TypeResolver(at), at.ast);
+        walker.walk(new RefResolver(at), at.ast);
+        walker.walk(new TypeChecker(at), at.ast);
+        walker.walk(new SematicValidator(at), at.ast);
+    }
+
+    //生成一个大脚本，包含函数、类、循环和闭包
+    private static String generateScript(int copies) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < copies; i++) {
+            sb.append("int fun").append(i).append("(int a, int b) {\n")
+              .append("    int sum = 0;\n")
+              .append("    for (int i = 0; i < a; i++) {\n")
+              .append("        if (i > b) { sum = sum + i * 2; } else { sum = sum - 1; }\n")
+              .append("    }\n")
+              .append("    return sum + a / 2;\n")
+              .append("}\n")
+              .append("class Point").append(i).append(" {\n")
+              .append("    int x = ").append(i).append(";\n")
+              .append("    int y;\n")
+              .append("    int dist(Point").append(i).append(" p) { return x - p.x + y - p.y; }\n")
+              .append("}\n")
+              .append("function int() counter").append(i).append("() {\n")
+              .append("    int n = 0;\n")
+              .append("    int inc() { n = n + 1; return n; }\n")
+              .append("    return inc;\n")
+              .append("}\n")
+              .append("Point").append(i).append(" p").append(i).append(" = Point").append(i).append("();\n")
+              .append("int r").append(i).append(" = fun").append(i).append("(10, 3) + p").append(i)
+              .append(".dist(p").append(i).append(");\n");
+        }
+        return sb.toString();
+    }
+}
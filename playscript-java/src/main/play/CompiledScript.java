@@ -0,0 +1,189 @@
+package play;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 编译好的脚本，编译一次，可以执行很多次。在Java程序里嵌入playscript的时候使用，比如反复执行同一个规则脚本。
+ *
+ * 脚本由ByteCodeGen编译成一个类，全局代码在静态方法run()里；脚本里声明的类，也各自编译成一个类。
+ * 类只定义一次，run()的MethodHandle也只查找一次，
+ * 每次执行只是调用这个MethodHandle，不再加载类，也不用反射。
+ * run()每次执行都创建一个新的对象来存放全局变量，所以同一个CompiledScript可以在多个线程里同时执行。
+ *
+ * 参数：编译时指定脚本里的哪些全局变量是参数，执行时按同样的顺序传入它们的值，这些变量的初始化就不再执行了。
+ * 结果：脚本的最后一个语句如果是表达式语句，它的值就是执行的结果，否则结果是null。
+ *
+ * 用法：
+ *   CompiledScript rule = CompiledScript.compile("int amount = 0; int limit = 100; amount > limit;", "amount", "limit");
+ *   Object result = rule.invoke(150, 100);    //true
+ */
+public class CompiledScript {
+
+    //作为参数的全局变量
+    private final String[] parameterNames;
+    private final Type[] parameterTypes;
+
+    //生成的类，key是类名，第一个是DefaultPlayClass
+    private final Map<String, byte[]> classes;
+
+    //run()方法，类型是(Object[])Object
+    private final MethodHandle run;
+
+    private CompiledScript(String[] parameterNames, Type[] parameterTypes, Map<String, byte[]> classes, MethodHandle run) {
+        this.parameterNames = parameterNames;
+        this.parameterTypes = parameterTypes;
+        this.classes = classes;
+        this.run = run;
+    }
+
+    /**
+     * 编译一个脚本。可以在多个线程里同时调用。
+     * @param script 脚本的内容
+     * @param parameterNames 作为参数的全局变量的名称
+     * @return
+     * @throws IllegalArgumentException 脚本有编译错误，或者没有这些全局变量
+     * @throws UnsupportedOperationException 脚本用到了ByteCodeGen还不支持的特性
+     */
+    public static CompiledScript compile(String script, String... parameterNames) {
+        AnnotatedTree at = PlayScriptCompiler.compileQuietly(script);
+        if (at.hasCompilationError()) {
+            StringBuilder sb = new StringBuilder();
+            for (CompilationLog log : at.logs) {
+                if (log.type == CompilationLog.ERROR) {
+                    sb.append(sb.length() > 0 ? "\n" : "").append(log);
+                }
+            }
+            throw new IllegalArgumentException(sb.toString());
+        }
+        return compile(at, parameterNames);
+    }
+
+    /**
+     * 编译一个已经做完语义分析的脚本
+     * @param at 有参数的时候，会重新做常量折叠，参数不再当作常量。at本身不会被修改
+     * @param parameterNames 作为参数的全局变量的名称
+     * @return
+     * @throws IllegalArgumentException 没有这些全局变量
+     * @throws UnsupportedOperationException 脚本用到了ByteCodeGen还不支持的特性
+     */
+    public static CompiledScript compile(AnnotatedTree at, String... parameterNames) {
+        List<Variable> parameters = new ArrayList<>();
+        Type[] parameterTypes = new Type[parameterNames.length];
+        for (int i = 0; i < parameterNames.length; i++) {
+            Variable variable = at.nameSpace.getVariable(parameterNames[i]);
+            if (variable == null) {
+                throw new IllegalArgumentException("unable to find global variable " + parameterNames[i]);
+            }
+            parameters.add(variable);
+            parameterTypes[i] = variable.type;
+        }
+
+        //参数的初始值不再是常量，重新做常量折叠。结果放在单独的表里，不改变at，at还可以用别的方式执行或者再次编译
+        NodeMap<Object> constantOfNode = at.constantOfNode;
+        if (!parameters.isEmpty()) {
+            constantOfNode = new NodeMap<>(at.nodeCount);
+            new ConstantFolder(at, parameters, constantOfNode).fold();
+        }
+
+        ByteCodeGen generator = new ByteCodeGen(at, constantOfNode);
+        Map<String, byte[]> classes = generator.generate("DefaultPlayClass", parameters);
+
+        try {
+            java.lang.Class<?> clazz = new ScriptClassLoader(classes).loadClass("DefaultPlayClass");
+            MethodType type = MethodType.fromMethodDescriptorString(generator.runDescriptor(), clazz.getClassLoader());
+            MethodHandle run = MethodHandles.publicLookup().findStatic(clazz, "run", type)
+                    .asSpreader(Object[].class, parameterNames.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            return new CompiledScript(parameterNames.clone(), parameterTypes, classes, run);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("unable to load the generated class", e);
+        }
+    }
+
+    /**
+     * 执行脚本
+     * @param arguments 参数的值，按编译时指定的顺序。数值会转换成变量声明的类型
+     * @return 最后一个表达式语句的值，基础类型的值是装箱的
+     */
+    public Object invoke(Object... arguments) {
+        if (arguments.length != parameterTypes.length) {
+            throw new IllegalArgumentException("expecting " + parameterTypes.length + " arguments " + Arrays.toString(parameterNames)
+                    + ", but got " + arguments.length);
+        }
+
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            values[i] = ByteCodeGen.toJvmValue(arguments[i], parameterTypes[i]);
+        }
+
+        try {
+            return (Object) run.invokeExact(values);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String[] getParameterNames() {
+        return parameterNames.clone();
+    }
+
+    /**
+     * 生成的DefaultPlayClass.class的内容
+     * @return
+     */
+    public byte[] getByteCode() {
+        return classes.get("DefaultPlayClass").clone();
+    }
+
+    /**
+     * 生成的所有类，包括DefaultPlayClass和脚本里声明的类
+     * @return 类名到.class内容的映射
+     */
+    public Map<String, byte[]> getClasses() {
+        Map<String, byte[]> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * 每个脚本用一个类加载器，所以不同脚本的类可以重名；脚本不再使用以后，它的类也可以被卸载。
+     * 生成的类之间互相引用，用到的时候才定义。它们优先于父加载器里的同名类
+     */
+    private static final class ScriptClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        private ScriptClassLoader(Map<String, byte[]> classes) {
+            super(CompiledScript.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected java.lang.Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            byte[] byteCode = classes.get(name);
+            if (byteCode == null) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                java.lang.Class<?> clazz = findLoadedClass(name);
+                if (clazz == null) {
+                    clazz = defineClass(name, byteCode, 0, byteCode.length);
+                }
+                if (resolve) {
+                    resolveClass(clazz);
+                }
+                return clazz;
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import play.PlayScriptParser.*;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 常量折叠和常量传播。
+ * 在编译时算出值已经确定的表达式，把值存到AnnotatedTree.constantOfNode里。各个后端遇到有常量值的表达式，
+ * 直接使用这个值，不再计算子表达式；if语句和循环的条件是常量时，只生成会执行的分支，不会执行的循环整个去掉。
+ *
+ * 常量表达式包括：
+ * 1.十进制整数、浮点数和布尔值字面量；
+ * 2.操作数都是常量的加减乘除、数值比较、&&、||和!。运算规则跟ASTEvaluator一样，按节点推断出来的类型计算；
+ * 3.从没被赋值过的变量，声明时用常量初始化，并且引用和声明在同一个函数里、在声明的后面。
+ *   函数和类可以在声明之前使用，别的函数里引用一个变量时，变量可能还没有初始化，所以不传播到别的函数里。
+ *
+ * 不折叠的情况：整数除以0，运行时要报错；字符串和对象的==，ASTEvaluator比较的是引用；
+ * 字符串字面量和字符串连接，ASTEvaluator每次求值都得到一个新的字符串，当作常量以后，各处用的都是同一个对象，
+ * ==的结果就变了，所以字符串的值都不折叠，也不传播；正负号和其他ASTEvaluator不支持的运算。
+ *
+ * 这一步要在SlotResolver之后做。
+ */
+public class ConstantFolder extends PlayScriptBaseListener {
+
+    private AnnotatedTree at = null;
+
+    //折叠的结果，通常就是at.constantOfNode
+    private NodeMap<Object> constantOfNode = null;
+
+    //被赋值过的变量，包括=、复合赋值、++和--的对象
+    private Set<Variable> assigned = new HashSet<>();
+
+    //用常量初始化、从没被赋值过的变量，以及它们的值
+    private Map<Variable, Object> constantVariables = new HashMap<>();
+
+    public ConstantFolder(AnnotatedTree at) {
+        this.at = at;
+        this.constantOfNode = at.constantOfNode;
+    }
+
+    /**
+     * 结果存到constantOfNode里，at.constantOfNode不变。
+     * @param at
+     * @param variables 运行时才有值的变量，当作被赋值过的变量，不做常量传播。比如CompiledScript的参数
+     * @param constantOfNode 存放折叠结果的空表
+     */
+    public ConstantFolder(AnnotatedTree at, Collection<Variable> variables, NodeMap<Object> constantOfNode) {
+        this.at = at;
+        this.constantOfNode = constantOfNode;
+        assigned.addAll(variables);
+    }
+
+    public void fold() {
+        fold(0);
+    }
+
+    /**
+     * 只处理编号不小于firstNode的节点。REPL里，以前输入的脚本已经执行过了，只处理新的脚本。
+     * @param firstNode
+     */
+    public void fold(int firstNode) {
+        for (ParserRuleContext node : at.symbolOfNode.keys(firstNode)) {
+            Symbol symbol = at.symbolOfNode.get(node);
+            if (symbol instanceof Variable && node instanceof PrimaryContext && isAssigned((PrimaryContext) node)) {
+                assigned.add((Variable) symbol);
+            }
+        }
+
+        visit((ParserRuleContext) at.ast);
+    }
+
+    //只需要exit事件，直接递归遍历，比ParseTreeWalker少了终结符和enter事件的开销
+    private void visit(ParserRuleContext node) {
+        if (node.children != null) {
+            for (ParseTree child : node.children) {
+                if (child instanceof ParserRuleContext) {
+                    visit((ParserRuleContext) child);
+                }
+            }
+        }
+        if (node instanceof ExpressionContext) {
+            exitExpression((ExpressionContext) node);
+        } else if (node instanceof VariableDeclaratorContext) {
+            exitVariableDeclarator((VariableDeclaratorContext) node);
+        }
+    }
+
+    /**
+     * 变量引用是否是赋值的对象。外面可以套括号。
+     * @param node
+     * @return
+     */
+    private boolean isAssigned(PrimaryContext node) {
+        if (!(node.parent instanceof ExpressionContext)) {
+            return false;
+        }
+        ExpressionContext exp = (ExpressionContext) node.parent;
+
+        //去掉外面的括号
+        while (exp.parent instanceof PrimaryContext && exp.parent.parent instanceof ExpressionContext) {
+            exp = (ExpressionContext) exp.parent.parent;
+        }
+
+        if (exp.parent instanceof ExpressionContext) {
+            ExpressionContext parent = (ExpressionContext) exp.parent;
+            if (parent.bop != null && isAssignment(parent.bop.getType())) {
+                return parent.expression(0) == exp;
+            }
+            int op = parent.postfix != null ? parent.postfix.getType() : (parent.prefix != null ? parent.prefix.getType() : -1);
+            return op == PlayScriptParser.INC || op == PlayScriptParser.DEC;
+        }
+        return false;
+    }
+
+    private static boolean isAssignment(int op) {
+        switch (op) {
+            case PlayScriptParser.ASSIGN:
+            case PlayScriptParser.ADD_ASSIGN:
+            case PlayScriptParser.SUB_ASSIGN:
+            case PlayScriptParser.MUL_ASSIGN:
+            case PlayScriptParser.DIV_ASSIGN:
+            case PlayScriptParser.AND_ASSIGN:
+            case PlayScriptParser.OR_ASSIGN:
+            case PlayScriptParser.XOR_ASSIGN:
+            case PlayScriptParser.MOD_ASSIGN:
+            case PlayScriptParser.LSHIFT_ASSIGN:
+            case PlayScriptParser.RSHIFT_ASSIGN:
+            case PlayScriptParser.URSHIFT_ASSIGN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 遍历AST，子节点先于父节点处理，变量声明先于后面的引用处理
+
+    @Override
+    public void exitVariableDeclarator(VariableDeclaratorContext ctx) {
+        if (ctx.variableInitializer() == null || ctx.variableInitializer().expression() == null) {
+            return;
+        }
+        Symbol symbol = at.symbolOfNode.get(ctx.variableDeclaratorId());
+        if (!(symbol instanceof Variable)) {
+            return;
+        }
+        Variable variable = (Variable) symbol;
+        if (variable.isClassMember() || assigned.contains(variable)) {
+            return;
+        }
+
+        //变量的类型跟初始值一样时才传播，否则各个后端在初始化时做的类型转换可能不一样
+        ExpressionContext initializer = ctx.variableInitializer().expression();
+        Object value = constantOfNode.get(initializer);
+        if (value != null && variable.type == at.typeOfNode.get(initializer)) {
+            constantVariables.put(variable, value);
+        }
+    }
+
+    @Override
+    public void exitExpression(ExpressionContext ctx) {
+        Object value = evaluate(ctx);
+        if (value != null) {
+            constantOfNode.put(ctx, value);
+        }
+    }
+
+    /**
+     * 计算表达式的常量值
+     * @param ctx
+     * @return 不是常量，返回null
+     */
+    private Object evaluate(ExpressionContext ctx) {
+        if (ctx.primary() != null) {
+            return primary(ctx.primary());
+        }
+
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            Object left = constantOfNode.get(ctx.expression(0));
+            Object right = constantOfNode.get(ctx.expression(1));
+            if (left == null || right == null) {
+                return null;
+            }
+
+            switch (ctx.bop.getType()) {
+                case PlayScriptParser.ADD:
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV:
+                    return arithmetic(ctx.bop.getType(), left, right, at.typeOfNode.get(ctx));
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT: {
+                    Type type = PrimitiveType.getUpperType(at.typeOfNode.get(ctx.expression(0)),
+                            at.typeOfNode.get(ctx.expression(1)));
+                    return comparison(ctx.bop.getType(), left, right, type);
+                }
+                case PlayScriptParser.AND:
+                    if (left instanceof Boolean && right instanceof Boolean) {
+                        return (Boolean) left && (Boolean) right;
+                    }
+                    return null;
+                case PlayScriptParser.OR:
+                    if (left instanceof Boolean && right instanceof Boolean) {
+                        return (Boolean) left || (Boolean) right;
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        }
+
+        if (ctx.prefix != null && ctx.prefix.getType() == PlayScriptParser.BANG) {
+            Object value = constantOfNode.get(ctx.expression(0));
+            if (value instanceof Boolean) {
+                return !(Boolean) value;
+            }
+        }
+
+        return null;
+    }
+
+    private Object primary(PrimaryContext ctx) {
+        if (ctx.literal() != null) {
+            return literal(ctx.literal());
+        } else if (ctx.expression() != null) {
+            return constantOfNode.get(ctx.expression());
+        } else if (ctx.IDENTIFIER() != null) {
+            Symbol symbol = at.symbolOfNode.get(ctx);
+            Object value = constantVariables.get(symbol);
+            if (value != null && unitOf(ctx) == unitOf(symbol.enclosingScope)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    //跟ASTEvaluator一样，只支持十进制整数。字符字面量ASTEvaluator取的是引号，字符串字面量每次求值都是新的对象，都不折叠
+    private Object literal(LiteralContext ctx) {
+        if (ctx.integerLiteral() != null) {
+            if (ctx.integerLiteral().DECIMAL_LITERAL() == null) {
+                return null;
+            }
+            try {
+                return Integer.valueOf(ctx.integerLiteral().DECIMAL_LITERAL().getText());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else if (ctx.floatLiteral() != null) {
+            return Float.valueOf(ctx.floatLiteral().getText());
+        } else if (ctx.BOOL_LITERAL() != null) {
+            return ctx.BOOL_LITERAL().getText().equals("true") ? Boolean.TRUE : Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * 加减乘除，按照表达式的类型计算，跟ASTEvaluator的add()、minus()等方法一样。字符串连接不折叠
+     */
+    private static Object arithmetic(int op, Object left, Object right, Type type) {
+        if (type == PrimitiveType.String || !(left instanceof Number) || !(right instanceof Number)) {
+            return null;
+        }
+        Number a = (Number) left;
+        Number b = (Number) right;
+
+        if (type == PrimitiveType.Integer) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a.intValue() + b.intValue();
+                case PlayScriptParser.SUB:
+                    return a.intValue() - b.intValue();
+                case PlayScriptParser.MUL:
+                    return a.intValue() * b.intValue();
+                default:
+                    //除以0要在运行时报错
+                    return b.intValue() == 0 ? null : a.intValue() / b.intValue();
+            }
+        } else if (type == PrimitiveType.Long) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a.longValue() + b.longValue();
+                case PlayScriptParser.SUB:
+                    return a.longValue() - b.longValue();
+                case PlayScriptParser.MUL:
+                    return a.longValue() * b.longValue();
+                default:
+                    return b.longValue() == 0 ? null : a.longValue() / b.longValue();
+            }
+        } else if (type == PrimitiveType.Float) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a.floatValue() + b.floatValue();
+                case PlayScriptParser.SUB:
+                    return a.floatValue() - b.floatValue();
+                case PlayScriptParser.MUL:
+                    return a.floatValue() * b.floatValue();
+                default:
+                    return a.floatValue() / b.floatValue();
+            }
+        } else if (type == PrimitiveType.Double) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a.doubleValue() + b.doubleValue();
+                case PlayScriptParser.SUB:
+                    return a.doubleValue() - b.doubleValue();
+                case PlayScriptParser.MUL:
+                    return a.doubleValue() * b.doubleValue();
+                default:
+                    return a.doubleValue() / b.doubleValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 数值比较。其他类型ASTEvaluator比较的是对象引用，不折叠
+     */
+    private static Object comparison(int op, Object left, Object right, Type type) {
+        if (!(left instanceof Number) || !(right instanceof Number)) {
+            return null;
+        }
+        int result;
+        if (type == PrimitiveType.Integer) {
+            result = Integer.compare(((Number) left).intValue(), ((Number) right).intValue());
+        } else if (type == PrimitiveType.Long) {
+            result = Long.compare(((Number) left).longValue(), ((Number) right).longValue());
+        } else if (type == PrimitiveType.Float || type == PrimitiveType.Double) {
+            double a = type == PrimitiveType.Float ? ((Number) left).floatValue() : ((Number) left).doubleValue();
+            double b = type == PrimitiveType.Float ? ((Number) right).floatValue() : ((Number) right).doubleValue();
+            //有NaN的时候，除了!=都是false
+            if (Double.isNaN(a) || Double.isNaN(b)) {
+                return op == PlayScriptParser.NOTEQUAL;
+            }
+            result = Double.compare(a, b);
+            //Double.compare()认为-0.0小于0.0，数值比较时它们相等
+            if (a == b) {
+                result = 0;
+            }
+        } else {
+            return null;
+        }
+
+        switch (op) {
+            case PlayScriptParser.EQUAL:
+                return result == 0;
+            case PlayScriptParser.NOTEQUAL:
+                return result != 0;
+            case PlayScriptParser.LE:
+                return result <= 0;
+            case PlayScriptParser.LT:
+                return result < 0;
+            case PlayScriptParser.GE:
+                return result >= 0;
+            default:
+                return result > 0;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 变量和引用所在的函数或类，全局的是null
+
+    private Scope unitOf(RuleContext ctx) {
+        for (RuleContext node = ctx.parent; node != null; node = node.parent) {
+            if (node instanceof FunctionDeclarationContext || node instanceof ClassDeclarationContext) {
+                return at.node2Scope.get(node);
+            }
+        }
+        return null;
+    }
+
+    private static Scope unitOf(Scope scope) {
+        while (scope != null && !(scope instanceof Function) && !(scope instanceof Class)) {
+            scope = scope.enclosingScope;
+        }
+        return scope;
+    }
+}
@@ -3,6 +3,7 @@ package play;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DefaultFunctionType implements FunctionType {
     protected String name = null;
@@ -11,10 +12,10 @@ public class DefaultFunctionType implements FunctionType {
     protected List<Type> paramTypes = new LinkedList<Type>();
 
     //对于未命名的类型，自动赋予名字
-    private static int nameIndex = 1;
+    private static final AtomicInteger nameIndex = new AtomicInteger(1);
 
     public DefaultFunctionType (){
-        name = "FunctionType" + nameIndex++;
+        name = "FunctionType" + nameIndex.getAndIncrement();
     }
 
     @Override
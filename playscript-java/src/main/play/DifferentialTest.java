@@ -0,0 +1,360 @@
+package play;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 差分测试：同一个脚本分别用解释器（ASTEvaluator）、节点树、VM、JVM字节码和分层执行，比较打印出来的结果。
+ * 分层执行的阈值都是1，函数第一次调用就编译，节点树和ASTEvaluator调用编译结果的地方都要测试。
+ * 解释器的结果是标准，其他执行方式必须跟它完全一样，包括Null的打印和数值的类型。
+ * 脚本包括几个固定的例子，以及随机生成的脚本。随机脚本混合使用int、long、float和double：
+ * 不同类型的值赋给变量、作为参数和返回值传递，还有没有初始化的变量，这些地方最容易跟解释器不一致。
+ * 用法：java play.DifferentialTest [随机脚本的个数，缺省是200] [随机数种子，缺省是1]
+ * 有不一致的时候，打印脚本和两边的结果，退出码是1。
+ */
+public class DifferentialTest {
+
+    //固定的例子
+    private static final String[] SCRIPTS = {
+            "double d = 1.9; println(d);",
+            "float f = 1; println(f); double g = f * 2; println(g);",
+            "int g(int n){return n + 1;} float f(int n){return g(n);} println(f(5));",
+            "float half(int n){return n;} println(half(5)); println(half(5) / 2);",
+            "int i; println(i); string s; println(s); println(\"x\" + null); println(\"x\" + s);",
+            "long l = 3; l++; println(l);",
+            "int i = 0; long sum = 0; for (i = 0; i < 10; i++) { float f = i; sum = sum + i; println(f); } println(sum);",
+            "double apply(function double(double) fun, double x){ return fun(x); } double twice(double x){ return x * 2; }"
+                    + " double a = 3; double b = 1.5; println(apply(twice, a)); println(apply(twice, b));",
+            "class A { float v = 1; float get(){ return v; } } class B extends A { float get(){ return v * 2; } }"
+                    + " A a = B(); println(a.get()); println(a.v);",
+            //字符串字面量每次求值都是新的对象，==比较的是引用
+            "println(\"ab\" == \"ab\"); string s = \"ab\"; string t = s; println(s == t); println(s == s);",
+            "void f(){ string c = \"q\"; string d = \"q\"; println(c == d); } f();",
+            "string p = null; for (int i = 0; i < 3; i++) { string s = \"x\"; if (i > 0) { println(s == p); } p = s; }",
+    };
+
+    //跟解释器比较的执行方式
+    private static final String[] ENGINES = {"node", "vm", "bc", "tiered", "ast-tiered"};
+
+    //JVM字节码不支持、退回到解释器执行的脚本数
+    private static int fallbacks = 0;
+
+    public static void main(String args[]) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        List<String> scripts = new ArrayList<>(Arrays.asList(SCRIPTS));
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            scripts.add(generateScript(random));
+        }
+
+        int mismatches = 0;
+        for (String script : scripts) {
+            String expected = run(script, "ast");
+            for (String engine : ENGINES) {
+                String actual = run(script, engine);
+                if (!expected.equals(actual)) {
+                    mismatches++;
+                    System.out.println("==== mismatch on " + engine + ":\n" + script);
+                    System.out.println("---- ast:\n" + expected + "---- " + engine + ":\n" + actual);
+                }
+            }
+        }
+
+        System.out.println(scripts.size() + " scripts, " + mismatches + " mismatches, "
+                + fallbacks + " scripts fell back from bytecode to the interpreter");
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 执行脚本，返回打印出来的内容。每种执行方式都重新编译，不共用AnnotatedTree
+     * @param script
+     * @param engine
+     * @return
+     */
+    private static String run(String script, String engine) {
+        AnnotatedTree at = PlayScriptCompiler.compileQuietly(script);
+        if (at.hasCompilationError()) {
+            throw new IllegalStateException("compilation error in script:\n" + script);
+        }
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            execute(at, engine);
+        } catch (RuntimeException e) {
+            //不同的执行方式抛出的异常可能不一样，只比较出错前打印的内容
+            System.out.println("<error>");
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString();
+    }
+
+    private static void execute(AnnotatedTree at, String engine) {
+        PlayScriptCompiler compiler = new PlayScriptCompiler();
+        switch (engine) {
+            case "ast":
+                new ASTEvaluator(at).visit(at.ast);
+                break;
+            case "node":
+                compiler.Execute(at);
+                break;
+            case "vm":
+                compiler.ExecuteOnVM(at, false);
+                break;
+            case "bc":
+                CompiledScript compiled = null;
+                try {
+                    compiled = CompiledScript.compile(at);
+                } catch (UnsupportedOperationException e) {
+                    fallbacks++;
+                }
+                if (compiled != null) {
+                    compiled.invoke();
+                } else {
+                    compiler.Execute(at);
+                }
+                break;
+            case "tiered":
+                compiler.Execute(at, new TieredCompiler(at, 1, 1));
+                break;
+            case "ast-tiered":
+                ASTEvaluator evaluator = new ASTEvaluator(at);
+                evaluator.tiered = new TieredCompiler(at, 1, 1);
+                evaluator.visit(at.ast);
+                break;
+        }
+    }
+
+
+    ///////////////////////////////////////
+    // 生成随机脚本
+
+    private static final String[] TYPES = {"int", "long", "float", "double"};
+
+    //脚本里的变量和函数。类型用在TYPES里的下标表示，下标小的值可以赋给下标大的变量
+    private static class Scope {
+        private List<String> variables = new ArrayList<>();
+        private List<Integer> variableTypes = new ArrayList<>();
+        private List<String> functions = new ArrayList<>();
+        private List<Integer> returnTypes = new ArrayList<>();
+        private List<int[]> paramTypes = new ArrayList<>();
+    }
+
+    private static String generateScript(Random random) {
+        StringBuilder sb = new StringBuilder();
+        Scope scope = new Scope();
+
+        //函数只使用自己的参数和局部变量，可以调用前面的函数
+        int functionCount = random.nextInt(4);
+        for (int i = 0; i < functionCount; i++) {
+            Scope local = new Scope();
+            local.functions = scope.functions;
+            local.returnTypes = scope.returnTypes;
+            local.paramTypes = scope.paramTypes;
+
+            int returnType = random.nextInt(TYPES.length);
+            int[] params = new int[1 + random.nextInt(2)];
+            StringBuilder paramList = new StringBuilder();
+            for (int j = 0; j < params.length; j++) {
+                params[j] = random.nextInt(TYPES.length);
+                paramList.append(j > 0 ? ", " : "").append(TYPES[params[j]]).append(" p").append(j);
+                local.variables.add("p" + j);
+                local.variableTypes.add(params[j]);
+            }
+            sb.append(TYPES[returnType]).append(" f").append(i).append("(").append(paramList).append(") {\n");
+            if (random.nextBoolean()) {
+                int type = random.nextInt(TYPES.length);
+                sb.append("    ").append(TYPES[type]).append(" v = ").append(expression(random, local, type, 2)).append(";\n");
+                local.variables.add("v");
+                local.variableTypes.add(type);
+            }
+            if (random.nextInt(3) == 0) {
+                sb.append("    if (").append(condition(random, local)).append(") return ")
+                  .append(expression(random, local, returnType, 1)).append(";\n");
+            }
+            sb.append("    return ").append(expression(random, local, returnType, 2)).append(";\n}\n");
+
+            scope.functions.add("f" + i);
+            scope.returnTypes.add(returnType);
+            scope.paramTypes.add(params);
+        }
+
+        //全局变量，有的没有初始化，打印以后再赋值。前几个变量每种类型一个，保证可以生成每种类型的参数
+        int variableCount = TYPES.length + random.nextInt(4);
+        for (int i = 0; i < variableCount; i++) {
+            int type = i < TYPES.length ? i : random.nextInt(TYPES.length);
+            String name = "g" + i;
+            if (random.nextInt(5) == 0) {
+                sb.append(TYPES[type]).append(' ').append(name).append("; println(").append(name).append(");\n");
+                sb.append(name).append(" = ").append(expression(random, scope, type, 1)).append(";\n");
+            } else {
+                sb.append(TYPES[type]).append(' ').append(name).append(" = ").append(expression(random, scope, type, 2)).append(";\n");
+            }
+            scope.variables.add(name);
+            scope.variableTypes.add(type);
+        }
+
+        //函数型的变量
+        if (!scope.functions.isEmpty() && random.nextBoolean()) {
+            int index = random.nextInt(scope.functions.size());
+            StringBuilder functionType = new StringBuilder("function ").append(TYPES[scope.returnTypes.get(index)]).append("(");
+            int[] params = scope.paramTypes.get(index);
+            for (int j = 0; j < params.length; j++) {
+                functionType.append(j > 0 ? ", " : "").append(TYPES[params[j]]);
+            }
+            sb.append(functionType).append(") fv = ").append(scope.functions.get(index)).append(";\n");
+            String arguments = arguments(random, scope, params);
+            if (arguments != null) {
+                sb.append("println(fv").append(arguments).append(");\n");
+            }
+        }
+
+        int statementCount = 10 + random.nextInt(20);
+        for (int i = 0; i < statementCount; i++) {
+            int index = random.nextInt(scope.variables.size());
+            String variable = scope.variables.get(index);
+            int type = scope.variableTypes.get(index);
+            switch (random.nextInt(6)) {
+                case 0:
+                    sb.append("println(").append(expression(random, scope, TYPES.length - 1, 3)).append(");\n");
+                    break;
+                case 1:
+                    sb.append(variable).append(" = ").append(expression(random, scope, type, 2)).append("; println(").append(variable).append(");\n");
+                    break;
+                case 2:
+                    sb.append("println(\"s\" + ").append(expression(random, scope, TYPES.length - 1, 1)).append(" + ")
+                      .append(variable).append(");\n");
+                    break;
+                case 3:
+                    sb.append("if (").append(condition(random, scope)).append(") println(").append(i).append("); else println(")
+                      .append(i * 10).append(");\n");
+                    break;
+                case 4:
+                    if (type <= 1) {
+                        sb.append(random.nextBoolean() ? "println(" + variable + "++);\n" : variable + "--; println(" + variable + ");\n");
+                    } else {
+                        sb.append("println(").append(variable).append(");\n");
+                    }
+                    break;
+                default:
+                    sb.append("for (int k = 0; k < 3; k++) { ").append(variable).append(" = ")
+                      .append(expression(random, scope, type, 1)).append("; } println(").append(variable).append(");\n");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 生成一个数值表达式，类型不超过maxType
+     * @param random
+     * @param scope
+     * @param maxType
+     * @param depth
+     * @return
+     */
+    private static String expression(Random random, Scope scope, int maxType, int depth) {
+        int choice = random.nextInt(10);
+        if (depth > 0 && choice < 4) {
+            String left = expression(random, scope, maxType, depth - 1);
+            switch (random.nextInt(4)) {
+                case 0:
+                    return "(" + left + " + " + expression(random, scope, maxType, depth - 1) + ")";
+                case 1:
+                    return "(" + left + " - " + expression(random, scope, maxType, depth - 1) + ")";
+                case 2:
+                    return "(" + left + " * " + expression(random, scope, maxType, depth - 1) + ")";
+                default:
+                    //除数是非零的常数
+                    return "(" + left + " / " + (1 + random.nextInt(9)) + ")";
+            }
+        }
+
+        if (choice < 6 && depth > 0) {
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < scope.functions.size(); i++) {
+                if (scope.returnTypes.get(i) <= maxType) {
+                    candidates.add(i);
+                }
+            }
+            if (!candidates.isEmpty()) {
+                int index = candidates.get(random.nextInt(candidates.size()));
+                String arguments = arguments(random, scope, scope.paramTypes.get(index));
+                if (arguments != null) {
+                    return scope.functions.get(index) + arguments;
+                }
+            }
+        }
+
+        if (choice < 8) {
+            List<String> candidates = new ArrayList<>();
+            for (int i = 0; i < scope.variables.size(); i++) {
+                if (scope.variableTypes.get(i) <= maxType) {
+                    candidates.add(scope.variables.get(i));
+                }
+            }
+            if (!candidates.isEmpty()) {
+                return candidates.get(random.nextInt(candidates.size()));
+            }
+        }
+
+        //浮点数的字面量是float
+        if (maxType >= 2 && random.nextBoolean()) {
+            return random.nextInt(20) + "." + random.nextInt(10);
+        }
+        return String.valueOf(random.nextInt(50));
+    }
+
+    //调用的参数。参数的类型要跟声明的一样，生成不了的时候返回null
+    private static String arguments(Random random, Scope scope, int[] params) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int j = 0; j < params.length; j++) {
+            String argument = exactExpression(random, scope, params[j]);
+            if (argument == null) {
+                return null;
+            }
+            sb.append(j > 0 ? ", " : "").append(argument);
+        }
+        return sb.append(")").toString();
+    }
+
+    //类型正好是type的表达式：这个类型的变量或字面量，可能再加上一个类型不超过它的值
+    private static String exactExpression(Random random, Scope scope, int type) {
+        List<String> candidates = new ArrayList<>();
+        for (int i = 0; i < scope.variables.size(); i++) {
+            if (scope.variableTypes.get(i) == type) {
+                candidates.add(scope.variables.get(i));
+            }
+        }
+        if (type == 0) {
+            candidates.add(String.valueOf(random.nextInt(50)));
+        } else if (type == 2) {
+            candidates.add(random.nextInt(20) + "." + random.nextInt(10));
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        String value = candidates.get(random.nextInt(candidates.size()));
+        if (random.nextBoolean()) {
+            value = "(" + value + " + " + expression(random, scope, type, 0) + ")";
+        }
+        return value;
+    }
+
+    private static String condition(Random random, Scope scope) {
+        String[] operators = {"<", "<=", ">", ">=", "==", "!="};
+        return expression(random, scope, TYPES.length - 1, 1) + " " + operators[random.nextInt(operators.length)] + " "
+                + expression(random, scope, TYPES.length - 1, 1);
+    }
+}
@@ -0,0 +1,142 @@
+package play;
+
+/**
+ * 可执行的节点。
+ * NodeCompiler把AnnotatedTree编译成一棵由ExecNode构成的树，解释器直接执行这棵树。
+ * 跟ASTEvaluator相比，运算符、变量地址、调用的函数等，都在编译时确定好了，运行时不需要再查询AnnotatedTree。
+ *
+ * 节点可以在执行过程中把自己替换成另一个节点（借鉴了Truffle的做法）。
+ * 比如一个加法节点，第一次执行后发现两边都是整数，就把自己替换成专门做整数加法的节点。
+ */
+public abstract class ExecNode {
+
+    //父节点。替换节点的时候要用到
+    protected ExecNode parent = null;
+
+    /**
+     * 执行本节点，返回计算结果
+     * @param frame 当前的栈桢
+     * @return
+     */
+    public abstract Object execute(NodeFrame frame);
+
+    ///////////////////////////////////////////////////////////
+    /// 按基础类型执行，不产生装箱的中间结果。
+    /// 静态类型是基础类型的节点要覆盖这些方法；缺省的实现是把execute()的结果拆箱，规则跟ASTEvaluator一样。
+
+    public int executeInt(NodeFrame frame) {
+        return ((Number) execute(frame)).intValue();
+    }
+
+    public long executeLong(NodeFrame frame) {
+        return ((Number) execute(frame)).longValue();
+    }
+
+    public float executeFloat(NodeFrame frame) {
+        return ((Number) execute(frame)).floatValue();
+    }
+
+    public double executeDouble(NodeFrame frame) {
+        return ((Number) execute(frame)).doubleValue();
+    }
+
+    public boolean executeBoolean(NodeFrame frame) {
+        return (Boolean) execute(frame);
+    }
+
+    /**
+     * 执行本节点，但不需要计算结果。比如语句块中间的语句、循环体。
+     * @param frame
+     */
+    public void executeVoid(NodeFrame frame) {
+        execute(frame);
+    }
+
+    /**
+     * 用一个新节点替换自己
+     * @param newNode
+     * @return 新节点
+     */
+    protected <T extends ExecNode> T replace(T newNode) {
+        newNode.parent = parent;
+        if (parent != null) {
+            parent.replaceChild(this, newNode);
+        }
+        return newNode;
+    }
+
+    /**
+     * 把某个子节点替换成新节点。有子节点并且子节点可能替换自己的，要覆盖这个方法。
+     * @param oldChild
+     * @param newChild
+     */
+    protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+        throw new IllegalStateException("node " + getClass().getSimpleName() + " can not replace its child");
+    }
+
+    /**
+     * 把一个节点设为自己的子节点
+     * @param child
+     * @return
+     */
+    protected <T extends ExecNode> T adopt(T child) {
+        if (child != null) {
+            child.parent = this;
+        }
+        return child;
+    }
+
+    /**
+     * 在子节点数组里替换节点
+     * @param children
+     * @param oldChild
+     * @param newChild
+     * @return 是否找到并替换了
+     */
+    protected static boolean replaceIn(ExecNode[] children, ExecNode oldChild, ExecNode newChild) {
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] == oldChild) {
+                children[i] = newChild;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 用异常来实现break、continue和return。实例都是在编译时创建好的，也不记录调用栈，所以运行时没有额外开销。
+
+    /**
+     * 控制流异常的基类
+     */
+    protected static abstract class ControlFlowException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        protected ControlFlowException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * break语句。每个循环（或带标签的语句）有自己的实例，break语句抛出它要跳出的那个语句的实例。
+     */
+    protected static final class BreakException extends ControlFlowException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * continue语句。每个循环有自己的实例。
+     */
+    protected static final class ContinueException extends ControlFlowException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * return语句。返回值放在NodeFrame.returnValue里，由函数调用节点捕获。
+     */
+    protected static final class ReturnException extends ControlFlowException {
+        private static final long serialVersionUID = 1L;
+
+        protected static final ReturnException instance = new ReturnException();
+    }
+}
@@ -31,12 +31,12 @@ public class Function extends Scope implements FunctionType {
 
     @Override
     public List<Type> getParamTypes() {
-        if (paramTypes == null) {
+        //参数是在TypeResolver里逐个添加的，参数齐了以后，列表就不用再重新生成了
+        if (paramTypes == null || paramTypes.size() != parameters.size()) {
             paramTypes = new LinkedList<Type>();
-        }
-
-        for (Variable param : parameters) {
-            paramTypes.add(param.type);
+            for (Variable param : parameters) {
+                paramTypes.add(param.type);
+            }
         }
 
         return paramTypes;
@@ -0,0 +1,83 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 把几遍扫描合并成一次遍历。每到一个节点，按顺序把事件转发给各个Listener。
+ *
+ * 能够合并的前提是：后面的Listener在某个节点上用到的信息，前面的Listener已经在这个节点或者它的子节点上算好了。
+ * 比如TypeChecker在exitExpression里用到的表达式类型，RefResolver在同一个节点的exitExpression，
+ * 以及子节点的exit事件里已经推断出来了。
+ *
+ * 每个Listener的编译信息先记在各自的缓冲区里，遍历完以后调用flushLogs()，按Listener的顺序加到at.logs里。
+ * 这样编译信息的顺序跟分开遍历的时候一样：先是第一遍扫描的全部信息，然后是第二遍的，依此类推。
+ */
+public class FusedListener implements ParseTreeListener {
+
+    private final AnnotatedTree at;
+
+    private final PlayScriptListener[] listeners;
+
+    //每个Listener的编译信息
+    private final List<List<CompilationLog>> logBuffers = new ArrayList<>();
+
+    public FusedListener(AnnotatedTree at, PlayScriptListener... listeners) {
+        this.at = at;
+        this.listeners = listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            logBuffers.add(new LinkedList<>());
+        }
+    }
+
+    /**
+     * 遍历完以后，把各个Listener的编译信息按顺序加到at.logs里
+     */
+    public void flushLogs() {
+        at.logBuffer = null;
+        for (List<CompilationLog> buffer : logBuffers) {
+            at.appendLogs(buffer);
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void enterEveryRule(ParserRuleContext ctx) {
+        for (int i = 0; i < listeners.length; i++) {
+            at.logBuffer = logBuffers.get(i);
+            listeners[i].enterEveryRule(ctx);
+            ctx.enterRule(listeners[i]);
+        }
+    }
+
+    @Override
+    public void exitEveryRule(ParserRuleContext ctx) {
+        for (int i = 0; i < listeners.length; i++) {
+            at.logBuffer = logBuffers.get(i);
+            ctx.exitRule(listeners[i]);
+            listeners[i].exitEveryRule(ctx);
+        }
+    }
+
+    @Override
+    public void visitTerminal(TerminalNode node) {
+        for (int i = 0; i < listeners.length; i++) {
+            at.logBuffer = logBuffers.get(i);
+            listeners[i].visitTerminal(node);
+        }
+    }
+
+    @Override
+    public void visitErrorNode(ErrorNode node) {
+        for (int i = 0; i < listeners.length; i++) {
+            at.logBuffer = logBuffers.get(i);
+            listeners[i].visitErrorNode(node);
+        }
+    }
+}
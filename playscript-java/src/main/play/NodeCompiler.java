@@ -0,0 +1,625 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import play.Nodes.*;
+import play.PlayScriptParser.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 把AnnotatedTree编译成由ExecNode构成的可执行树。
+ *
+ * 变量的布局：
+ * 每个函数（以及全局代码）对应一个栈桢。函数内的块作用域不单独创建栈桢，
+ * 而是依次排在外层Scope的变量后面；并列的块作用域不会同时存在，所以可以共用同一段槽位。
+ * 这样，一个变量在运行时的地址就是（要沿静态链向上走几层，栈桢中的下标），都能在编译时算出来。
+ *
+ * 静态类型是int、long、float、double的运算，编译成对应的节点，用基础类型计算，不装箱。
+ * UnboxingAnalyzer找出来的变量，也按基础类型存放。
+ *
+ * 目前只支持过程式的子集：基础类型和字符串、算术和比较运算、if/while/for/break/continue/return、直接调用普通函数。
+ * break和continue可以带标签，跳到外层的循环或者带标签的语句。
+ * 遇到类、对象、函数型的值（闭包）、switch等，抛出UnsupportedOperationException，
+ * 由调用者退回到ASTEvaluator去执行。
+ */
+public class NodeCompiler extends PlayScriptBaseVisitor<ExecNode> {
+
+    private AnnotatedTree at = null;
+
+    //每个Scope的变量在所属栈桢中的起始位置
+    private Map<Scope, Integer> offsetOfScope = new HashMap<>();
+
+    //不需要装箱的变量，存放在NodeFrame.primitives里
+    private Set<Variable> unboxed = null;
+
+    //每个函数编译后的结果
+    private Map<Function, FunctionTarget> targets = new LinkedHashMap<>();
+
+    //全局代码的栈桢大小
+    private int globalFrameSize = 0;
+
+    //当前正在编译的函数，或者全局的NameSpace
+    private Scope currentUnit = null;
+
+    //break和continue可以跳转到的语句，最内层的在最前面
+    private LinkedList<JumpTarget> jumpTargets = new LinkedList<>();
+
+    //分层执行，没有启用是null
+    private TieredCompiler tiered = null;
+
+    /**
+     * break和continue可以跳转到的语句：循环，或者带标签的语句
+     */
+    private static class JumpTarget {
+        private String label = null;     //可以为null
+        private boolean isLoop = false;
+        private ExecNode.BreakException breakSignal = new ExecNode.BreakException();
+        private ExecNode.ContinueException continueSignal = new ExecNode.ContinueException();
+
+        private JumpTarget(String label, boolean isLoop) {
+            this.label = label;
+            this.isLoop = isLoop;
+        }
+    }
+
+    public NodeCompiler(AnnotatedTree at) {
+        this.at = at;
+    }
+
+    /**
+     * @param at
+     * @param tiered 函数调用和循环要向它报告执行次数，热点函数换成它编译的JVM字节码
+     */
+    public NodeCompiler(AnnotatedTree at, TieredCompiler tiered) {
+        this.at = at;
+        this.tiered = tiered;
+    }
+
+    /**
+     * 编译整个程序
+     * @return
+     */
+    public ProgramNode compile() {
+        unboxed = new UnboxingAnalyzer(at).analyze();
+
+        //计算所有变量的位置，并为每个函数创建FunctionTarget，这样函数可以在声明之前被调用，也可以递归
+        globalFrameSize = layoutUnit(at.nameSpace);
+
+        currentUnit = at.nameSpace;
+        ExecNode body = visitBlockStatements(((ProgContext) at.ast).blockStatements());
+        ProgramNode program = new ProgramNode(globalFrameSize, body);
+
+        //编译所有函数
+        for (FunctionTarget target : targets.values()) {
+            compileFunction(target);
+        }
+
+        return program;
+    }
+
+    private UnsupportedOperationException unsupported(String feature, ParserRuleContext ctx) {
+        return new UnsupportedOperationException(feature + " @" + ctx.getStart().getLine() + ":" + ctx.getStart().getCharPositionInLine());
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 变量布局
+
+    /**
+     * 给一个函数（或全局代码）里的所有变量安排位置，返回栈桢的大小
+     * @param unit
+     * @return
+     */
+    private int layoutUnit(Scope unit) {
+        return layoutScope(unit, 0);
+    }
+
+    private int layoutScope(Scope scope, int offset) {
+        offsetOfScope.put(scope, offset);
+        int end = offset + scope.frameSize;
+        int max = end;
+        for (Symbol symbol : scope.symbols) {
+            if (symbol instanceof Class) {
+                throw unsupported("class " + symbol.name, symbol.ctx);
+            } else if (symbol instanceof Function) {
+                Function function = (Function) symbol;
+                FunctionTarget target = new FunctionTarget(function);
+                if (tiered != null) {
+                    target.counter = tiered.counterOf(function);
+                }
+                target.frameSize = layoutUnit(function);
+                target.paramSlots = new int[function.parameters.size()];
+                target.paramTypes = new Type[function.parameters.size()];
+                for (int i = 0; i < target.paramSlots.length; i++) {
+                    Variable param = function.parameters.get(i);
+                    target.paramSlots[i] = param.slot;
+                    if (unboxed.contains(param)) {
+                        target.paramTypes[i] = param.type;
+                    }
+                }
+                targets.put(function, target);
+            } else if (symbol instanceof BlockScope) {
+                max = Math.max(max, layoutScope((Scope) symbol, end));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 一个Scope所属的栈桢，也就是所在的函数或者全局的NameSpace
+     * @param scope
+     * @return
+     */
+    private Scope unitOf(Scope scope) {
+        while (!(scope instanceof Function) && scope != at.nameSpace) {
+            scope = scope.enclosingScope;
+        }
+        return scope;
+    }
+
+    /**
+     * 从当前函数的栈桢，沿着静态链要走几层才能到达unit的栈桢
+     * @param unit
+     * @param ctx
+     * @return
+     */
+    private int depthOf(Scope unit, ParserRuleContext ctx) {
+        int depth = 0;
+        Scope scope = currentUnit;
+        while (scope != unit) {
+            if (scope == at.nameSpace) {
+                throw unsupported("unreachable frame " + unit.name, ctx);
+            }
+            scope = unitOf(scope.enclosingScope);
+            depth++;
+        }
+        return depth;
+    }
+
+    private int indexOf(Variable variable, ParserRuleContext ctx) {
+        Integer offset = offsetOfScope.get(variable.enclosingScope);
+        if (offset == null || variable.slot < 0) {
+            throw unsupported("variable " + variable.name, ctx);
+        }
+        return offset + variable.slot;
+    }
+
+    /**
+     * 如果表达式是对一个变量的引用，返回这个变量
+     * @param ctx
+     * @return
+     */
+    private Variable variableOf(ExpressionContext ctx) {
+        if (ctx.primary() != null && ctx.primary().IDENTIFIER() != null) {
+            Symbol symbol = at.symbolOfNode.get(ctx.primary());
+            if (symbol instanceof Variable) {
+                return (Variable) symbol;
+            }
+        }
+        throw unsupported("lvalue " + ctx.getText(), ctx);
+    }
+
+    private ExecNode read(Variable variable, ParserRuleContext ctx) {
+        int index = indexOf(variable, ctx);
+        int depth = depthOf(unitOf(variable.enclosingScope), ctx);
+        if (unboxed.contains(variable)) {
+            if (variable.type == PrimitiveType.Integer) {
+                return new IntReadNode(depth, index);
+            } else if (variable.type == PrimitiveType.Long) {
+                return new LongReadNode(depth, index);
+            } else if (variable.type == PrimitiveType.Float) {
+                return new FloatReadNode(depth, index);
+            } else if (variable.type == PrimitiveType.Double) {
+                return new DoubleReadNode(depth, index);
+            } else {
+                return new BooleanReadNode(depth, index);
+            }
+        } else if (depth == 0) {
+            return new LocalReadNode(index);
+        }
+        return new OuterReadNode(depth, index);
+    }
+
+    private ExecNode write(Variable variable, ExecNode value, ParserRuleContext ctx) {
+        int index = indexOf(variable, ctx);
+        int depth = depthOf(unitOf(variable.enclosingScope), ctx);
+        if (unboxed.contains(variable)) {
+            return new PrimitiveWriteNode(depth, index, variable.type, value);
+        }
+        return new WriteNode(depth, index, value);
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 函数
+
+    private void compileFunction(FunctionTarget target) {
+        Function function = target.function;
+        FunctionDeclarationContext ctx = (FunctionDeclarationContext) function.ctx;
+
+        Scope oldUnit = currentUnit;
+        LinkedList<JumpTarget> oldJumpTargets = jumpTargets;
+        currentUnit = function;
+        jumpTargets = new LinkedList<>();
+
+        if (ctx.functionBody().block() != null) {
+            //函数体的block不对应单独的Scope，它的变量都在Function里
+            target.body = visitBlockStatements(ctx.functionBody().block().blockStatements());
+        } else {
+            target.body = new ConstantNode(null);
+        }
+
+        currentUnit = oldUnit;
+        jumpTargets = oldJumpTargets;
+    }
+
+    @Override
+    public ExecNode visitFunctionCall(FunctionCallContext ctx) {
+        if (ctx.IDENTIFIER() == null) {
+            throw unsupported("this() and super()", ctx);
+        }
+
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        if (symbol instanceof DefaultConstructor) {
+            throw unsupported("constructor " + symbol.name, ctx);
+        }
+
+        ExecNode[] arguments = arguments(ctx.expressionList());
+
+        //硬编码的一些函数
+        if (ctx.IDENTIFIER().getText().equals("println")) {
+            return new PrintlnNode(arguments);
+        }
+
+        //只支持直接调用普通函数。函数型的变量要到运行时才知道调用哪个函数。
+        if (!(symbol instanceof Function)) {
+            throw unsupported("function value " + ctx.IDENTIFIER().getText(), ctx);
+        }
+
+        FunctionTarget target = targets.get(symbol);
+        if (target == null) {
+            throw unsupported("method " + symbol.name, ctx);
+        }
+
+        int linkDepth = depthOf(unitOf(symbol.enclosingScope), ctx);
+        return new CallNode(target, arguments, linkDepth);
+    }
+
+    //当前函数的计数器，用于统计循环的回跳次数。全局代码没有计数器
+    private TieredCompiler.FunctionCounter currentCounter() {
+        if (tiered != null && currentUnit instanceof Function) {
+            return tiered.counterOf((Function) currentUnit);
+        }
+        return null;
+    }
+
+    private ExecNode[] arguments(ExpressionListContext ctx) {
+        if (ctx == null) {
+            return new ExecNode[0];
+        }
+        List<ExpressionContext> expressions = ctx.expression();
+        ExecNode[] nodes = new ExecNode[expressions.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = visitExpression(expressions.get(i));
+        }
+        return nodes;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 语句
+
+    @Override
+    public ExecNode visitBlock(BlockContext ctx) {
+        return visitBlockStatements(ctx.blockStatements());
+    }
+
+    @Override
+    public ExecNode visitBlockStatements(BlockStatementsContext ctx) {
+        List<BlockStatementContext> children = ctx.blockStatement();
+        ExecNode[] statements = new ExecNode[children.size()];
+        for (int i = 0; i < statements.length; i++) {
+            statements[i] = visitBlockStatement(children.get(i));
+        }
+        return new BlockNode(statements);
+    }
+
+    @Override
+    public ExecNode visitBlockStatement(BlockStatementContext ctx) {
+        if (ctx.variableDeclarators() != null) {
+            return visitVariableDeclarators(ctx.variableDeclarators());
+        } else if (ctx.statement() != null) {
+            return visitStatement(ctx.statement());
+        } else if (ctx.functionDeclaration() != null) {
+            //函数已经单独编译了
+            return new ConstantNode(null);
+        }
+        throw unsupported("class declaration", ctx);
+    }
+
+    @Override
+    public ExecNode visitVariableDeclarators(VariableDeclaratorsContext ctx) {
+        List<VariableDeclaratorContext> children = ctx.variableDeclarator();
+        ExecNode[] declarators = new ExecNode[children.size()];
+        for (int i = 0; i < declarators.length; i++) {
+            declarators[i] = visitVariableDeclarator(children.get(i));
+        }
+        return declarators.length == 1 ? declarators[0] : new BlockNode(declarators);
+    }
+
+    @Override
+    public ExecNode visitVariableDeclarator(VariableDeclaratorContext ctx) {
+        Variable variable = (Variable) at.symbolOfNode.get(ctx.variableDeclaratorId());
+
+        //没有初始化的变量，值为null。块作用域的槽位可能被重复使用，所以要清空。
+        ExecNode value = new ConstantNode(null);
+        if (ctx.variableInitializer() != null) {
+            if (ctx.variableInitializer().expression() == null) {
+                throw unsupported("array initializer", ctx);
+            }
+            value = visitExpression(ctx.variableInitializer().expression());
+        }
+        return write(variable, value, ctx);
+    }
+
+    @Override
+    public ExecNode visitStatement(StatementContext ctx) {
+        if (ctx.statementExpression != null) {
+            return visitExpression(ctx.statementExpression);
+        } else if (ctx.IF() != null) {
+            //条件是常量时，只编译会执行的分支
+            Object constant = at.constantOfNode.get(ctx.parExpression().expression());
+            if (constant instanceof Boolean) {
+                if ((Boolean) constant) {
+                    return visitStatement(ctx.statement(0));
+                }
+                return ctx.ELSE() != null ? visitStatement(ctx.statement(1)) : new ConstantNode(null);
+            }
+            ExecNode condition = visitExpression(ctx.parExpression().expression());
+            ExecNode thenPart = visitStatement(ctx.statement(0));
+            ExecNode elsePart = ctx.ELSE() != null ? visitStatement(ctx.statement(1)) : null;
+            return new IfNode(condition, thenPart, elsePart);
+        } else if (ctx.DO() != null) {
+            throw unsupported("do-while", ctx);
+        } else if (ctx.WHILE() != null) {
+            //一次也不会执行的循环
+            if (Boolean.FALSE.equals(at.constantOfNode.get(ctx.parExpression().expression()))) {
+                return new ConstantNode(null);
+            }
+            ExecNode condition = visitExpression(ctx.parExpression().expression());
+            JumpTarget target = new JumpTarget(labelOf(ctx), true);
+            jumpTargets.push(target);
+            ExecNode body = visitStatement(ctx.statement(0));
+            jumpTargets.pop();
+            return new WhileNode(condition, body, target.breakSignal, target.continueSignal, currentCounter());
+        } else if (ctx.FOR() != null) {
+            return compileFor(ctx);
+        } else if (ctx.blockLabel != null) {
+            return visitBlock(ctx.blockLabel);
+        } else if (ctx.BREAK() != null) {
+            JumpTarget target = findJumpTarget(ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null, false, ctx);
+            return new JumpNode(target.breakSignal);
+        } else if (ctx.RETURN() != null) {
+            ExecNode value = ctx.expression() != null ? visitExpression(ctx.expression()) : null;
+            return new ReturnNode(value);
+        } else if (ctx.SWITCH() != null) {
+            throw unsupported("switch", ctx);
+        } else if (ctx.CONTINUE() != null) {
+            JumpTarget target = findJumpTarget(ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null, true, ctx);
+            return new JumpNode(target.continueSignal);
+        } else if (ctx.identifierLabel != null) {
+            StatementContext statement = ctx.statement(0);
+            //循环语句的标签由循环自己处理
+            if (statement.FOR() != null || (statement.WHILE() != null && statement.DO() == null)) {
+                return visitStatement(statement);
+            }
+            JumpTarget target = new JumpTarget(ctx.identifierLabel.getText(), false);
+            jumpTargets.push(target);
+            ExecNode node = visitStatement(statement);
+            jumpTargets.pop();
+            return new LabelNode(node, target.breakSignal);
+        }
+
+        //空语句
+        return new ConstantNode(null);
+    }
+
+    private ExecNode compileFor(StatementContext ctx) {
+        ForControlContext forControl = ctx.forControl();
+        if (forControl.enhancedForControl() != null) {
+            throw unsupported("enhanced for", ctx);
+        }
+
+        ExecNode init = null;
+        if (forControl.forInit() != null) {
+            ForInitContext forInit = forControl.forInit();
+            if (forInit.variableDeclarators() != null) {
+                init = visitVariableDeclarators(forInit.variableDeclarators());
+            } else {
+                init = visitExpressionList(forInit.expressionList());
+            }
+        }
+
+        //一次也不会执行的循环，只保留初始化部分
+        if (forControl.expression() != null && Boolean.FALSE.equals(at.constantOfNode.get(forControl.expression()))) {
+            return init != null ? new BlockNode(new ExecNode[]{init, new ConstantNode(null)}) : new ConstantNode(null);
+        }
+
+        ExecNode condition = forControl.expression() != null ? visitExpression(forControl.expression()) : null;
+        ExecNode update = forControl.forUpdate != null ? visitExpressionList(forControl.forUpdate) : null;
+
+        JumpTarget target = new JumpTarget(labelOf(ctx), true);
+        jumpTargets.push(target);
+        ExecNode body = visitStatement(ctx.statement(0));
+        jumpTargets.pop();
+
+        return new ForNode(init, condition, update, body, target.breakSignal, target.continueSignal, currentCounter());
+    }
+
+    /**
+     * 循环语句的标签，例如 outer: while(...)
+     * @param ctx
+     * @return
+     */
+    private String labelOf(StatementContext ctx) {
+        if (ctx.parent instanceof StatementContext && ((StatementContext) ctx.parent).identifierLabel != null) {
+            return ((StatementContext) ctx.parent).identifierLabel.getText();
+        }
+        return null;
+    }
+
+    /**
+     * 查找break或continue跳转到的语句
+     * @param label 标签，可以为null。为null的时候是最内层的循环
+     * @param isContinue continue只能跳到循环
+     * @param ctx
+     * @return
+     */
+    private JumpTarget findJumpTarget(String label, boolean isContinue, ParserRuleContext ctx) {
+        for (JumpTarget target : jumpTargets) {
+            if (label == null ? target.isLoop : (label.equals(target.label) && (target.isLoop || !isContinue))) {
+                return target;
+            }
+        }
+        throw unsupported("jump target " + label, ctx);
+    }
+
+    @Override
+    public ExecNode visitExpressionList(ExpressionListContext ctx) {
+        ExecNode[] nodes = arguments(ctx);
+        return nodes.length == 1 ? nodes[0] : new BlockNode(nodes);
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 表达式
+
+    @Override
+    public ExecNode visitExpression(ExpressionContext ctx) {
+        //编译时已经算出来的常量
+        Object constant = at.constantOfNode.get(ctx);
+        if (constant != null) {
+            return new ConstantNode(constant);
+        }
+
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            int op = ctx.bop.getType();
+            switch (op) {
+                case PlayScriptParser.ADD:
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV:
+                    return binary(op, at.typeOfNode.get(ctx), ctx);
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT:
+                    Type type = PrimitiveType.getUpperType(at.typeOfNode.get(ctx.expression(0)), at.typeOfNode.get(ctx.expression(1)));
+                    return binary(op, type, ctx);
+                case PlayScriptParser.AND:
+                case PlayScriptParser.OR:
+                    return new LogicalNode(op, visitExpression(ctx.expression(0)), visitExpression(ctx.expression(1)));
+                case PlayScriptParser.ASSIGN:
+                    Variable variable = variableOf(ctx.expression(0));
+                    return write(variable, visitExpression(ctx.expression(1)), ctx);
+                default:
+                    throw unsupported("operator " + ctx.bop.getText(), ctx);
+            }
+        } else if (ctx.bop != null) {
+            throw unsupported("operator " + ctx.bop.getText(), ctx);
+        } else if (ctx.primary() != null) {
+            return visitPrimary(ctx.primary());
+        } else if (ctx.postfix != null) {
+            return increment(ctx, ctx.postfix.getType(), false);
+        } else if (ctx.prefix != null) {
+            switch (ctx.prefix.getType()) {
+                case PlayScriptParser.INC:
+                case PlayScriptParser.DEC:
+                    return increment(ctx, ctx.prefix.getType(), true);
+                case PlayScriptParser.BANG:
+                    return new NotNode(visitExpression(ctx.expression(0)));
+                default:
+                    throw unsupported("operator " + ctx.prefix.getText(), ctx);
+            }
+        } else if (ctx.functionCall() != null) {
+            return visitFunctionCall(ctx.functionCall());
+        }
+        throw unsupported("expression " + ctx.getText(), ctx);
+    }
+
+    /**
+     * 二元运算。按照运算所用的类型选择节点
+     * @param op
+     * @param type
+     * @param ctx
+     * @return
+     */
+    private ExecNode binary(int op, Type type, ExpressionContext ctx) {
+        ExecNode left = visitExpression(ctx.expression(0));
+        ExecNode right = visitExpression(ctx.expression(1));
+        if (type == PrimitiveType.Integer) {
+            return new IntBinaryNode(op, left, right);
+        } else if (type == PrimitiveType.Long) {
+            return new LongBinaryNode(op, left, right);
+        } else if (type == PrimitiveType.Float) {
+            return new FloatBinaryNode(op, left, right);
+        } else if (type == PrimitiveType.Double) {
+            return new DoubleBinaryNode(op, left, right);
+        }
+        return new UninitializedBinaryNode(op, type, left, right);
+    }
+
+    private ExecNode increment(ExpressionContext ctx, int op, boolean prefix) {
+        Variable variable = variableOf(ctx.expression(0));
+        int index = indexOf(variable, ctx);
+        int depth = depthOf(unitOf(variable.enclosingScope), ctx);
+        boolean isInt = at.typeOfNode.get(ctx.expression(0)) == PrimitiveType.Integer;
+        int delta = op == PlayScriptParser.INC ? 1 : -1;
+        if (unboxed.contains(variable)) {
+            return new PrimitiveIncrementNode(depth, index, delta, prefix, isInt);
+        }
+        return new IncrementNode(depth, index, delta, prefix, isInt);
+    }
+
+    @Override
+    public ExecNode visitPrimary(PrimaryContext ctx) {
+        if (ctx.literal() != null) {
+            return visitLiteral(ctx.literal());
+        } else if (ctx.IDENTIFIER() != null) {
+            Symbol symbol = at.symbolOfNode.get(ctx);
+            if (symbol instanceof Variable) {
+                return read((Variable) symbol, ctx);
+            }
+            throw unsupported("function value " + ctx.getText(), ctx);
+        } else if (ctx.expression() != null) {
+            return visitExpression(ctx.expression());
+        }
+        throw unsupported(ctx.getText(), ctx);
+    }
+
+    @Override
+    public ExecNode visitLiteral(LiteralContext ctx) {
+        Object value = null;
+        if (ctx.integerLiteral() != null) {
+            if (ctx.integerLiteral().DECIMAL_LITERAL() == null) {
+                throw unsupported("integer literal " + ctx.getText(), ctx);
+            }
+            value = Integer.valueOf(ctx.integerLiteral().DECIMAL_LITERAL().getText());
+        } else if (ctx.floatLiteral() != null) {
+            value = Float.valueOf(ctx.floatLiteral().getText());
+        } else if (ctx.BOOL_LITERAL() != null) {
+            value = ctx.BOOL_LITERAL().getText().equals("true") ? Boolean.TRUE : Boolean.FALSE;
+        } else if (ctx.STRING_LITERAL() != null) {
+            String withQuotationMark = ctx.STRING_LITERAL().getText();
+            return new StringLiteralNode(withQuotationMark.substring(1, withQuotationMark.length() - 1));
+        } else if (ctx.NULL_LITERAL() != null) {
+            value = NullObject.instance();
+        } else {
+            throw unsupported("literal " + ctx.getText(), ctx);
+        }
+        return new ConstantNode(value);
+    }
+}
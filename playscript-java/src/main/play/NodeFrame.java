@@ -0,0 +1,27 @@
+package play;
+
+/**
+ * ExecNode运行时的栈桢。
+ * 每次函数调用创建一个栈桢。函数里的块作用域（包括for循环）不再单独创建栈桢，
+ * 而是在NodeCompiler里把它们的变量依次排在函数的栈桢里。
+ */
+public class NodeFrame {
+    //存放变量的槽位
+    protected final Object[] slots;
+
+    //不需要装箱的基础类型变量，存放在这里，下标跟slots一样。
+    //int、long和boolean直接存放，float和double存放它们的二进制表示。
+    protected final long[] primitives;
+
+    //静态链，指向词法上外层函数的栈桢。用于访问外层函数的变量。
+    protected final NodeFrame parent;
+
+    //return语句的返回值
+    protected Object returnValue = null;
+
+    public NodeFrame(int size, NodeFrame parent) {
+        this.slots = new Object[size];
+        this.primitives = new long[size];
+        this.parent = parent;
+    }
+}
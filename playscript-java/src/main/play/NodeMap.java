@@ -0,0 +1,77 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RuleContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 以AST节点为key的表，用来保存语义分析时标注在节点上的信息。
+ * AST节点在语法分析时得到了连续的编号（PlayContext.id），这里直接用编号做数组下标，
+ * 查找时不需要计算hash，也不需要为每个节点创建一个Entry对象。
+ * 值为null等同于没有这个key。
+ */
+public class NodeMap<V> {
+
+    private PlayContext[] keys;
+    private Object[] values;
+
+    public NodeMap() {
+        this(64);
+    }
+
+    /**
+     * @param capacity 预计的节点数，比如PlayScriptParser.getNodeCount()
+     */
+    public NodeMap(int capacity) {
+        keys = new PlayContext[capacity];
+        values = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(RuleContext node) {
+        if (node == null) {
+            return null;
+        }
+        int id = ((PlayContext) node).id;
+        return id < values.length ? (V) values[id] : null;
+    }
+
+    public void put(ParserRuleContext node, V value) {
+        PlayContext ctx = (PlayContext) node;
+        if (ctx.id >= values.length) {
+            int capacity = Math.max(values.length * 2, ctx.id + 1);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[ctx.id] = value == null ? null : ctx;
+        values[ctx.id] = value;
+    }
+
+    public boolean containsKey(RuleContext node) {
+        return get(node) != null;
+    }
+
+    /**
+     * 有值的所有节点，按编号排列
+     */
+    public List<ParserRuleContext> keys() {
+        return keys(0);
+    }
+
+    /**
+     * 编号不小于firstId的、有值的节点，按编号排列。REPL里用来只处理新输入的脚本
+     * @param firstId
+     */
+    public List<ParserRuleContext> keys(int firstId) {
+        List<ParserRuleContext> rtn = new ArrayList<>();
+        for (int i = firstId; i < keys.length; i++) {
+            if (keys[i] != null) {
+                rtn.add(keys[i]);
+            }
+        }
+        return rtn;
+    }
+}
@@ -0,0 +1,1541 @@
+package play;
+
+/**
+ * 各种可执行节点。由NodeCompiler创建。
+ * 节点的语义跟ASTEvaluator保持一致，只是把能在编译时确定的东西都提前确定下来了。
+ */
+public final class Nodes {
+
+    private Nodes() {
+
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 字面量和变量
+
+    /**
+     * 常量，比如字面量
+     */
+    public static final class ConstantNode extends ExecNode {
+        private final Object value;
+
+        public ConstantNode(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return value;
+        }
+    }
+
+    /**
+     * 字符串字面量。跟ASTEvaluator一样，每次求值都创建新的字符串，==比较引用的结果才一样
+     */
+    public static final class StringLiteralNode extends ExecNode {
+        private final String value;
+
+        public StringLiteralNode(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return new String(value);
+        }
+    }
+
+    /**
+     * 读取当前栈桢里的变量
+     */
+    public static final class LocalReadNode extends ExecNode {
+        private final int index;
+
+        public LocalReadNode(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            Object rtn = frame.slots[index];
+            //替换成自己的NullObject
+            if (rtn == null) {
+                rtn = NullObject.instance();
+            }
+            return rtn;
+        }
+    }
+
+    /**
+     * 读取外层函数栈桢里的变量，沿静态链向上走depth层
+     */
+    public static final class OuterReadNode extends ExecNode {
+        private final int depth;
+        private final int index;
+
+        public OuterReadNode(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            NodeFrame f = frame;
+            for (int i = 0; i < depth; i++) {
+                f = f.parent;
+            }
+            Object rtn = f.slots[index];
+            if (rtn == null) {
+                rtn = NullObject.instance();
+            }
+            return rtn;
+        }
+    }
+
+    /**
+     * 给变量赋值，包括变量声明时的初始化。返回所赋的值。
+     */
+    public static final class WriteNode extends ExecNode {
+        private final int depth;
+        private final int index;
+        private ExecNode value;
+
+        public WriteNode(int depth, int index, ExecNode value) {
+            this.depth = depth;
+            this.index = index;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            Object rtn = value.execute(frame);
+            NodeFrame f = frame;
+            for (int i = 0; i < depth; i++) {
+                f = f.parent;
+            }
+            f.slots[index] = rtn;
+            return rtn;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (value == oldChild) {
+                value = newChild;
+            }
+        }
+    }
+
+    /**
+     * 变量的自增和自减，包括前缀和后缀两种形式
+     */
+    public static final class IncrementNode extends ExecNode {
+        private final int depth;
+        private final int index;
+        private final int delta;      //1或-1
+        private final boolean prefix;
+        private final boolean isInt;  //是int型还是long型
+
+        public IncrementNode(int depth, int index, int delta, boolean prefix, boolean isInt) {
+            this.depth = depth;
+            this.index = index;
+            this.delta = delta;
+            this.prefix = prefix;
+            this.isInt = isInt;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            NodeFrame f = frame;
+            for (int i = 0; i < depth; i++) {
+                f = f.parent;
+            }
+            Object value = f.slots[index];
+            if (value == null) {
+                value = NullObject.instance();
+            }
+
+            Object newValue;
+            if (isInt) {
+                newValue = (Integer) value + delta;
+            } else {
+                newValue = (Long) value + delta;
+            }
+            f.slots[index] = newValue;
+
+            return prefix ? newValue : value;
+        }
+    }
+
+    /**
+     * 访问不装箱的基础类型变量的基类。变量存放在NodeFrame.primitives里。
+     */
+    public static abstract class PrimitiveSlotNode extends ExecNode {
+        protected final int depth;
+        protected final int index;
+
+        protected PrimitiveSlotNode(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+
+        protected final long[] primitivesOf(NodeFrame frame) {
+            NodeFrame f = frame;
+            for (int i = 0; i < depth; i++) {
+                f = f.parent;
+            }
+            return f.primitives;
+        }
+    }
+
+    /**
+     * 读取int型的变量
+     */
+    public static final class IntReadNode extends PrimitiveSlotNode {
+
+        public IntReadNode(int depth, int index) {
+            super(depth, index);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) primitivesOf(frame)[index];
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return executeInt(frame);
+        }
+    }
+
+    /**
+     * 读取long型的变量
+     */
+    public static final class LongReadNode extends PrimitiveSlotNode {
+
+        public LongReadNode(int depth, int index) {
+            super(depth, index);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) executeLong(frame);
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return primitivesOf(frame)[index];
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return executeLong(frame);
+        }
+    }
+
+    /**
+     * 读取float型的变量
+     */
+    public static final class FloatReadNode extends PrimitiveSlotNode {
+
+        public FloatReadNode(int depth, int index) {
+            super(depth, index);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeFloat(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) executeFloat(frame);
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return (long) executeFloat(frame);
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return Float.intBitsToFloat((int) primitivesOf(frame)[index]);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return executeFloat(frame);
+        }
+    }
+
+    /**
+     * 读取double型的变量
+     */
+    public static final class DoubleReadNode extends PrimitiveSlotNode {
+
+        public DoubleReadNode(int depth, int index) {
+            super(depth, index);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeDouble(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) executeDouble(frame);
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return (long) executeDouble(frame);
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return (float) executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return Double.longBitsToDouble(primitivesOf(frame)[index]);
+        }
+    }
+
+    /**
+     * 读取boolean型的变量
+     */
+    public static final class BooleanReadNode extends PrimitiveSlotNode {
+
+        public BooleanReadNode(int depth, int index) {
+            super(depth, index);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            return primitivesOf(frame)[index] != 0;
+        }
+    }
+
+    /**
+     * 给基础类型的变量赋值。type是变量的类型，value的计算结果一定是这个类型的。
+     */
+    public static final class PrimitiveWriteNode extends PrimitiveSlotNode {
+        private final Type type;
+        private ExecNode value;
+
+        public PrimitiveWriteNode(int depth, int index, Type type, ExecNode value) {
+            super(depth, index);
+            this.type = type;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            long bits = toBits(value, type, frame);
+            primitivesOf(frame)[index] = bits;
+            return fromBits(bits, type);
+        }
+
+        @Override
+        public void executeVoid(NodeFrame frame) {
+            long bits = toBits(value, type, frame);
+            primitivesOf(frame)[index] = bits;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (value == oldChild) {
+                value = newChild;
+            }
+        }
+    }
+
+    /**
+     * int型和long型变量的自增和自减
+     */
+    public static final class PrimitiveIncrementNode extends PrimitiveSlotNode {
+        private final int delta;
+        private final boolean prefix;
+        private final boolean isInt;
+
+        public PrimitiveIncrementNode(int depth, int index, int delta, boolean prefix, boolean isInt) {
+            super(depth, index);
+            this.delta = delta;
+            this.prefix = prefix;
+            this.isInt = isInt;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            long[] primitives = primitivesOf(frame);
+            long oldValue = primitives[index];
+            long newValue = isInt ? (int) oldValue + delta : oldValue + delta;
+            primitives[index] = newValue;
+
+            long rtn = prefix ? newValue : oldValue;
+            if (isInt) {
+                return (int) rtn;
+            }
+            return rtn;
+        }
+
+        @Override
+        public void executeVoid(NodeFrame frame) {
+            long[] primitives = primitivesOf(frame);
+            primitives[index] = isInt ? (int) primitives[index] + delta : primitives[index] + delta;
+        }
+    }
+
+    /**
+     * 按照type计算节点的值，转换成存放在NodeFrame.primitives里的形式
+     */
+    protected static long toBits(ExecNode node, Type type, NodeFrame frame) {
+        if (type == PrimitiveType.Integer) {
+            return node.executeInt(frame);
+        } else if (type == PrimitiveType.Long) {
+            return node.executeLong(frame);
+        } else if (type == PrimitiveType.Float) {
+            return Float.floatToRawIntBits(node.executeFloat(frame));
+        } else if (type == PrimitiveType.Double) {
+            return Double.doubleToRawLongBits(node.executeDouble(frame));
+        } else {
+            return node.executeBoolean(frame) ? 1 : 0;
+        }
+    }
+
+    /**
+     * 把存放在NodeFrame.primitives里的值还原成对象
+     */
+    protected static Object fromBits(long bits, Type type) {
+        if (type == PrimitiveType.Integer) {
+            return (int) bits;
+        } else if (type == PrimitiveType.Long) {
+            return bits;
+        } else if (type == PrimitiveType.Float) {
+            return Float.intBitsToFloat((int) bits);
+        } else if (type == PrimitiveType.Double) {
+            return Double.longBitsToDouble(bits);
+        } else {
+            return bits != 0;
+        }
+    }
+
+    /**
+     * 逻辑非
+     */
+    public static final class NotNode extends ExecNode {
+        private ExecNode operand;
+
+        public NotNode(ExecNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            return !operand.executeBoolean(frame);
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (operand == oldChild) {
+                operand = newChild;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 二元运算
+
+    /**
+     * 二元运算的基类。
+     * op是运算符的Token类型，比如PlayScriptParser.ADD；
+     * type是做运算所用的类型：对于算术运算是表达式本身的类型，对于比较运算是两个操作数的“上级”类型。
+     */
+    public static abstract class BinaryNode extends ExecNode {
+        protected final int op;
+        protected final Type type;
+        protected ExecNode left;
+        protected ExecNode right;
+
+        protected BinaryNode(int op, Type type, ExecNode left, ExecNode right) {
+            this.op = op;
+            this.type = type;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        /**
+         * 是不是比较运算
+         */
+        protected boolean isComparison() {
+            switch (op) {
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (left == oldChild) {
+                left = newChild;
+            } else if (right == oldChild) {
+                right = newChild;
+            }
+        }
+    }
+
+    /**
+     * int型的运算。两个操作数都按int计算，不产生装箱的中间结果。
+     */
+    public static final class IntBinaryNode extends BinaryNode {
+        private final boolean comparison;
+
+        public IntBinaryNode(int op, ExecNode left, ExecNode right) {
+            super(op, PrimitiveType.Integer, left, right);
+            this.comparison = isComparison();
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (comparison) {
+                return executeBoolean(frame);
+            }
+            return executeInt(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            int a = left.executeInt(frame);
+            int b = right.executeInt(frame);
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return executeInt(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            int a = left.executeInt(frame);
+            int b = right.executeInt(frame);
+            switch (op) {
+                case PlayScriptParser.EQUAL:
+                    return a == b;
+                case PlayScriptParser.NOTEQUAL:
+                    return a != b;
+                case PlayScriptParser.LE:
+                    return a <= b;
+                case PlayScriptParser.LT:
+                    return a < b;
+                case PlayScriptParser.GE:
+                    return a >= b;
+                default:
+                    return a > b;
+            }
+        }
+    }
+
+    /**
+     * long型的运算
+     */
+    public static final class LongBinaryNode extends BinaryNode {
+        private final boolean comparison;
+
+        public LongBinaryNode(int op, ExecNode left, ExecNode right) {
+            super(op, PrimitiveType.Long, left, right);
+            this.comparison = isComparison();
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (comparison) {
+                return executeBoolean(frame);
+            }
+            return executeLong(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) executeLong(frame);
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            long a = left.executeLong(frame);
+            long b = right.executeLong(frame);
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return executeLong(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            long a = left.executeLong(frame);
+            long b = right.executeLong(frame);
+            switch (op) {
+                case PlayScriptParser.EQUAL:
+                    return a == b;
+                case PlayScriptParser.NOTEQUAL:
+                    return a != b;
+                case PlayScriptParser.LE:
+                    return a <= b;
+                case PlayScriptParser.LT:
+                    return a < b;
+                case PlayScriptParser.GE:
+                    return a >= b;
+                default:
+                    return a > b;
+            }
+        }
+    }
+
+    /**
+     * float型的运算
+     */
+    public static final class FloatBinaryNode extends BinaryNode {
+        private final boolean comparison;
+
+        public FloatBinaryNode(int op, ExecNode left, ExecNode right) {
+            super(op, PrimitiveType.Float, left, right);
+            this.comparison = isComparison();
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (comparison) {
+                return executeBoolean(frame);
+            }
+            return executeFloat(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) executeFloat(frame);
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return (long) executeFloat(frame);
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            float a = left.executeFloat(frame);
+            float b = right.executeFloat(frame);
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            return executeFloat(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            float a = left.executeFloat(frame);
+            float b = right.executeFloat(frame);
+            switch (op) {
+                case PlayScriptParser.EQUAL:
+                    return a == b;
+                case PlayScriptParser.NOTEQUAL:
+                    return a != b;
+                case PlayScriptParser.LE:
+                    return a <= b;
+                case PlayScriptParser.LT:
+                    return a < b;
+                case PlayScriptParser.GE:
+                    return a >= b;
+                default:
+                    return a > b;
+            }
+        }
+    }
+
+    /**
+     * double型的运算
+     */
+    public static final class DoubleBinaryNode extends BinaryNode {
+        private final boolean comparison;
+
+        public DoubleBinaryNode(int op, ExecNode left, ExecNode right) {
+            super(op, PrimitiveType.Double, left, right);
+            this.comparison = isComparison();
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (comparison) {
+                return executeBoolean(frame);
+            }
+            return executeDouble(frame);
+        }
+
+        @Override
+        public int executeInt(NodeFrame frame) {
+            return (int) executeDouble(frame);
+        }
+
+        @Override
+        public long executeLong(NodeFrame frame) {
+            return (long) executeDouble(frame);
+        }
+
+        @Override
+        public float executeFloat(NodeFrame frame) {
+            return (float) executeDouble(frame);
+        }
+
+        @Override
+        public double executeDouble(NodeFrame frame) {
+            double a = left.executeDouble(frame);
+            double b = right.executeDouble(frame);
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            double a = left.executeDouble(frame);
+            double b = right.executeDouble(frame);
+            switch (op) {
+                case PlayScriptParser.EQUAL:
+                    return a == b;
+                case PlayScriptParser.NOTEQUAL:
+                    return a != b;
+                case PlayScriptParser.LE:
+                    return a <= b;
+                case PlayScriptParser.LT:
+                    return a < b;
+                case PlayScriptParser.GE:
+                    return a >= b;
+                default:
+                    return a > b;
+            }
+        }
+    }
+
+    /**
+     * 逻辑与和逻辑或。跟ASTEvaluator一样，两边的操作数都会计算。
+     */
+    public static final class LogicalNode extends BinaryNode {
+
+        public LogicalNode(int op, ExecNode left, ExecNode right) {
+            super(op, PrimitiveType.Boolean, left, right);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return executeBoolean(frame);
+        }
+
+        @Override
+        public boolean executeBoolean(NodeFrame frame) {
+            boolean a = left.executeBoolean(frame);
+            boolean b = right.executeBoolean(frame);
+            return op == PlayScriptParser.AND ? a && b : a || b;
+        }
+    }
+
+    /**
+     * 操作数是对象的二元运算。操作数都计算完了，再调用executeWith。
+     */
+    public static abstract class ObjectBinaryNode extends BinaryNode {
+
+        protected ObjectBinaryNode(int op, Type type, ExecNode left, ExecNode right) {
+            super(op, type, left, right);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            Object leftValue = left.execute(frame);
+            Object rightValue = right.execute(frame);
+            return executeWith(leftValue, rightValue);
+        }
+
+        /**
+         * 用已经计算好的两个操作数做运算
+         */
+        protected abstract Object executeWith(Object leftValue, Object rightValue);
+    }
+
+    /**
+     * 还没有执行过的二元运算节点。用于静态类型不是int、long、float、double的运算，
+     * 第一次执行的时候，根据遇到的值把自己替换成特化的节点。
+     */
+    public static final class UninitializedBinaryNode extends ObjectBinaryNode {
+
+        public UninitializedBinaryNode(int op, Type type, ExecNode left, ExecNode right) {
+            super(op, type, left, right);
+        }
+
+        @Override
+        protected Object executeWith(Object leftValue, Object rightValue) {
+            ObjectBinaryNode node = replace(specialize(leftValue, rightValue));
+            return node.executeWith(leftValue, rightValue);
+        }
+
+        private ObjectBinaryNode specialize(Object leftValue, Object rightValue) {
+            if (op == PlayScriptParser.ADD && type == PrimitiveType.String) {
+                return new StringConcatNode(op, type, left, right);
+            } else if ((op == PlayScriptParser.EQUAL || op == PlayScriptParser.NOTEQUAL) && !PrimitiveType.isNumeric(type)) {
+                return new ReferenceEqualsNode(op, type, left, right);
+            }
+            return new GenericBinaryNode(op, type, left, right);
+        }
+    }
+
+    /**
+     * 字符串连接。字符串能够跟任何对象做 + 运算
+     */
+    public static final class StringConcatNode extends ObjectBinaryNode {
+
+        public StringConcatNode(int op, Type type, ExecNode left, ExecNode right) {
+            super(op, type, left, right);
+        }
+
+        @Override
+        protected Object executeWith(Object leftValue, Object rightValue) {
+            return String.valueOf(leftValue) + String.valueOf(rightValue);
+        }
+    }
+
+    /**
+     * 对于对象实例、函数等非数值的类型，==和!=直接比较引用
+     */
+    public static final class ReferenceEqualsNode extends ObjectBinaryNode {
+
+        public ReferenceEqualsNode(int op, Type type, ExecNode left, ExecNode right) {
+            super(op, type, left, right);
+        }
+
+        @Override
+        protected Object executeWith(Object leftValue, Object rightValue) {
+            boolean equals = leftValue == rightValue;
+            return op == PlayScriptParser.EQUAL ? equals : !equals;
+        }
+    }
+
+    /**
+     * 通用的二元运算。每次都根据类型来选择运算方法，跟ASTEvaluator的做法一样。
+     */
+    public static final class GenericBinaryNode extends ObjectBinaryNode {
+
+        public GenericBinaryNode(int op, Type type, ExecNode left, ExecNode right) {
+            super(op, type, left, right);
+        }
+
+        @Override
+        protected Object executeWith(Object leftValue, Object rightValue) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    if (type == PrimitiveType.String) {
+                        return String.valueOf(leftValue) + String.valueOf(rightValue);
+                    }
+                    return arithmetic(leftValue, rightValue);
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV:
+                    return arithmetic(leftValue, rightValue);
+                case PlayScriptParser.EQUAL:
+                    return equals(leftValue, rightValue);
+                case PlayScriptParser.NOTEQUAL:
+                    return !equals(leftValue, rightValue);
+                default:
+                    return compare(leftValue, rightValue);
+            }
+        }
+
+        private Object arithmetic(Object leftValue, Object rightValue) {
+            if (!PrimitiveType.isNumeric(type) || type == PrimitiveType.Byte) {
+                if (op == PlayScriptParser.ADD) {
+                    System.out.println("unsupported add operation");
+                }
+                return null;
+            }
+
+            Number a = (Number) leftValue;
+            Number b = (Number) rightValue;
+            if (type == PrimitiveType.Integer) {
+                return calc(a.intValue(), b.intValue());
+            } else if (type == PrimitiveType.Float) {
+                return calc(a.floatValue(), b.floatValue());
+            } else if (type == PrimitiveType.Long) {
+                return calc(a.longValue(), b.longValue());
+            } else if (type == PrimitiveType.Double) {
+                return calc(a.doubleValue(), b.doubleValue());
+            } else {
+                return calc(a.shortValue(), b.shortValue());
+            }
+        }
+
+        private Object calc(int a, int b) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        private Object calc(long a, long b) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        private Object calc(float a, float b) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        private Object calc(double a, double b) {
+            switch (op) {
+                case PlayScriptParser.ADD:
+                    return a + b;
+                case PlayScriptParser.SUB:
+                    return a - b;
+                case PlayScriptParser.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        private boolean equals(Object leftValue, Object rightValue) {
+            if (PrimitiveType.isNumeric(type) && type != PrimitiveType.Byte) {
+                return compare(leftValue, rightValue) == Boolean.TRUE;
+            }
+            //对于对象实例、函数，直接比较对象引用
+            return leftValue == rightValue;
+        }
+
+        /**
+         * 比较运算。相等也在这里比较。类型不支持的时候返回null，跟ASTEvaluator一致。
+         */
+        private Boolean compare(Object leftValue, Object rightValue) {
+            int result;
+            if (type == PrimitiveType.Integer) {
+                result = Integer.compare(((Number) leftValue).intValue(), ((Number) rightValue).intValue());
+            } else if (type == PrimitiveType.Float) {
+                float a = ((Number) leftValue).floatValue();
+                float b = ((Number) rightValue).floatValue();
+                result = a < b ? -1 : (a > b ? 1 : (a == b ? 0 : 2));
+            } else if (type == PrimitiveType.Long) {
+                result = Long.compare(((Number) leftValue).longValue(), ((Number) rightValue).longValue());
+            } else if (type == PrimitiveType.Double) {
+                double a = ((Number) leftValue).doubleValue();
+                double b = ((Number) rightValue).doubleValue();
+                result = a < b ? -1 : (a > b ? 1 : (a == b ? 0 : 2));
+            } else if (type == PrimitiveType.Short) {
+                result = Integer.compare(((Number) leftValue).shortValue(), ((Number) rightValue).shortValue());
+            } else {
+                return null;
+            }
+
+            //result为2，表示有NaN参与比较，所有的比较都是false
+            switch (op) {
+                case PlayScriptParser.EQUAL:
+                    return result == 0;
+                case PlayScriptParser.NOTEQUAL:
+                    return result != 0;
+                case PlayScriptParser.LE:
+                    return result == 0 || result == -1;
+                case PlayScriptParser.LT:
+                    return result == -1;
+                case PlayScriptParser.GE:
+                    return result == 0 || result == 1;
+                case PlayScriptParser.GT:
+                    return result == 1;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 语句
+
+    /**
+     * 语句块，返回最后一个语句的值
+     */
+    public static final class BlockNode extends ExecNode {
+        private final ExecNode[] statements;
+
+        public BlockNode(ExecNode[] statements) {
+            this.statements = statements;
+            for (ExecNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            int last = statements.length - 1;
+            for (int i = 0; i < last; i++) {
+                statements[i].executeVoid(frame);
+            }
+            return last >= 0 ? statements[last].execute(frame) : null;
+        }
+
+        @Override
+        public void executeVoid(NodeFrame frame) {
+            for (ExecNode statement : statements) {
+                statement.executeVoid(frame);
+            }
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            replaceIn(statements, oldChild, newChild);
+        }
+    }
+
+    /**
+     * if语句
+     */
+    public static final class IfNode extends ExecNode {
+        private ExecNode condition;
+        private ExecNode thenPart;
+        private ExecNode elsePart;   //可以为null
+
+        public IfNode(ExecNode condition, ExecNode thenPart, ExecNode elsePart) {
+            this.condition = adopt(condition);
+            this.thenPart = adopt(thenPart);
+            this.elsePart = adopt(elsePart);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (condition.executeBoolean(frame)) {
+                return thenPart.execute(frame);
+            } else if (elsePart != null) {
+                return elsePart.execute(frame);
+            }
+            return null;
+        }
+
+        @Override
+        public void executeVoid(NodeFrame frame) {
+            if (condition.executeBoolean(frame)) {
+                thenPart.executeVoid(frame);
+            } else if (elsePart != null) {
+                elsePart.executeVoid(frame);
+            }
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (condition == oldChild) {
+                condition = newChild;
+            } else if (thenPart == oldChild) {
+                thenPart = newChild;
+            } else if (elsePart == oldChild) {
+                elsePart = newChild;
+            }
+        }
+    }
+
+    /**
+     * while循环。
+     * 循环体按executeVoid执行，避免每次循环都把最后一个语句的值装箱，所以循环语句本身的值是null。
+     */
+    public static final class WhileNode extends ExecNode {
+        private ExecNode condition;
+        private ExecNode body;
+        private final BreakException breakSignal;
+        private final ContinueException continueSignal;
+
+        //所在函数的计数器，统计回跳次数。可以为null
+        private final TieredCompiler.FunctionCounter counter;
+
+        public WhileNode(ExecNode condition, ExecNode body, BreakException breakSignal, ContinueException continueSignal,
+                         TieredCompiler.FunctionCounter counter) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+            this.breakSignal = breakSignal;
+            this.continueSignal = continueSignal;
+            this.counter = counter;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            try {
+                while (condition.executeBoolean(frame)) {
+                    try {
+                        body.executeVoid(frame);
+                    } catch (ContinueException e) {
+                        if (e != continueSignal) {
+                            throw e;  //外层循环的continue
+                        }
+                    }
+                    if (counter != null) {
+                        counter.countBackEdge();
+                    }
+                }
+            } catch (BreakException e) {
+                if (e != breakSignal) {
+                    throw e;  //外层语句的break
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (condition == oldChild) {
+                condition = newChild;
+            } else if (body == oldChild) {
+                body = newChild;
+            }
+        }
+    }
+
+    /**
+     * for循环。init、condition和update都可以为null。跟while循环一样，本身的值是null。
+     */
+    public static final class ForNode extends ExecNode {
+        private ExecNode init;
+        private ExecNode condition;
+        private ExecNode update;
+        private ExecNode body;
+        private final BreakException breakSignal;
+        private final ContinueException continueSignal;
+
+        //所在函数的计数器，统计回跳次数。可以为null
+        private final TieredCompiler.FunctionCounter counter;
+
+        public ForNode(ExecNode init, ExecNode condition, ExecNode update, ExecNode body,
+                       BreakException breakSignal, ContinueException continueSignal,
+                       TieredCompiler.FunctionCounter counter) {
+            this.init = adopt(init);
+            this.condition = adopt(condition);
+            this.update = adopt(update);
+            this.body = adopt(body);
+            this.breakSignal = breakSignal;
+            this.continueSignal = continueSignal;
+            this.counter = counter;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (init != null) {
+                init.executeVoid(frame);
+            }
+            try {
+                while (condition == null || condition.executeBoolean(frame)) {
+                    try {
+                        body.executeVoid(frame);
+                    } catch (ContinueException e) {
+                        if (e != continueSignal) {
+                            throw e;
+                        }
+                    }
+                    if (update != null) {
+                        update.executeVoid(frame);
+                    }
+                    if (counter != null) {
+                        counter.countBackEdge();
+                    }
+                }
+            } catch (BreakException e) {
+                if (e != breakSignal) {
+                    throw e;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (init == oldChild) {
+                init = newChild;
+            } else if (condition == oldChild) {
+                condition = newChild;
+            } else if (update == oldChild) {
+                update = newChild;
+            } else if (body == oldChild) {
+                body = newChild;
+            }
+        }
+    }
+
+    /**
+     * 带标签的语句，处理跳出这个语句的break。循环语句的标签由循环自己处理。
+     */
+    public static final class LabelNode extends ExecNode {
+        private ExecNode statement;
+        private final BreakException breakSignal;
+
+        public LabelNode(ExecNode statement, BreakException breakSignal) {
+            this.statement = adopt(statement);
+            this.breakSignal = breakSignal;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            try {
+                return statement.execute(frame);
+            } catch (BreakException e) {
+                if (e != breakSignal) {
+                    throw e;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (statement == oldChild) {
+                statement = newChild;
+            }
+        }
+    }
+
+    /**
+     * break语句和continue语句。抛出的异常实例，在编译时就确定了，对应要跳出（或继续）的语句。
+     */
+    public static final class JumpNode extends ExecNode {
+        private final ControlFlowException signal;
+
+        public JumpNode(ControlFlowException signal) {
+            this.signal = signal;
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            throw signal;
+        }
+    }
+
+    /**
+     * return语句
+     */
+    public static final class ReturnNode extends ExecNode {
+        private ExecNode value;   //可以为null
+
+        public ReturnNode(ExecNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            frame.returnValue = value == null ? null : value.execute(frame);
+            throw ReturnException.instance;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (value == oldChild) {
+                value = newChild;
+            }
+        }
+    }
+
+    /**
+     * 内置的println函数。参数列表里的表达式都会计算，打印最后一个的值。
+     */
+    public static final class PrintlnNode extends ExecNode {
+        private final ExecNode[] arguments;
+
+        public PrintlnNode(ExecNode[] arguments) {
+            this.arguments = arguments;
+            for (ExecNode argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            if (arguments.length == 0) {
+                System.out.println();
+            } else {
+                Object value = null;
+                for (ExecNode argument : arguments) {
+                    value = argument.execute(frame);
+                }
+                System.out.println(value);
+            }
+            return null;
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            replaceIn(arguments, oldChild, newChild);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 函数
+
+    /**
+     * 编译好的函数，是函数调用的目标
+     */
+    public static final class FunctionTarget {
+        protected final Function function;
+
+        //栈桢的大小
+        protected int frameSize = 0;
+
+        //每个参数在栈桢中的下标
+        protected int[] paramSlots = null;
+
+        //不装箱的参数的类型。按对象存放的参数，对应的元素是null
+        protected Type[] paramTypes = null;
+
+        //函数体
+        protected ExecNode body = null;
+
+        //分层执行时函数的计数器，没有启用是null
+        protected TieredCompiler.FunctionCounter counter = null;
+
+        public FunctionTarget(Function function) {
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return "FunctionTarget " + function.name;
+        }
+    }
+
+    /**
+     * 函数调用
+     */
+    public static final class CallNode extends ExecNode {
+        private final FunctionTarget target;
+        private final ExecNode[] arguments;
+
+        //从调用处的栈桢沿静态链向上走几层，是被调用函数的外层函数的栈桢
+        private final int linkDepth;
+
+        public CallNode(FunctionTarget target, ExecNode[] arguments, int linkDepth) {
+            this.target = target;
+            this.arguments = arguments;
+            this.linkDepth = linkDepth;
+            for (ExecNode argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            //函数已经编译成了JVM字节码，把自己替换成直接调用编译结果的节点
+            if (target.counter != null && target.counter.countInvocation()) {
+                return replace(new CompiledCallNode(target.counter, arguments)).execute(frame);
+            }
+
+            //找到静态链
+            NodeFrame link = frame;
+            for (int i = 0; i < linkDepth; i++) {
+                link = link.parent;
+            }
+
+            //在调用者的栈桢里计算参数值，直接放到被调用函数的栈桢里
+            NodeFrame calleeFrame = new NodeFrame(target.frameSize, link);
+            for (int i = 0; i < arguments.length; i++) {
+                Type type = target.paramTypes[i];
+                if (type == null) {
+                    calleeFrame.slots[target.paramSlots[i]] = arguments[i].execute(frame);
+                } else {
+                    calleeFrame.primitives[target.paramSlots[i]] = toBits(arguments[i], type, frame);
+                }
+            }
+
+            //跟ASTEvaluator一样，没有return语句的时候，返回最后一个语句的值
+            try {
+                return target.body.execute(calleeFrame);
+            } catch (ReturnException e) {
+                return calleeFrame.returnValue;
+            }
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            replaceIn(arguments, oldChild, newChild);
+        }
+    }
+
+    /**
+     * 调用TieredCompiler编译好的函数。参数按对象传递，由FunctionCounter转换成参数声明的类型。
+     */
+    public static final class CompiledCallNode extends ExecNode {
+        private final TieredCompiler.FunctionCounter counter;
+        private final ExecNode[] arguments;
+
+        public CompiledCallNode(TieredCompiler.FunctionCounter counter, ExecNode[] arguments) {
+            this.counter = counter;
+            this.arguments = arguments;
+            for (ExecNode argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].execute(frame);
+            }
+            return counter.invoke(values);
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            replaceIn(arguments, oldChild, newChild);
+        }
+    }
+
+    /**
+     * 整个程序。全局的代码相当于一个没有参数的函数。
+     */
+    public static final class ProgramNode extends ExecNode {
+        private final int frameSize;
+        private ExecNode body;
+
+        public ProgramNode(int frameSize, ExecNode body) {
+            this.frameSize = frameSize;
+            this.body = adopt(body);
+        }
+
+        /**
+         * 运行整个程序，返回最后一个语句的值
+         * @return
+         */
+        public Object run() {
+            NodeFrame frame = new NodeFrame(frameSize, null);
+            try {
+                return execute(frame);
+            } catch (ReturnException e) {
+                return frame.returnValue;
+            }
+        }
+
+        @Override
+        public Object execute(NodeFrame frame) {
+            return body.execute(frame);
+        }
+
+        @Override
+        protected void replaceChild(ExecNode oldChild, ExecNode newChild) {
+            if (body == oldChild) {
+                body = newChild;
+            }
+        }
+    }
+}
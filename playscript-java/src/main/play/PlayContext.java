@@ -0,0 +1,20 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * 所有AST节点的父类，在PlayScript.g4里用contextSuperClass指定。
+ * 语法分析器在进入每条规则的时候给节点编号，编号从0开始，是连续的。
+ */
+public class PlayContext extends ParserRuleContext {
+
+    //节点的编号，由PlayScriptParser设置
+    protected int id = -1;
+
+    public PlayContext() {
+    }
+
+    public PlayContext(ParserRuleContext parent, int invokingStateNumber) {
+        super(parent, invokingStateNumber);
+    }
+}
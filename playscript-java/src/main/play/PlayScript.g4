@@ -41,10 +41,46 @@ grammar PlayScript;
 //options { tokenVocab=CommonLexer; }
 import CommonLexer;
 
+//所有AST节点都继承PlayContext，带有一个编号
+options { contextSuperClass = PlayContext; }
+
 @header {
 package play;
 }
 
+@parser::members {
+    //语法分析时给每个AST节点一个连续的编号，AnnotatedTree用它作为数组下标保存节点上的标注
+    private int nodeCount = 0;
+
+    //一共生成了多少个AST节点
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    //从某个编号开始给节点编号。REPL里每次输入的脚本都放在同一个AnnotatedTree里，编号要接着上一次的
+    public void setNodeCount(int nodeCount) {
+        this.nodeCount = nodeCount;
+    }
+
+    @Override
+    public void enterRule(ParserRuleContext localctx, int state, int ruleIndex) {
+        ((PlayContext) localctx).id = nodeCount++;
+        super.enterRule(localctx, state, ruleIndex);
+    }
+
+    @Override
+    public void enterRecursionRule(ParserRuleContext localctx, int state, int ruleIndex, int precedence) {
+        ((PlayContext) localctx).id = nodeCount++;
+        super.enterRecursionRule(localctx, state, ruleIndex, precedence);
+    }
+
+    @Override
+    public void pushNewRecursionContext(ParserRuleContext localctx, int state, int ruleIndex) {
+        ((PlayContext) localctx).id = nodeCount++;
+        super.pushNewRecursionContext(localctx, state, ruleIndex);
+    }
+}
+
 classDeclaration
     : CLASS IDENTIFIER
       (EXTENDS typeType)?
@@ -1,8 +1,14 @@
 package play;
 
+import org.antlr.v4.runtime.CharStream;
+
 import java.io.*;
-import java.lang.reflect.Method;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -28,9 +34,6 @@ public class PlayScript {
         //String script = "int fun1(int x1, int x2, int x3, int x4, int x5, int x6, int x7, int x8){int c = 10; return x1 + x2 + x3 + x4 + x5 + x6 + x7 + x8 + c;} println(\"fun1: %d\", fun1(1,2,3,4,5,6,7,8));".replaceAll("\\\\", "");
 
 
-        //脚本
-        String script = null;
-
         Map params = null;
 
         //解析参数
@@ -47,12 +50,23 @@ public class PlayScript {
             return;
         }
 
-        //从源代码读取脚本
+        //并行编译多个脚本，只检查编译错误，不执行
+        boolean check = params.containsKey("check") ? (Boolean) params.get("check") : false;
+        if (check) {
+            //parseParams()放进去的是List<String>
+            @SuppressWarnings("unchecked")
+            List<String> scriptFiles = (List<String>) params.get("scriptFiles");
+            checkScripts(scriptFiles);
+            return;
+        }
+
+        //打开源代码。词法分析器直接从文件读取，只有需要整个脚本的时候才转成String
         String scriptFile = params.containsKey("scriptFile") ? (String)params.get("scriptFile") : null;
+        CharStream input = null;
         if (scriptFile != null) {
             try {
-                script = readTextFile(scriptFile);
-            } catch (IOException e) {
+                input = PlayScriptCompiler.openScript(Paths.get(scriptFile));
+            } catch (IOException | InvalidPathException e) {
                 System.out.println("unable to read from : " + scriptFile);
                 return;
             }
@@ -70,34 +84,72 @@ public class PlayScript {
         //打印AST
         boolean ast_dump = params.containsKey("ast_dump") ? (Boolean) params.get("ast_dump") : false;
 
+        //用字节码虚拟机执行
+        boolean useVM = params.containsKey("useVM") ? (Boolean) params.get("useVM") : false;
+
+        //使用编译结果的磁盘缓存
+        boolean useCache = params.containsKey("useCache") ? (Boolean) params.get("useCache") : false;
+
+        //做性能剖析
+        boolean profile = params.containsKey("profile") ? (Boolean) params.get("profile") : false;
+
+        //分层执行
+        boolean tiered = params.containsKey("tiered") ? (Boolean) params.get("tiered") : false;
+
         //进入REPL
-        if (script == null) {
-            REPL(verbose, ast_dump);
+        if (input == null) {
+            REPL(verbose, ast_dump, useVM);
         }
 
         //生成汇编代码
         else if (genAsm) {
             //输出文件
             String outputFile = params.containsKey("outputFile") ? (String)params.get("outputFile") : null;
-            generateAsm(script, outputFile);
+            generateAsm(input.toString(), outputFile);
         }
 
-        //生成Java字节码
+        //生成Java字节码，由JVM执行
         else if (genByteCode) {
-            //输出文件
-            //String outputFile = params.containsKey("outputFile") ? (String)params.get("outputFile") : null;
-            byte[] bc = generateByteCode(script);
-            runJavaClass("DefaultPlayClass", bc);
+            PlayScriptCompiler compiler = new PlayScriptCompiler();
+            AnnotatedTree at = compiler.compile(input, verbose, ast_dump);
+            if (!at.hasCompilationError()) {
+                CompiledScript script = generateByteCode(at);
+                if (script != null) {
+                    script.invoke();
+                } else {
+                    //ByteCodeGen还不支持的特性，用解释器执行
+                    compiler.Execute(at);
+                }
+            }
+        }
+
+        //用缓存的字节码执行
+        else if (useCache) {
+            //缓存以脚本的内容为key
+            runCached(input.toString(), verbose, ast_dump);
         }
 
         //执行脚本
         else {
             PlayScriptCompiler compiler = new PlayScriptCompiler();
-            AnnotatedTree at = compiler.compile(script, verbose, ast_dump);
+            AnnotatedTree at = compiler.compile(input, verbose, ast_dump);
 
             if (!at.hasCompilationError()) {
-                Object result = compiler.Execute(at);
-                //System.out.println(result);
+                if (profile) {
+                    //collapsed stacks保存到输出文件里，没有指定输出文件就打印出来
+                    String outputFile = params.containsKey("outputFile") ? (String)params.get("outputFile") : null;
+                    profile(compiler, at, outputFile);
+                } else if (tiered) {
+                    TieredCompiler tieredCompiler = new TieredCompiler(at);
+                    compiler.Execute(at, tieredCompiler);
+                    if (verbose) {
+                        System.out.println("\nTiered execution ------------");
+                        System.out.print(tieredCompiler.dump());
+                    }
+                } else {
+                    Object result = useVM ? compiler.ExecuteOnVM(at, verbose) : compiler.Execute(at);
+                    //System.out.println(result);
+                }
             }
         }
 
@@ -110,6 +162,7 @@ public class PlayScript {
      */
     private static Map parseParams(String args[]) throws Exception {
         Map<String,Object> params = new HashMap<>();
+        List<String> scriptFiles = new ArrayList<>();
 
         for (int i = 0; i < args.length; i++) {
 
@@ -138,6 +191,31 @@ public class PlayScript {
                 params.put("ast_dump",true);
             }
 
+            //用字节码虚拟机执行
+            else if (args[i].equals("-vm")){
+                params.put("useVM",true);
+            }
+
+            //使用编译结果的缓存
+            else if (args[i].equals("-cache")){
+                params.put("useCache",true);
+            }
+
+            //性能剖析
+            else if (args[i].equals("-prof")){
+                params.put("profile",true);
+            }
+
+            //分层执行
+            else if (args[i].equals("-tiered")){
+                params.put("tiered",true);
+            }
+
+            //只检查编译错误
+            else if (args[i].equals("-check")){
+                params.put("check",true);
+            }
+
             //输出文件
             else if (args[i].equals("-o")) {
                 if (i + 1 < args.length) {
@@ -154,12 +232,14 @@ public class PlayScript {
                 throw new Exception("Unknow parameter : " + args[i]);
             }
 
-            //脚本文件
+            //脚本文件。-check可以带多个文件，其他情况下只用最后一个
             else {
                 params.put("scriptFile", args[i]);
                 //scriptFile = args[i];
+                scriptFiles.add(args[i]);
             }
         }
+        params.put("scriptFiles", scriptFiles);
 
         return params;
     }
@@ -168,7 +248,7 @@ public class PlayScript {
      * 打印帮助信息
      */
     private static void showHelp(){
-        System.out.println("usage: java play.PlayScript [-h | --help | -o outputfile | -S | -bc | -v | -ast-dump] [scriptfile]");
+        System.out.println("usage: java play.PlayScript [-h | --help | -o outputfile | -S | -bc | -vm | -tiered | -cache | -prof | -check | -v | -ast-dump] [scriptfile ...]");
 
         System.out.println("\t-h or --help : print this help information");
         System.out.println("\t-v verbose mode : dump AST and symbols");
@@ -176,6 +256,11 @@ public class PlayScript {
         System.out.println("\t-o outputfile : file pathname used to save generated code, eg. assembly code");
         System.out.println("\t-S : compile to assembly code");
         System.out.println("\t-bc : compile to java byte code");
+        System.out.println("\t-vm : compile to register-based bytecode and run it on the PlayScript VM");
+        System.out.println("\t-tiered : interpret first, compile hot functions to java byte code and run them on the JVM");
+        System.out.println("\t-cache : like -vm, but save the compiled bytecode on disk and reuse it while the script is unchanged");
+        System.out.println("\t-prof : run with the profiler, print per-function statistics and collapsed stacks (saved to outputfile if given)");
+        System.out.println("\t-check : compile all the scriptfiles in parallel and report errors, without running them");
         System.out.println("\tscriptfile : file contains playscript code");
 
         System.out.println("\nexamples:");
@@ -196,10 +281,121 @@ public class PlayScript {
         System.out.println();
 
         System.out.println("\tjava play.PlayScript -bc scratch.play");
-        System.out.println("\t>>compile to bytecode, save as DefaultPlayClass.class and run it");
+        System.out.println("\t>>compile to bytecode, save as DefaultPlayClass.class and run it on the JVM");
+        System.out.println();
+
+        System.out.println("\tjava play.PlayScript -vm scratch.play");
+        System.out.println("\t>>compile scratch.play to register-based bytecode and run it on the VM");
+        System.out.println();
+
+        System.out.println("\tjava play.PlayScript -tiered scratch.play");
+        System.out.println("\t>>run scratch.play, functions called more than " + TieredCompiler.INVOCATION_THRESHOLD + " times are compiled to java byte code");
+        System.out.println();
+
+        System.out.println("\tjava play.PlayScript -cache scratch.play");
+        System.out.println("\t>>run scratch.play on the VM, compiling it only if it is not in the cache (~/.playscript/cache, or -Dplay.cache.dir)");
+        System.out.println();
+
+        System.out.println("\tjava play.PlayScript -prof -o scratch.collapsed scratch.play");
+        System.out.println("\t>>run scratch.play with the profiler, save collapsed stacks for a flame graph to scratch.collapsed");
+        System.out.println();
+
+        System.out.println("\tjava play.PlayScript -check a.play b.play c.play");
+        System.out.println("\t>>compile the three scripts concurrently and print their errors, exit with 1 if any of them fails");
         System.out.println();
     }
 
+    /**
+     * 并行编译多个脚本，按文件的顺序打印各自的编译信息。有脚本编译出错时，退出码是1。
+     * @param scriptFiles
+     */
+    private static void checkScripts(List<String> scriptFiles) {
+        List<Path> files = new ArrayList<>();
+        for (String scriptFile : scriptFiles) {
+            try {
+                files.add(Paths.get(scriptFile));
+            } catch (InvalidPathException e) {
+                System.out.println("unable to read from : " + scriptFile);
+                System.exit(1);
+            }
+        }
+
+        List<AnnotatedTree> results = PlayScriptCompiler.compileFiles(files);
+
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            AnnotatedTree at = results.get(i);
+            for (CompilationLog log : at.getLogs()) {
+                System.out.println(scriptFiles.get(i) + ": " + log);
+            }
+            if (at.hasCompilationError()) {
+                failed++;
+            }
+        }
+        System.out.println(scriptFiles.size() + " scripts checked, " + failed + " with errors");
+
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 用VM执行脚本。如果缓存里有这个脚本的编译结果，就跳过词法分析、语法分析和语义分析。
+     * 没有编译错误和提示信息的脚本，编译结果才会放进缓存，这样从缓存执行时的输出跟重新编译一样。
+     *
+     * @param script 脚本
+     */
+    private static void runCached(String script, boolean verbose, boolean ast_dump) {
+        ScriptCache cache = new ScriptCache(ScriptCache.defaultDirectory());
+        VMProgram program = cache.load(script);
+
+        if (program == null) {
+            PlayScriptCompiler compiler = new PlayScriptCompiler();
+            AnnotatedTree at = compiler.compile(script, verbose, ast_dump);
+            if (at.hasCompilationError()) {
+                return;
+            }
+
+            program = compiler.compileForVM(at);
+            if (program == null) {
+                //VM还不支持这个脚本，不缓存
+                compiler.Execute(at);
+                return;
+            }
+            if (at.logs.isEmpty()) {
+                cache.store(script, program);
+            }
+        }
+
+        if (verbose) {
+            System.out.println(program.dump());
+        }
+        new VM(program).run();
+    }
+
+    /**
+     * 执行脚本并做性能剖析，打印统计摘要和collapsed stacks
+     *
+     * @param outputFile 保存collapsed stacks的文件名，为null时打印出来
+     */
+    private static void profile(PlayScriptCompiler compiler, AnnotatedTree at, String outputFile) {
+        Profiler profiler = new Profiler();
+        compiler.Profile(at, profiler);
+        profiler.printSummary(System.out);
+
+        if (outputFile != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(outputFile))) {
+                profiler.printCollapsedStacks(out);
+            } catch (IOException e) {
+                System.out.println("unable to write to : " + outputFile);
+            }
+        } else {
+            System.out.println("\nCollapsed stacks ------------");
+            profiler.printCollapsedStacks(System.out);
+            System.out.println("-----------------------------");
+        }
+    }
+
     /**
      * 生成ASM
      *
@@ -224,47 +420,30 @@ public class PlayScript {
     }
 
     /**
-     * 生成字节码，保存到DefaultPlayClass.class
+     * 生成字节码，保存到DefaultPlayClass.class，以及脚本里的类对应的.class文件
      *
-     * @param script     脚本
+     * @param at 编译结果
+     * @return 编译好的脚本。遇到还不支持的特性，返回null
      */
-    private static byte[] generateByteCode(String script) {
-        PlayScriptCompiler compiler = new PlayScriptCompiler();
-        AnnotatedTree at = compiler.compile(script);
-        ByteCodeGen bcGen = new ByteCodeGen(at);
-        byte[] bc = bcGen.generate();
-
-
-        String outputFile = "DefaultPlayClass.class";
-
+    private static CompiledScript generateByteCode(AnnotatedTree at) {
+        CompiledScript script = null;
         try {
-            File file = new File(outputFile);
-            FileOutputStream fos = new FileOutputStream(file);
-            fos.write(bc);
-            fos.close();
-        } catch (IOException e) {
-            System.out.println("unable to write to : " + outputFile);
+            script = CompiledScript.compile(at);
+        } catch (UnsupportedOperationException e) {
+            return null;
         }
 
-        return bc;
-    }
-
-    /**
-     * 读文本文件
-     * @param pathName
-     * @return
-     * @throws IOException
-     */
-    private static String readTextFile(String pathName) throws IOException {
-        StringBuffer buffer = new StringBuffer();
-        try (FileReader reader = new FileReader(pathName);
-             BufferedReader br = new BufferedReader(reader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                buffer.append(line).append('\n');
+        //DefaultPlayClass.class，以及脚本里的类对应的.class
+        for (Map.Entry<String, byte[]> entry : script.getClasses().entrySet()) {
+            String outputFile = entry.getKey() + ".class";
+            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+                fos.write(entry.getValue());
+            } catch (IOException e) {
+                System.out.println("unable to write to : " + outputFile);
             }
         }
-        return buffer.toString();
+
+        return script;
     }
 
     /**
@@ -291,7 +470,7 @@ public class PlayScript {
     /**
      * REPL
      */
-    private static void REPL(boolean verbose, boolean ast_dump) {
+    private static void REPL(boolean verbose, boolean ast_dump, boolean useVM) {
         System.out.println("Enjoy PlayScript!");
 
         PlayScriptCompiler compiler = new PlayScriptCompiler();
@@ -312,14 +491,23 @@ public class PlayScript {
                 scriptLet += line + "\n";
                 if (line.endsWith(";")) {
 
-                    // 解析整个脚本文件
-                    AnnotatedTree at = compiler.compile(script + scriptLet, verbose, ast_dump);
-
-                    //重新执行整个脚本
-                    if (!at.hasCompilationError()) {
-                        Object result = compiler.Execute(at);
-                        System.out.println(result);
-                        script = script + scriptLet;
+                    if (useVM) {
+                        // VM不支持增量编译，解析整个脚本文件
+                        AnnotatedTree at = compiler.compile(script + scriptLet, verbose, ast_dump);
+
+                        //重新执行整个脚本
+                        if (!at.hasCompilationError()) {
+                            Object result = compiler.ExecuteOnVM(at, verbose);
+                            System.out.println(result);
+                            script = script + scriptLet;
+                        }
+                    } else {
+                        // 只编译新输入的脚本，在原来的全局变量上接着执行
+                        AnnotatedTree at = compiler.compileIncrementally(scriptLet, verbose, ast_dump);
+                        if (!at.hasCompilationError()) {
+                            Object result = compiler.ExecuteIncrementally(at);
+                            System.out.println(result);
+                        }
                     }
 
                     System.out.print("\n>");   //提示符
@@ -344,54 +532,4 @@ public class PlayScript {
 
     }
 
-    /**
-     * 运行指定名称的Java类
-     * @param className
-     */
-    private static void runJavaClass(String className, byte[] b){
-        try {
-            //java.lang.Class clazz = java.lang.Class.forName(className);
-            java.lang.Class clazz = loadClass(className,b);
-            Method method = clazz.getMethod("main", String[].class);
-            method.invoke(null, (Object)new String[]{});
-        }
-        catch (Exception e){
-            e.printStackTrace();
-        }
-    }
-
-
-    /**
-     * 从byte数组加载类
-     * @param className
-     * @param b
-     * @return
-     */
-    private static java.lang.Class loadClass(String className, byte[] b) {
-        // Override defineClass (as it is protected) and define the class.
-        java.lang.Class clazz = null;
-        try {
-            ClassLoader loader = ClassLoader.getSystemClassLoader();
-            java.lang.Class cls = java.lang.Class.forName("java.lang.ClassLoader");
-            java.lang.reflect.Method method =
-                    cls.getDeclaredMethod(
-                            "defineClass",
-                            new java.lang.Class[] { String.class, byte[].class, int.class, int.class });
-
-            // Protected method invocation.
-            method.setAccessible(true);
-            try {
-                Object[] args =
-                        new Object[] { className, b, new Integer(0), new Integer(b.length)};
-                clazz = (java.lang.Class) method.invoke(loader, args);
-            } finally {
-                method.setAccessible(false);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-        return clazz;
-    }
-
 }
\ No newline at end of file
@@ -1,11 +1,23 @@
 package play;
 
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
 /**
  * 把词法分析、语法分析、语义分析和解释执行简单地封装在一起。
+ * 实例方法会把编译结果保存在字段里，供dumpAST()等方法和REPL使用，一个实例只能在一个线程里用。
+ * 静态方法compileQuietly()和compileAll()不依赖实例，可以在多个线程里同时调用。
  */
 public class PlayScriptCompiler {
 
@@ -14,44 +26,203 @@ public class PlayScriptCompiler {
     PlayScriptParser parser = null;
 
     public AnnotatedTree compile(String script, boolean verbose, boolean ast_dump) {
+        return compile(CharStreams.fromString(script), verbose, ast_dump);
+    }
+
+    /**
+     * 编译一个字符流，比如openScript()打开的脚本文件。词法分析器直接读取字符流，不需要先把整个脚本读成String。
+     * @param input
+     * @param verbose
+     * @param ast_dump
+     * @return
+     */
+    public AnnotatedTree compile(CharStream input, boolean verbose, boolean ast_dump) {
         at = new AnnotatedTree();
 
         //词法分析
-        lexer = new PlayScriptLexer(CharStreams.fromString(script));
+        lexer = new PlayScriptLexer(input);
         CommonTokenStream tokens = new CommonTokenStream(lexer);
 
         //语法分析
         parser = new PlayScriptParser(tokens);
-        at.ast = parser.prog();
+        at.ast = parse(parser);
+        at.nodeCount = parser.getNodeCount();
 
         //语义分析
-        ParseTreeWalker walker = new ParseTreeWalker();
+        analyze(at);
 
-        //多步的语义解析。
-        //优点：1.代码更清晰；2.允许使用在声明之前，这在支持面向对象、递归函数等特征时是必须的。
-        //pass1：类型和Scope
-        TypeAndScopeScanner pass1 = new TypeAndScopeScanner(at);
-        walker.walk(pass1,at.ast);
+        //打印AST
+        if (verbose || ast_dump){
+            dumpAST();
+        }
 
-        //pass2：把变量、类继承、函数声明的类型都解析出来。也就是所有声明时用到类型的地方。
-        TypeResolver pass2 = new TypeResolver(at);
-        walker.walk(pass2,at.ast);
+        //打印符号表
+        if(verbose){
+            dumpSymbols();
+        }
 
-        //pass3：消解有的变量应用、函数引用。另外还做了类型的推断。
-        RefResolver pass3 = new RefResolver(at);
-        walker.walk(pass3,at.ast);
+        return at;
+    }
 
-        //pass4：类型检查
-        TypeChecker pass4 = new TypeChecker(at);
-        walker.walk(pass4,at.ast);
+    public AnnotatedTree compile(String script) {
+        return  compile(script,false, false);
+    }
 
-        //pass5：其他语义检查
-        SematicValidator pass5 = new SematicValidator(at);
-        walker.walk(pass5,at.ast);
+    /**
+     * 编译一个脚本。只用局部变量，不读写PlayScriptCompiler的字段，可以在多个线程里同时调用。
+     * 编译信息不打印出来，包括语法错误在内，都记录在返回的AnnotatedTree的logs里。
+     * 有语法错误时AST不完整，就不再做语义分析。
+     * @param script
+     * @return
+     */
+    public static AnnotatedTree compileQuietly(String script) {
+        return compileQuietly(CharStreams.fromString(script));
+    }
 
-        //pass6：做闭包的分析
-        ClosureAnalyzer closureAnalyzer = new ClosureAnalyzer(at);
-        closureAnalyzer.analyzeClosures();
+    /**
+     * 跟compileQuietly(String)一样，编译一个字符流。
+     * @param input
+     * @return
+     */
+    public static AnnotatedTree compileQuietly(CharStream input) {
+        AnnotatedTree at = new AnnotatedTree();
+        at.printLogs = false;
+
+        //语法错误记到at里，不打印到控制台
+        BaseErrorListener errorListener = new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                    int charPositionInLine, String msg, RecognitionException e) {
+                at.log(msg, CompilationLog.ERROR, line, charPositionInLine);
+            }
+        };
+
+        //词法分析
+        PlayScriptLexer lexer = new PlayScriptLexer(input);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errorListener);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        //语法分析。生成的PlayScriptParser里，DFA缓存是静态的，所有线程共用，ANTLR运行时对它的修改是同步的
+        PlayScriptParser parser = new PlayScriptParser(tokens);
+        parser.removeErrorListeners();
+        parser.addErrorListener(errorListener);
+        at.ast = parse(parser);
+        at.nodeCount = parser.getNodeCount();
+
+        if (at.hasCompilationError()) {
+            return at;
+        }
+
+        //语义分析。某个脚本让语义分析出了异常，也只算这个脚本的编译错误，不影响同一批的其他脚本
+        try {
+            analyze(at);
+        } catch (RuntimeException e) {
+            at.log("internal compiler error: " + e, CompilationLog.ERROR, 0, 0);
+        }
+
+        return at;
+    }
+
+    /**
+     * 在公共的fork-join线程池里并行编译多个脚本。
+     * @param scripts
+     * @return 每个脚本的编译结果，顺序跟scripts一样。编译信息在各自的logs里
+     */
+    public static List<AnnotatedTree> compileAll(List<String> scripts) {
+        return compileAll(scripts, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 在指定的fork-join线程池里并行编译多个脚本。
+     * @param scripts
+     * @param pool
+     * @return 每个脚本的编译结果，顺序跟scripts一样。编译信息在各自的logs里
+     */
+    public static List<AnnotatedTree> compileAll(List<String> scripts, ForkJoinPool pool) {
+        //在pool里执行并行流，并行流的子任务也会在这个pool里执行
+        return pool.submit(() -> scripts.parallelStream()
+                .map(PlayScriptCompiler::compileQuietly)
+                .collect(Collectors.toList())).join();
+    }
+
+    /**
+     * 在公共的fork-join线程池里并行编译多个脚本文件。每个文件在编译它的线程里打开，
+     * 同时在内存里的只有正在编译的那几个脚本。
+     * @param files
+     * @return 每个脚本的编译结果，顺序跟files一样。读不了的文件，编译结果里记录一个错误
+     */
+    public static List<AnnotatedTree> compileFiles(List<Path> files) {
+        return ForkJoinPool.commonPool().submit(() -> files.parallelStream()
+                .map(PlayScriptCompiler::compileFileQuietly)
+                .collect(Collectors.toList())).join();
+    }
+
+    private static AnnotatedTree compileFileQuietly(Path file) {
+        CharStream input;
+        try {
+            input = openScript(file);
+        } catch (IOException e) {
+            AnnotatedTree at = new AnnotatedTree();
+            at.printLogs = false;
+            at.log("unable to read from : " + file, CompilationLog.ERROR, 0, 0);
+            return at;
+        }
+        return compileQuietly(input);
+    }
+
+    /**
+     * 打开脚本文件，作为词法分析器的输入。
+     * 文件按UTF-8一边读一边解码，直接放进字符流的缓冲区，只解码一次，也不会生成String等中间结果。
+     * 缓冲区按照脚本里最大的字符选用byte、char或int数组，纯ASCII的脚本占用的内存跟文件一样大。
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static CharStream openScript(Path file) throws IOException {
+        return CharStreams.fromPath(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * REPL的增量编译：只编译新输入的一段脚本。新声明的符号加入原来的全局命名空间，标注也放在原来的AnnotatedTree里。
+     * 第一次调用时创建AnnotatedTree。
+     * 如果有编译错误，就撤销这段脚本声明的全局符号，就像没有输入过一样。
+     * @param script 新输入的脚本
+     * @param verbose
+     * @param ast_dump
+     * @return 原来的AnnotatedTree，at.ast是新脚本的AST，at.logs里只有新脚本的编译信息
+     */
+    public AnnotatedTree compileIncrementally(String script, boolean verbose, boolean ast_dump) {
+        if (at == null || at.nameSpace == null) {
+            at = new AnnotatedTree();
+        }
+        at.logs.clear();
+
+        //词法分析
+        lexer = new PlayScriptLexer(CharStreams.fromString(script));
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        //语法分析，节点的编号接着上一次的
+        parser = new PlayScriptParser(tokens);
+        int firstNode = at.nodeCount;
+        parser.setNodeCount(firstNode);
+        at.ast = parse(parser);
+        at.nodeCount = parser.getNodeCount();
+
+        //语义分析，只遍历新的AST
+        int firstSymbol = at.nameSpace == null ? 0 : at.nameSpace.symbols.size();
+        int firstType = at.types.size();
+        resolve(at);
+
+        if (at.hasCompilationError()) {
+            at.nameSpace.truncateSymbols(firstSymbol);
+            at.types.subList(firstType, at.types.size()).clear();
+            return at;
+        }
+
+        new ClosureAnalyzer(at).analyzeClosures(firstNode);
+        new SlotResolver(at).resolveSlots(firstSymbol, firstNode);
+        new ConstantFolder(at).fold(firstNode);
 
         //打印AST
         if (verbose || ast_dump){
@@ -66,8 +237,131 @@ public class PlayScriptCompiler {
         return at;
     }
 
-    public AnnotatedTree compile(String script) {
-        return  compile(script,false, false);
+    /**
+     * 两阶段的语法分析。
+     * 第一阶段用SLL模式做预测，遇到语法错误马上放弃。SLL不考虑完整的调用上下文，预测更快，DFA缓存也更容易命中，
+     * 对于没有语法错误的脚本，几乎总能成功，得到的AST跟LL模式一样。
+     * 第一阶段失败了，再从头用完整的LL模式和缺省的错误处理重新分析一遍，所以语法错误的报告和错误恢复跟原来一样。
+     * @param parser 刚创建的语法分析器，错误监听器和节点的起始编号已经设置好
+     * @return
+     */
+    public static PlayScriptParser.ProgContext parse(PlayScriptParser parser) {
+        int firstNode = parser.getNodeCount();
+        List<ANTLRErrorListener> listeners = new ArrayList<>(parser.getErrorListeners());
+
+        //第一阶段：SLL，出错就抛出异常，不报告、不恢复
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.prog();
+        } catch (ParseCancellationException e) {
+            //第二阶段：回到第一个Token，用LL模式重新分析
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            for (ANTLRErrorListener listener : listeners) {
+                parser.addErrorListener(listener);
+            }
+            parser.reset();
+            parser.setNodeCount(firstNode);
+            return parser.prog();
+        }
+    }
+
+    /**
+     * 预热语法分析器的预测缓存。
+     * ANTLR在语法分析过程中把ATN的预测结果缓存成DFA，生成的PlayScriptParser把DFA放在静态字段里，
+     * 在整个进程里一直保留，所有的PlayScriptParser实例和线程共用。服务启动时先分析一些典型的脚本，
+     * 后面编译真正的脚本时，大部分预测都能直接在DFA里找到，不需要再模拟ATN。
+     * 只做语法分析，不做语义分析，脚本里的语法错误也不报告。
+     * @param scripts 典型的脚本
+     */
+    public static void warmUp(List<String> scripts) {
+        for (String script : scripts) {
+            PlayScriptLexer lexer = new PlayScriptLexer(CharStreams.fromString(script));
+            lexer.removeErrorListeners();
+            PlayScriptParser parser = new PlayScriptParser(new CommonTokenStream(lexer));
+            parser.removeErrorListeners();
+            parse(parser);
+        }
+    }
+
+    /**
+     * 用内置的脚本预热语法分析器的预测缓存，脚本覆盖了常用的语法。
+     */
+    public static void warmUp() {
+        List<String> scripts = new ArrayList<>();
+        scripts.add(WARM_UP_SCRIPT);
+        warmUp(scripts);
+    }
+
+    //预热用的脚本
+    private static final String WARM_UP_SCRIPT =
+            "int a = 1; float f = 2.5; string s = \"s\" + a; boolean b = a > 0 && !(f <= 1.0) || a != 2;\n" +
+            "int[] arr; a += 2; a = a * (3 - a) / 4 % 5; a++; --a; a = b ? -a : +a; a = a << 1 >> 1 & 7 | 8 ^ 9;\n" +
+            "int add(int x, int y) { return x + y; }\n" +
+            "void noop() { return; }\n" +
+            "function int(int, int) op = add; op(1, 2);\n" +
+            "function int() counter() { int n = 0; int inc() { n = n + 1; return n; } return inc; }\n" +
+            "class Animal { int legs = 4; Animal() { legs = 4; } int getLegs() { return legs; } void speak() { println(\"...\"); } }\n" +
+            "class Dog extends Animal { Dog() { super(); } void speak() { println(\"wow \" + this.getLegs()); } }\n" +
+            "Animal d = Dog(); d.speak(); println(d.legs);\n" +
+            "for (int i = 0; i < 10; i++) { if (i == 3) { continue; } else if (i > 8) { break; } else { a = a + i; } }\n" +
+            "while (a > 0) { a = a - 1; }\n" +
+            "do { a++; } while (a < 3);\n" +
+            "{ int c = a; c = null == null ? c : 0; }\n" +
+            "println(add(a, 2)); println();\n";
+
+    /**
+     * 对at.ast做语义分析，结果标注在at上。
+     * @param at
+     */
+    public static void analyze(AnnotatedTree at) {
+        resolve(at);
+
+        //pass4：做闭包的分析
+        ClosureAnalyzer closureAnalyzer = new ClosureAnalyzer(at);
+        closureAnalyzer.analyzeClosures();
+
+        //pass5：给变量分配栈桢中的槽位，并计算变量引用的地址
+        SlotResolver slotResolver = new SlotResolver(at);
+        slotResolver.resolveSlots();
+
+        //pass6：常量折叠和常量传播，后端据此去掉不会执行的分支
+        ConstantFolder constantFolder = new ConstantFolder(at);
+        constantFolder.fold();
+    }
+
+    /**
+     * 语义分析中遍历AST的部分：建立Scope、消解类型和引用、类型检查和其他语义检查。
+     * 多步的语义解析。
+     * 优点：1.代码更清晰；2.允许使用在声明之前，这在支持面向对象、递归函数等特征时是必须的。
+     * 前两步必须各自遍历整棵树，因为后面的步骤要用到所有的声明，包括在后面才声明的类和函数。
+     * 引用消解、类型检查和其他语义检查只依赖当前节点和子节点上的结果，所以合并成一次遍历。
+     * 合并以后编译信息仍然按这三步的顺序记录。
+     * @param at
+     */
+    public static void resolve(AnnotatedTree at) {
+        ParseTreeWalker walker = new ParseTreeWalker();
+
+        //pass1：类型和Scope
+        TypeAndScopeScanner pass1 = new TypeAndScopeScanner(at);
+        walker.walk(pass1,at.ast);
+
+        //pass2：把变量、类继承、函数声明的类型都解析出来。也就是所有声明时用到类型的地方。
+        TypeResolver pass2 = new TypeResolver(at);
+        walker.walk(pass2,at.ast);
+
+        //pass3：消解有的变量应用、函数引用，另外还做了类型的推断；同时做类型检查和其他语义检查。
+        RefResolver refResolver = new RefResolver(at);
+        TypeChecker typeChecker = new TypeChecker(at);
+        SematicValidator sematicValidator = new SematicValidator(at);
+        FusedListener fused = new FusedListener(at, refResolver, typeChecker, sematicValidator);
+        try {
+            walker.walk(fused, at.ast);
+        } finally {
+            fused.flushLogs();
+        }
     }
 
     /**
@@ -100,8 +394,107 @@ public class PlayScriptCompiler {
     }
 
     public Object Execute(AnnotatedTree at) {
+        return Execute(at, null);
+    }
+
+    /**
+     * 解释执行。启用分层执行的时候，热点函数由TieredCompiler编译成JVM字节码，以后直接执行编译结果。
+     * @param at
+     * @param tiered 可以为null，表示不启用分层执行
+     * @return
+     */
+    public Object Execute(AnnotatedTree at, TieredCompiler tiered) {
+        //先尝试编译成可执行的节点树。遇到节点树还不支持的特性，再用ASTEvaluator解释执行。
+        Nodes.ProgramNode program = null;
+        try {
+            program = new NodeCompiler(at, tiered).compile();
+        } catch (UnsupportedOperationException e) {
+            program = null;
+        }
+        if (program != null) {
+            return program.run();
+        }
+
         ASTEvaluator visitor = new ASTEvaluator(at);
+        visitor.tiered = tiered;
         Object result = visitor.visit(at.ast);
         return result;
     }
+
+    //REPL里用的解释器，全局变量的栈桢一直保留着
+    private ASTEvaluator replEvaluator = null;
+
+    /**
+     * 执行compileIncrementally()编译出来的一段脚本。
+     * 用同一个ASTEvaluator执行，所以以前的全局变量、函数和类都可以使用，以前的语句不会再执行一遍。
+     * @param at
+     * @return 最后一个语句的值
+     */
+    public Object ExecuteIncrementally(AnnotatedTree at) {
+        if (replEvaluator == null) {
+            replEvaluator = new ASTEvaluator(at);
+        }
+        return replEvaluator.evaluateIncrementally((PlayScriptParser.ProgContext) at.ast);
+    }
+
+    /**
+     * 用ASTEvaluator执行，同时做性能剖析。不用节点树，因为剖析器要在ASTEvaluator的函数调用里记录数据。
+     * @param at
+     * @param profiler 执行完以后，从这里获取剖析结果
+     * @return
+     */
+    public Object Profile(AnnotatedTree at, Profiler profiler) {
+        ASTEvaluator visitor = new ASTEvaluator(at);
+        visitor.profiler = profiler;
+        profiler.start();
+        try {
+            return visitor.visit(at.ast);
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    /**
+     * 编译成字节码，用VM执行。遇到VM还不支持的特性，仍然用Execute()执行。
+     * @param at
+     * @param verbose 是否打印生成的指令
+     * @return
+     */
+    public Object ExecuteOnVM(AnnotatedTree at, boolean verbose) {
+        VMProgram program = compileForVM(at);
+        if (program == null) {
+            return Execute(at);
+        }
+
+        if (verbose) {
+            System.out.println(program.dump());
+        }
+        return new VM(program).run();
+    }
+
+    /**
+     * 编译成VM的字节码
+     * @param at
+     * @return 遇到VM还不支持的特性，返回null
+     */
+    public VMProgram compileForVM(AnnotatedTree at) {
+        try {
+            return new VMCompiler(at).compile();
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 编译成Java字节码，也就是DefaultPlayClass.class，以及脚本里的类对应的.class的内容
+     * @param at
+     * @return 类的内部名称到.class内容的映射。遇到ByteCodeGen还不支持的特性，返回null
+     */
+    public Map<String, byte[]> compileToByteCode(AnnotatedTree at) {
+        try {
+            return new ByteCodeGen(at).generate();
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
 }
\ No newline at end of file
@@ -156,12 +156,44 @@ public class PlayScriptParser extends Parser {
 	@Override
 	public ATN getATN() { return _ATN; }
 
+
+	    //????????????????????????AST??????????????????????????????AnnotatedTree????????????????????????????????????????????????
+	    private int nodeCount = 0;
+
+	    //????????????????????????AST??????
+	    public int getNodeCount() {
+	        return nodeCount;
+	    }
+
+	    //???????????????????????????????????????REPL??????????????????????????????????????????AnnotatedTree?????????????????????????????????
+	    public void setNodeCount(int nodeCount) {
+	        this.nodeCount = nodeCount;
+	    }
+
+	    @Override
+	    public void enterRule(ParserRuleContext localctx, int state, int ruleIndex) {
+	        ((PlayContext) localctx).id = nodeCount++;
+	        super.enterRule(localctx, state, ruleIndex);
+	    }
+
+	    @Override
+	    public void enterRecursionRule(ParserRuleContext localctx, int state, int ruleIndex, int precedence) {
+	        ((PlayContext) localctx).id = nodeCount++;
+	        super.enterRecursionRule(localctx, state, ruleIndex, precedence);
+	    }
+
+	    @Override
+	    public void pushNewRecursionContext(ParserRuleContext localctx, int state, int ruleIndex) {
+	        ((PlayContext) localctx).id = nodeCount++;
+	        super.pushNewRecursionContext(localctx, state, ruleIndex);
+	    }
+
 	public PlayScriptParser(TokenStream input) {
 		super(input);
 		_interp = new ParserATNSimulator(this,_ATN,_decisionToDFA,_sharedContextCache);
 	}
 
-	public static class ClassDeclarationContext extends ParserRuleContext {
+	public static class ClassDeclarationContext extends PlayContext {
 		public TerminalNode CLASS() { return getToken(PlayScriptParser.CLASS, 0); }
 		public TerminalNode IDENTIFIER() { return getToken(PlayScriptParser.IDENTIFIER, 0); }
 		public ClassBodyContext classBody() {
@@ -244,7 +276,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ClassBodyContext extends ParserRuleContext {
+	public static class ClassBodyContext extends PlayContext {
 		public TerminalNode LBRACE() { return getToken(PlayScriptParser.LBRACE, 0); }
 		public TerminalNode RBRACE() { return getToken(PlayScriptParser.RBRACE, 0); }
 		public List<ClassBodyDeclarationContext> classBodyDeclaration() {
@@ -310,7 +342,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ClassBodyDeclarationContext extends ParserRuleContext {
+	public static class ClassBodyDeclarationContext extends PlayContext {
 		public TerminalNode SEMI() { return getToken(PlayScriptParser.SEMI, 0); }
 		public MemberDeclarationContext memberDeclaration() {
 			return getRuleContext(MemberDeclarationContext.class,0);
@@ -382,7 +414,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class MemberDeclarationContext extends ParserRuleContext {
+	public static class MemberDeclarationContext extends PlayContext {
 		public FunctionDeclarationContext functionDeclaration() {
 			return getRuleContext(FunctionDeclarationContext.class,0);
 		}
@@ -452,7 +484,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FunctionDeclarationContext extends ParserRuleContext {
+	public static class FunctionDeclarationContext extends PlayContext {
 		public TerminalNode IDENTIFIER() { return getToken(PlayScriptParser.IDENTIFIER, 0); }
 		public FormalParametersContext formalParameters() {
 			return getRuleContext(FormalParametersContext.class,0);
@@ -558,7 +590,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FunctionBodyContext extends ParserRuleContext {
+	public static class FunctionBodyContext extends PlayContext {
 		public BlockContext block() {
 			return getRuleContext(BlockContext.class,0);
 		}
@@ -618,7 +650,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class TypeTypeOrVoidContext extends ParserRuleContext {
+	public static class TypeTypeOrVoidContext extends PlayContext {
 		public TypeTypeContext typeType() {
 			return getRuleContext(TypeTypeContext.class,0);
 		}
@@ -688,7 +720,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class QualifiedNameListContext extends ParserRuleContext {
+	public static class QualifiedNameListContext extends PlayContext {
 		public List<QualifiedNameContext> qualifiedName() {
 			return getRuleContexts(QualifiedNameContext.class);
 		}
@@ -756,7 +788,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FormalParametersContext extends ParserRuleContext {
+	public static class FormalParametersContext extends PlayContext {
 		public TerminalNode LPAREN() { return getToken(PlayScriptParser.LPAREN, 0); }
 		public TerminalNode RPAREN() { return getToken(PlayScriptParser.RPAREN, 0); }
 		public FormalParameterListContext formalParameterList() {
@@ -815,7 +847,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FormalParameterListContext extends ParserRuleContext {
+	public static class FormalParameterListContext extends PlayContext {
 		public List<FormalParameterContext> formalParameter() {
 			return getRuleContexts(FormalParameterContext.class);
 		}
@@ -914,7 +946,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FormalParameterContext extends ParserRuleContext {
+	public static class FormalParameterContext extends PlayContext {
 		public TypeTypeContext typeType() {
 			return getRuleContext(TypeTypeContext.class,0);
 		}
@@ -984,7 +1016,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class LastFormalParameterContext extends ParserRuleContext {
+	public static class LastFormalParameterContext extends PlayContext {
 		public TypeTypeContext typeType() {
 			return getRuleContext(TypeTypeContext.class,0);
 		}
@@ -1057,7 +1089,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class VariableModifierContext extends ParserRuleContext {
+	public static class VariableModifierContext extends PlayContext {
 		public TerminalNode FINAL() { return getToken(PlayScriptParser.FINAL, 0); }
 		public VariableModifierContext(ParserRuleContext parent, int invokingState) {
 			super(parent, invokingState);
@@ -1099,7 +1131,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class QualifiedNameContext extends ParserRuleContext {
+	public static class QualifiedNameContext extends PlayContext {
 		public List<TerminalNode> IDENTIFIER() { return getTokens(PlayScriptParser.IDENTIFIER); }
 		public TerminalNode IDENTIFIER(int i) {
 			return getToken(PlayScriptParser.IDENTIFIER, i);
@@ -1165,7 +1197,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FieldDeclarationContext extends ParserRuleContext {
+	public static class FieldDeclarationContext extends PlayContext {
 		public VariableDeclaratorsContext variableDeclarators() {
 			return getRuleContext(VariableDeclaratorsContext.class,0);
 		}
@@ -1212,7 +1244,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ConstructorDeclarationContext extends ParserRuleContext {
+	public static class ConstructorDeclarationContext extends PlayContext {
 		public BlockContext constructorBody;
 		public TerminalNode IDENTIFIER() { return getToken(PlayScriptParser.IDENTIFIER, 0); }
 		public FormalParametersContext formalParameters() {
@@ -1282,7 +1314,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class VariableDeclaratorsContext extends ParserRuleContext {
+	public static class VariableDeclaratorsContext extends PlayContext {
 		public TypeTypeContext typeType() {
 			return getRuleContext(TypeTypeContext.class,0);
 		}
@@ -1355,7 +1387,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class VariableDeclaratorContext extends ParserRuleContext {
+	public static class VariableDeclaratorContext extends PlayContext {
 		public VariableDeclaratorIdContext variableDeclaratorId() {
 			return getRuleContext(VariableDeclaratorIdContext.class,0);
 		}
@@ -1416,7 +1448,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class VariableDeclaratorIdContext extends ParserRuleContext {
+	public static class VariableDeclaratorIdContext extends PlayContext {
 		public TerminalNode IDENTIFIER() { return getToken(PlayScriptParser.IDENTIFIER, 0); }
 		public List<TerminalNode> LBRACK() { return getTokens(PlayScriptParser.LBRACK); }
 		public TerminalNode LBRACK(int i) {
@@ -1483,7 +1515,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class VariableInitializerContext extends ParserRuleContext {
+	public static class VariableInitializerContext extends PlayContext {
 		public ArrayInitializerContext arrayInitializer() {
 			return getRuleContext(ArrayInitializerContext.class,0);
 		}
@@ -1564,7 +1596,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ArrayInitializerContext extends ParserRuleContext {
+	public static class ArrayInitializerContext extends PlayContext {
 		public TerminalNode LBRACE() { return getToken(PlayScriptParser.LBRACE, 0); }
 		public TerminalNode RBRACE() { return getToken(PlayScriptParser.RBRACE, 0); }
 		public List<VariableInitializerContext> variableInitializer() {
@@ -1659,7 +1691,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ClassOrInterfaceTypeContext extends ParserRuleContext {
+	public static class ClassOrInterfaceTypeContext extends PlayContext {
 		public List<TerminalNode> IDENTIFIER() { return getTokens(PlayScriptParser.IDENTIFIER); }
 		public TerminalNode IDENTIFIER(int i) {
 			return getToken(PlayScriptParser.IDENTIFIER, i);
@@ -1727,7 +1759,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class TypeArgumentContext extends ParserRuleContext {
+	public static class TypeArgumentContext extends PlayContext {
 		public TypeTypeContext typeType() {
 			return getRuleContext(TypeTypeContext.class,0);
 		}
@@ -1820,7 +1852,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class LiteralContext extends ParserRuleContext {
+	public static class LiteralContext extends PlayContext {
 		public IntegerLiteralContext integerLiteral() {
 			return getRuleContext(IntegerLiteralContext.class,0);
 		}
@@ -1918,7 +1950,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class IntegerLiteralContext extends ParserRuleContext {
+	public static class IntegerLiteralContext extends PlayContext {
 		public TerminalNode DECIMAL_LITERAL() { return getToken(PlayScriptParser.DECIMAL_LITERAL, 0); }
 		public TerminalNode HEX_LITERAL() { return getToken(PlayScriptParser.HEX_LITERAL, 0); }
 		public TerminalNode OCT_LITERAL() { return getToken(PlayScriptParser.OCT_LITERAL, 0); }
@@ -1972,7 +2004,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FloatLiteralContext extends ParserRuleContext {
+	public static class FloatLiteralContext extends PlayContext {
 		public TerminalNode FLOAT_LITERAL() { return getToken(PlayScriptParser.FLOAT_LITERAL, 0); }
 		public TerminalNode HEX_FLOAT_LITERAL() { return getToken(PlayScriptParser.HEX_FLOAT_LITERAL, 0); }
 		public FloatLiteralContext(ParserRuleContext parent, int invokingState) {
@@ -2024,7 +2056,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ProgContext extends ParserRuleContext {
+	public static class ProgContext extends PlayContext {
 		public BlockStatementsContext blockStatements() {
 			return getRuleContext(BlockStatementsContext.class,0);
 		}
@@ -2068,7 +2100,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class BlockContext extends ParserRuleContext {
+	public static class BlockContext extends PlayContext {
 		public TerminalNode LBRACE() { return getToken(PlayScriptParser.LBRACE, 0); }
 		public BlockStatementsContext blockStatements() {
 			return getRuleContext(BlockStatementsContext.class,0);
@@ -2118,7 +2150,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class BlockStatementsContext extends ParserRuleContext {
+	public static class BlockStatementsContext extends PlayContext {
 		public List<BlockStatementContext> blockStatement() {
 			return getRuleContexts(BlockStatementContext.class);
 		}
@@ -2178,7 +2210,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class BlockStatementContext extends ParserRuleContext {
+	public static class BlockStatementContext extends PlayContext {
 		public VariableDeclaratorsContext variableDeclarators() {
 			return getRuleContext(VariableDeclaratorsContext.class,0);
 		}
@@ -2261,7 +2293,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class StatementContext extends ParserRuleContext {
+	public static class StatementContext extends PlayContext {
 		public BlockContext blockLabel;
 		public ExpressionContext statementExpression;
 		public Token identifierLabel;
@@ -2550,7 +2582,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class SwitchBlockStatementGroupContext extends ParserRuleContext {
+	public static class SwitchBlockStatementGroupContext extends PlayContext {
 		public List<SwitchLabelContext> switchLabel() {
 			return getRuleContexts(SwitchLabelContext.class);
 		}
@@ -2630,7 +2662,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class SwitchLabelContext extends ParserRuleContext {
+	public static class SwitchLabelContext extends PlayContext {
 		public ExpressionContext constantExpression;
 		public Token enumConstantName;
 		public TerminalNode CASE() { return getToken(PlayScriptParser.CASE, 0); }
@@ -2715,7 +2747,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ForControlContext extends ParserRuleContext {
+	public static class ForControlContext extends PlayContext {
 		public ExpressionListContext forUpdate;
 		public EnhancedForControlContext enhancedForControl() {
 			return getRuleContext(EnhancedForControlContext.class,0);
@@ -2819,7 +2851,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ForInitContext extends ParserRuleContext {
+	public static class ForInitContext extends PlayContext {
 		public VariableDeclaratorsContext variableDeclarators() {
 			return getRuleContext(VariableDeclaratorsContext.class,0);
 		}
@@ -2879,7 +2911,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class EnhancedForControlContext extends ParserRuleContext {
+	public static class EnhancedForControlContext extends PlayContext {
 		public TypeTypeContext typeType() {
 			return getRuleContext(TypeTypeContext.class,0);
 		}
@@ -2936,7 +2968,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ParExpressionContext extends ParserRuleContext {
+	public static class ParExpressionContext extends PlayContext {
 		public TerminalNode LPAREN() { return getToken(PlayScriptParser.LPAREN, 0); }
 		public ExpressionContext expression() {
 			return getRuleContext(ExpressionContext.class,0);
@@ -2986,7 +3018,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ExpressionListContext extends ParserRuleContext {
+	public static class ExpressionListContext extends PlayContext {
 		public List<ExpressionContext> expression() {
 			return getRuleContexts(ExpressionContext.class);
 		}
@@ -3054,7 +3086,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FunctionCallContext extends ParserRuleContext {
+	public static class FunctionCallContext extends PlayContext {
 		public TerminalNode IDENTIFIER() { return getToken(PlayScriptParser.IDENTIFIER, 0); }
 		public TerminalNode LPAREN() { return getToken(PlayScriptParser.LPAREN, 0); }
 		public TerminalNode RPAREN() { return getToken(PlayScriptParser.RPAREN, 0); }
@@ -3168,7 +3200,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ExpressionContext extends ParserRuleContext {
+	public static class ExpressionContext extends PlayContext {
 		public Token prefix;
 		public Token bop;
 		public Token postfix;
@@ -3648,7 +3680,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class PrimaryContext extends ParserRuleContext {
+	public static class PrimaryContext extends PlayContext {
 		public TerminalNode LPAREN() { return getToken(PlayScriptParser.LPAREN, 0); }
 		public ExpressionContext expression() {
 			return getRuleContext(ExpressionContext.class,0);
@@ -3749,7 +3781,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class TypeListContext extends ParserRuleContext {
+	public static class TypeListContext extends PlayContext {
 		public List<TypeTypeContext> typeType() {
 			return getRuleContexts(TypeTypeContext.class);
 		}
@@ -3817,7 +3849,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class TypeTypeContext extends ParserRuleContext {
+	public static class TypeTypeContext extends PlayContext {
 		public ClassOrInterfaceTypeContext classOrInterfaceType() {
 			return getRuleContext(ClassOrInterfaceTypeContext.class,0);
 		}
@@ -3924,7 +3956,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class FunctionTypeContext extends ParserRuleContext {
+	public static class FunctionTypeContext extends PlayContext {
 		public TerminalNode FUNCTION() { return getToken(PlayScriptParser.FUNCTION, 0); }
 		public TypeTypeOrVoidContext typeTypeOrVoid() {
 			return getRuleContext(TypeTypeOrVoidContext.class,0);
@@ -3991,7 +4023,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class PrimitiveTypeContext extends ParserRuleContext {
+	public static class PrimitiveTypeContext extends PlayContext {
 		public TerminalNode BOOLEAN() { return getToken(PlayScriptParser.BOOLEAN, 0); }
 		public TerminalNode CHAR() { return getToken(PlayScriptParser.CHAR, 0); }
 		public TerminalNode BYTE() { return getToken(PlayScriptParser.BYTE, 0); }
@@ -4050,7 +4082,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class CreatorContext extends ParserRuleContext {
+	public static class CreatorContext extends PlayContext {
 		public TerminalNode IDENTIFIER() { return getToken(PlayScriptParser.IDENTIFIER, 0); }
 		public ArgumentsContext arguments() {
 			return getRuleContext(ArgumentsContext.class,0);
@@ -4097,7 +4129,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class SuperSuffixContext extends ParserRuleContext {
+	public static class SuperSuffixContext extends PlayContext {
 		public ArgumentsContext arguments() {
 			return getRuleContext(ArgumentsContext.class,0);
 		}
@@ -4171,7 +4203,7 @@ public class PlayScriptParser extends Parser {
 		return _localctx;
 	}
 
-	public static class ArgumentsContext extends ParserRuleContext {
+	public static class ArgumentsContext extends PlayContext {
 		public TerminalNode LPAREN() { return getToken(PlayScriptParser.LPAREN, 0); }
 		public TerminalNode RPAREN() { return getToken(PlayScriptParser.RPAREN, 0); }
 		public ExpressionListContext expressionList() {
@@ -0,0 +1,270 @@
+package play;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 性能剖析器，用-prof参数启用。ASTEvaluator在进入和退出函数、创建对象和函数值的时候通知它。
+ *
+ * 它同时做两件事：
+ * 1.跟踪(tracing)：精确记录每个函数的调用次数、包含子函数的时间、不包含子函数的时间，以及分配的对象数。
+ * 2.采样(sampling)：一个后台线程每隔一段时间记下当前的调用路径，输出成火焰图工具能读的collapsed stacks格式，
+ *   每行是"main;f;g 采样次数"。
+ *
+ * 调用路径保存在一棵调用树上，解释器只改变current指向的节点，采样线程只读节点上不变的function和parent，
+ * 所以两个线程之间不需要加锁。
+ */
+public class Profiler {
+
+    //调用树的节点，对应一条调用路径
+    private static class CallNode {
+        private final Function function;
+        private final CallNode parent;
+        //只由解释器线程访问
+        private Map<Function, CallNode> children = new HashMap<>();
+
+        private CallNode(Function function, CallNode parent) {
+            this.function = function;
+            this.parent = parent;
+        }
+
+        private CallNode child(Function function) {
+            CallNode node = children.get(function);
+            if (node == null) {
+                node = new CallNode(function, this);
+                children.put(function, node);
+            }
+            return node;
+        }
+    }
+
+    //一个函数的统计数据。全局代码用function为null的一项来记录
+    private static class FunctionStats {
+        private final Function function;
+        private long calls = 0;
+        private long inclusive = 0;     //纳秒，递归调用只算最外层的那一次
+        private long exclusive = 0;     //纳秒
+        private long allocations = 0;
+        private long samples = 0;
+        //正在执行的调用有几层，用于处理递归
+        private int active = 0;
+
+        private FunctionStats(Function function) {
+            this.function = function;
+        }
+    }
+
+    //采样间隔，毫秒
+    private final int interval;
+
+    private final CallNode root = new CallNode(null, null);
+
+    //当前的调用路径，采样线程会读取它
+    private volatile CallNode current = root;
+
+    private Map<Function, FunctionStats> stats = new LinkedHashMap<>();
+
+    //每一层调用的统计数据、开始时间和子函数花掉的时间
+    private FunctionStats[] entries = new FunctionStats[64];
+    private long[] starts = new long[64];
+    private long[] childTimes = new long[64];
+    private int depth = 0;
+
+    //只由采样线程写入，stop()等采样线程结束以后再读
+    private Map<CallNode, Long> samples = new HashMap<>();
+    private Thread sampler = null;
+    private volatile boolean running = false;
+
+    private long startTime = 0;
+    private long totalTime = 0;
+
+    public Profiler() {
+        this(1);
+    }
+
+    /**
+     * @param interval 采样间隔，毫秒
+     */
+    public Profiler(int interval) {
+        this.interval = interval;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 由解释器调用
+
+    public void start() {
+        startTime = System.nanoTime();
+        entries[0] = statsOf(null);
+        entries[0].calls = 1;
+        entries[0].active = 1;
+        starts[0] = startTime;
+        childTimes[0] = 0;
+        depth = 1;
+
+        running = true;
+        sampler = new Thread(this::sample, "PlayScript profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void stop() {
+        long now = System.nanoTime();
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        //脚本出错的时候，可能还有没退出的函数
+        while (depth > 1) {
+            exit(now);
+        }
+        FunctionStats main = entries[0];
+        main.inclusive = now - startTime;
+        main.exclusive += now - startTime - childTimes[0];
+        depth = 0;
+        totalTime = now - startTime;
+
+        for (Map.Entry<CallNode, Long> entry : samples.entrySet()) {
+            statsOf(entry.getKey().function).samples += entry.getValue();
+        }
+    }
+
+    public void enter(Function function) {
+        if (depth == starts.length) {
+            entries = Arrays.copyOf(entries, depth * 2);
+            starts = Arrays.copyOf(starts, depth * 2);
+            childTimes = Arrays.copyOf(childTimes, depth * 2);
+        }
+        FunctionStats s = statsOf(function);
+        s.calls++;
+        s.active++;
+        entries[depth] = s;
+        childTimes[depth] = 0;
+        current = current.child(function);
+        starts[depth] = System.nanoTime();
+        depth++;
+    }
+
+    public void exit() {
+        exit(System.nanoTime());
+    }
+
+    private void exit(long now) {
+        depth--;
+        FunctionStats s = entries[depth];
+        entries[depth] = null;
+        long elapsed = now - starts[depth];
+        s.exclusive += elapsed - childTimes[depth];
+        if (--s.active == 0) {
+            s.inclusive += elapsed;
+        }
+        childTimes[depth - 1] += elapsed;
+        current = current.parent;
+    }
+
+    /**
+     * 记录一次分配，算在当前函数头上
+     */
+    public void allocate() {
+        entries[depth - 1].allocations++;
+    }
+
+    private FunctionStats statsOf(Function function) {
+        FunctionStats s = stats.get(function);
+        if (s == null) {
+            s = new FunctionStats(function);
+            stats.put(function, s);
+        }
+        return s;
+    }
+
+    //采样线程
+    private void sample() {
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            CallNode node = current;
+            Long count = samples.get(node);
+            samples.put(node, count == null ? 1 : count + 1);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 输出结果
+
+    /**
+     * 打印统计摘要，按不包含子函数的时间从多到少排列
+     */
+    public void printSummary(PrintStream out) {
+        List<FunctionStats> list = new ArrayList<>(stats.values());
+        list.sort((a, b) -> Long.compare(b.exclusive, a.exclusive));
+
+        long totalSamples = 0;
+        long totalAllocations = 0;
+        for (FunctionStats s : list) {
+            totalSamples += s.samples;
+            totalAllocations += s.allocations;
+        }
+
+        out.println("\nProfile ---------------------");
+        out.println(String.format("total time: %.3f ms, samples: %d (every %d ms), allocations: %d",
+                millis(totalTime), totalSamples, interval, totalAllocations));
+        out.println();
+        out.println(String.format("%-24s %10s %14s %14s %12s %8s",
+                "function", "calls", "inclusive(ms)", "exclusive(ms)", "allocations", "samples"));
+        for (FunctionStats s : list) {
+            out.println(String.format("%-24s %10d %14.3f %14.3f %12d %8d",
+                    nameOf(s.function), s.calls, millis(s.inclusive), millis(s.exclusive), s.allocations, s.samples));
+        }
+        out.println("-----------------------------");
+    }
+
+    /**
+     * 输出collapsed stacks，可以直接交给flamegraph.pl之类的工具生成火焰图
+     */
+    public void printCollapsedStacks(PrintStream out) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<CallNode, Long> entry : samples.entrySet()) {
+            lines.add(pathOf(entry.getKey()) + " " + entry.getValue());
+        }
+        lines.sort(null);
+        for (String line : lines) {
+            out.println(line);
+        }
+    }
+
+    private static String pathOf(CallNode node) {
+        if (node.parent == null) {
+            return nameOf(null);
+        }
+        return pathOf(node.parent) + ";" + nameOf(node.function);
+    }
+
+    //前面加上外层的类名和函数名，比如Mammal.speak，全局代码叫做main
+    private static String nameOf(Function function) {
+        if (function == null) {
+            return "main";
+        }
+        String name = function.name;
+        for (Scope scope = function.enclosingScope; scope != null; scope = scope.enclosingScope) {
+            if (scope instanceof Class || scope instanceof Function) {
+                name = scope.name + "." + name;
+            }
+        }
+        return name;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -1,11 +1,20 @@
 package play;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class Scope extends Symbol{
-    // 该Scope中的成员，包括变量、方法、类等。
-    protected List<Symbol> symbols = new LinkedList<Symbol>();
+    // 该Scope中的成员，包括变量、方法、类等，按声明的顺序排列。
+    protected List<Symbol> symbols = new ArrayList<Symbol>();
+
+    // 按名称索引的成员。同名的成员（比如重载的函数）放在同一个列表里，也按声明的顺序排列。
+    private Map<String, List<Symbol>> symbolsByName = new HashMap<String, List<Symbol>>();
+
+    // 该Scope对应的栈桢（或对象）需要多少个槽位来存放变量，由SlotResolver计算。
+    protected int frameSize = 0;
 
     /**
      * 向scope中添加符号，同时设置好该符号的enclosingScope
@@ -13,9 +22,40 @@ public abstract class Scope extends Symbol{
      */
     protected void addSymbol(Symbol symbol){
         symbols.add(symbol);
+        List<Symbol> named = symbolsByName.get(symbol.name);
+        if (named == null){
+            named = new ArrayList<Symbol>(1);
+            symbolsByName.put(symbol.name, named);
+        }
+        named.add(symbol);
         symbol.enclosingScope = this;
     }
 
+    /**
+     * 删除在第size个以后加入的成员。REPL里用来撤销一段有编译错误的脚本所声明的符号
+     * @param size
+     */
+    protected void truncateSymbols(int size){
+        while (symbols.size() > size){
+            Symbol symbol = symbols.remove(symbols.size() - 1);
+            List<Symbol> named = symbolsByName.get(symbol.name);
+            named.remove(named.size() - 1);
+            if (named.isEmpty()){
+                symbolsByName.remove(symbol.name);
+            }
+        }
+    }
+
+    /**
+     * 该Scope中叫这个名字的所有成员，不包括上级Scope
+     * @param name
+     * @return
+     */
+    protected List<Symbol> getSymbols(String name){
+        List<Symbol> named = symbolsByName.get(name);
+        return named == null ? Collections.<Symbol>emptyList() : named;
+    }
+
     /**
      * 是否包含某个Variable
      * @param name
@@ -26,8 +66,8 @@ public abstract class Scope extends Symbol{
     }
 
     protected static Variable getVariable(Scope scope, String name){
-        for (Symbol s : scope.symbols) {
-            if (s instanceof Variable && s.name.equals(name)){
+        for (Symbol s : scope.getSymbols(name)) {
+            if (s instanceof Variable){
                 return (Variable) s;
             }
         }
@@ -53,8 +93,8 @@ public abstract class Scope extends Symbol{
      */
     protected static Function getFunction(Scope scope, String name, List<Type> paramTypes){
         Function rtn = null;
-        for (Symbol s : scope.symbols) {
-            if (s instanceof Function && s.name.equals(name)) {
+        for (Symbol s : scope.getSymbols(name)) {
+            if (s instanceof Function) {
                 Function function = (Function) s;
                 if (function.matchParameterTypes(paramTypes)){
                     rtn = function;
@@ -79,8 +119,8 @@ public abstract class Scope extends Symbol{
 
     protected static Variable getFunctionVariable(Scope scope, String name, List<Type> paramTypes){
         Variable rtn = null;
-        for (Symbol s : scope.symbols) {
-            if (s instanceof Variable && ((Variable) s).type instanceof FunctionType && s.name.equals(name)) {
+        for (Symbol s : scope.getSymbols(name)) {
+            if (s instanceof Variable && ((Variable) s).type instanceof FunctionType) {
                 Variable v = (Variable) s;
                 FunctionType functionType = (FunctionType) v.type;
                 if (functionType.matchParameterTypes(paramTypes)){
@@ -104,8 +144,8 @@ public abstract class Scope extends Symbol{
     }
 
     protected static Class getClass(Scope scope, String name){
-        for (Symbol s : scope.symbols) {
-            if (s instanceof Class && s.name.equals(name)){
+        for (Symbol s : scope.getSymbols(name)) {
+            if (s instanceof Class){
                 return (Class) s;
             }
         }
@@ -119,7 +159,7 @@ public abstract class Scope extends Symbol{
      * @return
      */
     protected boolean containsSymbol(Symbol symbol){
-        return symbols.contains(symbol);
+        return getSymbols(symbol.name).contains(symbol);
     }
 
 //    /**
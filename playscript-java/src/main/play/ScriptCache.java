@@ -0,0 +1,114 @@
+package play;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 编译结果的磁盘缓存，用-cache参数启用。
+ * 把VMCompiler编译出来的VMProgram序列化保存下来，下次执行同样的脚本，直接读出来交给VM执行，
+ * 不需要再做词法分析、语法分析和语义分析。
+ *
+ * 缓存文件的名称是编译器版本加上脚本内容的SHA-256，脚本改了，或者编译器升级了，都会重新编译。
+ * 写文件时先写到临时文件再改名，多个进程同时执行同一个脚本也不会读到写了一半的文件。
+ * 缓存目录可以由用户指定，文件的内容不一定可信，读取时用ObjectInputFilter限制只能出现VMProgram和它用到的类，
+ * 其他的类不会被反序列化，这样的文件当作没有缓存。
+ */
+public class ScriptCache {
+
+    //编译器的版本。VMCompiler生成的指令或者VMProgram的格式有变化时要修改，旧的缓存就不再使用了
+    public static final String COMPILER_VERSION = "playscript-vm-3";
+
+    //缓存文件的扩展名
+    private static final String SUFFIX = ".pvm";
+
+    //缓存文件里允许出现的类：VMProgram的各个部分，常量池里的常量（常量池是Object的数组），以及属性槽位表用的HashMap（读取时会检查Map$Entry的数组）。数组按元素的类型检查
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "play.VMProgram;play.VMProgram$FunctionCode;play.VMProgram$ClassInfo;"
+                    + "java.lang.Object;java.lang.String;java.lang.Number;java.lang.Integer;java.lang.Long;java.lang.Float;java.lang.Double;"
+                    + "java.lang.Boolean;java.lang.Character;java.util.HashMap;java.util.Map$Entry;"
+                    + "maxdepth=10;!*");
+
+    private final File directory;
+
+    public ScriptCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 缺省的缓存目录：系统属性play.cache.dir，没有设置的话是用户目录下的.playscript/cache
+     */
+    public static File defaultDirectory() {
+        String dir = System.getProperty("play.cache.dir");
+        if (dir != null) {
+            return new File(dir);
+        }
+        return new File(System.getProperty("user.home"), ".playscript" + File.separator + "cache");
+    }
+
+    /**
+     * 读取脚本的编译结果
+     * @param script 脚本的内容
+     * @return 没有缓存，或者缓存文件读不出来、包含不允许的类，返回null
+     */
+    public VMProgram load(String script) {
+        File file = fileOf(script);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.setObjectInputFilter(FILTER);
+            return (VMProgram) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            //文件损坏、是不兼容的旧格式，或者被过滤器拒绝（InvalidClassException），当作没有缓存，重新编译以后会覆盖它
+            return null;
+        }
+    }
+
+    /**
+     * 保存脚本的编译结果。保存失败不影响脚本的执行，只是下次还要重新编译。
+     * @param script 脚本的内容
+     * @param program 编译结果
+     */
+    public void store(String script, VMProgram program) {
+        File file = fileOf(script);
+        File temp = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeObject(program);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("unable to write to cache : " + file);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private File fileOf(String script) {
+        return new File(directory, keyOf(script) + SUFFIX);
+    }
+
+    //编译器版本和脚本内容的SHA-256
+    private static String keyOf(String script) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(COMPILER_VERSION.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -7,6 +7,8 @@ import play.PlayScriptParser.*;
 /**
  * 进行一些语义检查，包括：
  * 01.break 只能出现在循环语句中，或case语句中；
+ * 01-01 continue只能出现在循环语句中；
+ * 01-02 break和continue带的标签，必须是外层语句的标签；continue的标签必须是循环语句的标签。
  *
  * 02.return语句
  * 02-01 函数声明了返回值，就一定要有return语句。除非返回值类型是void。
@@ -118,10 +120,32 @@ public class SematicValidator extends PlayScriptBaseListener {
         }
         //01 break语句
         else if (ctx.BREAK()!=null){
-            if (!checkBreak(ctx)){
+            if (ctx.IDENTIFIER() != null){
+                //01-02
+                if (findLabel(ctx, ctx.IDENTIFIER().getText()) == null){
+                    at.log("undefined label: " + ctx.IDENTIFIER().getText(), ctx);
+                }
+            }
+            else if (!checkBreak(ctx)){
                 at.log("break statement not in loop or switch statements", ctx);
             }
         }
+        //01-01 continue语句
+        else if (ctx.CONTINUE()!=null){
+            if (ctx.IDENTIFIER() != null){
+                //01-02
+                StatementContext labelled = findLabel(ctx, ctx.IDENTIFIER().getText());
+                if (labelled == null){
+                    at.log("undefined label: " + ctx.IDENTIFIER().getText(), ctx);
+                }
+                else if (!isLoop(labelled.statement(0))){
+                    at.log("continue label is not a loop: " + ctx.IDENTIFIER().getText(), ctx);
+                }
+            }
+            else if (!checkContinue(ctx)){
+                at.log("continue statement not in loop", ctx);
+            }
+        }
     }
 
     /**
@@ -169,4 +193,43 @@ public class SematicValidator extends PlayScriptBaseListener {
         }
     }
 
+    /**
+     * continue只能出现在循环语句里。
+     * @param ctx
+     * @return
+     */
+    private boolean checkContinue(RuleContext ctx){
+        if (ctx.parent instanceof StatementContext && isLoop((StatementContext) ctx.parent)){
+            return true;
+        }
+        else if (ctx.parent == null || ctx.parent instanceof FunctionDeclarationContext){
+            return false;
+        }
+        else {
+            return checkContinue(ctx.parent);
+        }
+    }
+
+    private boolean isLoop(StatementContext ctx){
+        return ctx.FOR() != null || ctx.WHILE() != null;
+    }
+
+    /**
+     * 在外层的语句中查找带某个标签的语句。不跨越函数。
+     * @param ctx
+     * @param label
+     * @return
+     */
+    private StatementContext findLabel(RuleContext ctx, String label){
+        RuleContext node = ctx.parent;
+        while (node != null && !(node instanceof FunctionDeclarationContext)){
+            if (node instanceof StatementContext && ((StatementContext) node).identifierLabel != null
+                    && ((StatementContext) node).identifierLabel.getText().equals(label)){
+                return (StatementContext) node;
+            }
+            node = node.parent;
+        }
+        return null;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import play.PlayScriptParser.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 给变量分配槽位，并算出每个变量引用的静态地址（栈桢深度，槽位），存到AnnotatedTree里。
+ * 这样解释器在运行时读写变量，只需要沿着parentFrame走固定的层数，再按下标访问数组，
+ * 不用在每一层栈桢里查找符号。
+ * 函数调用也一样，算出被调用函数的外层作用域在几层之外（静态链接），新栈桢的parentFrame就不用在调用栈里查找了。
+ * 另外，找出哪些变量引用是要赋值的（左值），其余的引用，解释器可以直接返回变量的值，不用创建LValue对象。
+ *
+ * 槽位的分配规则：
+ * 1.BlockScope和Function，按照变量在Scope中的声明顺序编号，函数的参数也在里面；
+ * 2.Class，先排父类的属性，再排自己的属性。这样子类对象的布局兼容父类，父类的方法可以直接按槽位访问子类对象。
+ *
+ * 这一步要在闭包分析之后做。
+ */
+public class SlotResolver {
+
+    private AnnotatedTree at = null;
+
+    //已经分配完槽位的类
+    private Set<Class> resolvedClasses = new HashSet<>();
+
+    public SlotResolver(AnnotatedTree at) {
+        this.at = at;
+    }
+
+    public void resolveSlots() {
+        //给所有Scope里的变量分配槽位
+        allocateSlots(at.nameSpace);
+
+        //计算变量引用的地址
+        resolveAddresses(0);
+    }
+
+    /**
+     * REPL里只处理新输入的脚本：已有的全局变量槽位不变，新的全局变量排在后面；
+     * 只给新声明的Scope分配槽位，只计算新节点里的引用地址。
+     * @param firstSymbol 新脚本的第一个全局符号在at.nameSpace.symbols里的位置
+     * @param firstNode 新脚本的第一个AST节点的编号
+     */
+    public void resolveSlots(int firstSymbol, int firstNode) {
+        Scope global = at.nameSpace;
+        List<Symbol> added = global.symbols.subList(firstSymbol, global.symbols.size());
+        for (Symbol symbol : added) {
+            if (symbol instanceof Variable) {
+                ((Variable) symbol).slot = global.frameSize++;
+            }
+        }
+        for (Symbol symbol : added) {
+            if (symbol instanceof Scope) {
+                allocateSlots((Scope) symbol);
+            }
+        }
+
+        resolveAddresses(firstNode);
+    }
+
+    //计算编号不小于firstNode的节点里变量引用的地址，以及函数调用的静态链接
+    private void resolveAddresses(int firstNode) {
+        for (ParserRuleContext node : at.symbolOfNode.keys(firstNode)) {
+            Symbol symbol = at.symbolOfNode.get(node);
+            if (symbol instanceof Variable && isLValue(node)) {
+                at.lValueNodes.put(node, Boolean.TRUE);
+            }
+
+            if (symbol instanceof Variable && needsAddress(node)) {
+                VariableAddress address = addressOf(symbol, node);
+                if (address != null) {
+                    at.addressOfNode.put(node, address);
+                }
+            }
+            //直接调用的函数，它的外层作用域就是声明它的Scope
+            else if (symbol instanceof Function && node instanceof FunctionCallContext && needsAddress(node)) {
+                VariableAddress link = addressOf(symbol, node);
+                if (link != null) {
+                    at.staticLinkOfNode.put(node, link);
+                }
+            }
+        }
+    }
+
+    /**
+     * 递归地给Scope里的变量分配槽位
+     * @param scope
+     */
+    private void allocateSlots(Scope scope) {
+        if (scope instanceof Class) {
+            allocateClassSlots((Class) scope);
+        } else {
+            int slot = 0;
+            for (Symbol symbol : scope.symbols) {
+                if (symbol instanceof Variable) {
+                    ((Variable) symbol).slot = slot++;
+                }
+            }
+            scope.frameSize = slot;
+        }
+
+        for (Symbol symbol : scope.symbols) {
+            if (symbol instanceof Scope) {
+                allocateSlots((Scope) symbol);
+            }
+        }
+    }
+
+    /**
+     * 类的属性排在父类的属性后面。父类可能在后面才声明，所以要先给父类分配。
+     * @param theClass
+     */
+    private void allocateClassSlots(Class theClass) {
+        if (resolvedClasses.contains(theClass)) {
+            return;
+        }
+        resolvedClasses.add(theClass);
+
+        int slot = 0;
+        Class parentClass = theClass.getParentClass();
+        if (parentClass != null) {
+            allocateClassSlots(parentClass);
+            slot = parentClass.frameSize;
+        }
+
+        for (Symbol symbol : theClass.symbols) {
+            if (symbol instanceof Variable) {
+                ((Variable) symbol).slot = slot++;
+            }
+        }
+        theClass.frameSize = slot;
+    }
+
+    /**
+     * 只有在当前栈桢里按词法作用域访问的变量，才需要计算地址。
+     * 点符号后面的属性和方法，是在对象里访问的，不需要。
+     * @param node
+     * @return
+     */
+    private boolean needsAddress(ParserRuleContext node) {
+        if (node instanceof PrimaryContext || node instanceof VariableDeclaratorIdContext) {
+            return true;
+        } else if (node instanceof FunctionCallContext) {
+            if (node.parent instanceof ExpressionContext) {
+                ExpressionContext exp = (ExpressionContext) node.parent;
+                if (exp.bop != null && exp.bop.getType() == PlayScriptParser.DOT) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 变量引用（PrimaryContext）或属性引用（点符号的ExpressionContext）是否作为左值使用：
+     * 赋值号左边的表达式，以及++和--的操作数。外面可以套括号。
+     * @param node
+     * @return
+     */
+    private boolean isLValue(ParserRuleContext node) {
+        ExpressionContext exp = null;
+        if (node instanceof PrimaryContext && node.parent instanceof ExpressionContext) {
+            exp = (ExpressionContext) node.parent;
+        } else if (node instanceof ExpressionContext && ((ExpressionContext) node).bop != null
+                && ((ExpressionContext) node).bop.getType() == PlayScriptParser.DOT) {
+            exp = (ExpressionContext) node;
+        } else {
+            return false;
+        }
+
+        //去掉外面的括号
+        while (exp.parent instanceof PrimaryContext && exp.parent.parent instanceof ExpressionContext) {
+            exp = (ExpressionContext) exp.parent.parent;
+        }
+
+        if (exp.parent instanceof ExpressionContext) {
+            ExpressionContext parent = (ExpressionContext) exp.parent;
+            if (parent.bop != null && parent.bop.getType() == PlayScriptParser.ASSIGN) {
+                return parent.expression(0) == exp;
+            }
+            int op = parent.postfix != null ? parent.postfix.getType() : (parent.prefix != null ? parent.prefix.getType() : -1);
+            return op == PlayScriptParser.INC || op == PlayScriptParser.DEC;
+        }
+        return false;
+    }
+
+    /**
+     * 沿着词法作用域逐级向上，找到包含这个变量（或函数）的Scope，经过的层数就是栈桢的深度。
+     * @param symbol
+     * @param node
+     * @return
+     */
+    private VariableAddress addressOf(Symbol symbol, ParserRuleContext node) {
+        Scope scope = at.enclosingScopeOfNode(node);
+        int depth = 0;
+        while (scope != null) {
+            if (scope.containsSymbol(symbol)) {
+                int slot = symbol instanceof Variable ? ((Variable) symbol).slot : -1;
+                return new VariableAddress(depth, slot, scope);
+            }
+            scope = scope.enclosingScope;
+            depth++;
+        }
+        return null;
+    }
+}
@@ -12,11 +12,15 @@ public class StackFrame {
      */
     StackFrame parentFrame = null;
 
-    //实际存放变量的地方
+    //实际存放变量的地方。变量按照SlotResolver分配的槽位存放。
+    //对于对象的栈桢，就是对象自己的slots。
+    Object[] slots = null;
+
+    //该栈桢所对应的对象。块的栈桢没有对象；函数的栈桢是FunctionObject，里面存了闭包变量；类的栈桢是ClassObject。
     PlayObject object = null;
 
     /**
-     * 本栈桢里有没有包含某个变量的数据
+     * 本栈桢的对象里有没有按Variable存放某个变量的数据，比如闭包变量
      * @param variable
      * @return
      */
@@ -29,12 +33,13 @@ public class StackFrame {
 
     public StackFrame(BlockScope scope){
         this.scope = scope;
-        this.object = new PlayObject();
+        this.slots = new Object[scope.frameSize];
     }
 
     public StackFrame(ClassObject object){
         this.scope = object.type;
         this.object = object;
+        this.slots = object.slots;
     }
 
     /**
@@ -44,6 +49,7 @@ public class StackFrame {
     public StackFrame(FunctionObject object){
         this.scope = object.function;
         this.object = object;
+        this.slots = new Object[object.function.frameSize];
     }
 
     @Override
@@ -0,0 +1,227 @@
+package play;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import play.PlayScriptParser.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 分层执行，用-tiered参数启用。
+ * 脚本先由解释器执行（节点树，或者ASTEvaluator），同时统计每个函数的调用次数和循环的回跳次数。
+ * 超过阈值的函数，用ByteCodeGen编译成JVM字节码，定义成隐藏类（hidden class），以后的调用直接执行编译结果，
+ * 再由JVM的JIT编译成机器码。这样，很快就结束的脚本不需要付出生成类的代价，长时间运行的脚本能接近Java的速度。
+ *
+ * 能编译的函数，只访问自己的参数和局部变量，只调用同样能编译的全局函数，也不涉及类和对象、函数型的值和闭包等特性（只编译几个函数的时候不生成类和接口）。
+ * 编译不了的函数记下来，以后不再尝试，一直解释执行。生成的类通不过校验等其他的编译失败也一样处理，不影响脚本的执行。
+ * 编译结果跟解释器交换的值，表示方式跟解释器一样：ByteCodeGen只把运行时的类型一定是声明类型的参数和返回值按声明的类型生成，
+ * 其他的都装箱，值原样传递，所以函数编译前后的输出是一样的。
+ *
+ * 没有做栈上替换（OSR）：正在执行的那次调用仍然由解释器完成，回跳次数只是让函数在下一次调用时就编译。
+ */
+public class TieredCompiler {
+
+    //调用次数的阈值
+    public static final int INVOCATION_THRESHOLD = 1000;
+
+    //循环回跳次数的阈值
+    public static final int BACK_EDGE_THRESHOLD = 10000;
+
+    private AnnotatedTree at = null;
+
+    private final int invocationThreshold;
+    private final int backEdgeThreshold;
+
+    private Map<Function, FunctionCounter> counters = new HashMap<>();
+
+    //生成的类的序号，让类名不重复
+    private int classCount = 0;
+
+    public TieredCompiler(AnnotatedTree at) {
+        this(at, INVOCATION_THRESHOLD, BACK_EDGE_THRESHOLD);
+    }
+
+    /**
+     * @param at
+     * @param invocationThreshold 函数被调用这么多次以后编译
+     * @param backEdgeThreshold 函数里的循环回跳这么多次以后编译
+     */
+    public TieredCompiler(AnnotatedTree at, int invocationThreshold, int backEdgeThreshold) {
+        this.at = at;
+        this.invocationThreshold = invocationThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+    }
+
+    /**
+     * 一个函数的计数器。解释器在调用函数的地方和循环里保存这个对象，每次计数不需要查表。
+     */
+    public final class FunctionCounter {
+        private final Function function;
+        private int invocations = 0;
+        private int backEdges = 0;
+
+        //编译结果，类型是(Object[])Object。还没编译是null
+        private MethodHandle code = null;
+
+        //编译失败了，不再尝试
+        private boolean rejected = false;
+
+        //编译失败的原因，-verbose时打印出来
+        private String rejectReason = null;
+
+        private FunctionCounter(Function function) {
+            this.function = function;
+        }
+
+        /**
+         * 解释器调用函数之前调用。
+         * @return 是否已经编译好了。是的话，用invoke()执行编译结果，否则继续解释执行
+         */
+        public boolean countInvocation() {
+            if (code != null) {
+                return true;
+            }
+            if (rejected) {
+                return false;
+            }
+            invocations++;
+            if (invocations >= invocationThreshold || backEdges >= backEdgeThreshold) {
+                compile(this);
+            }
+            return code != null;
+        }
+
+        /**
+         * 函数里的循环每回跳一次调用一次
+         */
+        public void countBackEdge() {
+            backEdges++;
+        }
+
+        /**
+         * 执行编译好的函数
+         * @param arguments 解释器里的参数值，原样传入，不做类型转换
+         * @return 返回值，基础类型的值是装箱的，跟解释器执行时返回的值一样。void函数返回null
+         */
+        public Object invoke(Object[] arguments) {
+            try {
+                return (Object) code.invokeExact(arguments);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * 获取函数的计数器
+     * @param function
+     * @return
+     */
+    public FunctionCounter counterOf(Function function) {
+        FunctionCounter counter = counters.get(function);
+        if (counter == null) {
+            counter = new FunctionCounter(function);
+            counters.put(function, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * 把函数，连同它直接或间接调用的函数，编译到一个隐藏类里。
+     * 被调用的函数如果还没有编译，也直接使用这个类里的方法。
+     * @param counter
+     */
+    private void compile(FunctionCounter counter) {
+        Set<Function> functions = new LinkedHashSet<>();
+        try {
+            collectCallees(counter.function, functions);
+
+            String className = "play/Jit$" + counter.function.getName() + "$" + (classCount++);
+            ByteCodeGen generator = new ByteCodeGen(at);
+            byte[] bytes = generator.generateFunctions(className, functions);
+
+            //隐藏类要跟查找它的类在同一个包里，所以类名以play/开头
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            Object instance = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+
+            for (Function function : functions) {
+                FunctionCounter calleeCounter = counterOf(function);
+                if (calleeCounter.code != null) {
+                    continue;
+                }
+                MethodType type = MethodType.fromMethodDescriptorString(generator.genFunctionDescriptor(function),
+                        TieredCompiler.class.getClassLoader());
+                MethodHandle method = lookup.findVirtual(lookup.lookupClass(), function.getName(), type).bindTo(instance);
+                calleeCounter.code = method.asSpreader(Object[].class, type.parameterCount())
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            }
+        } catch (UnsupportedOperationException e) {
+            //ByteCodeGen还不支持的特性，继续解释执行。被调用的函数单独编译的时候可能没有这个特性，所以不影响它们
+            counter.rejected = true;
+            counter.rejectReason = e.getMessage();
+        } catch (Throwable e) {
+            //生成的类通不过校验（VerifyError）、找不到方法等。这里不执行脚本的代码，所以都是编译本身的问题，不能让脚本中止。
+            //不知道是哪个函数的问题，这个类里的函数都继续解释执行；已经拿到编译结果的函数照常使用
+            String reason = e.toString();
+            counter.rejected = true;
+            counter.rejectReason = reason;
+            for (Function function : functions) {
+                FunctionCounter calleeCounter = counterOf(function);
+                if (calleeCounter.code == null) {
+                    calleeCounter.rejected = true;
+                    calleeCounter.rejectReason = reason;
+                }
+            }
+        }
+    }
+
+    //函数直接或间接调用的所有函数，包括它自己
+    private void collectCallees(Function function, Set<Function> functions) {
+        //没有源代码的函数，比如类的缺省构造函数
+        if (function.ctx == null) {
+            throw new UnsupportedOperationException("function " + function.getName());
+        }
+        if (functions.add(function)) {
+            collectCallees(function.ctx, functions);
+        }
+    }
+
+    private void collectCallees(ParseTree node, Set<Function> functions) {
+        if (node instanceof FunctionCallContext) {
+            Symbol symbol = at.symbolOfNode.get((FunctionCallContext) node);
+            if (symbol instanceof Function) {
+                collectCallees((Function) symbol, functions);
+            }
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectCallees(node.getChild(i), functions);
+        }
+    }
+
+    /**
+     * 计数器的统计信息，按函数名排列，-verbose时打印出来
+     * @return
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        List<FunctionCounter> list = new ArrayList<>(counters.values());
+        list.sort((a, b) -> a.function.getName().compareTo(b.function.getName()));
+        for (FunctionCounter counter : list) {
+            sb.append(counter.function.getName())
+              .append(": invocations=").append(counter.invocations)
+              .append(", back edges=").append(counter.backEdges)
+              .append(counter.code != null ? ", compiled" : (counter.rejected ? ", not compilable: " + counter.rejectReason : ""))
+              .append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -42,6 +42,13 @@ public class TypeAndScopeScanner extends PlayScriptBaseListener {
 
     @Override
     public void enterProg(ProgContext ctx) {
+        //REPL里新输入的脚本，接着使用原来的全局命名空间
+        if (at.nameSpace != null) {
+            at.node2Scope.put(ctx, at.nameSpace);
+            scopeStack.push(at.nameSpace);
+            return;
+        }
+
         NameSpace scope = new NameSpace("", currentScope(), ctx);
         at.nameSpace = scope; //scope的根
         pushScope(scope, ctx);
@@ -0,0 +1,205 @@
+package play;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import play.PlayScriptParser.*;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 找出可以不装箱的变量。NodeCompiler把这些变量存放在NodeFrame.primitives里。
+ *
+ * 条件是：变量的类型是int、long、float、double或boolean，并且给它赋的每一个值，运行时的类型一定跟变量的类型一致。
+ * 因为ASTEvaluator在赋值时不做类型转换，比如 float f = 1; 以后f里存的是Integer，打印出来是1而不是1.0。
+ * 为了结果一致，这样的变量仍然按对象存放。
+ *
+ * 一个值的运行时类型能否确定，又取决于它引用的变量是否不装箱，所以要反复计算，直到结果不再变化。
+ */
+public class UnboxingAnalyzer extends PlayScriptBaseListener {
+
+    private AnnotatedTree at = null;
+
+    //可以不装箱的变量
+    private Set<Variable> unboxed = new HashSet<>();
+
+    //所有的赋值，包括变量初始化和参数传递：变量，以及所赋的值
+    private List<Variable> assignedVariables = new LinkedList<>();
+    private List<ExpressionContext> assignedValues = new LinkedList<>();
+
+    //一定要装箱的变量，比如声明时没有初始化的变量，在赋值之前读到的是null
+    private Set<Variable> boxed = new HashSet<>();
+
+    public UnboxingAnalyzer(AnnotatedTree at) {
+        this.at = at;
+    }
+
+    /**
+     * 由调用者指定一定要装箱的变量，比如VMCompiler中被闭包引用的变量
+     * @param variables
+     */
+    public void keepBoxed(Collection<Variable> variables) {
+        boxed.addAll(variables);
+    }
+
+    /**
+     * 计算出可以不装箱的变量
+     * @return
+     */
+    public Set<Variable> analyze() {
+        ParseTreeWalker walker = new ParseTreeWalker();
+        walker.walk(this, at.ast);
+        unboxed.removeAll(boxed);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < assignedVariables.size(); i++) {
+                Variable variable = assignedVariables.get(i);
+                if (unboxed.contains(variable) && exactTypeOf(assignedValues.get(i)) != variable.type) {
+                    unboxed.remove(variable);
+                    changed = true;
+                }
+            }
+        }
+
+        return unboxed;
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type == PrimitiveType.Integer || type == PrimitiveType.Long
+                || type == PrimitiveType.Float || type == PrimitiveType.Double
+                || type == PrimitiveType.Boolean;
+    }
+
+    private void addCandidate(Variable variable) {
+        if (variable != null && isPrimitive(variable.type) && !(variable.enclosingScope instanceof Class)) {
+            unboxed.add(variable);
+        }
+    }
+
+    /**
+     * 表达式的值在运行时一定是什么类型。不能确定的话返回null。
+     * @param ctx
+     * @return
+     */
+    protected Type exactTypeOf(ExpressionContext ctx) {
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            switch (ctx.bop.getType()) {
+                case PlayScriptParser.ADD:
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV:
+                    Type type = at.typeOfNode.get(ctx);
+                    return isPrimitive(type) && type != PrimitiveType.Boolean ? type : null;
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.AND:
+                case PlayScriptParser.OR:
+                    return PrimitiveType.Boolean;
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT:
+                    //比较运算只对数值有意义，否则ASTEvaluator返回null
+                    Type upperType = PrimitiveType.getUpperType(at.typeOfNode.get(ctx.expression(0)), at.typeOfNode.get(ctx.expression(1)));
+                    return PrimitiveType.isNumeric(upperType) && upperType != PrimitiveType.Byte ? PrimitiveType.Boolean : null;
+                case PlayScriptParser.ASSIGN:
+                    return exactTypeOf(ctx.expression(1));
+                default:
+                    return null;
+            }
+        } else if (ctx.primary() != null) {
+            PrimaryContext primary = ctx.primary();
+            if (primary.literal() != null) {
+                LiteralContext literal = primary.literal();
+                if (literal.integerLiteral() != null && literal.integerLiteral().DECIMAL_LITERAL() != null) {
+                    return PrimitiveType.Integer;
+                } else if (literal.floatLiteral() != null) {
+                    return PrimitiveType.Float;
+                } else if (literal.BOOL_LITERAL() != null) {
+                    return PrimitiveType.Boolean;
+                }
+            } else if (primary.expression() != null) {
+                return exactTypeOf(primary.expression());
+            } else if (primary.IDENTIFIER() != null) {
+                Symbol symbol = at.symbolOfNode.get(primary);
+                if (symbol instanceof Variable && unboxed.contains(symbol)) {
+                    return ((Variable) symbol).type;
+                }
+            }
+        } else if (ctx.postfix != null || ctx.prefix != null) {
+            int op = ctx.postfix != null ? ctx.postfix.getType() : ctx.prefix.getType();
+            if (op == PlayScriptParser.BANG) {
+                return PrimitiveType.Boolean;
+            } else if (op == PlayScriptParser.INC || op == PlayScriptParser.DEC) {
+                //ASTEvaluator把值强制转换成Integer或Long
+                Type type = at.typeOfNode.get(ctx.expression(0));
+                return type == PrimitiveType.Integer ? type : PrimitiveType.Long;
+            }
+        }
+        return null;
+    }
+
+    private void assign(Variable variable, ExpressionContext value) {
+        assignedVariables.add(variable);
+        assignedValues.add(value);
+    }
+
+    @Override
+    public void enterVariableDeclarator(VariableDeclaratorContext ctx) {
+        Variable variable = (Variable) at.symbolOfNode.get(ctx.variableDeclaratorId());
+        addCandidate(variable);
+        if (ctx.variableInitializer() != null && ctx.variableInitializer().expression() != null) {
+            assign(variable, ctx.variableInitializer().expression());
+        } else {
+            boxed.add(variable);
+        }
+    }
+
+    @Override
+    public void enterFormalParameter(FormalParameterContext ctx) {
+        addCandidate((Variable) at.symbolOfNode.get(ctx.variableDeclaratorId()));
+    }
+
+    @Override
+    public void enterExpression(ExpressionContext ctx) {
+        Symbol symbol = null;
+        if (ctx.expression().size() > 0 && ctx.expression(0).primary() != null) {
+            symbol = at.symbolOfNode.get(ctx.expression(0).primary());
+        }
+        if (!(symbol instanceof Variable)) {
+            return;
+        }
+        Variable variable = (Variable) symbol;
+
+        if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.ASSIGN) {
+            assign(variable, ctx.expression(1));
+        } else if (isIncrement(ctx.postfix) || isIncrement(ctx.prefix)) {
+            //ASTEvaluator只对int和long型做自增和自减
+            if (variable.type != PrimitiveType.Integer && variable.type != PrimitiveType.Long) {
+                boxed.add(variable);
+            }
+        }
+    }
+
+    private static boolean isIncrement(Token op) {
+        return op != null && (op.getType() == PlayScriptParser.INC || op.getType() == PlayScriptParser.DEC);
+    }
+
+    @Override
+    public void enterFunctionCall(FunctionCallContext ctx) {
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        if (!(symbol instanceof Function) || ctx.expressionList() == null) {
+            return;
+        }
+        Function function = (Function) symbol;
+        List<ExpressionContext> arguments = ctx.expressionList().expression();
+        for (int i = 0; i < arguments.size() && i < function.parameters.size(); i++) {
+            assign(function.parameters.get(i), arguments.get(i));
+        }
+    }
+}
@@ -0,0 +1,786 @@
+package play;
+
+import play.VMProgram.ClassInfo;
+import play.VMProgram.FunctionCode;
+
+import java.util.Arrays;
+
+/**
+ * 基于寄存器的虚拟机，执行VMCompiler编译出来的VMProgram。
+ *
+ * 所有函数调用共用一个寄存器栈：每个栈桢是栈上连续的一段，调用者把参数算到自己栈桢的末尾，
+ * 这一段就直接成为被调用者栈桢的开头，不需要复制参数。
+ * 每个寄存器有两个存储位置：stack里存对象，prims里存不装箱的基础类型的值（float和double存二进制表示），
+ * 由编译器决定每条指令用哪一个。
+ *
+ * 函数调用不使用Java的调用栈，而是把调用者的状态保存在frame数组里，所以整个执行过程就是一个循环，
+ * 递归的深度只受堆内存的限制。return f(...)这样的尾调用复用当前的栈桢，不保存调用者的状态，所以尾递归不会让栈增长。
+ */
+public class VM {
+
+    ///////////////////////////////////////////////////////////
+    /// 指令。每条指令是一个操作码加上固定个数的操作数。
+    /// 下面的注释里，a、b、c是寄存器，k是常量池的下标，t是跳转的目标地址。
+
+    public static final int NOP = 0;
+    public static final int LOADK = 1;      //a k       a = 常量k
+    public static final int LOADNULL = 2;   //a         a = null
+    public static final int LOADI = 3;      //a n       a = n，基础类型，包括float的二进制表示和boolean
+    public static final int LOADL = 4;      //a lo hi   a = long或double的二进制表示
+    public static final int MOVE = 5;       //a b       对象
+    public static final int MOVEP = 6;      //a b       基础类型
+    public static final int GGET = 7;       //a g       读全局变量，也就是全局代码的寄存器g
+    public static final int GSET = 8;       //g b
+    public static final int GGETP = 9;      //a g
+    public static final int GSETP = 10;     //g b
+    public static final int CELLNEW = 11;   //a         a = 新的Cell
+    public static final int CELLWRAP = 12;  //a         把a的值放进一个新的Cell，比如被闭包引用的参数
+    public static final int CELLGET = 13;   //a b       a = b里的Cell的值
+    public static final int CELLSET = 14;   //a b       a里的Cell的值 = b
+    public static final int UPGET = 15;     //a n       a = 第n个upvalue的值
+    public static final int UPSET = 16;     //n b
+    public static final int BOX = 17;       //a b kind  把基础类型装箱
+    public static final int UNBOX = 18;     //a b kind  拆箱成kind类型，规则跟ASTEvaluator一样，用Number.xxxValue()
+    public static final int I2L = 19;       //a b
+    public static final int I2F = 20;
+    public static final int I2D = 21;
+    public static final int L2F = 22;
+    public static final int L2D = 23;
+    public static final int F2D = 24;
+    public static final int ADDI = 25;      //a b c     a = b + c
+    public static final int SUBI = 26;
+    public static final int MULI = 27;
+    public static final int DIVI = 28;
+    public static final int ADDL = 29;
+    public static final int SUBL = 30;
+    public static final int MULL = 31;
+    public static final int DIVL = 32;
+    public static final int ADDF = 33;
+    public static final int SUBF = 34;
+    public static final int MULF = 35;
+    public static final int DIVF = 36;
+    public static final int ADDD = 37;
+    public static final int SUBD = 38;
+    public static final int MULD = 39;
+    public static final int DIVD = 40;
+    public static final int ADDIK = 41;     //a b n     a = b + n，用于i++
+    public static final int ADDLK = 42;
+    public static final int CMPI = 43;      //a b c cond    a = (b cond c)，结果是boolean
+    public static final int CMPL = 44;
+    public static final int CMPF = 45;
+    public static final int CMPD = 46;
+    public static final int JCMPI = 47;     //cond b c t    如果(b cond c)，跳转到t
+    public static final int JCMPL = 48;
+    public static final int JCMPF = 49;
+    public static final int JCMPD = 50;
+    public static final int AND = 51;       //a b c     两边都已经计算过了，跟ASTEvaluator一样不短路
+    public static final int OR = 52;
+    public static final int NOT = 53;       //a b
+    public static final int CONCAT = 54;    //a b c     字符串拼接
+    public static final int REFEQ = 55;     //a b c     比较对象引用
+    public static final int REFNE = 56;
+    public static final int GENERIC = 57;   //a b c op isShort  其他类型的运算，比如short
+    public static final int INCREF = 58;    //a b n isInt   a = b + n，b是装箱的Integer或Long
+    public static final int JMP = 59;       //t
+    public static final int JFALSE = 60;    //a t
+    public static final int JTRUE = 61;     //a t
+    public static final int CALL = 62;      //f base dst    调用函数f，参数从寄存器base开始，返回值放到dst
+    public static final int CALLC = 63;     //c base dst    调用寄存器c里的闭包
+    public static final int CALLM = 64;     //m base dst    调用方法m，对象在寄存器base里，按对象的类查虚方法表
+    public static final int CLOSURE = 65;   //a f       a = 函数f的闭包，从当前栈桢取upvalue
+    public static final int RET = 66;       //a
+    public static final int RETNULL = 67;
+    public static final int NEW = 68;       //a cls     a = 新对象，属性都是null
+    public static final int GETF = 69;      //a b slot  a = b.属性
+    public static final int SETF = 70;      //a slot b  a.属性 = b
+    public static final int GETFN = 71;     //a b k     按名称查找属性，名称是常量k。用于子类有同名属性的情况
+    public static final int SETFN = 72;     //a k b
+    public static final int PRINTLN = 73;   //a
+    public static final int PRINTLN0 = 74;
+    public static final int MOVEN = 75;     //a b       a = b，null换成NullObject，跟ASTEvaluator读变量时一样
+    public static final int JCMPIK = 76;    //cond b n t    如果(b cond n)，跳转到t。n是int常量，用于i < 100这样的循环条件
+    public static final int TCALL = 77;     //f base dst    尾调用，对应return f(...)。被调用函数复用当前的栈桢，返回值直接交给当前函数的调用者
+    public static final int TCALLC = 78;    //c base dst
+    public static final int TCALLM = 79;    //m base dst
+    public static final int NEWSTR = 80;    //a k       a = 常量k的一个新的副本。字符串字面量每次求值都是新的对象，跟ASTEvaluator一样
+
+    //指令的名称，用于打印
+    protected static final String[] NAMES = {
+            "NOP", "LOADK", "LOADNULL", "LOADI", "LOADL", "MOVE", "MOVEP", "GGET", "GSET", "GGETP", "GSETP",
+            "CELLNEW", "CELLWRAP", "CELLGET", "CELLSET", "UPGET", "UPSET", "BOX", "UNBOX",
+            "I2L", "I2F", "I2D", "L2F", "L2D", "F2D",
+            "ADDI", "SUBI", "MULI", "DIVI", "ADDL", "SUBL", "MULL", "DIVL",
+            "ADDF", "SUBF", "MULF", "DIVF", "ADDD", "SUBD", "MULD", "DIVD", "ADDIK", "ADDLK",
+            "CMPI", "CMPL", "CMPF", "CMPD", "JCMPI", "JCMPL", "JCMPF", "JCMPD",
+            "AND", "OR", "NOT", "CONCAT", "REFEQ", "REFNE", "GENERIC", "INCREF",
+            "JMP", "JFALSE", "JTRUE", "CALL", "CALLC", "CALLM", "CLOSURE", "RET", "RETNULL",
+            "NEW", "GETF", "SETF", "GETFN", "SETFN", "PRINTLN", "PRINTLN0", "MOVEN", "JCMPIK",
+            "TCALL", "TCALLC", "TCALLM", "NEWSTR"
+    };
+
+    //每条指令的操作数个数
+    protected static final int[] OPERANDS = {
+            0, 2, 1, 2, 3, 2, 2, 2, 2, 2, 2,
+            1, 1, 2, 2, 2, 2, 3, 3,
+            2, 2, 2, 2, 2, 2,
+            3, 3, 3, 3, 3, 3, 3, 3,
+            3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+            4, 4, 4, 4, 4, 4, 4, 4,
+            3, 3, 2, 3, 3, 3, 5, 4,
+            1, 2, 2, 3, 3, 3, 2, 1, 0,
+            2, 3, 3, 3, 3, 1, 0, 2, 4,
+            3, 3, 3, 2
+    };
+
+    //值的类型：对象，或者某种不装箱的基础类型
+    protected static final int REF = 0;
+    protected static final int INT = 1;
+    protected static final int LONG = 2;
+    protected static final int FLOAT = 3;
+    protected static final int DOUBLE = 4;
+    protected static final int BOOL = 5;
+
+    //比较运算。NOT_XXX是对比较结果取反，对于有NaN参与的浮点数比较，它跟相反的比较运算不一样
+    protected static final int EQ = 0;
+    protected static final int NE = 1;
+    protected static final int LT = 2;
+    protected static final int LE = 3;
+    protected static final int GT = 4;
+    protected static final int GE = 5;
+    protected static final int NOT_LT = 6;
+    protected static final int NOT_LE = 7;
+    protected static final int NOT_GT = 8;
+    protected static final int NOT_GE = 9;
+
+    ///////////////////////////////////////////////////////////
+    /// 运行时的数据
+
+    /**
+     * 闭包：函数，加上它引用的外层变量
+     */
+    public static final class Closure {
+        protected final int function;
+        protected final Cell[] upvalues;
+
+        public Closure(int function, Cell[] upvalues) {
+            this.function = function;
+            this.upvalues = upvalues;
+        }
+    }
+
+    /**
+     * 被闭包引用的变量。外层函数和闭包共享同一个Cell，所以修改对双方都可见。
+     */
+    public static final class Cell {
+        protected Object value = null;
+
+        public Cell(Object value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * 对象
+     */
+    public static final class Instance {
+        protected final ClassInfo type;
+        protected final Object[] fields;
+
+        public Instance(ClassInfo type) {
+            this.type = type;
+            this.fields = new Object[type.fieldCount];
+        }
+    }
+
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+
+    private final VMProgram program;
+
+    //寄存器栈
+    private Object[] stack = new Object[1024];
+    private long[] prims = new long[1024];
+
+    //调用者的状态，在返回的时候恢复
+    private int depth = 0;
+    private int[] savedFunctions = new int[64];
+    private int[] savedPcs = new int[64];
+    private int[] savedBases = new int[64];
+    private int[] savedResults = new int[64];
+    private Cell[][] savedUpvalues = new Cell[64][];
+
+    public VM(VMProgram program) {
+        this.program = program;
+    }
+
+    /**
+     * 执行整个程序，返回全局代码最后一个语句的值
+     * @return
+     */
+    public Object run() {
+        FunctionCode[] functions = program.functions;
+        FunctionCode function = functions[0];
+        ensureCapacity(function.frameSize);
+
+        int[] code = function.code;
+        Object[] constants = function.constants;
+        Cell[] upvalues = NO_UPVALUES;
+        Object[] s = stack;
+        long[] p = prims;
+        int base = 0;
+        int pc = 0;
+        int current = 0;
+
+        while (true) {
+            int op = code[pc];
+            switch (op) {
+                case NOP:
+                    pc += 1;
+                    break;
+                case LOADK:
+                    s[base + code[pc + 1]] = constants[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case NEWSTR:
+                    s[base + code[pc + 1]] = new String((String) constants[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LOADNULL:
+                    s[base + code[pc + 1]] = NullObject.instance();
+                    pc += 2;
+                    break;
+                case LOADI:
+                    p[base + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case LOADL:
+                    p[base + code[pc + 1]] = (code[pc + 2] & 0xFFFFFFFFL) | ((long) code[pc + 3] << 32);
+                    pc += 4;
+                    break;
+                case MOVE:
+                    s[base + code[pc + 1]] = s[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case MOVEP:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case GGET:
+                    s[base + code[pc + 1]] = s[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case GSET:
+                    s[code[pc + 1]] = s[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case GGETP:
+                    p[base + code[pc + 1]] = p[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case GSETP:
+                    p[code[pc + 1]] = p[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case CELLNEW:
+                    s[base + code[pc + 1]] = new Cell(null);
+                    pc += 2;
+                    break;
+                case CELLWRAP:
+                    s[base + code[pc + 1]] = new Cell(s[base + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case CELLGET:
+                    s[base + code[pc + 1]] = valueOf(((Cell) s[base + code[pc + 2]]).value);
+                    pc += 3;
+                    break;
+                case CELLSET:
+                    ((Cell) s[base + code[pc + 1]]).value = s[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case UPGET:
+                    s[base + code[pc + 1]] = valueOf(upvalues[code[pc + 2]].value);
+                    pc += 3;
+                    break;
+                case UPSET:
+                    upvalues[code[pc + 1]].value = s[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BOX:
+                    s[base + code[pc + 1]] = box(p[base + code[pc + 2]], code[pc + 3]);
+                    pc += 4;
+                    break;
+                case UNBOX:
+                    p[base + code[pc + 1]] = unbox(s[base + code[pc + 2]], code[pc + 3]);
+                    pc += 4;
+                    break;
+                case I2L:
+                    p[base + code[pc + 1]] = (int) p[base + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case I2F:
+                    p[base + code[pc + 1]] = Float.floatToRawIntBits((float) (int) p[base + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case I2D:
+                    p[base + code[pc + 1]] = Double.doubleToRawLongBits((int) p[base + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case L2F:
+                    p[base + code[pc + 1]] = Float.floatToRawIntBits((float) p[base + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case L2D:
+                    p[base + code[pc + 1]] = Double.doubleToRawLongBits((double) p[base + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case F2D:
+                    p[base + code[pc + 1]] = Double.doubleToRawLongBits(Float.intBitsToFloat((int) p[base + code[pc + 2]]));
+                    pc += 3;
+                    break;
+                case ADDI:
+                    p[base + code[pc + 1]] = (int) p[base + code[pc + 2]] + (int) p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case SUBI:
+                    p[base + code[pc + 1]] = (int) p[base + code[pc + 2]] - (int) p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case MULI:
+                    p[base + code[pc + 1]] = (int) p[base + code[pc + 2]] * (int) p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DIVI:
+                    p[base + code[pc + 1]] = (int) p[base + code[pc + 2]] / (int) p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case ADDL:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] + p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case SUBL:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] - p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case MULL:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] * p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DIVL:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] / p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case ADDF:
+                    p[base + code[pc + 1]] = floatBits(toFloat(p[base + code[pc + 2]]) + toFloat(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case SUBF:
+                    p[base + code[pc + 1]] = floatBits(toFloat(p[base + code[pc + 2]]) - toFloat(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case MULF:
+                    p[base + code[pc + 1]] = floatBits(toFloat(p[base + code[pc + 2]]) * toFloat(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case DIVF:
+                    p[base + code[pc + 1]] = floatBits(toFloat(p[base + code[pc + 2]]) / toFloat(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case ADDD:
+                    p[base + code[pc + 1]] = doubleBits(toDouble(p[base + code[pc + 2]]) + toDouble(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case SUBD:
+                    p[base + code[pc + 1]] = doubleBits(toDouble(p[base + code[pc + 2]]) - toDouble(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case MULD:
+                    p[base + code[pc + 1]] = doubleBits(toDouble(p[base + code[pc + 2]]) * toDouble(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case DIVD:
+                    p[base + code[pc + 1]] = doubleBits(toDouble(p[base + code[pc + 2]]) / toDouble(p[base + code[pc + 3]]));
+                    pc += 4;
+                    break;
+                case ADDIK:
+                    p[base + code[pc + 1]] = (int) p[base + code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                    break;
+                case ADDLK:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                    break;
+                case CMPI:
+                    p[base + code[pc + 1]] = test(Integer.compare((int) p[base + code[pc + 2]], (int) p[base + code[pc + 3]]), code[pc + 4]) ? 1 : 0;
+                    pc += 5;
+                    break;
+                case CMPL:
+                    p[base + code[pc + 1]] = test(Long.compare(p[base + code[pc + 2]], p[base + code[pc + 3]]), code[pc + 4]) ? 1 : 0;
+                    pc += 5;
+                    break;
+                case CMPF:
+                    p[base + code[pc + 1]] = test(compare(toFloat(p[base + code[pc + 2]]), toFloat(p[base + code[pc + 3]])), code[pc + 4]) ? 1 : 0;
+                    pc += 5;
+                    break;
+                case CMPD:
+                    p[base + code[pc + 1]] = test(compare(toDouble(p[base + code[pc + 2]]), toDouble(p[base + code[pc + 3]])), code[pc + 4]) ? 1 : 0;
+                    pc += 5;
+                    break;
+                case JCMPI:
+                    if (test(Integer.compare((int) p[base + code[pc + 2]], (int) p[base + code[pc + 3]]), code[pc + 1])) {
+                        pc = code[pc + 4];
+                    } else {
+                        pc += 5;
+                    }
+                    break;
+                case JCMPIK:
+                    if (test(Integer.compare((int) p[base + code[pc + 2]], code[pc + 3]), code[pc + 1])) {
+                        pc = code[pc + 4];
+                    } else {
+                        pc += 5;
+                    }
+                    break;
+                case JCMPL:
+                    if (test(Long.compare(p[base + code[pc + 2]], p[base + code[pc + 3]]), code[pc + 1])) {
+                        pc = code[pc + 4];
+                    } else {
+                        pc += 5;
+                    }
+                    break;
+                case JCMPF:
+                    if (test(compare(toFloat(p[base + code[pc + 2]]), toFloat(p[base + code[pc + 3]])), code[pc + 1])) {
+                        pc = code[pc + 4];
+                    } else {
+                        pc += 5;
+                    }
+                    break;
+                case JCMPD:
+                    if (test(compare(toDouble(p[base + code[pc + 2]]), toDouble(p[base + code[pc + 3]])), code[pc + 1])) {
+                        pc = code[pc + 4];
+                    } else {
+                        pc += 5;
+                    }
+                    break;
+                case AND:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] & p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case OR:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] | p[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case NOT:
+                    p[base + code[pc + 1]] = p[base + code[pc + 2]] ^ 1;
+                    pc += 3;
+                    break;
+                case CONCAT:
+                    s[base + code[pc + 1]] = String.valueOf(s[base + code[pc + 2]]) + String.valueOf(s[base + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case REFEQ:
+                    p[base + code[pc + 1]] = s[base + code[pc + 2]] == s[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case REFNE:
+                    p[base + code[pc + 1]] = s[base + code[pc + 2]] != s[base + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case GENERIC:
+                    s[base + code[pc + 1]] = generic(code[pc + 4], code[pc + 5] != 0, s[base + code[pc + 2]], s[base + code[pc + 3]]);
+                    pc += 6;
+                    break;
+                case INCREF: {
+                    Object value = s[base + code[pc + 2]];
+                    if (code[pc + 4] != 0) {
+                        s[base + code[pc + 1]] = (Integer) value + code[pc + 3];
+                    } else {
+                        s[base + code[pc + 1]] = (Long) value + code[pc + 3];
+                    }
+                    pc += 5;
+                    break;
+                }
+                case JMP:
+                    pc = code[pc + 1];
+                    break;
+                case JFALSE:
+                    pc = p[base + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case JTRUE:
+                    pc = p[base + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case CALL:
+                case CALLC:
+                case CALLM:
+                case TCALL:
+                case TCALLC:
+                case TCALLM: {
+                    int callee;
+                    Cell[] calleeUpvalues;
+                    int newBase = base + code[pc + 2];
+                    if (op == CALL || op == TCALL) {
+                        callee = code[pc + 1];
+                        calleeUpvalues = NO_UPVALUES;
+                    } else if (op == CALLC || op == TCALLC) {
+                        Closure closure = (Closure) s[base + code[pc + 1]];
+                        callee = closure.function;
+                        calleeUpvalues = closure.upvalues;
+                    } else {
+                        Instance object = (Instance) s[newBase];
+                        callee = object.type.vtable[code[pc + 1]];
+                        calleeUpvalues = NO_UPVALUES;
+                    }
+
+                    if (op >= TCALL) {
+                        //尾调用：把参数挪到当前栈桢的开头，调用者的状态不用保存，返回时直接回到当前函数的调用者
+                        int count = functions[callee].paramCount;
+                        for (int i = 0; i < count; i++) {
+                            s[base + i] = s[newBase + i];
+                            p[base + i] = p[newBase + i];
+                        }
+                        newBase = base;
+                    } else {
+                        //保存调用者的状态
+                        if (depth == savedPcs.length) {
+                            growFrames();
+                        }
+                        savedFunctions[depth] = current;
+                        savedPcs[depth] = pc + 4;
+                        savedBases[depth] = base;
+                        savedResults[depth] = code[pc + 3];
+                        savedUpvalues[depth] = upvalues;
+                        depth++;
+                    }
+
+                    current = callee;
+                    function = functions[callee];
+                    if (newBase + function.frameSize > s.length) {
+                        ensureCapacity(newBase + function.frameSize);
+                        s = stack;
+                        p = prims;
+                    }
+                    code = function.code;
+                    constants = function.constants;
+                    upvalues = calleeUpvalues;
+                    base = newBase;
+                    pc = 0;
+                    break;
+                }
+                case CLOSURE: {
+                    int[] captures = functions[code[pc + 2]].captures;
+                    Cell[] cells = captures.length == 0 ? NO_UPVALUES : new Cell[captures.length];
+                    for (int i = 0; i < captures.length; i++) {
+                        int from = captures[i];
+                        cells[i] = from >= 0 ? (Cell) s[base + from] : upvalues[-1 - from];
+                    }
+                    s[base + code[pc + 1]] = new Closure(code[pc + 2], cells);
+                    pc += 3;
+                    break;
+                }
+                case RET:
+                case RETNULL: {
+                    Object value = op == RET ? s[base + code[pc + 1]] : null;
+                    if (depth == 0) {
+                        return value;
+                    }
+
+                    //恢复调用者的状态
+                    depth--;
+                    current = savedFunctions[depth];
+                    function = functions[current];
+                    code = function.code;
+                    constants = function.constants;
+                    upvalues = savedUpvalues[depth];
+                    savedUpvalues[depth] = null;
+                    base = savedBases[depth];
+                    pc = savedPcs[depth];
+                    s[base + savedResults[depth]] = value;
+                    break;
+                }
+                case NEW:
+                    s[base + code[pc + 1]] = new Instance(program.classes[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case GETF:
+                    s[base + code[pc + 1]] = valueOf(((Instance) s[base + code[pc + 2]]).fields[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case SETF:
+                    ((Instance) s[base + code[pc + 1]]).fields[code[pc + 2]] = s[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case GETFN: {
+                    Instance object = (Instance) s[base + code[pc + 2]];
+                    int slot = object.type.fieldSlots.get((String) constants[code[pc + 3]]);
+                    s[base + code[pc + 1]] = valueOf(object.fields[slot]);
+                    pc += 4;
+                    break;
+                }
+                case SETFN: {
+                    Instance object = (Instance) s[base + code[pc + 1]];
+                    int slot = object.type.fieldSlots.get((String) constants[code[pc + 2]]);
+                    object.fields[slot] = s[base + code[pc + 3]];
+                    pc += 4;
+                    break;
+                }
+                case PRINTLN:
+                    System.out.println(s[base + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case PRINTLN0:
+                    System.out.println();
+                    pc += 1;
+                    break;
+                case MOVEN:
+                    s[base + code[pc + 1]] = valueOf(s[base + code[pc + 2]]);
+                    pc += 3;
+                    break;
+                default:
+                    throw new IllegalStateException("bad opcode " + op + " at " + function.name + ":" + pc);
+            }
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > stack.length) {
+            int newLength = stack.length;
+            while (newLength < size) {
+                newLength *= 2;
+            }
+            stack = Arrays.copyOf(stack, newLength);
+            prims = Arrays.copyOf(prims, newLength);
+        }
+    }
+
+    private void growFrames() {
+        int newLength = savedPcs.length * 2;
+        savedFunctions = Arrays.copyOf(savedFunctions, newLength);
+        savedPcs = Arrays.copyOf(savedPcs, newLength);
+        savedBases = Arrays.copyOf(savedBases, newLength);
+        savedResults = Arrays.copyOf(savedResults, newLength);
+        savedUpvalues = Arrays.copyOf(savedUpvalues, newLength);
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 辅助方法
+
+    //没有赋过值的变量和属性，读出来是NullObject，跟ASTEvaluator一样
+    private static Object valueOf(Object value) {
+        return value == null ? NullObject.instance() : value;
+    }
+
+    private static float toFloat(long bits) {
+        return Float.intBitsToFloat((int) bits);
+    }
+
+    private static double toDouble(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long floatBits(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+
+    private static long doubleBits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    protected static Object box(long bits, int kind) {
+        switch (kind) {
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case FLOAT:
+                return toFloat(bits);
+            case DOUBLE:
+                return toDouble(bits);
+            default:
+                return bits != 0;
+        }
+    }
+
+    protected static long unbox(Object value, int kind) {
+        switch (kind) {
+            case INT:
+                return ((Number) value).intValue();
+            case LONG:
+                return ((Number) value).longValue();
+            case FLOAT:
+                return floatBits(((Number) value).floatValue());
+            case DOUBLE:
+                return doubleBits(((Number) value).doubleValue());
+            default:
+                return (Boolean) value ? 1 : 0;
+        }
+    }
+
+    //浮点数的比较结果，2表示有NaN参与比较
+    private static int compare(double a, double b) {
+        return a < b ? -1 : (a > b ? 1 : (a == b ? 0 : 2));
+    }
+
+    private static boolean test(int result, int cond) {
+        switch (cond) {
+            case EQ:
+                return result == 0;
+            case NE:
+                return result != 0;
+            case LT:
+                return result == -1;
+            case LE:
+                return result == 0 || result == -1;
+            case GT:
+                return result == 1;
+            case GE:
+                return result == 0 || result == 1;
+            case NOT_LT:
+                return result != -1;
+            case NOT_LE:
+                return result != 0 && result != -1;
+            case NOT_GT:
+                return result != 1;
+            default:
+                return result != 0 && result != 1;
+        }
+    }
+
+    /**
+     * short等类型的运算，规则跟ASTEvaluator一样：short运算的结果是int；其他类型不支持，结果是null
+     */
+    private static Object generic(int op, boolean isShort, Object a, Object b) {
+        switch (op) {
+            case PlayScriptParser.EQUAL:
+                return isShort ? ((Number) a).shortValue() == ((Number) b).shortValue() : a == b;
+            case PlayScriptParser.NOTEQUAL:
+                return isShort ? ((Number) a).shortValue() != ((Number) b).shortValue() : a != b;
+            default:
+                break;
+        }
+
+        if (!isShort) {
+            if (op == PlayScriptParser.ADD) {
+                System.out.println("unsupported add operation");
+            }
+            return null;
+        }
+
+        short x = ((Number) a).shortValue();
+        short y = ((Number) b).shortValue();
+        switch (op) {
+            case PlayScriptParser.ADD:
+                return x + y;
+            case PlayScriptParser.SUB:
+                return x - y;
+            case PlayScriptParser.MUL:
+                return x * y;
+            case PlayScriptParser.DIV:
+                return x / y;
+            case PlayScriptParser.LT:
+                return x < y;
+            case PlayScriptParser.LE:
+                return x <= y;
+            case PlayScriptParser.GT:
+                return x > y;
+            default:
+                return x >= y;
+        }
+    }
+}
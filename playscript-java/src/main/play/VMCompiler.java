@@ -0,0 +1,2044 @@
+package play;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import play.PlayScriptParser.*;
+import play.VMProgram.ClassInfo;
+import play.VMProgram.FunctionCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 把AnnotatedTree编译成VMProgram，由VM执行。
+ *
+ * 每个函数（包括全局代码、类的方法，以及类的属性初始化代码）编译成一段指令。
+ * 函数的参数、本地变量和临时变量都放在寄存器里。函数内的块作用域不单独分配，
+ * 并列的块作用域共用同一段寄存器，跟NodeCompiler的布局方式一样。
+ *
+ * 变量的访问方式在编译时就确定了：
+ * 全局变量直接访问全局代码的寄存器；被内层函数引用的变量放在Cell里，内层函数创建闭包的时候把Cell带走（upvalue），
+ * 这样外层函数返回以后，闭包仍然可以读写这些变量；类的属性按槽位访问。
+ * 静态类型是基础类型的运算用不装箱的指令，UnboxingAnalyzer找出来的变量也不装箱。
+ *
+ * return f(...)编译成尾调用指令，被调用函数复用当前的栈桢。
+ *
+ * 运行结果跟ASTEvaluator保持一致，包括它的一些特殊规则，比如&&和||两边都会计算，
+ * 没有return语句的函数返回最后一个语句的值，不支持的运算符结果是null，等等。
+ */
+public class VMCompiler {
+
+    private AnnotatedTree at = null;
+
+    //全局代码
+    private Unit main = null;
+
+    //所有的编译单元。key是Function、NameSpace，或者Class（代表类的属性初始化代码）
+    private Map<Scope, Unit> units = new HashMap<>();
+    private List<Unit> unitList = new ArrayList<>();
+
+    //所有的类，以及它们在VMProgram.classes中的下标
+    private List<Class> classes = new ArrayList<>();
+    private Map<Class, Integer> classIndex = new HashMap<>();
+
+    //每个方法的编号，用于查虚方法表
+    private Map<Function, Integer> selectors = new HashMap<>();
+
+    //对外层变量的引用，用来计算闭包
+    private List<Reference> references = new ArrayList<>();
+
+    //被当作值使用的函数
+    private Set<Function> functionValues = new HashSet<>();
+
+    //不需要装箱的变量
+    private Set<Variable> unboxed = null;
+
+    //当前正在编译的单元
+    private Unit unit = null;
+
+    //不需要结果的时候，用NONE代替目标寄存器
+    private static final int NONE = -1;
+
+    /**
+     * 一个编译单元：全局代码、函数、方法或者类的属性初始化代码，对应VMProgram中的一个FunctionCode
+     */
+    private static final class Unit {
+        private final Scope scope;
+        private final int index;
+
+        //词法上的外层单元
+        private Unit parent = null;
+
+        //方法和属性初始化代码，第0个寄存器是this
+        private boolean hasThis = false;
+        private Class theClass = null;
+
+        //是否需要闭包，也就是有没有upvalue
+        private boolean needsClosure = false;
+
+        //从外层引用的变量（以及函数、this），下标就是upvalue的编号
+        private List<Symbol> upvalues = new ArrayList<>();
+
+        //本单元中被内层函数引用的变量，放在Cell里
+        private Set<Symbol> captured = new HashSet<>();
+
+        //本单元中声明的、需要闭包的函数
+        private List<Function> closures = new ArrayList<>();
+
+        //变量（以及this、函数）所在的寄存器
+        private Map<Symbol, Integer> registers = new HashMap<>();
+
+        private int paramCount = 0;
+
+        //保存最后一个语句的值的寄存器，作为没有return语句时的返回值
+        private int result = 0;
+
+        //本地变量占用的寄存器个数。临时变量从这里开始分配
+        private int locals = 0;
+        private int top = 0;
+        private int maxTop = 0;
+
+        private int[] code = new int[64];
+        private int size = 0;
+
+        //最后一条调用指令的地址，用于把return f(...)改成尾调用
+        private int lastCall = -1;
+        private List<Object> constants = new ArrayList<>();
+
+        //break和continue可以跳转到的语句，最内层的在最前面
+        private LinkedList<JumpTarget> jumpTargets = new LinkedList<>();
+
+        private Unit(Scope scope, int index) {
+            this.scope = scope;
+            this.index = index;
+        }
+    }
+
+    /**
+     * 在某个单元里，引用了属于另一个单元的变量、函数或this
+     */
+    private static final class Reference {
+        private final Unit from;
+        private final Symbol symbol;
+        private final Unit owner;
+
+        private Reference(Unit from, Symbol symbol, Unit owner) {
+            this.from = from;
+            this.symbol = symbol;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * break和continue可以跳转到的语句：循环，或者带标签的语句。跳转指令的地址在语句编译完以后回填。
+     */
+    private static final class JumpTarget {
+        private final String label;
+        private final boolean isLoop;
+        private List<Integer> breaks = new ArrayList<>();
+        private List<Integer> continues = new ArrayList<>();
+
+        private JumpTarget(String label, boolean isLoop) {
+            this.label = label;
+            this.isLoop = isLoop;
+        }
+    }
+
+    /**
+     * 变量或属性的位置
+     */
+    private static final class Location {
+        private static final int LOCAL = 0;         //当前栈桢的寄存器
+        private static final int GLOBAL = 1;        //全局代码的寄存器
+        private static final int CELL = 2;          //当前栈桢的寄存器里的Cell
+        private static final int UPVALUE = 3;       //闭包的upvalue
+        private static final int FIELD = 4;         //对象的属性，按槽位访问
+        private static final int FIELD_BY_NAME = 5; //对象的属性，运行时按名称查找
+
+        private final int mode;
+        private final int index;
+        private final int object;
+        private final int kind;
+
+        private Location(int mode, int index, int object, int kind) {
+            this.mode = mode;
+            this.index = index;
+            this.object = object;
+            this.kind = kind;
+        }
+    }
+
+    public VMCompiler(AnnotatedTree at) {
+        this.at = at;
+    }
+
+    /**
+     * 编译整个程序
+     * @return
+     */
+    public VMProgram compile() {
+        main = newUnit(at.nameSpace);
+        collectUnits(at.nameSpace);
+        for (Unit u : unitList) {
+            u.parent = parentOf(u);
+        }
+
+        //找出闭包需要的变量，再决定哪些变量可以不装箱
+        new ParseTreeWalker().walk(new ReferenceCollector(), at.ast);
+        analyzeClosures();
+
+        UnboxingAnalyzer analyzer = new UnboxingAnalyzer(at);
+        analyzer.keepBoxed(boxedVariables());
+        unboxed = analyzer.analyze();
+
+        for (Unit u : unitList) {
+            layoutUnit(u);
+        }
+
+        VMProgram program = new VMProgram();
+        program.functions = new FunctionCode[unitList.size()];
+        for (Unit u : unitList) {
+            program.functions[u.index] = generate(u);
+        }
+        program.classes = new ClassInfo[classes.size()];
+        for (int i = 0; i < classes.size(); i++) {
+            program.classes[i] = classInfo(classes.get(i));
+        }
+        return program;
+    }
+
+    private UnsupportedOperationException unsupported(String feature, ParserRuleContext ctx) {
+        if (ctx == null) {
+            return new UnsupportedOperationException(feature);
+        }
+        return new UnsupportedOperationException(feature + " @" + ctx.getStart().getLine() + ":" + ctx.getStart().getCharPositionInLine());
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 编译单元
+
+    private Unit newUnit(Scope scope) {
+        Unit u = new Unit(scope, unitList.size());
+        units.put(scope, u);
+        unitList.add(u);
+        return u;
+    }
+
+    /**
+     * 为每个函数和方法创建编译单元。有属性初始化的类，也创建一个单元。
+     * @param scope
+     */
+    private void collectUnits(Scope scope) {
+        for (Symbol symbol : scope.symbols) {
+            if (symbol instanceof Function && !(symbol instanceof DefaultConstructor)) {
+                Function function = (Function) symbol;
+                Unit u = newUnit(function);
+                if (function.isMethod()) {
+                    u.hasThis = true;
+                    u.theClass = (Class) function.enclosingScope;
+                    if (!function.isConstructor()) {
+                        selectors.put(function, selectors.size());
+                    }
+                }
+                collectUnits(function);
+            } else if (symbol instanceof Class) {
+                Class theClass = (Class) symbol;
+                classIndex.put(theClass, classes.size());
+                classes.add(theClass);
+                if (hasInitializer(theClass)) {
+                    Unit u = newUnit(theClass);
+                    u.hasThis = true;
+                    u.theClass = theClass;
+                }
+                collectUnits(theClass);
+            } else if (symbol instanceof BlockScope) {
+                collectUnits((Scope) symbol);
+            }
+        }
+    }
+
+    private static List<VariableDeclaratorContext> fieldDeclarators(Class theClass) {
+        List<VariableDeclaratorContext> declarators = new ArrayList<>();
+        ClassBodyContext body = ((ClassDeclarationContext) theClass.ctx).classBody();
+        for (ClassBodyDeclarationContext child : body.classBodyDeclaration()) {
+            MemberDeclarationContext member = child.memberDeclaration();
+            if (member != null && member.fieldDeclaration() != null) {
+                declarators.addAll(member.fieldDeclaration().variableDeclarators().variableDeclarator());
+            }
+        }
+        return declarators;
+    }
+
+    private static boolean hasInitializer(Class theClass) {
+        for (VariableDeclaratorContext declarator : fieldDeclarators(theClass)) {
+            if (declarator.variableInitializer() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一个Scope属于哪个单元
+     * @param scope
+     * @return
+     */
+    private Unit unitOf(Scope scope) {
+        while (scope != null && !(scope instanceof Function) && !(scope instanceof Class) && scope != at.nameSpace) {
+            scope = scope.enclosingScope;
+        }
+        return scope == null ? main : units.get(scope);
+    }
+
+    private Unit parentOf(Unit u) {
+        if (u == main) {
+            return null;
+        }
+        Scope outer = u.hasThis ? u.theClass.enclosingScope : u.scope.enclosingScope;
+        return unitOf(outer);
+    }
+
+    /**
+     * 在某个单元里，this是哪个单元的第0个寄存器：沿词法结构向外找到的第一个方法
+     * @param u
+     * @return
+     */
+    private Unit thisOwner(Unit u) {
+        while (u != null && !u.hasThis) {
+            u = u.parent;
+        }
+        return u;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 闭包分析
+
+    /**
+     * 收集对变量、函数和this的引用
+     */
+    private class ReferenceCollector extends PlayScriptBaseListener {
+        private LinkedList<Unit> stack = new LinkedList<>();
+
+        private ReferenceCollector() {
+            stack.push(main);
+        }
+
+        @Override
+        public void enterFunctionDeclaration(FunctionDeclarationContext ctx) {
+            stack.push(units.get(at.node2Scope.get(ctx)));
+        }
+
+        @Override
+        public void exitFunctionDeclaration(FunctionDeclarationContext ctx) {
+            stack.pop();
+        }
+
+        @Override
+        public void enterFieldDeclaration(FieldDeclarationContext ctx) {
+            stack.push(units.get(classOf(ctx)));
+        }
+
+        @Override
+        public void exitFieldDeclaration(FieldDeclarationContext ctx) {
+            stack.pop();
+        }
+
+        @Override
+        public void enterPrimary(PrimaryContext ctx) {
+            if (ctx.THIS() != null || ctx.SUPER() != null) {
+                referThis(stack.peek());
+            } else if (ctx.IDENTIFIER() != null) {
+                Symbol symbol = at.symbolOfNode.get(ctx);
+                if (symbol instanceof Variable) {
+                    referVariable(stack.peek(), (Variable) symbol);
+                } else if (symbol instanceof Function) {
+                    functionValues.add((Function) symbol);
+                    referFunction(stack.peek(), (Function) symbol);
+                }
+            }
+        }
+
+        @Override
+        public void enterFunctionCall(FunctionCallContext ctx) {
+            if (ctx.THIS() != null || ctx.SUPER() != null) {
+                referThis(stack.peek());
+                return;
+            }
+            if (isMethodCall(ctx)) {
+                return;
+            }
+            Symbol symbol = at.symbolOfNode.get(ctx);
+            if (symbol instanceof Variable) {
+                referVariable(stack.peek(), (Variable) symbol);
+            } else if (symbol instanceof Function && !(symbol instanceof DefaultConstructor)) {
+                Function function = (Function) symbol;
+                if (function.isMethod()) {
+                    if (!function.isConstructor()) {
+                        referThis(stack.peek());
+                    }
+                } else {
+                    referFunction(stack.peek(), function);
+                }
+            }
+        }
+
+        private void referVariable(Unit from, Variable variable) {
+            if (from == null) {
+                return;
+            }
+            if (variable.enclosingScope instanceof Class) {
+                referThis(from);
+            } else {
+                references.add(new Reference(from, variable, unitOf(variable.enclosingScope)));
+            }
+        }
+
+        private void referFunction(Unit from, Function function) {
+            if (from != null && !function.isMethod()) {
+                references.add(new Reference(from, function, unitOf(function.enclosingScope)));
+            }
+        }
+
+        private void referThis(Unit from) {
+            Unit owner = thisOwner(from);
+            if (owner != null) {
+                references.add(new Reference(from, owner.theClass.getThis(), owner));
+            }
+        }
+    }
+
+    /**
+     * 属性声明所在的类
+     * @param ctx
+     * @return
+     */
+    private Class classOf(ParserRuleContext ctx) {
+        ParserRuleContext node = ctx;
+        while (node != null && !(node instanceof ClassDeclarationContext)) {
+            node = node.getParent();
+        }
+        return node == null ? null : (Class) at.node2Scope.get(node);
+    }
+
+    /**
+     * 是否是用点符号调用的方法，例如obj.foo()
+     * @param ctx
+     * @return
+     */
+    private static boolean isMethodCall(FunctionCallContext ctx) {
+        if (ctx.parent instanceof ExpressionContext) {
+            ExpressionContext parent = (ExpressionContext) ctx.parent;
+            return parent.bop != null && parent.bop.getType() == PlayScriptParser.DOT;
+        }
+        return false;
+    }
+
+    /**
+     * 计算每个单元的upvalue，以及哪些变量要放在Cell里。
+     * 引用外层的函数时，只有那个函数本身需要闭包，才需要把它的闭包作为upvalue带进来，所以要反复计算，直到结果不再变化。
+     */
+    private void analyzeClosures() {
+        boolean changed = true;
+        while (changed) {
+            for (Unit u : unitList) {
+                u.upvalues.clear();
+                u.captured.clear();
+            }
+
+            for (Reference reference : references) {
+                if (reference.symbol instanceof Function && !units.get(reference.symbol).needsClosure) {
+                    continue;
+                }
+                //全局变量直接访问，本单元的变量也不需要upvalue
+                if (reference.owner == main || reference.owner == reference.from) {
+                    continue;
+                }
+                Unit u = reference.from;
+                while (u != reference.owner) {
+                    //方法是按类调用的，没有闭包，不能引用外层函数的变量
+                    if (u == null || u == main || u.hasThis) {
+                        throw unsupported("closure over " + reference.symbol.name + " in a method", reference.symbol.ctx);
+                    }
+                    if (!u.upvalues.contains(reference.symbol)) {
+                        u.upvalues.add(reference.symbol);
+                    }
+                    u = u.parent;
+                }
+                reference.owner.captured.add(reference.symbol);
+            }
+
+            changed = false;
+            for (Unit u : unitList) {
+                boolean needsClosure = !u.upvalues.isEmpty();
+                if (needsClosure != u.needsClosure) {
+                    u.needsClosure = needsClosure;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 必须装箱的变量：放在Cell里的变量；通过闭包或虚方法表调用的函数的参数，因为调用的时候不知道是哪个函数，参数都按对象传递
+     * @return
+     */
+    private Set<Variable> boxedVariables() {
+        Set<Variable> boxed = new HashSet<>();
+        for (Unit u : unitList) {
+            for (Symbol symbol : u.captured) {
+                if (symbol instanceof Variable) {
+                    boxed.add((Variable) symbol);
+                }
+            }
+            if (u.scope instanceof Function) {
+                Function function = (Function) u.scope;
+                if (u.needsClosure || u.hasThis || functionValues.contains(function)) {
+                    boxed.addAll(function.parameters);
+                }
+            }
+        }
+        return boxed;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 寄存器布局
+
+    private void layoutUnit(Unit u) {
+        int next = 0;
+        if (u.hasThis) {
+            u.registers.put(u.theClass.getThis(), next++);
+        }
+        if (u.scope instanceof Function) {
+            for (Variable param : ((Function) u.scope).parameters) {
+                u.registers.put(param, next++);
+            }
+        }
+        u.paramCount = next;
+
+        //Cell和闭包在函数开始的时候创建，一直有效，所以不能跟别的变量共用寄存器
+        if (!(u.scope instanceof Class)) {
+            collectClosures(u, u.scope);
+        }
+        for (Symbol symbol : u.captured) {
+            if (!u.registers.containsKey(symbol)) {
+                u.registers.put(symbol, next++);
+            }
+        }
+        for (Function function : u.closures) {
+            if (!u.registers.containsKey(function)) {
+                u.registers.put(function, next++);
+            }
+        }
+        u.result = next++;
+
+        if (!(u.scope instanceof Class)) {
+            next = layoutScope(u, u.scope, next);
+        }
+        u.locals = next;
+        u.top = next;
+        u.maxTop = next;
+    }
+
+    private void collectClosures(Unit u, Scope scope) {
+        for (Symbol symbol : scope.symbols) {
+            if (symbol instanceof Function && !(symbol instanceof DefaultConstructor)) {
+                if (units.get(symbol).needsClosure) {
+                    u.closures.add((Function) symbol);
+                }
+            } else if (symbol instanceof BlockScope) {
+                collectClosures(u, (Scope) symbol);
+            }
+        }
+    }
+
+    private int layoutScope(Unit u, Scope scope, int offset) {
+        int end = offset;
+        for (Symbol symbol : scope.symbols) {
+            if (symbol instanceof Variable && !u.registers.containsKey(symbol)) {
+                u.registers.put(symbol, end++);
+            }
+        }
+        int max = end;
+        for (Symbol symbol : scope.symbols) {
+            if (symbol instanceof BlockScope) {
+                max = Math.max(max, layoutScope(u, (Scope) symbol, end));
+            }
+        }
+        return max;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 生成指令
+
+    private int emit(int op, int... operands) {
+        int pc = unit.size;
+        int length = operands.length + 1;
+        if (unit.size + length > unit.code.length) {
+            unit.code = Arrays.copyOf(unit.code, Math.max(unit.code.length * 2, unit.size + length));
+        }
+        unit.code[unit.size++] = op;
+        for (int operand : operands) {
+            unit.code[unit.size++] = operand;
+        }
+        if (op == VM.CALL || op == VM.CALLC || op == VM.CALLM) {
+            unit.lastCall = pc;
+        }
+        return pc;
+    }
+
+    /**
+     * 如果刚生成的最后一条指令是调用，并且结果放在register里，就把它改成尾调用，不需要再生成RET指令。
+     * 全局代码不做尾调用，因为全局变量就放在它的栈桢里。
+     * @return 是否改成了尾调用
+     */
+    private boolean tailCall(int register) {
+        int pc = unit.lastCall;
+        if (unit == main || pc < 0 || pc + 4 != unit.size || unit.code[pc + 3] != register) {
+            return false;
+        }
+        switch (unit.code[pc]) {
+            case VM.CALL:
+                unit.code[pc] = VM.TCALL;
+                break;
+            case VM.CALLC:
+                unit.code[pc] = VM.TCALLC;
+                break;
+            default:
+                unit.code[pc] = VM.TCALLM;
+                break;
+        }
+        return true;
+    }
+
+    //当前指令地址
+    private int here() {
+        return unit.size;
+    }
+
+    /**
+     * 生成一条跳转指令，返回要回填的目标地址所在的位置
+     */
+    private int jump() {
+        return emit(VM.JMP, -1) + 1;
+    }
+
+    private void patch(int position, int target) {
+        unit.code[position] = target;
+    }
+
+    private int constant(Object value) {
+        int index = unit.constants.indexOf(value);
+        if (index < 0) {
+            index = unit.constants.size();
+            unit.constants.add(value);
+        }
+        return index;
+    }
+
+    /**
+     * 没有值。ASTEvaluator中，不支持的运算和语句的值是Java的null，而null字面量和未赋值的变量是NullObject，打印出来不一样
+     */
+    private void nothing(int dst) {
+        emit(VM.LOADK, dst, constant(null));
+    }
+
+    private int temp() {
+        int register = unit.top++;
+        if (unit.top > unit.maxTop) {
+            unit.maxTop = unit.top;
+        }
+        return register;
+    }
+
+    private FunctionCode generate(Unit u) {
+        unit = u;
+
+        //创建Cell，以及本单元中声明的函数的闭包。函数可以在声明之前调用，所以在一开始就创建好
+        for (Symbol symbol : u.captured) {
+            int register = u.registers.get(symbol);
+            emit(register < u.paramCount ? VM.CELLWRAP : VM.CELLNEW, register);
+        }
+        for (Function function : u.closures) {
+            int register = u.registers.get(function);
+            if (u.captured.contains(function)) {
+                int t = temp();
+                emit(VM.CLOSURE, t, units.get(function).index);
+                emit(VM.CELLSET, register, t);
+                u.top = u.locals;
+            } else {
+                emit(VM.CLOSURE, register, units.get(function).index);
+            }
+        }
+
+        String name;
+        if (u == main) {
+            name = "main";
+            blockStatements(((ProgContext) at.ast).blockStatements(), u.result);
+            emit(VM.RET, u.result);
+        } else if (u.scope instanceof Class) {
+            name = u.theClass.name + ".<init>";
+            fieldInitializers(u.theClass);
+            emit(VM.RETNULL);
+        } else {
+            Function function = (Function) u.scope;
+            name = function.isMethod() ? u.theClass.name + "." + function.name : function.name;
+            FunctionDeclarationContext ctx = (FunctionDeclarationContext) function.ctx;
+            if (ctx.functionBody().block() != null) {
+                //跟ASTEvaluator一样，没有return语句的时候，返回最后一个语句的值
+                blockStatements(ctx.functionBody().block().blockStatements(), u.result);
+                emit(VM.RET, u.result);
+            } else {
+                emit(VM.RETNULL);
+            }
+        }
+
+        FunctionCode function = new FunctionCode(name);
+        function.code = Arrays.copyOf(u.code, u.size);
+        function.constants = u.constants.toArray();
+        function.frameSize = u.maxTop;
+        function.paramCount = u.paramCount;
+        function.captures = new int[u.upvalues.size()];
+        if (u.parent != null) {
+            for (int i = 0; i < function.captures.length; i++) {
+                Symbol symbol = u.upvalues.get(i);
+                if (u.parent.registers.containsKey(symbol) && u.parent.captured.contains(symbol)) {
+                    function.captures[i] = u.parent.registers.get(symbol);
+                } else {
+                    function.captures[i] = -1 - u.parent.upvalues.indexOf(symbol);
+                }
+            }
+        }
+        return function;
+    }
+
+    private void fieldInitializers(Class theClass) {
+        for (VariableDeclaratorContext declarator : fieldDeclarators(theClass)) {
+            if (declarator.variableInitializer() == null) {
+                continue;
+            }
+            Variable field = (Variable) at.symbolOfNode.get(declarator.variableDeclaratorId());
+            int t = temp();
+            initializer(declarator.variableInitializer(), t);
+            emit(VM.SETF, thisRegister(), field.slot, t);
+            unit.top = unit.locals;
+        }
+    }
+
+    /**
+     * 变量的初始值，以对象的形式放到寄存器里。ASTEvaluator不支持数组，初始值是null。
+     */
+    private void initializer(VariableInitializerContext ctx, int dst) {
+        if (ctx.expression() != null) {
+            expression(ctx.expression(), dst, VM.REF);
+        } else {
+            emit(VM.LOADNULL, dst);
+        }
+    }
+
+    private ClassInfo classInfo(Class theClass) {
+        ClassInfo info = new ClassInfo(theClass.name);
+        if (theClass.getParentClass() != null) {
+            info.parent = classIndex.get(theClass.getParentClass());
+        }
+        info.fieldCount = theClass.frameSize;
+
+        //从父类到子类依次登记属性名称，子类的同名属性覆盖父类的
+        LinkedList<Class> chain = ancestors(theClass);
+        for (Class c : chain) {
+            for (Symbol symbol : c.symbols) {
+                if (symbol instanceof Variable) {
+                    info.fieldSlots.put(symbol.name, ((Variable) symbol).slot);
+                }
+            }
+        }
+
+        info.vtable = new int[selectors.size()];
+        Arrays.fill(info.vtable, -1);
+        for (Map.Entry<Function, Integer> entry : selectors.entrySet()) {
+            Function method = entry.getKey();
+            Class declaring = (Class) method.enclosingScope;
+            if (declaring == theClass || declaring.isAncestor(theClass)) {
+                info.vtable[entry.getValue()] = units.get(theClass.getOverride(method)).index;
+            }
+        }
+        return info;
+    }
+
+    //从最顶层的父类到本类
+    private static LinkedList<Class> ancestors(Class theClass) {
+        LinkedList<Class> chain = new LinkedList<>();
+        for (Class c = theClass; c != null; c = c.getParentClass()) {
+            chain.addFirst(c);
+        }
+        return chain;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 变量的访问
+
+    private static int kindOf(Type type) {
+        if (type == PrimitiveType.Integer) {
+            return VM.INT;
+        } else if (type == PrimitiveType.Long) {
+            return VM.LONG;
+        } else if (type == PrimitiveType.Float) {
+            return VM.FLOAT;
+        } else if (type == PrimitiveType.Double) {
+            return VM.DOUBLE;
+        } else if (type == PrimitiveType.Boolean) {
+            return VM.BOOL;
+        }
+        return VM.REF;
+    }
+
+    //变量按什么形式存放
+    private int kindOf(Variable variable) {
+        return unboxed.contains(variable) ? kindOf(variable.type) : VM.REF;
+    }
+
+    /**
+     * 变量的位置
+     * @param variable
+     * @param ctx
+     * @return
+     */
+    private Location locate(Symbol variable, ParserRuleContext ctx) {
+        if (variable instanceof Variable && variable.enclosingScope instanceof Class) {
+            return new Location(Location.FIELD, ((Variable) variable).slot, thisRegister(), VM.REF);
+        }
+
+        Unit owner = unitOf(variable.enclosingScope);
+        int kind = variable instanceof Variable ? kindOf((Variable) variable) : VM.REF;
+        if (owner == unit) {
+            Integer register = unit.registers.get(variable);
+            if (register == null) {
+                throw unsupported("variable " + variable.name, ctx);
+            }
+            if (unit.captured.contains(variable)) {
+                return new Location(Location.CELL, register, 0, VM.REF);
+            }
+            return new Location(Location.LOCAL, register, 0, kind);
+        } else if (owner == main) {
+            Integer register = main.registers.get(variable);
+            if (register == null) {
+                throw unsupported("variable " + variable.name, ctx);
+            }
+            return new Location(Location.GLOBAL, register, 0, kind);
+        }
+
+        int index = unit.upvalues.indexOf(variable);
+        if (index < 0) {
+            throw unsupported("variable " + variable.name, ctx);
+        }
+        return new Location(Location.UPVALUE, index, 0, VM.REF);
+    }
+
+    /**
+     * 返回存放this的寄存器
+     * @return
+     */
+    private int thisRegister() {
+        Unit owner = thisOwner(unit);
+        if (owner == null) {
+            throw unsupported("this outside a class", null);
+        }
+        This thisRef = owner.theClass.getThis();
+        if (owner == unit && !unit.captured.contains(thisRef)) {
+            return 0;
+        }
+        int t = temp();
+        if (owner == unit) {
+            emit(VM.CELLGET, t, 0);
+        } else {
+            emit(VM.UPGET, t, unit.upvalues.indexOf(thisRef));
+        }
+        return t;
+    }
+
+    /**
+     * 用点符号访问的属性。如果子类有同名的属性，运行时要按对象的真实类型查找，跟ASTEvaluator一样；
+     * 通过this和super访问的属性不需要。
+     * @param ctx
+     * @param object 存放对象的寄存器
+     * @return
+     */
+    private Location fieldLocation(ExpressionContext ctx, int object) {
+        Variable field = (Variable) at.symbolOfNode.get(ctx);
+        if (field == null || !(field.enclosingScope instanceof Class)) {
+            throw unsupported("field " + ctx.getText(), ctx);
+        }
+        if (!isThisOrSuper(ctx.expression(0)) && isHidden(field)) {
+            return new Location(Location.FIELD_BY_NAME, constant(field.name), object, VM.REF);
+        }
+        return new Location(Location.FIELD, field.slot, object, VM.REF);
+    }
+
+    private static boolean isThisOrSuper(ExpressionContext ctx) {
+        return ctx.primary() != null && (ctx.primary().THIS() != null || ctx.primary().SUPER() != null);
+    }
+
+    //有没有子类声明了同名的属性
+    private boolean isHidden(Variable field) {
+        Class declaring = (Class) field.enclosingScope;
+        for (Class theClass : classes) {
+            if (theClass != declaring && declaring.isAncestor(theClass)) {
+                for (Symbol symbol : theClass.symbols) {
+                    if (symbol instanceof Variable && symbol.name.equals(field.name)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把变量的值读到寄存器dst
+     * @return 值的形式
+     */
+    private int load(Location location, int dst) {
+        switch (location.mode) {
+            case Location.LOCAL:
+                move(dst, location.index, location.kind);
+                break;
+            case Location.GLOBAL:
+                emit(location.kind == VM.REF ? VM.GGET : VM.GGETP, dst, location.index);
+                break;
+            case Location.CELL:
+                emit(VM.CELLGET, dst, location.index);
+                break;
+            case Location.UPVALUE:
+                emit(VM.UPGET, dst, location.index);
+                break;
+            case Location.FIELD:
+                emit(VM.GETF, dst, location.object, location.index);
+                break;
+            default:
+                emit(VM.GETFN, dst, location.object, location.index);
+                break;
+        }
+        return location.kind;
+    }
+
+    /**
+     * 把寄存器src的值写到变量里。src中的值的形式必须跟变量一致。
+     */
+    private void store(Location location, int src) {
+        switch (location.mode) {
+            case Location.LOCAL:
+                move(location.index, src, location.kind);
+                break;
+            case Location.GLOBAL:
+                emit(location.kind == VM.REF ? VM.GSET : VM.GSETP, location.index, src);
+                break;
+            case Location.CELL:
+                emit(VM.CELLSET, location.index, src);
+                break;
+            case Location.UPVALUE:
+                emit(VM.UPSET, location.index, src);
+                break;
+            case Location.FIELD:
+                emit(VM.SETF, location.object, location.index, src);
+                break;
+            default:
+                emit(VM.SETFN, location.object, location.index, src);
+                break;
+        }
+    }
+
+    private void move(int dst, int src, int kind) {
+        if (dst != src) {
+            emit(kind == VM.REF ? VM.MOVE : VM.MOVEP, dst, src);
+        }
+    }
+
+    /**
+     * 把寄存器src里的值从一种形式转换成另一种形式，放到dst
+     */
+    private void convert(int dst, int src, int from, int to, ParserRuleContext ctx) {
+        if (from == to) {
+            move(dst, src, from);
+        } else if (to == VM.REF) {
+            emit(VM.BOX, dst, src, from);
+        } else if (from == VM.REF) {
+            emit(VM.UNBOX, dst, src, to);
+        } else if (from == VM.INT && to == VM.LONG) {
+            emit(VM.I2L, dst, src);
+        } else if (from == VM.INT && to == VM.FLOAT) {
+            emit(VM.I2F, dst, src);
+        } else if (from == VM.INT && to == VM.DOUBLE) {
+            emit(VM.I2D, dst, src);
+        } else if (from == VM.LONG && to == VM.FLOAT) {
+            emit(VM.L2F, dst, src);
+        } else if (from == VM.LONG && to == VM.DOUBLE) {
+            emit(VM.L2D, dst, src);
+        } else if (from == VM.FLOAT && to == VM.DOUBLE) {
+            emit(VM.F2D, dst, src);
+        } else {
+            throw unsupported("conversion from kind " + from + " to " + to, ctx);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 语句
+
+    /**
+     * 编译一组语句
+     * @param ctx
+     * @param result 存放最后一个语句的值的寄存器。不需要的话是NONE
+     */
+    private void blockStatements(BlockStatementsContext ctx, int result) {
+        List<BlockStatementContext> children = ctx.blockStatement();
+        if (children.isEmpty() && result != NONE) {
+            nothing(result);
+        }
+        for (int i = 0; i < children.size(); i++) {
+            blockStatement(children.get(i), i == children.size() - 1 ? result : NONE);
+            unit.top = unit.locals;
+        }
+    }
+
+    private void blockStatement(BlockStatementContext ctx, int result) {
+        if (ctx.variableDeclarators() != null) {
+            variableDeclarators(ctx.variableDeclarators(), result);
+        } else if (ctx.statement() != null) {
+            statement(ctx.statement(), result);
+        } else if (result != NONE) {
+            //函数和类的声明
+            nothing(result);
+        }
+    }
+
+    private void variableDeclarators(VariableDeclaratorsContext ctx, int result) {
+        List<VariableDeclaratorContext> declarators = ctx.variableDeclarator();
+        for (int i = 0; i < declarators.size(); i++) {
+            VariableDeclaratorContext declarator = declarators.get(i);
+            Variable variable = (Variable) at.symbolOfNode.get(declarator.variableDeclaratorId());
+            Location location = locate(variable, declarator);
+            boolean last = i == declarators.size() - 1;
+
+            if (declarator.variableInitializer() == null) {
+                //块作用域的寄存器可能被重复使用，所以没有初始值的变量也要清空
+                int t = location.mode == Location.LOCAL ? location.index : temp();
+                emit(VM.LOADNULL, t);
+                store(location, t);
+                if (last && result != NONE) {
+                    nothing(result);
+                }
+                continue;
+            }
+
+            VariableInitializerContext initializer = declarator.variableInitializer();
+            int value;
+            if (initializer.expression() == null) {
+                value = location.mode == Location.LOCAL ? location.index : temp();
+                emit(VM.LOADNULL, value);
+            } else if (location.mode == Location.LOCAL) {
+                value = location.index;
+                expression(initializer.expression(), value, location.kind);
+            } else {
+                value = temp();
+                expression(initializer.expression(), value, location.kind);
+            }
+            if (last && result != NONE) {
+                convert(result, value, location.kind, VM.REF, declarator);
+            }
+            if (initializer.expression() != null) {
+                normalize(location, initializer.expression(), value);
+            }
+            store(location, value);
+        }
+    }
+
+    private void statement(StatementContext ctx, int result) {
+        if (ctx.statementExpression != null) {
+            if (result == NONE) {
+                effect(ctx.statementExpression);
+            } else {
+                expression(ctx.statementExpression, result, VM.REF);
+            }
+        } else if (ctx.IF() != null) {
+            //条件是常量时，只编译会执行的分支
+            Object constant = at.constantOfNode.get(ctx.parExpression().expression());
+            if (constant instanceof Boolean) {
+                if ((Boolean) constant) {
+                    statement(ctx.statement(0), result);
+                } else if (ctx.ELSE() != null) {
+                    statement(ctx.statement(1), result);
+                } else if (result != NONE) {
+                    nothing(result);
+                }
+                return;
+            }
+            if (result != NONE && ctx.ELSE() == null) {
+                nothing(result);
+            }
+            int toElse = branch(ctx.parExpression().expression(), false);
+            unit.top = unit.locals;
+            statement(ctx.statement(0), result);
+            if (ctx.ELSE() != null) {
+                int toEnd = jump();
+                patch(toElse, here());
+                statement(ctx.statement(1), result);
+                patch(toEnd, here());
+            } else {
+                patch(toElse, here());
+            }
+        } else if (ctx.FOR() != null) {
+            forStatement(ctx);
+            if (result != NONE) {
+                nothing(result);
+            }
+        } else if (ctx.WHILE() != null) {
+            //跟ASTEvaluator一样，do-while也按while循环执行。条件是false的循环一次也不会执行
+            if (!Boolean.FALSE.equals(at.constantOfNode.get(ctx.parExpression().expression()))) {
+                whileStatement(ctx);
+            }
+            if (result != NONE) {
+                nothing(result);
+            }
+        } else if (ctx.blockLabel != null) {
+            blockStatements(ctx.blockLabel.blockStatements(), result);
+        } else if (ctx.BREAK() != null) {
+            JumpTarget target = findJumpTarget(ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null, false, ctx);
+            target.breaks.add(jump());
+        } else if (ctx.CONTINUE() != null) {
+            JumpTarget target = findJumpTarget(ctx.IDENTIFIER() != null ? ctx.IDENTIFIER().getText() : null, true, ctx);
+            target.continues.add(jump());
+        } else if (ctx.RETURN() != null) {
+            if (ctx.expression() != null) {
+                int t = temp();
+                expression(ctx.expression(), t, VM.REF);
+                if (!tailCall(t)) {
+                    emit(VM.RET, t);
+                }
+            } else {
+                emit(VM.RETNULL);
+            }
+        } else if (ctx.identifierLabel != null) {
+            StatementContext statement = ctx.statement(0);
+            //循环语句的标签由循环自己处理
+            if (statement.FOR() != null || statement.WHILE() != null) {
+                statement(statement, result);
+            } else {
+                JumpTarget target = new JumpTarget(ctx.identifierLabel.getText(), false);
+                unit.jumpTargets.push(target);
+                statement(statement, result);
+                unit.jumpTargets.pop();
+                for (int position : target.breaks) {
+                    patch(position, here());
+                }
+            }
+        } else if (result != NONE) {
+            //空语句，以及ASTEvaluator不支持的switch语句
+            nothing(result);
+        }
+    }
+
+    /**
+     * 循环的条件放在循环体后面，每次迭代只需要一个条件跳转
+     */
+    private void whileStatement(StatementContext ctx) {
+        JumpTarget target = new JumpTarget(labelOf(ctx), true);
+        int toCondition = jump();
+        int body = here();
+        unit.jumpTargets.push(target);
+        statement(ctx.statement(0), NONE);
+        unit.jumpTargets.pop();
+        unit.top = unit.locals;
+
+        int condition = here();
+        patch(toCondition, condition);
+        patch(branch(ctx.parExpression().expression(), true), body);
+        unit.top = unit.locals;
+        patchJumps(target, condition, here());
+    }
+
+    private void forStatement(StatementContext ctx) {
+        ForControlContext forControl = ctx.forControl();
+        if (forControl.enhancedForControl() != null) {
+            //ASTEvaluator还不支持
+            return;
+        }
+
+        if (forControl.forInit() != null) {
+            ForInitContext forInit = forControl.forInit();
+            if (forInit.variableDeclarators() != null) {
+                variableDeclarators(forInit.variableDeclarators(), NONE);
+            } else {
+                for (ExpressionContext expression : forInit.expressionList().expression()) {
+                    effect(expression);
+                }
+            }
+            unit.top = unit.locals;
+        }
+
+        //条件是false的循环一次也不会执行，只保留初始化部分
+        if (forControl.expression() != null && Boolean.FALSE.equals(at.constantOfNode.get(forControl.expression()))) {
+            return;
+        }
+
+        JumpTarget target = new JumpTarget(labelOf(ctx), true);
+        int toCondition = jump();
+        int body = here();
+        unit.jumpTargets.push(target);
+        statement(ctx.statement(0), NONE);
+        unit.jumpTargets.pop();
+        unit.top = unit.locals;
+
+        int update = here();
+        if (forControl.forUpdate != null) {
+            for (ExpressionContext expression : forControl.forUpdate.expression()) {
+                effect(expression);
+                unit.top = unit.locals;
+            }
+        }
+
+        patch(toCondition, here());
+        if (forControl.expression() != null) {
+            patch(branch(forControl.expression(), true), body);
+        } else {
+            patch(jump(), body);
+        }
+        unit.top = unit.locals;
+        patchJumps(target, update, here());
+    }
+
+    private void patchJumps(JumpTarget target, int continueTo, int breakTo) {
+        for (int position : target.continues) {
+            patch(position, continueTo);
+        }
+        for (int position : target.breaks) {
+            patch(position, breakTo);
+        }
+    }
+
+    /**
+     * 循环语句的标签，例如 outer: while(...)
+     * @param ctx
+     * @return
+     */
+    private String labelOf(StatementContext ctx) {
+        if (ctx.parent instanceof StatementContext && ((StatementContext) ctx.parent).identifierLabel != null) {
+            return ((StatementContext) ctx.parent).identifierLabel.getText();
+        }
+        return null;
+    }
+
+    /**
+     * 查找break或continue跳转到的语句
+     * @param label 标签，可以为null。为null的时候是最内层的循环
+     * @param isContinue continue只能跳到循环
+     * @param ctx
+     * @return
+     */
+    private JumpTarget findJumpTarget(String label, boolean isContinue, ParserRuleContext ctx) {
+        for (JumpTarget target : unit.jumpTargets) {
+            if (label == null ? target.isLoop : (label.equals(target.label) && (target.isLoop || !isContinue))) {
+                return target;
+            }
+        }
+        throw unsupported("jump target " + label, ctx);
+    }
+
+    /**
+     * 条件跳转。条件的值等于sense的时候跳转，返回要回填的目标地址所在的位置
+     * @param ctx
+     * @param sense
+     * @return
+     */
+    private int branch(ExpressionContext ctx, boolean sense) {
+        //条件是常量，并且一定跳转
+        if (Boolean.valueOf(sense).equals(at.constantOfNode.get(ctx))) {
+            return jump();
+        }
+        if (ctx.primary() != null && ctx.primary().expression() != null) {
+            return branch(ctx.primary().expression(), sense);
+        }
+        if (ctx.prefix != null && ctx.prefix.getType() == PlayScriptParser.BANG) {
+            return branch(ctx.expression(0), !sense);
+        }
+
+        if (ctx.bop != null && ctx.expression().size() >= 2 && isComparison(ctx.bop.getType())) {
+            int kind = kindOf(comparisonType(ctx));
+            Integer constant = kind == VM.INT ? intConstant(ctx.expression(1)) : null;
+            if (constant != null) {
+                int a = operand(ctx.expression(0), kind);
+                int cond = condition(ctx.bop.getType());
+                return emit(VM.JCMPIK, sense ? cond : negate(cond, kind), a, constant, -1) + 4;
+            } else if (kind != VM.REF) {
+                int a = operand(ctx.expression(0), kind);
+                int b = operand(ctx.expression(1), kind);
+                int cond = condition(ctx.bop.getType());
+                if (!sense) {
+                    cond = negate(cond, kind);
+                }
+                return emit(compareJump(kind), cond, a, b, -1) + 4;
+            }
+        }
+
+        int value = operand(ctx, VM.BOOL);
+        return emit(sense ? VM.JTRUE : VM.JFALSE, value, -1) + 2;
+    }
+
+    private static boolean isComparison(int op) {
+        switch (op) {
+            case PlayScriptParser.EQUAL:
+            case PlayScriptParser.NOTEQUAL:
+            case PlayScriptParser.LT:
+            case PlayScriptParser.LE:
+            case PlayScriptParser.GT:
+            case PlayScriptParser.GE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int condition(int op) {
+        switch (op) {
+            case PlayScriptParser.EQUAL:
+                return VM.EQ;
+            case PlayScriptParser.NOTEQUAL:
+                return VM.NE;
+            case PlayScriptParser.LT:
+                return VM.LT;
+            case PlayScriptParser.LE:
+                return VM.LE;
+            case PlayScriptParser.GT:
+                return VM.GT;
+            default:
+                return VM.GE;
+        }
+    }
+
+    //对比较结果取反。整数可以直接换成相反的比较；浮点数有NaN，要用NOT_XXX
+    private static int negate(int cond, int kind) {
+        boolean isInteger = kind == VM.INT || kind == VM.LONG;
+        switch (cond) {
+            case VM.EQ:
+                return VM.NE;
+            case VM.NE:
+                return VM.EQ;
+            case VM.LT:
+                return isInteger ? VM.GE : VM.NOT_LT;
+            case VM.LE:
+                return isInteger ? VM.GT : VM.NOT_LE;
+            case VM.GT:
+                return isInteger ? VM.LE : VM.NOT_GT;
+            default:
+                return isInteger ? VM.LT : VM.NOT_GE;
+        }
+    }
+
+    private static int compareJump(int kind) {
+        switch (kind) {
+            case VM.INT:
+                return VM.JCMPI;
+            case VM.LONG:
+                return VM.JCMPL;
+            case VM.FLOAT:
+                return VM.JCMPF;
+            default:
+                return VM.JCMPD;
+        }
+    }
+
+    //比较运算所用的类型
+    private Type comparisonType(ExpressionContext ctx) {
+        Type type = PrimitiveType.getUpperType(at.typeOfNode.get(ctx.expression(0)), at.typeOfNode.get(ctx.expression(1)));
+        //boolean不做数值比较
+        return type == PrimitiveType.Boolean ? null : type;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 表达式
+
+    /**
+     * 计算表达式，以kind的形式放到寄存器dst里
+     */
+    private void expression(ExpressionContext ctx, int dst, int kind) {
+        //本单元的变量，直接从它的寄存器转换，不需要先复制
+        Variable variable = localVariable(ctx);
+        if (variable != null) {
+            convert(dst, unit.registers.get(variable), kindOf(variable), kind, ctx);
+            return;
+        }
+        int from = produce(ctx, dst);
+        convert(dst, dst, from, kind, ctx);
+    }
+
+    /**
+     * 如果表达式是当前单元中一个直接存放在寄存器里的变量，返回这个变量
+     */
+    private Variable localVariable(ExpressionContext ctx) {
+        //值是常量的变量，直接用常量
+        if (ctx.primary() != null && ctx.primary().IDENTIFIER() != null && !at.constantOfNode.containsKey(ctx)) {
+            Symbol symbol = at.symbolOfNode.get(ctx.primary());
+            if (symbol instanceof Variable && !(symbol.enclosingScope instanceof Class)
+                    && unitOf(symbol.enclosingScope) == unit && !unit.captured.contains(symbol)) {
+                return (Variable) symbol;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 计算表达式，返回存放结果的寄存器。如果表达式就是当前函数中的一个变量，直接返回变量的寄存器，不需要复制。
+     */
+    private int operand(ExpressionContext ctx, int kind) {
+        Variable variable = localVariable(ctx);
+        if (variable != null && kindOf(variable) == kind) {
+            return unit.registers.get(variable);
+        }
+        int t = temp();
+        expression(ctx, t, kind);
+        return t;
+    }
+
+    /**
+     * 计算表达式，但不需要结果
+     */
+    private void effect(ExpressionContext ctx) {
+        if (ctx.functionCall() != null) {
+            boolean isDot = ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT;
+            call(ctx.functionCall(), isDot ? ctx.expression(0) : null, NONE);
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.ASSIGN) {
+            assign(ctx, NONE);
+        } else if (isIncrement(ctx)) {
+            increment(ctx, NONE);
+        } else {
+            produce(ctx, temp());
+        }
+    }
+
+    private static boolean isIncrement(ExpressionContext ctx) {
+        int op = ctx.postfix != null ? ctx.postfix.getType() : (ctx.prefix != null ? ctx.prefix.getType() : -1);
+        return op == PlayScriptParser.INC || op == PlayScriptParser.DEC;
+    }
+
+    /**
+     * 计算表达式，结果放到寄存器dst里
+     * @return 结果的形式
+     */
+    private int produce(ExpressionContext ctx, int dst) {
+        //编译时已经算出来的常量
+        Object constant = at.constantOfNode.get(ctx);
+        if (constant != null) {
+            return loadConstant(constant, dst);
+        }
+
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            int op = ctx.bop.getType();
+            switch (op) {
+                case PlayScriptParser.ADD:
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV:
+                    return arithmetic(ctx, op, dst);
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT:
+                    return comparison(ctx, op, dst);
+                case PlayScriptParser.AND:
+                case PlayScriptParser.OR: {
+                    //跟ASTEvaluator一样，两边都要计算
+                    int mark = unit.top;
+                    int a = operand(ctx.expression(0), VM.BOOL);
+                    int b = operand(ctx.expression(1), VM.BOOL);
+                    emit(op == PlayScriptParser.AND ? VM.AND : VM.OR, dst, a, b);
+                    unit.top = mark;
+                    return VM.BOOL;
+                }
+                case PlayScriptParser.ASSIGN:
+                    return assign(ctx, dst);
+                default: {
+                    //其他运算ASTEvaluator不支持，计算了前两个子表达式以后，结果是null
+                    int mark = unit.top;
+                    effect(ctx.expression(0));
+                    effect(ctx.expression(1));
+                    unit.top = mark;
+                    nothing(dst);
+                    return VM.REF;
+                }
+            }
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT) {
+            return dot(ctx, dst);
+        } else if (ctx.primary() != null) {
+            return primary(ctx.primary(), dst);
+        } else if (isIncrement(ctx)) {
+            return increment(ctx, dst);
+        } else if (ctx.prefix != null) {
+            int mark = unit.top;
+            if (ctx.prefix.getType() == PlayScriptParser.BANG) {
+                int a = operand(ctx.expression(0), VM.BOOL);
+                emit(VM.NOT, dst, a);
+                unit.top = mark;
+                return VM.BOOL;
+            }
+            //正负号和按位取反，ASTEvaluator的结果是null
+            effect(ctx.expression(0));
+            unit.top = mark;
+            nothing(dst);
+            return VM.REF;
+        } else if (ctx.functionCall() != null) {
+            return call(ctx.functionCall(), null, dst);
+        }
+
+        //数组、instanceof、移位等，ASTEvaluator不计算，结果是null
+        nothing(dst);
+        return VM.REF;
+    }
+
+    private int arithmetic(ExpressionContext ctx, int op, int dst) {
+        Type type = at.typeOfNode.get(ctx);
+        int kind = type == PrimitiveType.Boolean ? VM.REF : kindOf(type);
+        int mark = unit.top;
+        Integer constant = kind == VM.INT && (op == PlayScriptParser.ADD || op == PlayScriptParser.SUB)
+                ? intConstant(ctx.expression(1)) : null;
+        if (constant != null) {
+            //加减一个常量，例如n - 1
+            int a = operand(ctx.expression(0), kind);
+            emit(VM.ADDIK, dst, a, op == PlayScriptParser.ADD ? constant : -constant);
+            unit.top = mark;
+            return kind;
+        } else if (kind != VM.REF) {
+            int a = operand(ctx.expression(0), kind);
+            int b = operand(ctx.expression(1), kind);
+            emit(arithmeticOp(op, kind), dst, a, b);
+            unit.top = mark;
+            return kind;
+        }
+
+        int a = operand(ctx.expression(0), VM.REF);
+        int b = operand(ctx.expression(1), VM.REF);
+        if (type == PrimitiveType.String && op == PlayScriptParser.ADD) {
+            emit(VM.CONCAT, dst, a, b);
+        } else {
+            emit(VM.GENERIC, dst, a, b, op, type == PrimitiveType.Short ? 1 : 0);
+        }
+        unit.top = mark;
+        return VM.REF;
+    }
+
+    /**
+     * 如果表达式是int字面量或者int常量，返回它的值，可以作为指令的操作数，省去一条LOADI
+     */
+    private Integer intConstant(ExpressionContext ctx) {
+        Object constant = at.constantOfNode.get(ctx);
+        if (constant instanceof Integer) {
+            return (Integer) constant == Integer.MIN_VALUE ? null : (Integer) constant;
+        }
+        if (ctx.primary() != null && ctx.primary().literal() != null) {
+            IntegerLiteralContext literal = ctx.primary().literal().integerLiteral();
+            if (literal != null && literal.DECIMAL_LITERAL() != null) {
+                try {
+                    int value = Integer.parseInt(literal.DECIMAL_LITERAL().getText());
+                    return value == Integer.MIN_VALUE ? null : value;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int arithmeticOp(int op, int kind) {
+        int base;
+        switch (kind) {
+            case VM.INT:
+                base = VM.ADDI;
+                break;
+            case VM.LONG:
+                base = VM.ADDL;
+                break;
+            case VM.FLOAT:
+                base = VM.ADDF;
+                break;
+            default:
+                base = VM.ADDD;
+                break;
+        }
+        switch (op) {
+            case PlayScriptParser.ADD:
+                return base;
+            case PlayScriptParser.SUB:
+                return base + 1;
+            case PlayScriptParser.MUL:
+                return base + 2;
+            default:
+                return base + 3;
+        }
+    }
+
+    private int comparison(ExpressionContext ctx, int op, int dst) {
+        Type type = comparisonType(ctx);
+        int kind = kindOf(type);
+        int mark = unit.top;
+        if (kind != VM.REF) {
+            int a = operand(ctx.expression(0), kind);
+            int b = operand(ctx.expression(1), kind);
+            int compare = kind == VM.INT ? VM.CMPI : (kind == VM.LONG ? VM.CMPL : (kind == VM.FLOAT ? VM.CMPF : VM.CMPD));
+            emit(compare, dst, a, b, condition(op));
+            unit.top = mark;
+            return VM.BOOL;
+        }
+
+        int a = operand(ctx.expression(0), VM.REF);
+        int b = operand(ctx.expression(1), VM.REF);
+        unit.top = mark;
+        if (type == PrimitiveType.Short) {
+            emit(VM.GENERIC, dst, a, b, op, 1);
+            return VM.REF;
+        } else if (op == PlayScriptParser.EQUAL || op == PlayScriptParser.NOTEQUAL) {
+            //对于对象实例、函数等，直接比较对象引用
+            emit(op == PlayScriptParser.EQUAL ? VM.REFEQ : VM.REFNE, dst, a, b);
+            return VM.BOOL;
+        }
+        nothing(dst);
+        return VM.REF;
+    }
+
+    /**
+     * 可以赋值的表达式：变量、属性
+     */
+    private Location lvalue(ExpressionContext ctx) {
+        if (ctx.primary() != null) {
+            PrimaryContext primary = ctx.primary();
+            if (primary.expression() != null) {
+                return lvalue(primary.expression());
+            }
+            Symbol symbol = at.symbolOfNode.get(primary);
+            if (primary.IDENTIFIER() != null && symbol instanceof Variable) {
+                return locate(symbol, ctx);
+            }
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT && ctx.IDENTIFIER() != null) {
+            int object = temp();
+            expression(ctx.expression(0), object, VM.REF);
+            return fieldLocation(ctx, object);
+        }
+        throw unsupported("lvalue " + ctx.getText(), ctx);
+    }
+
+    /**
+     * ASTEvaluator从变量里读出null的时候，返回的是NullObject。Cell和对象的属性在读的时候转换，
+     * 寄存器里的变量则是直接使用的，所以给它们赋值的时候，如果值可能是null，先转换一下。
+     */
+    private void normalize(Location location, ExpressionContext value, int register) {
+        if (location.kind == VM.REF && (location.mode == Location.LOCAL || location.mode == Location.GLOBAL)
+                && mayBeNothing(value)) {
+            emit(VM.MOVEN, register, register);
+        }
+    }
+
+    /**
+     * 表达式的值是否可能是Java的null，参见nothing()
+     */
+    private boolean mayBeNothing(ExpressionContext ctx) {
+        if (at.constantOfNode.containsKey(ctx)) {
+            return false;
+        }
+        if (ctx.bop != null && ctx.expression().size() >= 2) {
+            switch (ctx.bop.getType()) {
+                case PlayScriptParser.ADD:
+                case PlayScriptParser.SUB:
+                case PlayScriptParser.MUL:
+                case PlayScriptParser.DIV: {
+                    Type type = at.typeOfNode.get(ctx);
+                    return (type == PrimitiveType.Boolean || kindOf(type) == VM.REF)
+                            && !(type == PrimitiveType.String && ctx.bop.getType() == PlayScriptParser.ADD);
+                }
+                case PlayScriptParser.EQUAL:
+                case PlayScriptParser.NOTEQUAL:
+                case PlayScriptParser.AND:
+                case PlayScriptParser.OR:
+                    return false;
+                case PlayScriptParser.LE:
+                case PlayScriptParser.LT:
+                case PlayScriptParser.GE:
+                case PlayScriptParser.GT: {
+                    Type type = comparisonType(ctx);
+                    return kindOf(type) == VM.REF && type != PrimitiveType.Short;
+                }
+                case PlayScriptParser.ASSIGN:
+                    return mayBeNothing(ctx.expression(1));
+                default:
+                    return true;
+            }
+        } else if (ctx.bop != null && ctx.bop.getType() == PlayScriptParser.DOT) {
+            //读属性的时候已经转换过了
+            return ctx.IDENTIFIER() == null;
+        } else if (ctx.primary() != null) {
+            PrimaryContext primary = ctx.primary();
+            if (primary.expression() != null) {
+                return mayBeNothing(primary.expression());
+            } else if (primary.literal() != null) {
+                LiteralContext literal = primary.literal();
+                return literal.integerLiteral() != null && literal.integerLiteral().DECIMAL_LITERAL() == null;
+            }
+            return false;
+        } else if (isIncrement(ctx)) {
+            return false;
+        } else if (ctx.prefix != null) {
+            return ctx.prefix.getType() != PlayScriptParser.BANG;
+        }
+        //函数调用，以及ASTEvaluator不支持的表达式
+        return true;
+    }
+
+    private int assign(ExpressionContext ctx, int dst) {
+        int mark = unit.top;
+        Location location = lvalue(ctx.expression(0));
+        int value;
+        if (location.mode == Location.LOCAL) {
+            value = location.index;
+        } else {
+            value = temp();
+        }
+        expression(ctx.expression(1), value, location.kind);
+        if (dst != NONE) {
+            move(dst, value, location.kind);
+        }
+        normalize(location, ctx.expression(1), value);
+        store(location, value);
+        unit.top = mark;
+        return location.kind;
+    }
+
+    /**
+     * ++和--。规则跟ASTEvaluator一样：静态类型是int的，按Integer计算，否则按Long计算。
+     */
+    private int increment(ExpressionContext ctx, int dst) {
+        boolean prefix = ctx.prefix != null;
+        int delta = (prefix ? ctx.prefix.getType() : ctx.postfix.getType()) == PlayScriptParser.INC ? 1 : -1;
+        boolean isInt = at.typeOfNode.get(ctx.expression(0)) == PrimitiveType.Integer;
+        int mark = unit.top;
+        Location location = lvalue(ctx.expression(0));
+        int kind = location.kind;
+        if (kind != VM.REF && kind != VM.INT && kind != VM.LONG) {
+            throw unsupported("increment of " + ctx.expression(0).getText(), ctx);
+        }
+        int add = kind == VM.INT ? VM.ADDIK : VM.ADDLK;
+
+        if (location.mode == Location.LOCAL && kind != VM.REF) {
+            int register = location.index;
+            if (dst == NONE) {
+                emit(add, register, register, delta);
+            } else if (prefix) {
+                emit(add, register, register, delta);
+                move(dst, register, kind);
+            } else {
+                int old = dst == register ? temp() : dst;
+                move(old, register, kind);
+                emit(add, register, register, delta);
+                move(dst, old, kind);
+            }
+            unit.top = mark;
+            return kind;
+        }
+
+        int old = temp();
+        int updated = temp();
+        load(location, old);
+        if (kind == VM.REF) {
+            emit(VM.INCREF, updated, old, delta, isInt ? 1 : 0);
+        } else {
+            emit(add, updated, old, delta);
+        }
+        store(location, updated);
+        if (dst != NONE) {
+            move(dst, prefix ? updated : old, kind);
+        }
+        unit.top = mark;
+        return kind;
+    }
+
+    private int dot(ExpressionContext ctx, int dst) {
+        if (ctx.functionCall() != null) {
+            return call(ctx.functionCall(), ctx.expression(0), dst);
+        } else if (ctx.IDENTIFIER() != null) {
+            int mark = unit.top;
+            int object = operand(ctx.expression(0), VM.REF);
+            load(fieldLocation(ctx, object), dst);
+            unit.top = mark;
+            return VM.REF;
+        }
+        nothing(dst);
+        return VM.REF;
+    }
+
+    private int primary(PrimaryContext ctx, int dst) {
+        if (ctx.literal() != null) {
+            return literal(ctx.literal(), dst);
+        } else if (ctx.expression() != null) {
+            return produce(ctx.expression(), dst);
+        } else if (ctx.THIS() != null || ctx.SUPER() != null) {
+            int mark = unit.top;
+            move(dst, thisRegister(), VM.REF);
+            unit.top = mark;
+            return VM.REF;
+        }
+
+        Symbol symbol = at.symbolOfNode.get(ctx);
+        if (symbol instanceof Variable) {
+            int mark = unit.top;
+            int kind = load(locate(symbol, ctx), dst);
+            unit.top = mark;
+            return kind;
+        } else if (symbol instanceof Function) {
+            Function function = (Function) symbol;
+            if (function.isMethod()) {
+                throw unsupported("method as a value " + ctx.getText(), ctx);
+            }
+            Unit target = units.get(function);
+            if (target.needsClosure) {
+                load(locate(function, ctx), dst);
+            } else {
+                emit(VM.CLOSURE, dst, target.index);
+            }
+            return VM.REF;
+        }
+        throw unsupported(ctx.getText(), ctx);
+    }
+
+    /**
+     * 把ConstantFolder算出来的常量放到寄存器dst里
+     * @return 结果的形式
+     */
+    private int loadConstant(Object value, int dst) {
+        if (value instanceof Integer) {
+            emit(VM.LOADI, dst, (Integer) value);
+            return VM.INT;
+        } else if (value instanceof Float) {
+            emit(VM.LOADI, dst, Float.floatToRawIntBits((Float) value));
+            return VM.FLOAT;
+        } else if (value instanceof Boolean) {
+            emit(VM.LOADI, dst, (Boolean) value ? 1 : 0);
+            return VM.BOOL;
+        } else if (value instanceof Long || value instanceof Double) {
+            long bits = value instanceof Long ? (Long) value : Double.doubleToRawLongBits((Double) value);
+            emit(VM.LOADL, dst, (int) bits, (int) (bits >>> 32));
+            return value instanceof Long ? VM.LONG : VM.DOUBLE;
+        }
+        emit(VM.LOADK, dst, constant(value));
+        return VM.REF;
+    }
+
+    private int literal(LiteralContext ctx, int dst) {
+        if (ctx.integerLiteral() != null) {
+            //跟ASTEvaluator一样，只支持十进制整数
+            if (ctx.integerLiteral().DECIMAL_LITERAL() == null) {
+                nothing(dst);
+                return VM.REF;
+            }
+            try {
+                emit(VM.LOADI, dst, Integer.parseInt(ctx.integerLiteral().DECIMAL_LITERAL().getText()));
+            } catch (NumberFormatException e) {
+                throw unsupported("integer literal " + ctx.getText(), ctx);
+            }
+            return VM.INT;
+        } else if (ctx.floatLiteral() != null) {
+            emit(VM.LOADI, dst, Float.floatToRawIntBits(Float.valueOf(ctx.floatLiteral().getText())));
+            return VM.FLOAT;
+        } else if (ctx.BOOL_LITERAL() != null) {
+            emit(VM.LOADI, dst, ctx.BOOL_LITERAL().getText().equals("true") ? 1 : 0);
+            return VM.BOOL;
+        } else if (ctx.STRING_LITERAL() != null) {
+            String withQuotationMark = ctx.STRING_LITERAL().getText();
+            //每次求值都创建新的字符串，==的结果才跟ASTEvaluator一样
+            emit(VM.NEWSTR, dst, constant(withQuotationMark.substring(1, withQuotationMark.length() - 1)));
+        } else if (ctx.CHAR_LITERAL() != null) {
+            emit(VM.LOADK, dst, constant(ctx.CHAR_LITERAL().getText().charAt(0)));
+        } else {
+            emit(VM.LOADNULL, dst);
+        }
+        return VM.REF;
+    }
+
+    ///////////////////////////////////////////////////////////
+    /// 函数调用
+
+    /**
+     * 函数调用
+     * @param ctx
+     * @param receiver 用点符号调用方法时，点左边的表达式；否则是null
+     * @param dst 存放返回值的寄存器
+     * @return
+     */
+    private int call(FunctionCallContext ctx, ExpressionContext receiver, int dst) {
+        int mark = unit.top;
+        Symbol symbol = at.symbolOfNode.get(ctx);
+
+        if (ctx.THIS() != null || ctx.SUPER() != null) {
+            //this()和super()：在同一个对象上调用另一个构造方法
+            if (symbol instanceof Function && !(symbol instanceof DefaultConstructor)) {
+                int this_ = thisRegister();
+                int base = arguments(ctx, this_, null);
+                emit(VM.CALL, units.get(symbol).index, base, base);
+            }
+            unit.top = mark;
+            if (dst != NONE) {
+                nothing(dst);
+            }
+            return VM.REF;
+        }
+
+        int result;
+        if (receiver != null) {
+            result = methodCall(ctx, receiver, symbol, dst);
+        } else if (symbol instanceof DefaultConstructor) {
+            int object = newObject(((DefaultConstructor) symbol).Class());
+            result = object;
+        } else if (ctx.IDENTIFIER().getText().equals("println")) {
+            println(ctx);
+            result = NONE;
+            if (dst != NONE) {
+                nothing(dst);
+            }
+        } else if (symbol instanceof Function) {
+            Function function = (Function) symbol;
+            Unit target = units.get(function);
+            if (function.isConstructor()) {
+                int object = newObject((Class) function.enclosingScope);
+                int base = arguments(ctx, object, null);
+                emit(VM.CALL, target.index, base, base);
+                result = object;
+            } else if (function.isMethod()) {
+                //跟ASTEvaluator一样，方法内直接调用本类的方法，不做动态绑定
+                int base = arguments(ctx, thisRegister(), null);
+                result = dst == NONE ? base : dst;
+                emit(VM.CALL, target.index, base, result);
+            } else if (target.needsClosure) {
+                int closure = temp();
+                load(locate(function, ctx), closure);
+                int base = arguments(ctx, NONE, null);
+                result = dst == NONE ? base : dst;
+                emit(VM.CALLC, closure, base, result);
+            } else {
+                int base = arguments(ctx, NONE, function);
+                result = dst == NONE ? base : dst;
+                emit(VM.CALL, target.index, base, result);
+            }
+        } else if (symbol instanceof Variable) {
+            //函数型的变量
+            int closure = temp();
+            load(locate(symbol, ctx), closure);
+            int base = arguments(ctx, NONE, null);
+            result = dst == NONE ? base : dst;
+            emit(VM.CALLC, closure, base, result);
+        } else {
+            throw unsupported("function " + ctx.getText(), ctx);
+        }
+
+        if (dst != NONE && result != NONE) {
+            move(dst, result, VM.REF);
+        }
+        unit.top = mark;
+        return VM.REF;
+    }
+
+    /**
+     * 用点符号调用方法，或者调用对象的函数型属性
+     */
+    private int methodCall(FunctionCallContext ctx, ExpressionContext receiver, Symbol symbol, int dst) {
+        if (symbol instanceof Function) {
+            Function function = (Function) symbol;
+            int object = temp();
+            expression(receiver, object, VM.REF);
+            int base = arguments(ctx, object, null);
+            int result = dst == NONE ? base : dst;
+            boolean isSuper = receiver.primary() != null && receiver.primary().SUPER() != null;
+            if (isSuper || function.isConstructor()) {
+                emit(VM.CALL, units.get(function).index, base, result);
+            } else {
+                emit(VM.CALLM, selectors.get(function), base, result);
+            }
+            return result;
+        } else if (symbol instanceof Variable) {
+            int object = operand(receiver, VM.REF);
+            int closure = temp();
+            emit(VM.GETF, closure, object, ((Variable) symbol).slot);
+            int base = arguments(ctx, NONE, null);
+            int result = dst == NONE ? base : dst;
+            emit(VM.CALLC, closure, base, result);
+            return result;
+        }
+        throw unsupported("method " + ctx.getText(), ctx);
+    }
+
+    /**
+     * 把参数计算到临时寄存器的末尾，这一段会成为被调用函数的栈桢的开头
+     * @param ctx
+     * @param this_ 方法调用时存放对象的寄存器，否则是NONE
+     * @param function 直接调用的普通函数，参数可以不装箱；否则是null，参数都按对象传递
+     * @return 参数的起始寄存器
+     */
+    private int arguments(FunctionCallContext ctx, int this_, Function function) {
+        List<ExpressionContext> arguments = ctx.expressionList() != null ? ctx.expressionList().expression() : new ArrayList<>();
+        int base = unit.top;
+        int count = arguments.size() + (this_ != NONE ? 1 : 0);
+        for (int i = 0; i < count; i++) {
+            temp();
+        }
+
+        int next = base;
+        if (this_ != NONE) {
+            move(next++, this_, VM.REF);
+        }
+        for (int i = 0; i < arguments.size(); i++) {
+            int kind = VM.REF;
+            if (function != null && i < function.parameters.size()) {
+                kind = kindOf(function.parameters.get(i));
+            }
+            if (kind == VM.REF && mayBeNothing(arguments.get(i))) {
+                expression(arguments.get(i), next, kind);
+                emit(VM.MOVEN, next, next);
+                next++;
+            } else {
+                expression(arguments.get(i), next++, kind);
+            }
+        }
+        return base;
+    }
+
+    /**
+     * 创建对象，从父类到子类依次执行属性的初始化
+     * @return 存放对象的寄存器
+     */
+    private int newObject(Class theClass) {
+        int object = temp();
+        emit(VM.NEW, object, classIndex.get(theClass));
+        for (Class c : ancestors(theClass)) {
+            Unit initializer = units.get(c);
+            if (initializer != null) {
+                int base = temp();
+                move(base, object, VM.REF);
+                emit(VM.CALL, initializer.index, base, base);
+                unit.top = base;
+            }
+        }
+        return object;
+    }
+
+    private void println(FunctionCallContext ctx) {
+        if (ctx.expressionList() == null) {
+            emit(VM.PRINTLN0);
+            return;
+        }
+        //跟ASTEvaluator一样，计算所有的参数，打印最后一个
+        List<ExpressionContext> arguments = ctx.expressionList().expression();
+        for (int i = 0; i < arguments.size() - 1; i++) {
+            effect(arguments.get(i));
+        }
+        emit(VM.PRINTLN, operand(arguments.get(arguments.size() - 1), VM.REF));
+    }
+}
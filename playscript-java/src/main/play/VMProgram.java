@@ -0,0 +1,122 @@
+package play;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * VMCompiler编译出来的程序，由VM执行。
+ *
+ * 每个函数的代码是一个int数组：一个操作码，后面跟着固定个数的操作数，操作数大多是寄存器的编号。
+ * 字符串等常量放在函数自己的常量池里。
+ * 程序里不再引用AST和符号表，只包含函数、类和常量，所以可以序列化保存下来。
+ */
+public class VMProgram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    //所有的函数。全局代码是第0个
+    protected FunctionCode[] functions = null;
+
+    //所有的类
+    protected ClassInfo[] classes = null;
+
+    /**
+     * 一个函数的代码
+     */
+    public static final class FunctionCode implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected final String name;
+
+        //指令
+        protected int[] code = null;
+
+        //常量池
+        protected Object[] constants = null;
+
+        //需要的寄存器个数，包括参数、本地变量和临时变量
+        protected int frameSize = 0;
+
+        //参数个数。对于方法，第0个参数是this
+        protected int paramCount = 0;
+
+        //创建闭包时，每个upvalue从哪里取：大于等于0的，是外层函数的寄存器（里面是一个Cell）；
+        //小于0的，是外层函数自己的第(-1 - n)个upvalue
+        protected int[] captures = new int[0];
+
+        public FunctionCode(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return "FunctionCode " + name;
+        }
+    }
+
+    /**
+     * 类的运行时信息
+     */
+    public static final class ClassInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected final String name;
+
+        //父类在VMProgram.classes中的下标，没有父类的是-1
+        protected int parent = -1;
+
+        //属性个数，包括父类的属性
+        protected int fieldCount = 0;
+
+        //按名称查找属性的槽位。子类的同名属性会覆盖父类的
+        protected Map<String, Integer> fieldSlots = new HashMap<>();
+
+        //虚方法表。下标是方法的编号（VMCompiler给每个方法分配一个），值是本类的对象实际要调用的函数
+        protected int[] vtable = new int[0];
+
+        public ClassInfo(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return "ClassInfo " + name;
+        }
+    }
+
+    /**
+     * 打印所有函数的指令，便于查看编译结果
+     * @return
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functions.length; i++) {
+            FunctionCode function = functions[i];
+            sb.append("function #").append(i).append(' ').append(function.name)
+                    .append(" (params ").append(function.paramCount)
+                    .append(", registers ").append(function.frameSize)
+                    .append(", upvalues ").append(function.captures.length).append(")\n");
+            int pc = 0;
+            while (pc < function.code.length) {
+                int op = function.code[pc];
+                sb.append(String.format("  %4d  %-9s", pc, VM.NAMES[op]));
+                for (int j = 1; j <= VM.OPERANDS[op]; j++) {
+                    sb.append(' ').append(function.code[pc + j]);
+                }
+                if (op == VM.LOADK || op == VM.NEWSTR) {
+                    sb.append("    ; ").append(function.constants[function.code[pc + 2]]);
+                }
+                sb.append('\n');
+                pc += VM.OPERANDS[op] + 1;
+            }
+        }
+        for (int i = 0; i < classes.length; i++) {
+            ClassInfo info = classes[i];
+            sb.append("class #").append(i).append(' ').append(info.name)
+                    .append(" (parent ").append(info.parent)
+                    .append(", fields ").append(info.fieldCount).append(")\n");
+        }
+        return sb.toString();
+    }
+}
@@ -13,6 +13,9 @@ public class Variable extends Symbol {
     //是否允许多次重复，这是一个创新的参数机制
     protected Integer multiplicity = 1;
 
+    //在栈桢（或对象）中的槽位，由SlotResolver分配。-1表示还没有分配
+    protected int slot = -1;
+
     protected Variable(String name, Scope enclosingScope, ParserRuleContext ctx) {
         this.name = name;
         this.enclosingScope = enclosingScope;
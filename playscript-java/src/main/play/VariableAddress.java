@@ -0,0 +1,45 @@
+package play;
+
+/**
+ * 变量引用的静态地址，由SlotResolver计算出来。
+ * 运行时从当前栈桢沿着parentFrame向上走depth层，就是存放该变量的栈桢，再用slot作为下标取值。
+ * 函数调用的静态链接也用这个类表示，这时走到的是被调用函数的外层作用域的栈桢，slot是-1。
+ */
+public class VariableAddress {
+    //从引用变量的地方，到变量所在的栈桢，要向上走几层
+    protected int depth = 0;
+
+    //变量在栈桢中的槽位
+    protected int slot = -1;
+
+    //变量所在的Scope。运行时用来校验找到的栈桢是不是对的
+    protected Scope scope = null;
+
+    protected VariableAddress(int depth, int slot, Scope scope) {
+        this.depth = depth;
+        this.slot = slot;
+        this.scope = scope;
+    }
+
+    /**
+     * 运行时找到的栈桢，是否就是编译期算出来的那个。
+     * 对于类的属性，栈桢里可能是子类的对象，槽位是兼容的。
+     * 对于闭包等情况，运行时的栈桢链可能跟词法作用域不一致，这时候返回false，由调用者按原来的方式查找。
+     * @param frameScope
+     * @return
+     */
+    protected boolean matches(Scope frameScope) {
+        if (frameScope == scope) {
+            return true;
+        }
+        if (scope instanceof Class && frameScope instanceof Class) {
+            return ((Class) frameScope).isType((Class) scope);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + depth + ", " + slot + ")";
+    }
+}